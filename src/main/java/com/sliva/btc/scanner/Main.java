@@ -38,6 +38,9 @@ public class Main {
                 case update:
                     RunFullScan.main(removeCmd(args));
                     return;
+                case update_sharded:
+                    RunShardedScan.main(removeCmd(args));
+                    return;
                 case update_spent:
                     RunUpdateSpent.main(removeCmd(args));
                     return;
@@ -76,6 +79,7 @@ public class Main {
 
     public enum Command {
         update,
+        update_sharded,
         update_spent,
         update_wallets,
         prepare_blocks,
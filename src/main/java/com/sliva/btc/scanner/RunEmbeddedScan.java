@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner;
+
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.OutputStatus;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.rpc.RpcClient;
+import com.sliva.btc.scanner.src.BJBlockProvider;
+import com.sliva.btc.scanner.src.BlockProvider;
+import com.sliva.btc.scanner.src.BlockProviderWithBackup;
+import com.sliva.btc.scanner.src.RpcBlockProvider;
+import com.sliva.btc.scanner.src.SrcAddress;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.src.SrcBlock;
+import com.sliva.btc.scanner.src.SrcInput;
+import com.sliva.btc.scanner.src.SrcOutput;
+import com.sliva.btc.scanner.src.SrcTransaction;
+import com.sliva.btc.scanner.storage.EmbeddedStorage;
+import com.sliva.btc.scanner.util.Utils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+/**
+ * Blockchain scan into {@link EmbeddedStorage} in local directory, selected
+ * with "--storage embedded" of the update command. Does not need a DB
+ * server: blocks are read from pre-loaded block files or node RPC, processed
+ * in a single thread and stored with sequentially allocated transaction and
+ * address IDs. Outputs are stored as unspent and marked spent by inputs
+ * spending them. Input special attributes (sighash type, segwit, multisig)
+ * are not stored.
+ *
+ * Progress is saved in {@value #PROGRESS_FILE_NAME} after storage is flushed
+ * to disk. Blocks after the last saved block are processed again on next
+ * start, their records get the same keys and are overwritten.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class RunEmbeddedScan {
+
+    public static final String STORAGE_MYSQL = "mysql";
+    public static final String STORAGE_EMBEDDED = "embedded";
+    private static final String DEFAULT_STORAGE_PATH = "embedded-db";
+    private static final int DEFAULT_CHECKPOINT_BLOCKS = 1000;
+    private static final String PROGRESS_FILE_NAME = "scan.properties";
+    private static final String PROP_LAST_BLOCK = "last-block";
+    private static final String PROP_LAST_TRANSACTION_ID = "last-transaction-id";
+    private final File dir;
+    private final File stopFile;
+    private final int checkpointBlocks;
+    private final BlockProvider blockProvider;
+    private final Map<SrcAddressType, Integer> lastAddressIds = new EnumMap<>(SrcAddressType.class);
+    private int lastTransactionId;
+
+    public RunEmbeddedScan(CommandLine cmd, File stopFile) {
+        this.dir = new File(cmd.getOptionValue("storage-path", DEFAULT_STORAGE_PATH));
+        this.stopFile = stopFile;
+        this.checkpointBlocks = Integer.parseInt(cmd.getOptionValue("storage-checkpoint-blocks", Integer.toString(DEFAULT_CHECKPOINT_BLOCKS)));
+        BJBlockProvider.applyArguments(cmd);
+        RpcClient.applyArguments(cmd);
+        if (cmd.hasOption("full-blocks-path")) {
+            blockProvider = new BlockProviderWithBackup(new BJBlockProvider(), new RpcBlockProvider());
+        } else {
+            blockProvider = new RpcBlockProvider();
+        }
+    }
+
+    /**
+     * Check if embedded storage is selected instead of MySQL.
+     *
+     * @param cmd command line
+     * @return true if the scan has to run with {@link RunEmbeddedScan}
+     */
+    public static boolean isSelected(CommandLine cmd) {
+        String storage = cmd.getOptionValue("storage", STORAGE_MYSQL);
+        if (STORAGE_EMBEDDED.equalsIgnoreCase(storage)) {
+            return true;
+        } else if (STORAGE_MYSQL.equalsIgnoreCase(storage)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown storage: " + storage);
+    }
+
+    public void runProcess() throws Exception {
+        log.info("Execution STARTED. Embedded storage: {}", dir.getAbsolutePath());
+        try (EmbeddedStorage storage = new EmbeddedStorage(dir)) {
+            int lastBlock = loadProgress();
+            for (SrcAddressType type : BtcAddress.getRealTypes()) {
+                lastAddressIds.put(type, Math.max(storage.getLastAddressId(type), getMinAddressId(type)));
+            }
+            int numBlocks = new RpcClient().getBlocksNumber();
+            log.info("lastBlock={}, numBlocks={}, lastTransactionId={}", lastBlock, numBlocks, lastTransactionId);
+            long s = System.currentTimeMillis();
+            int blockHeight = lastBlock + 1;
+            for (; blockHeight <= numBlocks; blockHeight++) {
+                if (stopFile.exists()) {
+                    log.info("Exiting - stop file found: " + stopFile.getAbsolutePath());
+                    stopFile.renameTo(new File(stopFile.getAbsoluteFile() + "1"));
+                    break;
+                }
+                processBlock(storage, blockProvider.getBlock(blockHeight));
+                if ((blockHeight + 1) % checkpointBlocks == 0) {
+                    checkpoint(storage, blockHeight);
+                    log.info("Block {} of {}. Transactions: {}. Runtime: {} sec.", blockHeight, numBlocks, lastTransactionId,
+                            (System.currentTimeMillis() - s) / 1000);
+                }
+            }
+            checkpoint(storage, blockHeight - 1);
+        }
+        log.info("Execution FINISHED");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processBlock(EmbeddedStorage storage, SrcBlock<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> block) throws IOException {
+        int blockHeight = block.getHeight();
+        for (SrcTransaction<SrcInput, SrcOutput<SrcAddress>> t : block.getTransactions().collect(Collectors.toList())) {
+            List<SrcInput> inputs = t.getInputs() == null ? null : t.getInputs().collect(Collectors.toList());
+            List<SrcOutput<SrcAddress>> outputs = t.getOutputs().collect(Collectors.toList());
+            BtcTransaction tx = BtcTransaction.builder()
+                    .transactionId(++lastTransactionId)
+                    .txid(Utils.fixDupeTxid(t.getTxid(), blockHeight))
+                    .blockHeight(blockHeight)
+                    .nInputs(inputs == null ? 0 : inputs.size())
+                    .nOutputs(outputs.size())
+                    .build();
+            storage.addTransaction(tx);
+            if (inputs != null) {
+                for (SrcInput ti : inputs) {
+                    BtcTransaction inTxn = storage.findTransaction(ti.getInTxid());
+                    if (inTxn == null) {
+                        throw new IllegalStateException("Transaction not found in storage: " + ti.getInTxid()
+                                + " referenced from input#" + ti.getPos() + " in tx " + tx);
+                    }
+                    storage.addInput(TxInput.builder()
+                            .transactionId(tx.getTransactionId())
+                            .pos(ti.getPos())
+                            .inTransactionId(inTxn.getTransactionId())
+                            .inPos(ti.getInPos())
+                            .build());
+                    storage.updateOutputStatus(inTxn.getTransactionId(), ti.getInPos(), OutputStatus.SPENT);
+                }
+            }
+            for (SrcOutput<SrcAddress> to : outputs) {
+                SrcAddress addr = to.getAddress();
+                storage.addOutput(TxOutput.builder()
+                        .transactionId(tx.getTransactionId())
+                        .pos(to.getPos())
+                        .amount(to.getValue())
+                        .addressId(addr == null ? 0 : getOrAddAddress(storage, addr))
+                        .status(OutputStatus.UNSPENT)
+                        .build());
+            }
+        }
+    }
+
+    private int getOrAddAddress(EmbeddedStorage storage, SrcAddress addr) throws IOException {
+        BtcAddress a = storage.findAddress(addr.getType(), addr.getHash());
+        if (a != null) {
+            return a.getAddressId();
+        }
+        int addressId = lastAddressIds.merge(addr.getType(), 1, Integer::sum);
+        storage.addAddress(BtcAddress.builder()
+                .type(addr.getType())
+                .addressId(addressId)
+                .address(addr.getHash())
+                .build());
+        return addressId;
+    }
+
+    private void checkpoint(EmbeddedStorage storage, int lastBlock) throws IOException {
+        storage.flush();
+        Properties prop = new Properties();
+        prop.setProperty(PROP_LAST_BLOCK, Integer.toString(lastBlock));
+        prop.setProperty(PROP_LAST_TRANSACTION_ID, Integer.toString(lastTransactionId));
+        File file = new File(dir, PROGRESS_FILE_NAME);
+        File tmpFile = new File(dir, PROGRESS_FILE_NAME + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            prop.store(out, "Embedded scan progress");
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace file " + file.getAbsolutePath());
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename file " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return last block stored at the last checkpoint, -1 for new storage
+     */
+    private int loadProgress() throws IOException {
+        File file = new File(dir, PROGRESS_FILE_NAME);
+        if (!file.exists()) {
+            lastTransactionId = 0;
+            return -1;
+        }
+        Properties prop = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            prop.load(in);
+        }
+        lastTransactionId = Integer.parseInt(prop.getProperty(PROP_LAST_TRANSACTION_ID));
+        return Integer.parseInt(prop.getProperty(PROP_LAST_BLOCK));
+    }
+
+    private static int getMinAddressId(SrcAddressType type) {
+        switch (type) {
+            case P2PKH:
+                return BtcAddress.ADDR_P2PKH_MIN;
+            case P2SH:
+                return BtcAddress.ADDR_P2SH_MIN;
+            case P2WPKH:
+                return BtcAddress.ADDR_P2WPKH_MIN;
+            case P2WSH:
+                return BtcAddress.ADDR_P2WSH_MIN;
+            default:
+                throw new IllegalArgumentException("Bad address type: " + type);
+        }
+    }
+
+    public static Options addOptions(Options options) {
+        options.addOption(null, "storage", true, "Storage of scanned data: '" + STORAGE_MYSQL + "' (default) or '" + STORAGE_EMBEDDED
+                + "' - memory-mapped segment files in storage-path, no DB server needed. DB options are ignored with embedded storage.");
+        options.addOption(null, "storage-path", true, "Directory of embedded storage. Default is " + DEFAULT_STORAGE_PATH);
+        options.addOption(null, "storage-checkpoint-blocks", true, "Number of blocks between embedded storage flushes to disk."
+                + " Blocks after the last flush are processed again on restart. Default is " + DEFAULT_CHECKPOINT_BLOCKS);
+        return options;
+    }
+}
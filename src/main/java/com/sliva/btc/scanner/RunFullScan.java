@@ -15,15 +15,25 @@
  */
 package com.sliva.btc.scanner;
 
+import com.sliva.btc.scanner.db.BatchExecutor;
 import com.sliva.btc.scanner.db.DBConnection;
 import com.sliva.btc.scanner.db.DbAddBlock;
+import com.sliva.btc.scanner.db.DbBlockJournal;
+import com.sliva.btc.scanner.db.DbBlockRangeSnapshot;
+import com.sliva.btc.scanner.db.DbBlockRollback;
+import com.sliva.btc.scanner.db.DbBlockTxnOffsets;
+import com.sliva.btc.scanner.db.DbCacheSnapshot;
 import com.sliva.btc.scanner.db.DbCachedAddress;
 import com.sliva.btc.scanner.db.DbUpdateInput;
 import com.sliva.btc.scanner.db.DbCachedOutput;
 import com.sliva.btc.scanner.db.DbCachedTransaction;
+import com.sliva.btc.scanner.db.DbIndexManager;
+import com.sliva.btc.scanner.db.DbPartitioning;
 import com.sliva.btc.scanner.db.DbQueryBlock;
 import com.sliva.btc.scanner.db.DbQueryInput;
 import com.sliva.btc.scanner.db.DbQueryInputSpecial;
+import com.sliva.btc.scanner.db.DbQueryTransaction;
+import com.sliva.btc.scanner.db.DbUpdate;
 import com.sliva.btc.scanner.db.DbUpdateInputSpecial;
 import com.sliva.btc.scanner.db.model.BtcAddress;
 import com.sliva.btc.scanner.db.model.BtcBlock;
@@ -40,17 +50,26 @@ import com.sliva.btc.scanner.src.BlockProvider;
 import com.sliva.btc.scanner.src.BlockProviderWithBackup;
 import com.sliva.btc.scanner.src.RpcBlockProvider;
 import com.sliva.btc.scanner.src.SrcAddress;
+import com.sliva.btc.scanner.src.SrcAddressType;
 import com.sliva.btc.scanner.src.SrcBlock;
 import com.sliva.btc.scanner.src.SrcInput;
 import com.sliva.btc.scanner.src.SrcOutput;
 import com.sliva.btc.scanner.src.SrcTransaction;
+import com.sliva.btc.scanner.storage.TxidIndex;
+import com.sliva.btc.scanner.util.BlockStageStats;
+import com.sliva.btc.scanner.util.BlockStageStats.BlockTiming;
+import com.sliva.btc.scanner.util.BlockStageStats.Stage;
+import com.sliva.btc.scanner.util.CacheStats;
 import com.sliva.btc.scanner.util.Utils;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -80,11 +99,33 @@ public class RunFullScan {
     private static final boolean DEFAULT_UPDATE_SPENT = true;
     private static final String DEFAULT_STOP_FILE_NAME = "/tmp/btc-scan-stop";
     private static final int DEFAULT_TXN_THREADS = 70;
+    private static final boolean DEFAULT_DEFER_INDEXES = false;
+    private static final int DEFAULT_DEFER_INDEXES_MIN_BLOCKS = 10000;
+    private static final int DEFAULT_SAFE_RUN_CHUNK_BLOCKS = 100;
+    private static final boolean DEFAULT_FOLLOW = false;
+    private static final int DEFAULT_FOLLOW_POLL_SEC = 10;
+    private static final int MAX_REORG_DEPTH = 1000;
+    private static final int DEFAULT_TIMING_REPORT_SEC = 60;
+    private static final int DEFAULT_DB_MAX_CONNECTIONS = 32;
+    private static final int DEFAULT_JOURNAL_CHECKPOINT_BLOCKS = 1000;
+    private static final int DEFAULT_JOURNAL_SYNC_BLOCKS = 1;
+    private static final int TIMING_WINDOW_BLOCKS = 1000;
+    private static final int TIMING_SLOWEST_BLOCKS = 10;
+    private static final String TXN_ID_SCHEME_SEQUENTIAL = "sequential";
+    private static final String TXN_ID_SCHEME_BLOCK = "block";
 
     private final File stopFile;
     private final boolean safeRun;
     private final boolean runParallel;
     private final boolean updateSpent;
+    private final boolean deferIndexes;
+    private final int deferIndexesMinBlocks;
+    private final int safeRunChunkBlocks;
+    private final boolean follow;
+    private final int followPollSec;
+    private final int timingReportSec;
+    private final BlockStageStats blockStats = new BlockStageStats(TIMING_WINDOW_BLOCKS, TIMING_SLOWEST_BLOCKS);
+    private long lastTimingReport = System.currentTimeMillis();
     private final ExecutorService futureExecutor;
     private final ExecutorService execTxn;
     private final DBConnection dbCon;
@@ -92,8 +133,20 @@ public class RunFullScan {
     private final DbQueryInput queryInput;
     private final DbQueryInputSpecial queryInputSpecial;
     private final BlockProvider blockProvider;
+    private final DbBlockTxnOffsets blockTxnOffsets;
+    private final DbPartitioning partitioning;
+    private final DbBlockRollback blockRollback;
+    private final DbCacheSnapshot cacheSnapshot;
+    private final TxidIndex txidIndex;
+    private final File addressDictDir;
+    private final Map<SrcAddressType, Long> addressDictSlots = new HashMap<>();
+    private final DbBlockJournal journal;
+    private final int journalCheckpointBlocks;
+    private long journalFailures;
     private final int startBlock;
     private final int blocksBack;
+    private DbBlockRangeSnapshot snapshot;
+    private boolean snapshotStale;
 
     /**
      * @param args the command line arguments
@@ -106,6 +159,10 @@ public class RunFullScan {
         if (cmd.hasOption('h')) {
             printHelpAndExit();
         }
+        if (RunEmbeddedScan.isSelected(cmd)) {
+            new RunEmbeddedScan(cmd, new File(cmd.getOptionValue("stop-file", DEFAULT_STOP_FILE_NAME))).runProcess();
+            return;
+        }
         new RunFullScan(cmd).runProcess();
     }
 
@@ -116,17 +173,57 @@ public class RunFullScan {
         blocksBack = Integer.parseInt(cmd.getOptionValue("blocks-back", Integer.toString(DEFAULT_BLOCKS_BACK)));
         updateSpent = "true".equalsIgnoreCase(cmd.getOptionValue("update-spent", String.valueOf(DEFAULT_UPDATE_SPENT)));
         stopFile = new File(cmd.getOptionValue("stop-file", DEFAULT_STOP_FILE_NAME));
+        deferIndexes = "true".equalsIgnoreCase(cmd.getOptionValue("defer-indexes", String.valueOf(DEFAULT_DEFER_INDEXES)));
+        deferIndexesMinBlocks = Integer.parseInt(cmd.getOptionValue("defer-indexes-min-blocks", Integer.toString(DEFAULT_DEFER_INDEXES_MIN_BLOCKS)));
+        safeRunChunkBlocks = Integer.parseInt(cmd.getOptionValue("safe-run-chunk", Integer.toString(DEFAULT_SAFE_RUN_CHUNK_BLOCKS)));
+        follow = "true".equalsIgnoreCase(cmd.getOptionValue("follow", String.valueOf(DEFAULT_FOLLOW)));
+        followPollSec = Integer.parseInt(cmd.getOptionValue("follow-poll-sec", Integer.toString(DEFAULT_FOLLOW_POLL_SEC)));
+        timingReportSec = Integer.parseInt(cmd.getOptionValue("timing-report-sec", Integer.toString(DEFAULT_TIMING_REPORT_SEC)));
         futureExecutor = Executors.newFixedThreadPool(2);
         runParallel = !cmd.hasOption("threads") ? DEFAULT_RUN_PARALLEL : !"0".equals(cmd.getOptionValue("threads"));
         execTxn = runParallel ? Executors.newFixedThreadPool(Integer.parseInt(cmd.getOptionValue("threads", Integer.toString(DEFAULT_TXN_THREADS)))) : null;
+        DBConnection.setMaxConnections(DEFAULT_DB_MAX_CONNECTIONS);
         DBConnection.applyArguments(cmd);
+        DbUpdate.applyArguments(cmd);
+        DbPartitioning.applyArguments(cmd);
         BJBlockProvider.applyArguments(cmd);
         RpcClient.applyArguments(cmd);
         RpcClientDirect.applyArguments(cmd);
+        if (!BatchExecutor.getRowSink().isReadable() && (safeRun || follow)) {
+            //these modes query, update and delete rows stored before, which are not in DB with such sink
+            throw new IllegalArgumentException("Options safe-run and follow require a DB row sink. Row sink: " + BatchExecutor.getRowSink().getClass().getSimpleName());
+        }
         dbCon = new DBConnection();
         queryBlock = new DbQueryBlock(dbCon);
         queryInput = new DbQueryInput(dbCon);
         queryInputSpecial = new DbQueryInputSpecial(dbCon);
+        blockRollback = new DbBlockRollback(dbCon);
+        partitioning = DbPartitioning.isEnabled() ? new DbPartitioning(dbCon) : null;
+        cacheSnapshot = cmd.hasOption("cache-snapshot") ? new DbCacheSnapshot(new File(cmd.getOptionValue("cache-snapshot"))) : null;
+        txidIndex = cmd.hasOption("txid-index") ? new TxidIndex(new File(cmd.getOptionValue("txid-index")),
+                cmd.hasOption("txid-index-slots") ? Long.parseLong(cmd.getOptionValue("txid-index-slots"))
+                : TxidIndex.getDefaultSlots(new DbQueryTransaction(dbCon).getLastTransactionId())) : null;
+        addressDictDir = cmd.hasOption("address-dict") ? new File(cmd.getOptionValue("address-dict")) : null;
+        if (cmd.hasOption("address-dict-slots")) {
+            for (String s : cmd.getOptionValue("address-dict-slots").split(",")) {
+                String[] a = s.split("=");
+                if (a.length != 2) {
+                    throw new IllegalArgumentException("Bad address-dict-slots value: " + s);
+                }
+                addressDictSlots.put(SrcAddressType.valueOf(a[0].trim().toUpperCase()), Long.parseLong(a[1].trim()));
+            }
+        }
+        journal = cmd.hasOption("journal") ? new DbBlockJournal(new File(cmd.getOptionValue("journal")),
+                Integer.parseInt(cmd.getOptionValue("journal-sync-blocks", Integer.toString(DEFAULT_JOURNAL_SYNC_BLOCKS)))) : null;
+        journalCheckpointBlocks = Integer.parseInt(cmd.getOptionValue("journal-checkpoint-blocks", Integer.toString(DEFAULT_JOURNAL_CHECKPOINT_BLOCKS)));
+        String txnIdScheme = cmd.getOptionValue("txn-id-scheme", TXN_ID_SCHEME_SEQUENTIAL);
+        if (TXN_ID_SCHEME_BLOCK.equalsIgnoreCase(txnIdScheme)) {
+            blockTxnOffsets = new DbBlockTxnOffsets(dbCon);
+        } else if (TXN_ID_SCHEME_SEQUENTIAL.equalsIgnoreCase(txnIdScheme)) {
+            blockTxnOffsets = null;
+        } else {
+            throw new IllegalArgumentException("Unknown txn-id-scheme: " + txnIdScheme);
+        }
         if (cmd.hasOption("full-blocks-path")) {
             BlockProvider primaryBlockProvider = new BJBlockProvider();
             BlockProvider backupBlockProvider = new RpcBlockProvider();
@@ -138,70 +235,233 @@ public class RunFullScan {
 
     public void runProcess() throws Exception {
         log.info("Execution STARTED");
+        DbIndexManager indexManager = new DbIndexManager(dbCon);
+        boolean indexesDeferred = false;
+        boolean reachedLastBlock = false;
+        DbCachedTransaction.CacheData txnCacheData = new DbCachedTransaction.CacheData();
+        DbCachedAddress.CacheData addressCacheData = new DbCachedAddress.CacheData();
+        DbCachedOutput.CacheData outputCacheData = new DbCachedOutput.CacheData();
+        if (journal != null && journal.open()) {
+            log.warn("Previous run did not stop cleanly. Last checkpoint: {}, last queued block: {}. Rolling back blocks above the checkpoint",
+                    journal.getLastCheckpoint(), journal.getLastBlock());
+            blockRollback.rollbackBlocksAbove(journal.getLastCheckpoint());
+            blockRollback.deleteOrphans();
+        }
+        if (startBlock < 0) {
+            rollbackOrphanedBlocks();
+        }
+        if (cacheSnapshot != null) {
+            cacheSnapshot.load(queryBlock.findLastHeight(), txnCacheData, addressCacheData, outputCacheData);
+        }
+        if (txidIndex != null) {
+            //drop entries of blocks that are not in DB, i.e. after unclean stop
+            txidIndex.invalidateBlocksAbove(queryBlock.findLastHeight());
+            txnCacheData.setTxidIndex(txidIndex);
+        }
         try (DbAddBlock addBlock = new DbAddBlock(dbCon);
                 DbUpdateInput updateInput = new DbUpdateInput(dbCon);
                 DbUpdateInputSpecial updateInputSpecial = new DbUpdateInputSpecial(dbCon);
-                DbCachedTransaction cachedTxn = new DbCachedTransaction(dbCon);
-                DbCachedAddress cachedAddress = new DbCachedAddress(dbCon);
-                DbCachedOutput cachedOutput = new DbCachedOutput(dbCon)) {
-            int numBlocks = new RpcClient().getBlocksNumber();
+                DbCachedTransaction cachedTxn = new DbCachedTransaction(dbCon, txnCacheData);
+                DbCachedAddress cachedAddress = new DbCachedAddress(dbCon, addressCacheData);
+                DbCachedOutput cachedOutput = new DbCachedOutput(dbCon, outputCacheData)) {
+            if (addressDictDir != null) {
+                cachedAddress.useDictionaries(addressDictDir, addressDictSlots);
+            }
+            RpcClient rpcClient = new RpcClient();
+            int numBlocks = rpcClient.getBlocksNumber();
             int lastBlockHeight = startBlock >= 0 ? startBlock : queryBlock.findLastHeight() - blocksBack;//230_000;//queryBlock.findLastHeight() - BLOCKS_BACK;
             log.info("lastBlockHeight={}, numBlocks={}", lastBlockHeight, numBlocks);
-            Future<FutureBlock> futureBlock = null, futureBlock2 = null;
-            if (runParallel) {
-                futureBlock = getFutureBlock(lastBlockHeight + 1, null, cachedTxn, cachedOutput, cachedAddress);
-                futureBlock2 = getFutureBlock(lastBlockHeight + 2, futureBlock, cachedTxn, cachedOutput, cachedAddress);
+            if (DbUpdate.isGroupCommit()) {
+                log.info("Group commit mode: {} blocks per DB transaction", DbUpdate.getGroupCommitBlocks());
+                dbCon.getConnection().setAutoCommit(false);
             }
-            for (int blockHeight = lastBlockHeight + 1; blockHeight <= numBlocks; blockHeight++) {
-                if (stopFile.exists()) {
-                    log.info("Exiting - stop file found: " + stopFile.getAbsolutePath());
+            if (journal != null) {
+                journalFailures = DbUpdate.getFailureCount();
+                journal.checkpoint(lastBlockHeight);
+            }
+            int groupBlocks = 0;
+            indexesDeferred = prepareIndexes(indexManager, numBlocks - lastBlockHeight);
+            if (blockTxnOffsets != null) {
+                blockTxnOffsets.validate(new DbQueryTransaction(dbCon).getLastTransaction());
+            }
+            if (partitioning != null) {
+                partitioning.ensurePartitions(new DbQueryTransaction(dbCon).getLastTransactionId());
+            }
+            snapshot = safeRun ? new DbBlockRangeSnapshot(dbCon, cachedTxn) : null;
+            int blockHeight = lastBlockHeight + 1;
+            String lastBlockHash = null;
+            boolean stopped = false;
+            while (!stopped) {
+                Future<FutureBlock> futureBlock = null, futureBlock2 = null;
+                if (runParallel) {
+                    futureBlock = blockHeight <= numBlocks ? getFutureBlock(blockHeight, null, cachedTxn, cachedOutput, cachedAddress) : null;
+                    futureBlock2 = blockHeight + 1 <= numBlocks ? getFutureBlock(blockHeight + 1, futureBlock, cachedTxn, cachedOutput, cachedAddress) : null;
+                }
+                for (; blockHeight <= numBlocks; blockHeight++) {
+                    if (stopFile.exists()) {
+                        log.info("Exiting - stop file found: " + stopFile.getAbsolutePath());
+                        if (futureBlock != null) {
+                            futureBlock.get();
+                            if (futureBlock2 != null) {
+                                futureBlock2.get();
+                            }
+                            futureExecutor.shutdown();
+                            if (execTxn != null) {
+                                execTxn.shutdown();
+                            }
+                        }
+                        stopFile.renameTo(new File(stopFile.getAbsoluteFile() + "1"));
+                        stopped = true;
+                        break;
+                    }
+                    long blockStart = System.nanoTime();
+                    long queueWaitStart = DbUpdate.getTotalQueueWaitNanos();
+                    long writeStart = DbUpdate.getTotalWriteNanos();
+                    long[] cacheCountersStart = getCacheCounters(cachedTxn, cachedOutput, cachedAddress);
+                    long[] stageNanos = new long[Stage.values().length];
+                    SrcBlock<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> block;
                     if (futureBlock != null) {
-                        futureBlock.get();
-                        if (futureBlock2 != null) {
-                            futureBlock2.get();
+                        FutureBlock fb = futureBlock.get();
+                        if (fb.getBlockHeight() != blockHeight) {
+                            throw new IllegalArgumentException("Feature block height doesn't match: " + fb.getBlockHeight() + " != " + blockHeight);
+                        }
+                        block = fb.getBlock();
+                        stageNanos[Stage.FETCH.ordinal()] = fb.getFetchNanos();
+                        stageNanos[Stage.RESOLVE.ordinal()] = fb.getResolveNanos();
+                    } else {
+                        block = blockProvider.getBlock(blockHeight);
+                        stageNanos[Stage.FETCH.ordinal()] = System.nanoTime() - blockStart;
+                    }
+
+                    if (runParallel) {
+                        futureBlock = futureBlock2;
+                        futureBlock2 = blockHeight + 2 <= numBlocks ? getFutureBlock(blockHeight + 2, futureBlock, cachedTxn, cachedOutput, cachedAddress) : null;
+                    }
+
+                    long s = System.nanoTime();
+                    List<SrcTransaction> blockTxns = block.getTransactions().collect(Collectors.toList());
+                    stageNanos[Stage.PARSE.ordinal()] = System.nanoTime() - s;
+                    s = System.nanoTime();
+                    String blockHash = block.getHash();
+                    log.info("Block(" + blockHeight + ").hash: " + blockHash + ", nTxns=" + blockTxns.size());
+                    if (snapshot != null && !snapshot.containsBlock(blockHeight)) {
+                        if (snapshotStale) {
+                            //rows outside of loaded range were modified - make sure next snapshot sees them
+                            cachedTxn.flushCache();
+                            cachedOutput.flushCache();
+                            updateInput.flushCache();
+                            updateInputSpecial.flushCache();
+                            snapshotStale = false;
+                        }
+                        snapshot.load(blockHeight, Math.min(blockHeight + safeRunChunkBlocks - 1, numBlocks));
+                    }
+                    BtcBlock dbBlock = snapshot == null ? null : snapshot.getBlock(blockHeight);
+                    if (dbBlock == null || !dbBlock.getHash().equalsIgnoreCase(blockHash)) {
+                        addBlock.add(BtcBlock.builder()
+                                .height(blockHeight)
+                                .hash(blockHash)
+                                .txnCount(blockTxns.size())
+                                .build());
+                    }
+                    List<BtcTransaction> listTxn = snapshot != null ? snapshot.getTransactionsInBlock(blockHeight) : null;
+                    int firstTransactionId = blockTxnOffsets == null ? 0 : blockTxnOffsets.getFirstTransactionId(blockHeight);
+                    for (int i = 0; i < blockTxns.size(); i++) {
+                        int transactionId = blockTxnOffsets == null ? 0 : firstTransactionId + i;
+                        processTransaction(blockTxns.get(i), blockHeight, transactionId, listTxn, updateInput, updateInputSpecial, cachedTxn, cachedAddress, cachedOutput);
+                    }
+                    if (blockTxnOffsets != null) {
+                        blockTxnOffsets.setTxnCount(blockHeight, blockTxns.size());
+                    }
+                    if (listTxn != null && !listTxn.isEmpty()) {
+                        log.debug("Found wrong transactions in block: " + listTxn);
+                        for (BtcTransaction t : listTxn) {
+                            cachedTxn.delete(t);
                         }
-                        futureExecutor.shutdown();
-                        if (execTxn != null) {
-                            execTxn.shutdown();
+                    }
+                    lastBlockHash = blockHash;
+                    if (journal != null) {
+                        journal.blockQueued(blockHeight);
+                    }
+                    if (DbUpdate.isGroupCommit()) {
+                        if (++groupBlocks >= DbUpdate.getGroupCommitBlocks() || DbUpdate.isGroupCommitDue()) {
+                            commitGroup(groupBlocks, addBlock, cachedTxn, cachedOutput, cachedAddress, updateInput, updateInputSpecial);
+                            groupBlocks = 0;
+                            checkpointJournal(blockHeight);
                         }
+                    } else if (journal != null && blockHeight - journal.getLastCheckpoint() >= journalCheckpointBlocks) {
+                        flushAll(addBlock, cachedTxn, cachedOutput, cachedAddress, updateInput, updateInputSpecial);
+                        checkpointJournal(blockHeight);
                     }
-                    stopFile.renameTo(new File(stopFile.getAbsoluteFile() + "1"));
+                    if (partitioning != null && groupBlocks == 0) {
+                        //DDL commits implicitly, so in group commit mode partitions are added right after a commit
+                        partitioning.ensurePartitions(blockTxnOffsets != null ? firstTransactionId + blockTxns.size() - 1
+                                : cachedTxn.getCacheData().getLastTransactionId().get());
+                    }
+                    long queueWait = DbUpdate.getTotalQueueWaitNanos() - queueWaitStart;
+                    stageNanos[Stage.RESOLVE.ordinal()] += Math.max(0, System.nanoTime() - s - queueWait);
+                    stageNanos[Stage.QUEUE_WAIT.ordinal()] = queueWait;
+                    stageNanos[Stage.WRITE.ordinal()] = DbUpdate.getTotalWriteNanos() - writeStart;
+                    addBlockTiming(blockHeight, blockTxns.size(), System.nanoTime() - blockStart, stageNanos,
+                            cacheCountersStart, getCacheCounters(cachedTxn, cachedOutput, cachedAddress));
+                }
+                if (stopped) {
                     break;
                 }
-                SrcBlock<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> block;
-                if (futureBlock != null) {
-                    FutureBlock fb = futureBlock.get();
-                    if (fb.getBlockHeight() != blockHeight) {
-                        throw new IllegalArgumentException("Feature block height doesn't match: " + fb.getBlockHeight() + " != " + blockHeight);
-                    }
-                    block = fb.getBlock();
-                } else {
-                    block = blockProvider.getBlock(blockHeight);
+                if (groupBlocks > 0) {
+                    //don't keep the transaction open while waiting for new blocks or rebuilding indexes
+                    commitGroup(groupBlocks, addBlock, cachedTxn, cachedOutput, cachedAddress, updateInput, updateInputSpecial);
+                    groupBlocks = 0;
+                    checkpointJournal(blockHeight - 1);
                 }
-
-                if (runParallel) {
-                    futureBlock = futureBlock2;
-                    futureBlock2 = getFutureBlock(blockHeight + 2, futureBlock, cachedTxn, cachedOutput, cachedAddress);
+                reachedLastBlock = true;
+                if (!follow) {
+                    break;
                 }
-
-                String blockHash = block.getHash();
-                log.info("Block(" + blockHeight + ").hash: " + blockHash + ", nTxns=" + block.getTransactions().count());
-                if (!safeRun || queryBlock.findBlockByHash(blockHash) == null) {
-                    addBlock.add(BtcBlock.builder()
-                            .height(blockHeight)
-                            .hash(blockHash)
-                            .txnCount((int) block.getTransactions().count())
-                            .build());
+                if (indexesDeferred) {
+                    indexesDeferred = !indexManager.rebuildIndexes();
                 }
-                List<BtcTransaction> listTxn = safeRun ? cachedTxn.getTransactionsInBlock(blockHeight) : null;
-                for (SrcTransaction t : block.getTransactions().collect(Collectors.toList())) {
-                    processTransaction(t, blockHeight, listTxn, updateInput, updateInputSpecial, cachedTxn, cachedAddress, cachedOutput);
+                int lastProcessedHeight = blockHeight - 1;
+                if (lastBlockHash == null) {
+                    BtcBlock b = queryBlock.getBlock(lastProcessedHeight);
+                    lastBlockHash = b == null ? null : b.getHash();
+                }
+                int newNumBlocks = waitForNewBlocks(rpcClient, lastProcessedHeight, lastBlockHash);
+                if (newNumBlocks < 0) {
+                    stopped = true;
+                    break;
                 }
-                if (listTxn != null && !listTxn.isEmpty()) {
-                    log.debug("Found wrong transactions in block: " + listTxn);
-                    for (BtcTransaction t : listTxn) {
-                        cachedTxn.delete(t);
+                //stored hashes are compared from the tip down, so queued block records have to be in DB
+                flushAll(addBlock, cachedTxn, cachedOutput, cachedAddress, updateInput, updateInputSpecial);
+                int forkHeight = lastProcessedHeight < 0 ? lastProcessedHeight : findForkHeight(rpcClient, Math.min(lastProcessedHeight, newNumBlocks));
+                if (forkHeight < lastProcessedHeight) {
+                    log.info("Chain reorganization detected at block {}", lastProcessedHeight);
+                    List<BtcTransaction> rolledBackTxns = txidIndex == null ? Collections.emptyList() : blockRollback.findTransactionsAbove(forkHeight);
+                    blockRollback.rollbackBlocksAbove(forkHeight);
+                    if (DbUpdate.isGroupCommit()) {
+                        dbCon.getConnection().commit();
                     }
+                    cachedTxn.invalidateBlocksAbove(forkHeight, rolledBackTxns);
+                    cachedOutput.clearCache();
+                    if (blockTxnOffsets != null) {
+                        blockTxnOffsets.invalidateBlocksAbove(forkHeight);
+                    }
+                    if (snapshot != null) {
+                        snapshot.clear();
+                    }
+                    checkpointJournal(forkHeight);
+                    blockHeight = forkHeight + 1;
+                    lastBlockHash = null;
+                }
+                numBlocks = newNumBlocks;
+            }
+            if (addressDictDir != null) {
+                //addresses added up to here are in DB, so next start verifies only the ones added after
+                flushAll(addBlock, cachedTxn, cachedOutput, cachedAddress, updateInput, updateInputSpecial);
+                if (DbUpdate.isGroupCommit()) {
+                    dbCon.getConnection().commit();
+                }
+                if (DbUpdate.getFailureCount() == 0) {
+                    cachedAddress.markDictionariesSynced();
                 }
             }
         } catch (Exception e) {
@@ -212,8 +472,236 @@ public class RunFullScan {
             if (execTxn != null) {
                 execTxn.shutdownNow();
             }
-            log.info("Execution FINISHED");
+            snapshot = null;
+        }
+        if (DbUpdate.isGroupCommit()) {
+            //updaters are closed (flushed) at this point
+            dbCon.getConnection().commit();
+        }
+        DbUpdate.awaitRunningBatches();
+        BatchExecutor.getRowSink().close();
+        if (txidIndex != null) {
+            txidIndex.close();
+        }
+        if (journal != null) {
+            DbUpdate.awaitRunningBatches();
+            if (DbUpdate.getFailureCount() == journalFailures) {
+                journal.checkpoint(journal.getLastBlock());
+            } else {
+                log.error("DB writes failed after journal checkpoint at block {}. Checkpoint is kept, blocks above it are rolled back and processed again on next start",
+                        journal.getLastCheckpoint());
+            }
+            journal.close();
+        }
+        boolean indexesRebuilt = true;
+        if (indexesDeferred) {
+            if (reachedLastBlock) {
+                indexesRebuilt = indexManager.rebuildIndexes();
+            } else {
+                log.info("Secondary indexes remain deferred. They will be rebuilt when a following run reaches the last block");
+            }
+        }
+        if (cacheSnapshot != null) {
+            if (DbUpdate.getFailureCount() == 0) {
+                cacheSnapshot.save(queryBlock.findLastHeight(), txnCacheData, addressCacheData, outputCacheData);
+            } else {
+                log.error("DB writes failed, caches do not match DB. Cache snapshot is not saved");
+                cacheSnapshot.delete();
+            }
+        }
+        if (blockStats.getCount() > 0) {
+            logTimingReport();
+        }
+        if (!indexesRebuilt) {
+            throw new IllegalStateException("Failed to rebuild secondary indexes. Run the update again to retry");
+        }
+        log.info("Execution FINISHED");
+    }
+
+    /**
+     * Write journal checkpoint. Caller has to flush all updaters first.
+     * Checkpoint is only moved while no DB write failed since the run
+     * started, otherwise blocks with dropped rows would be skipped on resume.
+     * The run is stopped then and next start rolls back the blocks above the
+     * last good checkpoint.
+     */
+    private void checkpointJournal(int blockHeight) throws IOException {
+        if (journal != null) {
+            if (DbUpdate.getFailureCount() != journalFailures) {
+                throw new IllegalStateException("DB writes failed after journal checkpoint at block " + journal.getLastCheckpoint()
+                        + ". Stopping, blocks above the checkpoint are rolled back and processed again on next start");
+            }
+            journal.checkpoint(blockHeight);
+        }
+    }
+
+    /**
+     * Execute all queued records and wait until they are stored in DB.
+     */
+    private static void flushAll(DbAddBlock addBlock, DbCachedTransaction cachedTxn, DbCachedOutput cachedOutput,
+            DbCachedAddress cachedAddress, DbUpdateInput updateInput, DbUpdateInputSpecial updateInputSpecial) throws InterruptedException {
+        long s = System.currentTimeMillis();
+        cachedAddress.flushCache();
+        addBlock.flushCache();
+        cachedTxn.flushCache();
+        cachedOutput.flushCache();
+        updateInput.flushCache();
+        updateInputSpecial.flushCache();
+        DbUpdate.awaitRunningBatches();
+        log.debug("flushAll: runtime={} ms.", System.currentTimeMillis() - s);
+    }
+
+    /**
+     * Flush all queued records of the group in the current DB transaction and
+     * commit it.
+     */
+    private void commitGroup(int nBlocks, DbAddBlock addBlock, DbCachedTransaction cachedTxn, DbCachedOutput cachedOutput,
+            DbCachedAddress cachedAddress, DbUpdateInput updateInput, DbUpdateInputSpecial updateInputSpecial) throws InterruptedException, SQLException {
+        long s = System.currentTimeMillis();
+        flushAll(addBlock, cachedTxn, cachedOutput, cachedAddress, updateInput, updateInputSpecial);
+        dbCon.getConnection().commit();
+        log.debug("commitGroup: blocks={}, runtime={} ms.", nBlocks, System.currentTimeMillis() - s);
+    }
+
+    private static long[] getCacheCounters(DbCachedTransaction cachedTxn, DbCachedOutput cachedOutput, DbCachedAddress cachedAddress) {
+        CacheStats txnStats = cachedTxn.getCacheData().getStats();
+        CacheStats outputStats = cachedOutput.getCacheData().getStats();
+        return new long[]{txnStats.getHits(), txnStats.getMisses(),
+            outputStats.getHits(), outputStats.getMisses(),
+            cachedAddress.getCacheHits(), cachedAddress.getCacheMisses()};
+    }
+
+    /**
+     * Record timing of processed block and print timing report periodically.
+     *
+     * @param blockHeight block height
+     * @param nTxns number of transactions in block
+     * @param totalNanos block processing wall time
+     * @param stageNanos time per stage
+     * @param cacheStart cache counters before the block
+     * @param cacheEnd cache counters after the block
+     */
+    private void addBlockTiming(int blockHeight, int nTxns, long totalNanos, long[] stageNanos, long[] cacheStart, long[] cacheEnd) {
+        BlockTiming timing = BlockTiming.builder()
+                .blockHeight(blockHeight)
+                .nTxns(nTxns)
+                .totalNanos(totalNanos)
+                .stageNanos(stageNanos)
+                .txnHitRate(CacheStats.getHitRate(cacheEnd[0] - cacheStart[0], cacheEnd[1] - cacheStart[1]))
+                .outputHitRate(CacheStats.getHitRate(cacheEnd[2] - cacheStart[2], cacheEnd[3] - cacheStart[3]))
+                .addressHitRate(CacheStats.getHitRate(cacheEnd[4] - cacheStart[4], cacheEnd[5] - cacheStart[5]))
+                .build();
+        blockStats.add(timing);
+        log.debug("{}", timing);
+        if (System.currentTimeMillis() - lastTimingReport > timingReportSec * 1000L) {
+            lastTimingReport = System.currentTimeMillis();
+            logTimingReport();
+        }
+    }
+
+    private void logTimingReport() {
+        log.info("Block timings in ms over last {} blocks: {}", Math.min(blockStats.getCount(), TIMING_WINDOW_BLOCKS), blockStats.formatPercentiles());
+        log.info("Slowest blocks:");
+        blockStats.getSlowest().forEach(t -> log.info("    {}", t));
+        log.info("DB connection pool: {}", dbCon.getPoolStats());
+    }
+
+    /**
+     * Wait until node has new blocks or the tip block gets replaced.
+     *
+     * @param rpcClient RpcClient
+     * @param lastHeight height of the last processed block
+     * @param lastHash hash of the last processed block
+     * @return new number of blocks or -1 if stop file was found
+     */
+    private int waitForNewBlocks(RpcClient rpcClient, int lastHeight, String lastHash) {
+        log.info("Reached last block {}. Waiting for new blocks", lastHeight);
+        while (!stopFile.exists()) {
+            Utils.sleep(followPollSec * 1000L);
+            int numBlocks = rpcClient.getBlocksNumber();
+            if (numBlocks != lastHeight || (lastHash != null && !lastHash.equalsIgnoreCase(rpcClient.getBlockHash(lastHeight)))) {
+                return numBlocks;
+            }
+        }
+        log.info("Exiting - stop file found: " + stopFile.getAbsolutePath());
+        stopFile.renameTo(new File(stopFile.getAbsoluteFile() + "1"));
+        return -1;
+    }
+
+    /**
+     * Roll back blocks that were replaced on the node's main chain while the
+     * scanner was not running. Done on start before caches are loaded, so
+     * nothing has to be invalidated.
+     *
+     * @throws SQLException
+     */
+    private void rollbackOrphanedBlocks() throws SQLException {
+        int lastHeight = queryBlock.findLastHeight();
+        if (lastHeight < 0) {
+            return;
+        }
+        RpcClient rpcClient = new RpcClient();
+        int forkHeight = findForkHeight(rpcClient, Math.min(lastHeight, rpcClient.getBlocksNumber()));
+        if (forkHeight < lastHeight) {
+            log.warn("Blocks above {} are not on the main chain any more. Rolling back {} blocks", forkHeight, lastHeight - forkHeight);
+            blockRollback.rollbackBlocksAbove(forkHeight);
+        }
+    }
+
+    /**
+     * Find the highest block stored in DB that is still part of the node's
+     * main chain. Stored block hashes are compared with the node's ones from
+     * given height down until they match, so forks deeper than the tip are
+     * found too.
+     *
+     * @param rpcClient RpcClient
+     * @param fromHeight height to start search from
+     * @return height of the last common block, fromHeight if block at
+     * fromHeight is on the main chain
+     * @throws SQLException
+     */
+    private int findForkHeight(RpcClient rpcClient, int fromHeight) throws SQLException {
+        for (int height = fromHeight; height >= 0 && height > fromHeight - MAX_REORG_DEPTH; height--) {
+            BtcBlock b = queryBlock.getBlock(height);
+            if (b != null && b.getHash().equalsIgnoreCase(rpcClient.getBlockHash(height))) {
+                log.info("Found fork point at block {}", height);
+                return height;
+            }
+        }
+        throw new IllegalStateException("Fork point not found within " + MAX_REORG_DEPTH + " blocks from " + fromHeight);
+    }
+
+    /**
+     * Drop secondary indexes if requested and catch-up is large enough. Indexes
+     * left missing by an interrupted run are either kept deferred or rebuilt
+     * right away if current run needs them (safe-run) or deferring is off.
+     *
+     * @param indexManager DbIndexManager
+     * @param blocksToProcess number of blocks this run is going to process
+     * @return true if indexes are deferred and have to be rebuilt at the end
+     * @throws SQLException
+     */
+    private boolean prepareIndexes(DbIndexManager indexManager, int blocksToProcess) throws SQLException {
+        boolean missing = !indexManager.getMissingIndexes().isEmpty();
+        if (!deferIndexes || safeRun) {
+            if (missing) {
+                log.info("Found missing secondary indexes left by interrupted run. Rebuilding before processing blocks");
+                if (!indexManager.rebuildIndexes()) {
+                    throw new IllegalStateException("Failed to rebuild secondary indexes left missing by interrupted run");
+                }
+            }
+            return false;
+        }
+        if (missing) {
+            log.info("Secondary indexes are already deferred. Resuming");
+            return true;
+        }
+        if (blocksToProcess >= deferIndexesMinBlocks) {
+            log.info("Deferring secondary indexes for {} blocks", blocksToProcess);
+            indexManager.dropIndexes();
+            return true;
         }
+        return false;
     }
 
     @Getter
@@ -235,9 +723,12 @@ public class RunFullScan {
             DbCachedOutput cachedOutput) throws SQLException {
         BtcTransaction intx = cachedTxn.getTransaction(transactionId);
         log.debug("processTransaction({}): intx={}", transactionId, intx);
-        List<BtcTransaction> listTxn = safeRun ? cachedTxn.getTransactionsInBlock(intx.getBlockHeight()) : null;
+        List<BtcTransaction> listTxn = !safeRun ? null
+                : snapshot != null && snapshot.containsBlock(intx.getBlockHeight()) ? snapshot.getTransactionsInBlock(intx.getBlockHeight())
+                : cachedTxn.getTransactionsInBlock(intx.getBlockHeight());
+        snapshotStale = true;
         try {
-            return processTransaction(findBJTransaction(intx.getBlockHeight(), intx.getTxid()), intx.getBlockHeight(), listTxn, updateInput, updateInputSpecial, cachedTxn, cachedAddress, cachedOutput);
+            return processTransaction(findBJTransaction(intx.getBlockHeight(), intx.getTxid()), intx.getBlockHeight(), intx.getTransactionId(), listTxn, updateInput, updateInputSpecial, cachedTxn, cachedAddress, cachedOutput);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
@@ -246,6 +737,7 @@ public class RunFullScan {
     private TxnProcessOutput processTransaction(
             SrcTransaction t,
             int blockHeight,
+            int transactionId,
             List<BtcTransaction> listTxn,
             DbUpdateInput updateInput,
             DbUpdateInputSpecial updateInputSpecial,
@@ -257,6 +749,7 @@ public class RunFullScan {
         BtcTransaction btcTx = findTx(listTxn, txid);
         if (btcTx == null) {
             btcTx = BtcTransaction.builder()
+                    .transactionId(transactionId)
                     .txid(txid)
                     .blockHeight(blockHeight)
                     .nInputs(t.getInputs() == null ? 0 : (int) t.getInputs().count())
@@ -287,7 +780,8 @@ public class RunFullScan {
 //        log.trace("Tx.inputs: {}", t.getInputs().size());
         final Collection<TxInput> txInputs;
         if (safeRun) {
-            Collection<TxInput> c = queryInput.getInputs(tx.getTransactionId());
+            Collection<TxInput> c = snapshot != null && snapshot.containsTransaction(tx.getTransactionId())
+                    ? snapshot.getInputs(tx.getTransactionId()) : queryInput.getInputs(tx.getTransactionId());
             txInputs = c == null ? null : new ArrayList<>(c);
         } else {
             txInputs = null;
@@ -314,6 +808,7 @@ public class RunFullScan {
                         .build();
                 if (txInput == null) {
                     if (safeRun) {
+                        //spending input can be in any block, so it is not served by the snapshot
                         TxInput in2 = queryInput.findInputByOutTx(inTxn.getTransactionId(), inPos);
                         if (in2 != null) {
                             log.info("DB consistency issue: Found in DB input with same connected output:");
@@ -374,7 +869,9 @@ public class RunFullScan {
                             .multisig(ti.isMultisig())
                             .build();
                     if (safeRun) {
-                        TxInputSpecial c = queryInputSpecial.getInput(tx.getTransactionId(), ti.getPos());
+                        TxInputSpecial c = snapshot != null && snapshot.containsTransaction(tx.getTransactionId())
+                                ? snapshot.getInputSpecial(tx.getTransactionId(), ti.getPos())
+                                : queryInputSpecial.getInput(tx.getTransactionId(), ti.getPos());
                         if (c == null) {
                             updateInputSpecial.add(newInputSpecial);
                         } else if (c.getSighashType() != newInputSpecial.getSighashType()
@@ -421,7 +918,8 @@ public class RunFullScan {
             DbCachedOutput cachedOutput) throws SQLException {
         final Collection<TxOutput> txOutputs;
         if (safeRun) {
-            Collection<TxOutput> c = cachedOutput.getOutputs(tx.getTransactionId());
+            Collection<TxOutput> c = snapshot != null && snapshot.containsTransaction(tx.getTransactionId())
+                    ? snapshot.getOutputs(tx.getTransactionId()) : cachedOutput.getOutputs(tx.getTransactionId());
             txOutputs = c == null ? null : new ArrayList<>(c);
         } else {
             txOutputs = null;
@@ -494,7 +992,9 @@ public class RunFullScan {
             DbCachedOutput cachedOutput,
             DbCachedAddress cachedAddress) {
         return futureExecutor.submit(() -> {
+            long s = System.nanoTime();
             SrcBlock<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> block = blockProvider.getBlock(blockHeight);
+            long fetchNanos = System.nanoTime() - s;
             List<Callable<Boolean>> todo = new ArrayList<>();
             block.getTransactions().forEach((t) -> {
                 todo.add(new PreProcTransaction(t, blockHeight, cachedTxn, cachedOutput, cachedAddress));
@@ -502,10 +1002,13 @@ public class RunFullScan {
             if (prevFutureBlock != null) {
                 prevFutureBlock.get();
             }
+            s = System.nanoTime();
             execTxn.invokeAll(todo);
             return FutureBlock.builder()
                     .blockHeight(blockHeight)
                     .block(block)
+                    .fetchNanos(fetchNanos)
+                    .resolveNanos(System.nanoTime() - s)
                     .build();
         });
     }
@@ -522,13 +1025,16 @@ public class RunFullScan {
         @Override
         @SuppressWarnings("UseSpecificCatch")
         public Boolean call() throws Exception {
-            if (safeRun) {
-                String txid = Utils.fixDupeTxid(t.getTxid(), blockHeight);
-                BtcTransaction tx = cachedTxn.getTransaction(txid);
-                if (tx != null) {
-                    cachedOutput.getOutputs(tx.getTransactionId());
-                }
+            try {
+                resolve();
+            } finally {
+                dbCon.releaseConnection();
             }
+            return true;
+        }
+
+        @SuppressWarnings("UseSpecificCatch")
+        private void resolve() {
             if (t.getInputs() != null) {
                 t.getInputs().forEach((ti) -> {
                     try {
@@ -549,7 +1055,6 @@ public class RunFullScan {
                 } catch (Exception e) {
                 }
             });
-            return true;
         }
     }
 
@@ -616,13 +1121,34 @@ public class RunFullScan {
         Options options = new Options();
         options.addOption("h", "help", false, "Print help");
         options.addOption(null, "safe-run", false, "Run in safe mode - check DB for existing records before adding new");
-        options.addOption(null, "update-spent", true, "Update spent flag on outpus. Default is true. For better performance of massive update you might want to disable it and run separate process after this update is done.");
+        options.addOption(null, "update-spent", true, "Update spent flag on outpus. Default is true. Spent markers are collected and applied in bulk per range of transactions.");
         options.addOption(null, "blocks-back", true, "Check last number of blocks. Process will run in safe mode (option -s)");
         options.addOption(null, "start-from-block", true, "Start checking from block hight provided. Process will run in safe mode (option -s)");
+        options.addOption(null, "safe-run-chunk", true, "Number of blocks loaded from DB at once for comparison in safe mode. Default is " + DEFAULT_SAFE_RUN_CHUNK_BLOCKS);
         options.addOption(null, "threads", true, "Number of threads to run. Default is " + DEFAULT_TXN_THREADS + ". To disable parallel threading set value to 0");
+        options.addOption(null, "defer-indexes", true, "Drop secondary indexes when catching up a large number of blocks and rebuild them in parallel when the last block is reached. Not used in safe mode. Default is " + DEFAULT_DEFER_INDEXES);
+        options.addOption(null, "defer-indexes-min-blocks", true, "Minimum number of blocks to process for indexes to be deferred. Default is " + DEFAULT_DEFER_INDEXES_MIN_BLOCKS);
+        options.addOption(null, "txn-id-scheme", true, "Transaction ID assignment: '" + TXN_ID_SCHEME_SEQUENTIAL + "' (default) assigns IDs in processing order, '"
+                + TXN_ID_SCHEME_BLOCK + "' derives IDs from block height and transaction position (prefix sum of block txn_count) so they are stable across re-scans.");
+        options.addOption(null, "follow", true, "Keep running after the last block is reached: poll node for new blocks, roll back orphaned blocks on chain reorganization. Default is " + DEFAULT_FOLLOW);
+        options.addOption(null, "follow-poll-sec", true, "Interval in seconds to poll node for new blocks in follow mode. Default is " + DEFAULT_FOLLOW_POLL_SEC);
+        options.addOption(null, "cache-snapshot", true, "File to save transaction, address and output caches to on exit. Caches are loaded from it on start if DB is still at the same last block.");
+        options.addOption(null, "txid-index", true, "Memory-mapped file with index of txid to transaction ID and block height, used before DB on transaction cache miss. Created if missing.");
+        options.addOption(null, "txid-index-slots", true, "Number of slots of a new txid index file, 40 bytes each. Up to 80% of slots are used. Default is twice the number of transactions in DB");
+        options.addOption(null, "address-dict", true, "Directory with memory-mapped dictionaries of address hash to address ID, one file per address type."
+                + " Dictionaries cover all addresses, so address lookups don't query DB. Created and loaded from DB if missing.");
+        options.addOption(null, "address-dict-slots", true, "Number of slots of new address dictionary files per address type, i.e. 'p2pkh=2147483648,p2wsh=67108864'."
+                + " Up to 80% of slots are used. Default is twice the number of addresses of the type in DB");
+        options.addOption(null, "journal", true, "Journal file of queued blocks. After unclean stop, blocks above the last checkpoint are rolled back and processed again on next start, without safe-run.");
+        options.addOption(null, "journal-checkpoint-blocks", true, "Number of blocks between journal checkpoints. All DB queues are flushed at checkpoint. Default is " + DEFAULT_JOURNAL_CHECKPOINT_BLOCKS);
+        options.addOption(null, "journal-sync-blocks", true, "Number of blocks between journal syncs to disk. Default is " + DEFAULT_JOURNAL_SYNC_BLOCKS);
+        options.addOption(null, "timing-report-sec", true, "Interval in seconds to log per-stage block timing percentiles and the slowest blocks. Default is " + DEFAULT_TIMING_REPORT_SEC);
         options.addOption(null, "stop-file", true, "File to be watched on each new block to stop process. If file is present the process stops and file renamed by adding '1' to the end.");
         DBConnection.addOptions(options);
+        DbUpdate.addOptions(options);
+        DbPartitioning.addOptions(options);
         RpcClient.addOptions(options);
+        RunEmbeddedScan.addOptions(options);
         BJBlockProvider.addOptions(options);
         return options;
     }
@@ -633,5 +1159,7 @@ public class RunFullScan {
 
         private final int blockHeight;
         private final SrcBlock block;
+        private final long fetchNanos;
+        private final long resolveNanos;
     }
 }
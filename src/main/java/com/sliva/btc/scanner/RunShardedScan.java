@@ -0,0 +1,424 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner;
+
+import com.sliva.btc.scanner.db.DBConnection;
+import com.sliva.btc.scanner.db.DbAddBlock;
+import com.sliva.btc.scanner.db.DbBlockTxnOffsets;
+import com.sliva.btc.scanner.db.DbCachedTransaction;
+import com.sliva.btc.scanner.db.DbPartitioning;
+import com.sliva.btc.scanner.db.DbQueryBlock;
+import com.sliva.btc.scanner.db.DbScanShard;
+import com.sliva.btc.scanner.db.DbSharedAddress;
+import com.sliva.btc.scanner.db.DbUpdate;
+import com.sliva.btc.scanner.db.DbUpdateInput;
+import com.sliva.btc.scanner.db.DbUpdateInputSpecial;
+import com.sliva.btc.scanner.db.DbUpdateOutput;
+import com.sliva.btc.scanner.db.DbUpdateTransaction;
+import com.sliva.btc.scanner.db.model.BtcBlock;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.OutputStatus;
+import com.sliva.btc.scanner.db.model.SighashType;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxInputSpecial;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.rpc.RpcClient;
+import com.sliva.btc.scanner.rpc.RpcClientDirect;
+import com.sliva.btc.scanner.src.BJBlockProvider;
+import com.sliva.btc.scanner.src.BlockProvider;
+import com.sliva.btc.scanner.src.BlockProviderWithBackup;
+import com.sliva.btc.scanner.src.RpcBlockProvider;
+import com.sliva.btc.scanner.src.SrcAddress;
+import com.sliva.btc.scanner.src.SrcBlock;
+import com.sliva.btc.scanner.src.SrcInput;
+import com.sliva.btc.scanner.src.SrcOutput;
+import com.sliva.btc.scanner.src.SrcTransaction;
+import com.sliva.btc.scanner.util.Utils;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import wf.bitcoin.javabitcoindrpcclient.BitcoindRpcClient.Block;
+
+/**
+ * Sharded full scan. Block height range is split into shards that are
+ * processed by any number of worker threads and processes (on several
+ * machines) sharing the same DB:
+ * <ul>
+ * <li>init (once, --init): block records with transaction counts are loaded
+ * from node, shards are registered for both passes;</li>
+ * <li>pass 1: transactions and outputs with block based transaction IDs
+ * (see {@link DbBlockTxnOffsets}), so shards do not depend on each
+ * other;</li>
+ * <li>pass 2: inputs are linked to outputs of any shard. Starts when all
+ * pass 1 shards are done.</li>
+ * </ul>
+ * Shards of a failed worker are picked up again after heartbeat timeout;
+ * rows written by the failed attempt are deleted first.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class RunShardedScan {
+
+    private static final int DEFAULT_SHARD_SIZE = 10000;
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_SHARD_TIMEOUT_SEC = 600;
+    private static final boolean DEFAULT_UPDATE_SPENT = true;
+    private static final int HEARTBEAT_PERIOD_SEC = 30;
+    private static final int WAIT_PASS_PERIOD_SEC = 30;
+    private static final int INIT_FETCH_BATCH = 1000;
+
+    private final boolean init;
+    private final int shardSize;
+    private final int threads;
+    private final int shardTimeoutSec;
+    private final boolean updateSpent;
+    private final DBConnection dbCon;
+    private final DbScanShard scanShard;
+    private final DbSharedAddress sharedAddress;
+    private final BlockProvider blockProvider;
+    private final String workerPrefix;
+    private final Map<String, DbScanShard.Shard> runningShards = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> lostShards = new ConcurrentHashMap<>();
+
+    /**
+     * @param args the command line arguments
+     * @throws java.lang.Exception
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(prepOptions(), args);
+        if (cmd.hasOption('h')) {
+            printHelpAndExit();
+        }
+        new RunShardedScan(cmd).runProcess();
+    }
+
+    public RunShardedScan(CommandLine cmd) {
+        init = cmd.hasOption("init");
+        shardSize = Integer.parseInt(cmd.getOptionValue("shard-size", Integer.toString(DEFAULT_SHARD_SIZE)));
+        threads = Integer.parseInt(cmd.getOptionValue("threads", Integer.toString(DEFAULT_THREADS)));
+        shardTimeoutSec = Integer.parseInt(cmd.getOptionValue("shard-timeout-sec", Integer.toString(DEFAULT_SHARD_TIMEOUT_SEC)));
+        updateSpent = "true".equalsIgnoreCase(cmd.getOptionValue("update-spent", String.valueOf(DEFAULT_UPDATE_SPENT)));
+        DBConnection.applyArguments(cmd);
+        DbUpdate.applyArguments(cmd);
+        DbPartitioning.applyArguments(cmd);
+        BJBlockProvider.applyArguments(cmd);
+        RpcClient.applyArguments(cmd);
+        RpcClientDirect.applyArguments(cmd);
+        dbCon = new DBConnection();
+        scanShard = new DbScanShard(dbCon);
+        sharedAddress = new DbSharedAddress(dbCon);
+        if (cmd.hasOption("full-blocks-path")) {
+            blockProvider = new BlockProviderWithBackup(new BJBlockProvider(), new RpcBlockProvider());
+        } else {
+            blockProvider = new RpcBlockProvider();
+        }
+        workerPrefix = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    public void runProcess() throws Exception {
+        log.info("Execution STARTED. Worker: {}", workerPrefix);
+        if (init) {
+            runInit();
+        }
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_PERIOD_SEC, HEARTBEAT_PERIOD_SEC, TimeUnit.SECONDS);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                String worker = workerPrefix + "-" + i;
+                futures.add(workers.submit(() -> {
+                    runWorker(worker);
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            workers.shutdownNow();
+            heartbeat.shutdownNow();
+        }
+        log.info("Execution FINISHED");
+    }
+
+    /**
+     * Load block records for all blocks not in DB yet and register shards for
+     * them.
+     */
+    private void runInit() throws Exception {
+        if (scanShard.countNotDone(DbScanShard.PASS_OUTPUTS) > 0 || scanShard.countNotDone(DbScanShard.PASS_INPUTS) > 0) {
+            throw new IllegalStateException("Previous sharded scan is not finished. Start workers without --init to complete it");
+        }
+        int fromHeight = new DbQueryBlock(dbCon).findLastHeight() + 1;
+        int toHeight = RpcClient.getInstance().getBlocksNumber();
+        log.info("init: Loading block records {}-{}", fromHeight, toHeight);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (DbAddBlock addBlock = new DbAddBlock(dbCon)) {
+            for (int start = fromHeight; start <= toHeight; start += INIT_FETCH_BATCH) {
+                List<Future<Block>> futures = new ArrayList<>();
+                for (int height = start; height <= Math.min(start + INIT_FETCH_BATCH - 1, toHeight); height++) {
+                    final int h = height;
+                    futures.add(executor.submit(() -> RpcClient.getInstance().getBlock(h)));
+                }
+                for (Future<Block> f : futures) {
+                    Block b = f.get();
+                    addBlock.add(BtcBlock.builder()
+                            .height(b.height())
+                            .hash(b.hash())
+                            .txnCount(b.tx().size())
+                            .build());
+                }
+                log.info("init: Loaded block records up to {}", Math.min(start + INIT_FETCH_BATCH - 1, toHeight));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (DbPartitioning.isEnabled()) {
+            new DbPartitioning(dbCon).ensurePartitions(new DbBlockTxnOffsets(dbCon).getFirstTransactionId(toHeight + 1) - 1);
+        }
+        sharedAddress.initAllocator();
+        scanShard.createShards(DbScanShard.PASS_OUTPUTS, fromHeight, toHeight, shardSize);
+        scanShard.createShards(DbScanShard.PASS_INPUTS, fromHeight, toHeight, shardSize);
+    }
+
+    private void runWorker(String worker) throws Exception {
+        DbScanShard.Shard shard;
+        while ((shard = scanShard.claim(DbScanShard.PASS_OUTPUTS, worker, shardTimeoutSec)) != null) {
+            runShard(shard);
+        }
+        for (;;) {
+            shard = scanShard.claim(DbScanShard.PASS_INPUTS, worker, shardTimeoutSec);
+            if (shard == null) {
+                break;
+            }
+            if (scanShard.countNotDone(DbScanShard.PASS_OUTPUTS) > 0) {
+                //release and wait: some pass 1 shards are still running elsewhere
+                log.info("{}: Waiting for pass {} to complete", worker, DbScanShard.PASS_OUTPUTS);
+                scanShard.release(shard);
+                Utils.sleep(WAIT_PASS_PERIOD_SEC * 1000L);
+                while ((shard = scanShard.claim(DbScanShard.PASS_OUTPUTS, worker, shardTimeoutSec)) != null) {
+                    runShard(shard);
+                }
+                continue;
+            }
+            runShard(shard);
+        }
+        log.info("{}: No more shards to process", worker);
+    }
+
+    @SuppressWarnings("UseSpecificCatch")
+    private void runShard(DbScanShard.Shard shard) throws Exception {
+        log.info("{}: Processing {}", shard.getWorker(), shard);
+        long s = System.currentTimeMillis();
+        runningShards.put(shard.getWorker(), shard);
+        lostShards.remove(shard.getWorker());
+        try {
+            DbBlockTxnOffsets offsets = new DbBlockTxnOffsets(dbCon);
+            int fromTransactionId = offsets.getFirstTransactionId(shard.getStartHeight());
+            int toTransactionId = offsets.getFirstTransactionId(shard.getEndHeight() + 1) - 1;
+            scanShard.deleteShardRows(shard.getPass(), fromTransactionId, toTransactionId);
+            long failures = DbUpdate.getFailureCount();
+            if (shard.getPass() == DbScanShard.PASS_OUTPUTS) {
+                runOutputsPass(shard, offsets);
+            } else {
+                runInputsPass(shard, offsets, failures);
+            }
+            //updaters are closed, but batches taken by writer threads might still be running
+            DbUpdate.awaitRunningBatches();
+            if (DbUpdate.getFailureCount() != failures) {
+                scanShard.release(shard);
+                throw new IllegalStateException("DB inserts failed while processing " + shard + ". Shard is released to be processed again");
+            }
+            if (!scanShard.complete(shard)) {
+                throw new IllegalStateException("Shard was taken over by another worker: " + shard);
+            }
+            log.info("{}: Completed {}. Runtime: {} sec.", shard.getWorker(), shard, (System.currentTimeMillis() - s) / 1000);
+        } finally {
+            runningShards.remove(shard.getWorker());
+        }
+    }
+
+    /**
+     * Pass 1: transactions and outputs.
+     */
+    private void runOutputsPass(DbScanShard.Shard shard, DbBlockTxnOffsets offsets) throws Exception {
+        DbQueryBlock queryBlock = new DbQueryBlock(dbCon);
+        try (DbUpdateTransaction updateTransaction = new DbUpdateTransaction(dbCon);
+                DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon)) {
+            for (int height = shard.getStartHeight(); height <= shard.getEndHeight(); height++) {
+                checkNotLost(shard);
+                List<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> txns = getBlockTransactions(queryBlock, height);
+                int firstTransactionId = offsets.getFirstTransactionId(height);
+                for (int i = 0; i < txns.size(); i++) {
+                    SrcTransaction<SrcInput, SrcOutput<SrcAddress>> t = txns.get(i);
+                    int transactionId = firstTransactionId + i;
+                    updateTransaction.add(BtcTransaction.builder()
+                            .transactionId(transactionId)
+                            .txid(Utils.fixDupeTxid(t.getTxid(), height))
+                            .blockHeight(height)
+                            .nInputs(t.getInputs() == null ? 0 : (int) t.getInputs().count())
+                            .nOutputs((int) t.getOutputs().count())
+                            .build());
+                    for (SrcOutput<SrcAddress> to : t.getOutputs().collect(Collectors.toList())) {
+                        SrcAddress addr = to.getAddress();
+                        updateOutput.add(TxOutput.builder()
+                                .transactionId(transactionId)
+                                .pos(to.getPos())
+                                .amount(to.getValue())
+                                .addressId(addr == null ? 0 : sharedAddress.getOrAdd(addr))
+                                .status(OutputStatus.UNDEFINED)
+                                .build());
+                    }
+                }
+                offsets.setTxnCount(height, txns.size());
+            }
+        }
+    }
+
+    /**
+     * Pass 2: inputs, special inputs and spent flags of connected outputs.
+     * Spent flags are bulk updated while the pass runs, so the pass stops at
+     * the first failed update and the shard is released by the caller.
+     *
+     * @param failures DB failure count before the pass started
+     */
+    private void runInputsPass(DbScanShard.Shard shard, DbBlockTxnOffsets offsets, long failures) throws Exception {
+        DbQueryBlock queryBlock = new DbQueryBlock(dbCon);
+        try (DbCachedTransaction cachedTxn = new DbCachedTransaction(dbCon);
+                DbUpdateInput updateInput = new DbUpdateInput(dbCon);
+                DbUpdateInputSpecial updateInputSpecial = new DbUpdateInputSpecial(dbCon);
+                DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon)) {
+            for (int height = shard.getStartHeight(); height <= shard.getEndHeight(); height++) {
+                checkNotLost(shard);
+                List<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> txns = getBlockTransactions(queryBlock, height);
+                cachedTxn.getTransactionsInBlockRange(height, height);
+                int firstTransactionId = offsets.getFirstTransactionId(height);
+                for (int i = 0; i < txns.size(); i++) {
+                    SrcTransaction<SrcInput, SrcOutput<SrcAddress>> t = txns.get(i);
+                    if (t.getInputs() == null) {
+                        continue;
+                    }
+                    int transactionId = firstTransactionId + i;
+                    for (SrcInput ti : t.getInputs().collect(Collectors.toList())) {
+                        BtcTransaction inTxn = cachedTxn.getTransaction(ti.getInTxid());
+                        if (inTxn == null) {
+                            throw new IllegalStateException("Transaction not found in DB: " + ti.getInTxid() + " referenced from input#" + ti.getPos() + " in tx " + t.getTxid());
+                        }
+                        updateInput.add(TxInput.builder()
+                                .transactionId(transactionId)
+                                .pos(ti.getPos())
+                                .inTransactionId(inTxn.getTransactionId())
+                                .inPos(ti.getInPos())
+                                .build());
+                        if (ti.isMultisig() || ti.getSighashType() != SighashType.SIGHASH_ALL) {
+                            updateInputSpecial.add(TxInputSpecial.builder()
+                                    .transactionId(transactionId)
+                                    .pos(ti.getPos())
+                                    .sighashType(ti.getSighashType())
+                                    .segwit(ti.isSegwit())
+                                    .multisig(ti.isMultisig())
+                                    .build());
+                        }
+                        if (updateSpent) {
+                            updateOutput.updateSpent(inTxn.getTransactionId(), ti.getInPos(), OutputStatus.SPENT);
+                        }
+                    }
+                }
+                offsets.setTxnCount(height, txns.size());
+                if (DbUpdate.getFailureCount() != failures) {
+                    log.error("{}: DB updates failed at block {}, stopping pass 2 of {}", shard.getWorker(), height, shard);
+                    break;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> getBlockTransactions(DbQueryBlock queryBlock, int height) throws SQLException {
+        SrcBlock<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> block = blockProvider.getBlock(height);
+        BtcBlock dbBlock = queryBlock.getBlock(height);
+        if (dbBlock == null || !dbBlock.getHash().equalsIgnoreCase(block.getHash())) {
+            throw new IllegalStateException("Block " + height + " hash " + block.getHash() + " does not match DB record " + dbBlock);
+        }
+        List<SrcTransaction<SrcInput, SrcOutput<SrcAddress>>> txns = block.getTransactions().collect(Collectors.toList());
+        if (txns.size() != dbBlock.getTxnCount()) {
+            throw new IllegalStateException("Block " + height + " has " + txns.size() + " transactions, DB record " + dbBlock);
+        }
+        return txns;
+    }
+
+    private void checkNotLost(DbScanShard.Shard shard) {
+        if (lostShards.containsKey(shard.getWorker())) {
+            throw new IllegalStateException("Shard was taken over by another worker: " + shard);
+        }
+    }
+
+    @SuppressWarnings("UseSpecificCatch")
+    private void sendHeartbeats() {
+        runningShards.values().forEach(shard -> {
+            try {
+                if (!scanShard.heartbeat(shard)) {
+                    log.warn("Lost ownership of {}", shard);
+                    lostShards.put(shard.getWorker(), Boolean.TRUE);
+                }
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+        });
+    }
+
+    private static void printHelpAndExit() {
+        System.out.println("Available options:");
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("java <jar> " + Main.Command.update_sharded + " [options]", prepOptions());
+        System.exit(1);
+    }
+
+    private static Options prepOptions() {
+        Options options = new Options();
+        options.addOption("h", "help", false, "Print help");
+        options.addOption(null, "init", false, "Load block records for blocks missing in DB and register shards. Run once from one process, then start workers on any number of machines");
+        options.addOption(null, "shard-size", true, "Number of blocks in a shard. Used with --init. Default is " + DEFAULT_SHARD_SIZE);
+        options.addOption(null, "threads", true, "Number of shards processed in parallel by this process. Default is " + DEFAULT_THREADS);
+        options.addOption(null, "shard-timeout-sec", true, "Shard is re-assigned to another worker if no heartbeat received during this time. Default is " + DEFAULT_SHARD_TIMEOUT_SEC);
+        options.addOption(null, "update-spent", true, "Update spent flag on outputs in pass 2. Default is " + DEFAULT_UPDATE_SPENT);
+        DBConnection.addOptions(options);
+        DbUpdate.addOptions(options);
+        DbPartitioning.addOptions(options);
+        RpcClient.addOptions(options);
+        BJBlockProvider.addOptions(options);
+        return options;
+    }
+}
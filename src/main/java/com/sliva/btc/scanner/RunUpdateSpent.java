@@ -16,6 +16,7 @@
 package com.sliva.btc.scanner;
 
 import com.sliva.btc.scanner.db.DBConnection;
+import com.sliva.btc.scanner.db.DbPartitioning;
 import com.sliva.btc.scanner.db.DbUpdateOutput;
 import com.sliva.btc.scanner.db.model.OutputStatus;
 import com.sliva.btc.scanner.util.Utils;
@@ -42,10 +43,15 @@ public class RunUpdateSpent {
             = "SELECT O.transaction_id,O.pos,O.address_id,O.spent,I.in_transaction_id FROM output O"
             + " LEFT JOIN input I ON I.in_transaction_id=O.transaction_id AND I.in_pos=O.pos"
             + " WHERE O.transaction_id BETWEEN ? AND ?";
+    private static final String SQL_QUERY_OUTPUTS_PARTITION
+            = "SELECT O.transaction_id,O.pos,O.address_id,O.spent,I.in_transaction_id FROM output PARTITION (%s) O"
+            + " LEFT JOIN input I ON I.in_transaction_id=O.transaction_id AND I.in_pos=O.pos"
+            + " WHERE O.transaction_id BETWEEN ? AND ?";
 
     private final DBConnection dbCon;
     private final ThreadLocal<PreparedStatement> psQueryOutputs;
     private final int startTransactionId;
+    private final int endTransactionId;
     private final int batchSize;
     private final Utils.NumberFile startFromFile;
 
@@ -70,20 +76,33 @@ public class RunUpdateSpent {
 
     public RunUpdateSpent(CommandLine cmd) {
         startFromFile = new Utils.NumberFile(cmd.getOptionValue("start-from", Integer.toString(DEFAULT_START_TRANSACTION_ID)));
-        startTransactionId = startFromFile.getNumber().intValue();
         batchSize = Integer.parseInt(cmd.getOptionValue("batch-size", Integer.toString(DEFAULT_BATCH_SIZE)));
         DBConnection.applyArguments(cmd);
+        DbPartitioning.applyArguments(cmd);
 
         dbCon = new DBConnection();
-        psQueryOutputs = dbCon.prepareStatement(SQL_QUERY_OUTPUTS);
+        if (cmd.hasOption("partition")) {
+            if (!DbPartitioning.isEnabled()) {
+                throw new IllegalArgumentException("Option partition requires db-partition-txns");
+            }
+            int partition = Integer.parseInt(cmd.getOptionValue("partition"));
+            startTransactionId = Math.max(startFromFile.getNumber().intValue(), DbPartitioning.getFirstTransactionId(partition));
+            endTransactionId = DbPartitioning.getLastTransactionId(partition);
+            psQueryOutputs = dbCon.prepareStatement(String.format(SQL_QUERY_OUTPUTS_PARTITION, DbPartitioning.getPartitionName(partition)));
+        } else {
+            startTransactionId = startFromFile.getNumber().intValue();
+            endTransactionId = Integer.MAX_VALUE;
+            psQueryOutputs = dbCon.prepareStatement(SQL_QUERY_OUTPUTS);
+        }
     }
 
     private void runProcess() throws SQLException {
-        for (int i = startTransactionId;; i += batchSize) {
-            log.info("Processing batch of outputs for transaction IDs between {} and {}", i, i + batchSize);
+        for (int i = startTransactionId; i <= endTransactionId; i += batchSize) {
+            int batchEnd = (int) Math.min(endTransactionId, (long) i + batchSize);
+            log.info("Processing batch of outputs for transaction IDs between {} and {}", i, batchEnd);
             startFromFile.updateNumber(i);
             psQueryOutputs.get().setInt(1, i);
-            psQueryOutputs.get().setInt(2, i + batchSize);
+            psQueryOutputs.get().setInt(2, batchEnd);
             int txnCount = 0;
             try (ResultSet rs = psQueryOutputs.get().executeQuery();
                     DbUpdateOutput updateOutput = new DbUpdateOutput(dbCon)) {
@@ -124,7 +143,9 @@ public class RunUpdateSpent {
         options.addOption("h", "help", false, "Print help");
         options.addOption(null, "batch-size", true, "Number or transactions to process in a batch. Default: " + DEFAULT_BATCH_SIZE);
         options.addOption(null, "start-from", true, "Start process from this transaction ID. Beside a number this parameter can be set to a file name that stores the numeric value updated on every batch");
+        options.addOption(null, "partition", true, "Process only transaction IDs of this output table partition. Requires db-partition-txns");
         DBConnection.addOptions(options);
+        DbPartitioning.addOptions(options);
         return options;
     }
 
@@ -16,12 +16,27 @@
 package com.sliva.btc.scanner.db;
 
 import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.UUID;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import lombok.extern.slf4j.Slf4j;
 
@@ -33,6 +48,130 @@ import lombok.extern.slf4j.Slf4j;
 @SuppressWarnings("UseSpecificCatch")
 public final class BatchExecutor {
 
+    private static final String SQL_QUERY_MAX_PACKET = "SELECT @@max_allowed_packet";
+    private static final int DEFAULT_MAX_PACKET = 4 * 1024 * 1024;
+    private static final int PACKET_RESERVE = 1024;
+    private static final int ER_DUP_ENTRY = 1062;
+    private static final Map<Connection, Integer> maxPacketSizes = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final ThreadLocal<RowBuilder> rowBuilders = ThreadLocal.withInitial(RowBuilder::new);
+    private static final ThreadLocal<StringBuilder> sqlBuilders = ThreadLocal.withInitial(() -> new StringBuilder(64 * 1024));
+    private static final ThreadLocal<LoadDataBuffer> loadDataBuffers = ThreadLocal.withInitial(LoadDataBuffer::new);
+    private static volatile boolean useLoadData;
+    private static volatile RowSink rowSink = new MysqlRowSink();
+    private static final AtomicLong failedRecords = new AtomicLong();
+
+    /**
+     * Switch {@link #executeInsert} between multi-row INSERT statements
+     * (default) and LOAD DATA LOCAL INFILE fed from memory. LOAD DATA requires
+     * allowLoadLocalInfile=true in DB URL and local_infile enabled on server.
+     *
+     * @param loadData true to use LOAD DATA
+     */
+    public static void setUseLoadData(boolean loadData) {
+        useLoadData = loadData;
+    }
+
+    /**
+     * Set destination of rows passed to {@link #executeInsert}. Default is
+     * {@link MysqlRowSink}.
+     *
+     * @param sink row sink
+     */
+    public static void setRowSink(RowSink sink) {
+        rowSink = sink;
+    }
+
+    public static RowSink getRowSink() {
+        return rowSink;
+    }
+
+    /**
+     * Get size limit of DB caches. Rows written to a sink that is not
+     * readable are resolved from caches only, so the caches are not bounded
+     * then and memory use grows with the number of processed blocks.
+     *
+     * @param maxSize cache size limit for DB storage
+     * @return cache size limit for current row sink
+     */
+    public static int getCacheLimit(int maxSize) {
+        return rowSink.isReadable() ? maxSize : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Number of records that could not be stored and were dropped after
+     * logging the error.
+     *
+     * @return number of records
+     */
+    public static long getFailedRecords() {
+        return failedRecords.get();
+    }
+
+    /**
+     * Count records dropped by caller after an error, so they are reported
+     * by {@link #getFailedRecords()}.
+     *
+     * @param n number of records
+     */
+    static void countFailedRecords(long n) {
+        failedRecords.addAndGet(n);
+    }
+
+    /**
+     * Insert records into configured row sink.
+     *
+     * @param <T> record type
+     * @param list records to insert
+     * @param tableName table name
+     * @param columns comma separated list of columns
+     * @param conn DB connection
+     * @param fillCallback appends values of one record to the row
+     * @return number of rows inserted
+     */
+    public static <T> int executeInsert(Collection<T> list, String tableName, String columns, DBConnection conn, FillRow<T> fillCallback) {
+        return rowSink.write(list, tableName, columns, conn, fillCallback);
+    }
+
+    /**
+     * Write update records of rows stored in a sink that is not readable, see
+     * {@link RowSink#writeUpdates}.
+     *
+     * @param <T> record type
+     * @param list update records
+     * @param update staging table of the updates
+     * @param conn DB connection
+     * @param fillCallback appends values of one record to the row
+     * @return number of rows written
+     */
+    public static <T> int executeStagedUpdate(Collection<T> list, StagedUpdate update, DBConnection conn, FillRow<T> fillCallback) {
+        return rowSink.writeUpdates(list, update, conn, fillCallback);
+    }
+
+    /**
+     * Insert records into DB using configured insert method.
+     *
+     * @param <T> record type
+     * @param list records to insert
+     * @param tableName table name
+     * @param columns comma separated list of columns
+     * @param conn DB connection
+     * @param fillCallback appends values of one record to the row
+     * @return number of rows inserted
+     */
+    static <T> int executeDbInsert(Collection<T> list, String tableName, String columns, DBConnection conn, FillRow<T> fillCallback) {
+        if (useLoadData) {
+            try {
+                return executeLoadData(list, tableName, columns, conn, fillCallback);
+            } catch (SQLFeatureNotSupportedException e) {
+                log.warn("executeInsert: LOAD DATA from stream is not supported by the driver. Switching to multi-row INSERT: {}", e.getMessage());
+                useLoadData = false;
+            } catch (SQLException e) {
+                log.error("executeInsert: LOAD DATA into " + tableName + " failed. Retrying with multi-row INSERT: " + e.getMessage(), e);
+            }
+        }
+        return executeMultiRowInsert(list, "INSERT INTO " + tableName + "(" + columns + ")VALUES", conn, fillCallback);
+    }
+
     public static <T> void executeBatch(Collection<T> list, PreparedStatement ps, FillStatement<T> fillCallback) {
         log.trace("BatchExecutor.executeBatch(): list.size={}", list.size());
         long s = System.currentTimeMillis();
@@ -50,6 +189,7 @@ public final class BatchExecutor {
                     fillCallback.fill(a, ps);
                     ps.execute();
                 } catch (Exception ex) {
+                    failedRecords.incrementAndGet();
                     log.error(ex.getMessage(), ex);
                     log.info("Exception while executing record insert: " + a);
                 }
@@ -63,22 +203,219 @@ public final class BatchExecutor {
     public static <T> void executeBatchFromFile(Collection<T> list, String tableName, DBConnection conn, BiConsumer<T, PrintStream> fillCallback)
             throws SQLException, IOException {
         log.trace("BatchExecutor.executeBatchFromFile(): list.size={}", list.size());
-        String filename = "/temp/db-" + tableName + "-load-" + UUID.randomUUID() + ".data";
-        File file = new File(filename);
-        file.deleteOnExit();
+        File file = File.createTempFile("db-load-", ".data");
         log.debug("executeBatchFromFile: temp file: {}", file.getAbsolutePath());
         long s = System.currentTimeMillis();
-        try (PrintStream out = new PrintStream(file)) {
-            for (T a : list) {
-                fillCallback.accept(a, out);
+        try {
+            try (PrintStream out = new PrintStream(file)) {
+                for (T a : list) {
+                    fillCallback.accept(a, out);
+                }
             }
-            out.close();
-            conn.getConnection().prepareCall("LOAD DATA LOCAL INFILE '" + filename + "' INTO TABLE " + tableName).execute();
+            conn.getConnection().prepareCall("LOAD DATA LOCAL INFILE '" + file.getAbsolutePath().replace('\\', '/') + "' INTO TABLE " + tableName).execute();
         } finally {
+            if (!file.delete()) {
+                log.warn("executeBatchFromFile: Failed to delete temp file: {}", file.getAbsolutePath());
+            }
             log.debug("BatchExecutor.executeBatchFromFile({}): runtime={}", list.size(), (System.currentTimeMillis() - s) + " ms.");
         }
     }
 
+    /**
+     * Load records with LOAD DATA LOCAL INFILE. Rows are encoded in tab
+     * separated format into a reused per-thread byte buffer and passed to the
+     * driver as InputStream, no temp file is created. Binary values are
+     * written as raw bytes with escaping, so data is loaded with CHARACTER SET
+     * binary.
+     *
+     * @param <T> record type
+     * @param list records to insert
+     * @param tableName table name
+     * @param columns comma separated list of columns
+     * @param conn DB connection
+     * @param fillCallback appends values of one record to the row
+     * @return number of rows inserted
+     * @throws SQLException
+     * @throws SQLFeatureNotSupportedException if driver can't read data from
+     * stream
+     */
+    public static <T> int executeLoadData(Collection<T> list, String tableName, String columns, DBConnection conn, FillRow<T> fillCallback) throws SQLException {
+        log.trace("BatchExecutor.executeLoadData(): list.size={}", list.size());
+        if (list.isEmpty()) {
+            return 0;
+        }
+        long s = System.currentTimeMillis();
+        LoadDataBuffer buffer = loadDataBuffers.get();
+        buffer.reset();
+        for (T a : list) {
+            buffer.startRow();
+            fillCallback.fill(a, buffer);
+        }
+        String sql = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + tableName + " CHARACTER SET binary (" + columns + ")";
+        try (Statement st = conn.getConnection().createStatement()) {
+            setLocalInfileInputStream(st, buffer.getInputStream());
+            int result = st.executeUpdate(sql);
+            log.debug("BatchExecutor.executeLoadData({}): bytes={}, inserted={}, runtime={}", list.size(), buffer.size(), result, (System.currentTimeMillis() - s) + " ms.");
+            return result;
+        } finally {
+            buffer.trim();
+        }
+    }
+
+    /**
+     * Encode records in LOAD DATA format and write them to the stream, each
+     * row terminated by new line, so output of consecutive calls can be
+     * loaded as one file.
+     *
+     * @param <T> record type
+     * @param list records to write
+     * @param out output stream
+     * @param fillCallback appends values of one record to the row
+     * @throws IOException
+     */
+    static <T> void writeLoadData(Collection<T> list, OutputStream out, FillRow<T> fillCallback) throws IOException {
+        LoadDataBuffer buffer = loadDataBuffers.get();
+        buffer.reset();
+        try {
+            for (T a : list) {
+                buffer.startRow();
+                fillCallback.fill(a, buffer);
+            }
+            buffer.write('\n');
+            out.write(buffer.buf, 0, buffer.size);
+        } finally {
+            buffer.trim();
+        }
+    }
+
+    /**
+     * Set data source for the next LOAD DATA LOCAL statement. The method is
+     * driver specific and the driver is runtime dependency, so it is called
+     * by reflection.
+     */
+    private static void setLocalInfileInputStream(Statement st, InputStream in) throws SQLException {
+        try {
+            Method m = st.getClass().getMethod("setLocalInfileInputStream", InputStream.class);
+            m.invoke(st, in);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new SQLFeatureNotSupportedException(st.getClass().getName() + ".setLocalInfileInputStream", e);
+        } catch (InvocationTargetException e) {
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Insert records with multi-row INSERT statements. Rows are rendered once
+     * into a reused per-thread buffer, then packed into statements not larger
+     * than max_allowed_packet of the connection. If a statement fails, its
+     * rows are split in halves and retried, so a bad row costs a logarithmic
+     * number of round trips instead of one per row. A duplicate key error is
+     * retried once with INSERT IGNORE instead: on MyISAM the failed statement
+     * has already stored all rows before the duplicate, so splitting would
+     * only hit more duplicates. Rows skipped as duplicates are counted as
+     * inserted - their keys are in DB.
+     *
+     * @param <T> record type
+     * @param list records to insert
+     * @param sqlPrefix statement up to the values list, i.e.
+     * "INSERT INTO input(transaction_id,pos,in_transaction_id,in_pos)VALUES"
+     * @param conn DB connection
+     * @param fillCallback appends values of one record to the row
+     * @return number of rows inserted
+     */
+    public static <T> int executeMultiRowInsert(Collection<T> list, String sqlPrefix, DBConnection conn, FillRow<T> fillCallback) {
+        log.trace("BatchExecutor.executeMultiRowInsert(): list.size={}", list.size());
+        if (list.isEmpty()) {
+            return 0;
+        }
+        long s = System.currentTimeMillis();
+        List<T> records = new ArrayList<>(list);
+        RowBuilder rows = rowBuilders.get();
+        rows.reset();
+        for (T a : records) {
+            rows.startRow();
+            fillCallback.fill(a, rows);
+        }
+        rows.startRow();
+        int nInserted = 0;
+        try (Statement st = conn.getConnection().createStatement()) {
+            int maxLength = getMaxPacketSize(conn.getConnection()) - PACKET_RESERVE;
+            int from = 0;
+            while (from < records.size()) {
+                int to = from + 1;
+                long length = sqlPrefix.length() + rows.getRowLength(from);
+                while (to < records.size() && length + rows.getRowLength(to) + 1 <= maxLength) {
+                    length += rows.getRowLength(to) + 1;
+                    to++;
+                }
+                nInserted += executeRows(st, sqlPrefix, rows, records, from, to, false);
+                from = to;
+            }
+        } catch (SQLException e) {
+            failedRecords.addAndGet(records.size() - nInserted);
+            log.error(e.getMessage(), e);
+        } finally {
+            rows.trim();
+            log.debug("BatchExecutor.executeMultiRowInsert({}): inserted={}, runtime={}", list.size(), nInserted, (System.currentTimeMillis() - s) + " ms.");
+        }
+        return nInserted;
+    }
+
+    private static <T> int executeRows(Statement st, String sqlPrefix, RowBuilder rows, List<T> records, int from, int to, boolean ignoreDuplicates) {
+        StringBuilder sql = sqlBuilders.get();
+        sql.setLength(0);
+        sql.append(ignoreDuplicates ? sqlPrefix.replaceFirst("^INSERT ", "INSERT IGNORE ") : sqlPrefix);
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                sql.append(',');
+            }
+            rows.appendRow(sql, i);
+        }
+        try {
+            int n = st.executeUpdate(sql.toString());
+            if (ignoreDuplicates && n < to - from) {
+                log.info("executeRows: {} of {} rows skipped as duplicates", to - from - n, to - from);
+            }
+            return ignoreDuplicates ? to - from : n;
+        } catch (SQLException e) {
+            if (e.getErrorCode() == ER_DUP_ENTRY && !ignoreDuplicates) {
+                log.debug("executeRows: Insert of {} rows failed on duplicate key. Retrying with INSERT IGNORE. Error: {}", to - from, e.getMessage());
+                return executeRows(st, sqlPrefix, rows, records, from, to, true);
+            }
+            if (to - from == 1) {
+                failedRecords.incrementAndGet();
+                log.error(e.getMessage(), e);
+                log.info("Exception while executing record insert: " + records.get(from));
+                return 0;
+            }
+            log.debug("executeRows: Insert of {} rows failed. Splitting. Error: {}", to - from, e.getMessage());
+            int mid = (from + to) >>> 1;
+            return executeRows(st, sqlPrefix, rows, records, from, mid, ignoreDuplicates)
+                    + executeRows(st, sqlPrefix, rows, records, mid, to, ignoreDuplicates);
+        } finally {
+            if (sql.capacity() > RowBuilder.MAX_RETAINED_CAPACITY) {
+                sql.setLength(0);
+                sql.trimToSize();
+            }
+        }
+    }
+
+    private static int getMaxPacketSize(Connection con) {
+        Integer result = maxPacketSizes.get(con);
+        if (result == null) {
+            result = DEFAULT_MAX_PACKET;
+            try (Statement st = con.createStatement(); ResultSet rs = st.executeQuery(SQL_QUERY_MAX_PACKET)) {
+                if (rs.next()) {
+                    result = rs.getInt(1);
+                }
+            } catch (SQLException e) {
+                log.error(e.getMessage(), e);
+            }
+            maxPacketSizes.put(con, result);
+        }
+        return result;
+    }
+
     private static void clearBatch(PreparedStatement ps) {
         try {
             ps.clearBatch();
@@ -99,4 +436,241 @@ public final class BatchExecutor {
 
         void fill(T t, PreparedStatement ps) throws SQLException;
     }
+
+    public interface FillRow<T> {
+
+        void fill(T t, RowWriter row);
+    }
+
+    /**
+     * Values of one row in the order of insert columns.
+     */
+    public interface RowWriter {
+
+        RowWriter add(int value);
+
+        RowWriter add(long value);
+
+        RowWriter add(boolean value);
+
+        RowWriter add(byte[] value);
+    }
+
+    /**
+     * Values of rows rendered as SQL literals into one buffer. Instances are
+     * reused by the thread, so buffers don't have to be re-allocated for
+     * every batch.
+     */
+    public static final class RowBuilder implements RowWriter {
+
+        private static final int MAX_RETAINED_CAPACITY = 16 * 1024 * 1024;
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+        private final StringBuilder data = new StringBuilder(64 * 1024);
+        private int[] rowStart = new int[1024];
+        private int nRows;
+        private boolean firstValue;
+
+        private void reset() {
+            data.setLength(0);
+            nRows = 0;
+        }
+
+        private void startRow() {
+            if (nRows == rowStart.length) {
+                rowStart = Arrays.copyOf(rowStart, nRows * 2);
+            }
+            rowStart[nRows++] = data.length();
+            firstValue = true;
+        }
+
+        private int getRowLength(int row) {
+            return rowStart[row + 1] - rowStart[row] + 2;
+        }
+
+        private void appendRow(StringBuilder sql, int row) {
+            sql.append('(').append(data, rowStart[row], rowStart[row + 1]).append(')');
+        }
+
+        private void trim() {
+            if (data.capacity() > MAX_RETAINED_CAPACITY) {
+                data.setLength(0);
+                data.trimToSize();
+            }
+        }
+
+        private StringBuilder next() {
+            if (!firstValue) {
+                data.append(',');
+            }
+            firstValue = false;
+            return data;
+        }
+
+        @Override
+        public RowBuilder add(int value) {
+            next().append(value);
+            return this;
+        }
+
+        @Override
+        public RowBuilder add(long value) {
+            next().append(value);
+            return this;
+        }
+
+        @Override
+        public RowBuilder add(boolean value) {
+            next().append(value ? '1' : '0');
+            return this;
+        }
+
+        /**
+         * Add binary value as hex literal.
+         *
+         * @param value bytes or null
+         * @return this
+         */
+        @Override
+        public RowBuilder add(byte[] value) {
+            StringBuilder sb = next();
+            if (value == null) {
+                sb.append("NULL");
+            } else {
+                sb.append("X'");
+                for (byte b : value) {
+                    sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+                }
+                sb.append('\'');
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Rows encoded in LOAD DATA default format: tab separated fields, new line
+     * separated rows, backslash escaping, \\N for NULL.
+     */
+    private static final class LoadDataBuffer implements RowWriter {
+
+        private static final int MAX_RETAINED_CAPACITY = 16 * 1024 * 1024;
+        private byte[] buf = new byte[64 * 1024];
+        private int size;
+        private boolean firstRow;
+        private boolean firstValue;
+
+        private void reset() {
+            size = 0;
+            firstRow = true;
+        }
+
+        private void trim() {
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[64 * 1024];
+            }
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private InputStream getInputStream() {
+            return new ByteArrayInputStream(buf, 0, size);
+        }
+
+        private void startRow() {
+            if (!firstRow) {
+                write('\n');
+            }
+            firstRow = false;
+            firstValue = true;
+        }
+
+        private void next() {
+            if (!firstValue) {
+                write('\t');
+            }
+            firstValue = false;
+        }
+
+        private void write(int b) {
+            if (size == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[size++] = (byte) b;
+        }
+
+        private void writeDigits(long value) {
+            if (value < 0) {
+                write('-');
+            }
+            int start = size;
+            do {
+                write('0' + (int) Math.abs(value % 10));
+                value /= 10;
+            } while (value != 0);
+            for (int i = start, j = size - 1; i < j; i++, j--) {
+                byte b = buf[i];
+                buf[i] = buf[j];
+                buf[j] = b;
+            }
+        }
+
+        @Override
+        public RowWriter add(int value) {
+            next();
+            writeDigits(value);
+            return this;
+        }
+
+        @Override
+        public RowWriter add(long value) {
+            next();
+            writeDigits(value);
+            return this;
+        }
+
+        @Override
+        public RowWriter add(boolean value) {
+            next();
+            write(value ? '1' : '0');
+            return this;
+        }
+
+        @Override
+        public RowWriter add(byte[] value) {
+            next();
+            if (value == null) {
+                write('\\');
+                write('N');
+                return this;
+            }
+            for (byte b : value) {
+                switch (b) {
+                    case 0:
+                        write('\\');
+                        write('0');
+                        break;
+                    case '\t':
+                        write('\\');
+                        write('t');
+                        break;
+                    case '\n':
+                        write('\\');
+                        write('n');
+                        break;
+                    case '\r':
+                        write('\\');
+                        write('r');
+                        break;
+                    case '\\':
+                        write('\\');
+                        write('\\');
+                        break;
+                    default:
+                        write(b);
+                }
+            }
+            return this;
+        }
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * AIMD controller of insert batch size of one table. Batch size grows by a
+ * fixed step after a full batch executed within the target latency, and is
+ * halved when a batch exceeds it. Growth stops when rows/sec of a full batch
+ * drops below the running average, i.e. larger batches don't pay off.
+ *
+ * Writers start a batch once the queue reaches the flush threshold (a
+ * fraction of the current batch size), or when queued rows have been waiting
+ * for the maximum flush delay, so slow tip-follow traffic is not held back.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+class BatchSizeController {
+
+    static final boolean DEFAULT_ADAPTIVE = true;
+    static final long DEFAULT_TARGET_LATENCY_MSEC = 2000;
+    static final long DEFAULT_MAX_FLUSH_DELAY_MSEC = 1000;
+    private static final int MIN_BATCH_DIVISOR = 100;
+    private static final int INCREASE_STEPS = 20;
+    private static final int FLUSH_THRESHOLD_PERCENT = 10;
+    private static final double THROUGHPUT_DROP_RATIO = 0.8;
+    private static final double RATE_SMOOTHING = 0.2;
+    private static volatile boolean adaptive = DEFAULT_ADAPTIVE;
+    private static volatile long targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TARGET_LATENCY_MSEC);
+    private static volatile long maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_FLUSH_DELAY_MSEC);
+    private final String tableName;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int step;
+    private volatile int batchSize;
+    private double rowsPerSec;
+    private volatile long pendingSinceNanos;
+
+    /**
+     * @param tableName table name, for logging
+     * @param maxBatchSize upper bound of batch size, also the initial size
+     */
+    BatchSizeController(String tableName, int maxBatchSize) {
+        this.tableName = tableName;
+        this.maxBatchSize = maxBatchSize;
+        this.minBatchSize = Math.max(1, maxBatchSize / MIN_BATCH_DIVISOR);
+        this.step = Math.max(1, maxBatchSize / INCREASE_STEPS);
+        this.batchSize = maxBatchSize;
+    }
+
+    static void setAdaptive(boolean adaptive) {
+        BatchSizeController.adaptive = adaptive;
+    }
+
+    static void setTargetLatencyMsec(long msec) {
+        targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(msec);
+    }
+
+    static void setMaxFlushDelayMsec(long msec) {
+        maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(msec);
+    }
+
+    /**
+     * Maximum number of rows to take for the next batch.
+     *
+     * @return batch size
+     */
+    int getBatchSize() {
+        return adaptive ? batchSize : maxBatchSize;
+    }
+
+    int getFlushThreshold() {
+        return adaptive ? Math.max(1, batchSize / 100 * FLUSH_THRESHOLD_PERCENT) : 1;
+    }
+
+    /**
+     * Check if a writer should start a batch.
+     *
+     * @param queued number of rows in the insert queue
+     * @return true if queue reached the flush threshold or rows are waiting
+     * longer than maximum flush delay
+     */
+    boolean isFlushDue(int queued) {
+        if (queued == 0) {
+            return false;
+        }
+        if (queued >= getFlushThreshold()) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (pendingSinceNanos == 0) {
+            pendingSinceNanos = now;
+            return false;
+        }
+        return now - pendingSinceNanos >= maxFlushDelayNanos;
+    }
+
+    /**
+     * Register executed batch.
+     *
+     * @param rows number of inserted rows
+     * @param runtimeNanos batch runtime
+     */
+    synchronized void onBatch(int rows, long runtimeNanos) {
+        pendingSinceNanos = 0;
+        if (!adaptive || rows == 0) {
+            return;
+        }
+        double rate = rows * 1e9 / Math.max(runtimeNanos, 1);
+        int oldSize = batchSize;
+        if (runtimeNanos > targetLatencyNanos) {
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+        } else if (rows >= batchSize && (rowsPerSec == 0 || rate >= rowsPerSec * THROUGHPUT_DROP_RATIO)) {
+            batchSize = Math.min(maxBatchSize, batchSize + step);
+        }
+        if (rows >= oldSize || runtimeNanos > targetLatencyNanos) {
+            //partial batches don't show the throughput of the current size
+            rowsPerSec = rowsPerSec == 0 ? rate : rowsPerSec + RATE_SMOOTHING * (rate - rowsPerSec);
+        }
+        if (batchSize != oldSize) {
+            log.debug("{}: batch size {} -> {}. Last batch: {} rows in {} ms. Average: {} rows/sec",
+                    tableName, oldSize, batchSize, rows, TimeUnit.NANOSECONDS.toMillis(runtimeNanos), (long) rowsPerSec);
+        }
+    }
+}
@@ -21,12 +21,29 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 
 /**
+ * Pool of JDBC connections. A thread leases a connection on first use and
+ * keeps it until it calls {@link #releaseConnection()}, so statements
+ * obtained from {@link #prepareStatement(String)} keep working on the same
+ * session. Number of connections can be bounded, threads wait for a released
+ * connection when the limit is reached. Threads marked with
+ * {@link #setUnboundedThread()} (DB writers) never wait and are not limited:
+ * threads holding connections under the limit may be blocked on full insert
+ * queues, which only writers drain. Prepared statements are cached per
+ * connection.
  *
  * @author Sliva Co
  */
@@ -41,8 +58,23 @@ public class DBConnection {
             + "&defaultRowPrefetch=10000";
     private static String DEFAULT_DB_USER = "root";
     private static String DEFAULT_DB_PASSWORD = "password";
+    private static int DEFAULT_MAX_CONNECTIONS = 0;
+    private static final int MYSQL_BULK_INSERT_BUFFER_SIZE = 256 * 1024 * 1024;
+    private static final int MAX_CACHED_STATEMENTS = 256;
+    private static final long LEASE_WAIT_WARN_MSEC = 30000;
+    private static boolean readUncommitted = false;
+    private static final ThreadLocal<Boolean> unboundedThread = ThreadLocal.withInitial(() -> Boolean.FALSE);
     private final String dbname;
-    private final ThreadLocal<Connection> conn;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxConnections;
+    private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger nConnections = new AtomicInteger();
+    private final ThreadLocal<PooledConnection> leased = new ThreadLocal<>();
+    private final AtomicLong leaseWaits = new AtomicLong();
+    private final AtomicLong leaseWaitNanos = new AtomicLong();
+    private final AtomicLong maxLeaseWaitNanos = new AtomicLong();
 
     public DBConnection() {
         this(DEFAULT_CONN_URL, DEFAULT_DB_USER, DEFAULT_DB_PASSWORD);
@@ -54,7 +86,10 @@ public class DBConnection {
 
     public DBConnection(String url, String user, String password) {
         this.dbname = url;
-        this.conn = ThreadLocal.withInitial(() -> makeJDBCConnection(url, user, password));
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxConnections = DEFAULT_MAX_CONNECTIONS;
     }
 
     public String getDbname() {
@@ -64,7 +99,13 @@ public class DBConnection {
     private Connection makeJDBCConnection(String url, String user, String password) {
         try {
             Connection con = DriverManager.getConnection(url, user, password);
-            con.createStatement().execute("SET sql_log_bin=OFF");
+            try (Statement st = con.createStatement()) {
+                st.execute("SET sql_log_bin=OFF");
+                st.execute("SET bulk_insert_buffer_size=" + MYSQL_BULK_INSERT_BUFFER_SIZE);
+                if (readUncommitted) {
+                    st.execute("SET SESSION TRANSACTION ISOLATION LEVEL READ UNCOMMITTED");
+                }
+            }
             return con;
         } catch (SQLException e) {
             //log.error("url=" + url, e);
@@ -73,21 +114,131 @@ public class DBConnection {
     }
 
     public Connection getConnection() {
-        return conn.get();
+        return lease().getConnection();
     }
 
+    /**
+     * Get reference to prepared statement. Statement is resolved on every
+     * get() from the connection currently leased by calling thread.
+     *
+     * @param sql SQL
+     * @return statement reference
+     */
     public ThreadLocal<PreparedStatement> prepareStatement(final String sql) {
-        return ThreadLocal.withInitial(() -> {
+        return new ThreadLocal<PreparedStatement>() {
+            @Override
+            public PreparedStatement get() {
+                return lease().getStatement(sql);
+            }
+        };
+    }
+
+    /**
+     * Return connection leased by the calling thread to the pool. Called by
+     * pooled worker threads at the end of every task, so tasks of other threads
+     * can use it.
+     */
+    public void releaseConnection() {
+        PooledConnection pc = leased.get();
+        if (pc != null) {
+            leased.remove();
+            idle.offer(pc);
+        }
+    }
+
+    /**
+     * Close idle connections.
+     */
+    public void close() {
+        PooledConnection pc;
+        while ((pc = idle.poll()) != null) {
+            nConnections.decrementAndGet();
+            pc.close();
+        }
+    }
+
+    public String getPoolStats() {
+        long waits = leaseWaits.get();
+        return "connections=" + nConnections.get() + (maxConnections > 0 ? "/" + maxConnections : "")
+                + ", idle=" + idle.size()
+                + ", waits=" + waits
+                + ", avgWait=" + (waits == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(leaseWaitNanos.get() / waits)) + " ms"
+                + ", maxWait=" + TimeUnit.NANOSECONDS.toMillis(maxLeaseWaitNanos.get()) + " ms";
+    }
+
+    private PooledConnection lease() {
+        PooledConnection pc = leased.get();
+        if (pc == null) {
+            pc = acquire();
+            leased.set(pc);
+        }
+        return pc;
+    }
+
+    private PooledConnection acquire() {
+        PooledConnection pc = idle.poll();
+        if (pc != null) {
+            return pc;
+        }
+        if (nConnections.incrementAndGet() <= maxConnections || maxConnections <= 0 || unboundedThread.get()) {
             try {
-                return getConnection().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-            } catch (SQLException e) {
-                throw new IllegalStateException(sql, e);
+                return new PooledConnection(makeJDBCConnection(url, user, password));
+            } catch (RuntimeException e) {
+                nConnections.decrementAndGet();
+                throw e;
+            }
+        }
+        nConnections.decrementAndGet();
+        long s = System.nanoTime();
+        try {
+            while ((pc = idle.poll(LEASE_WAIT_WARN_MSEC, TimeUnit.MILLISECONDS)) == null) {
+                log.warn("{}: Waiting for DB connection for {} sec. {}", Thread.currentThread().getName(),
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - s), getPoolStats());
             }
-        });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for DB connection", e);
+        }
+        long waitNanos = System.nanoTime() - s;
+        leaseWaits.incrementAndGet();
+        leaseWaitNanos.addAndGet(waitNanos);
+        maxLeaseWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        return pc;
+    }
+
+    /**
+     * Set default limit of connections for the command. Overridden by
+     * db-max-connections argument.
+     *
+     * @param maxConnections maximum number of connections, 0 for unlimited
+     */
+    public static void setMaxConnections(int maxConnections) {
+        DEFAULT_MAX_CONNECTIONS = maxConnections;
+    }
+
+    /**
+     * Exempt calling thread from the connection limit. Called by DB writer
+     * threads, so a pool exhausted by producers waiting for queue space can't
+     * block the threads draining the queues.
+     */
+    static void setUnboundedThread() {
+        unboundedThread.set(Boolean.TRUE);
+    }
+
+    /**
+     * Let new sessions read rows of transactions that are not committed yet.
+     * Used with group commit, so readers on other connections see rows
+     * already flushed from write queues.
+     *
+     * @param value true to use READ UNCOMMITTED isolation
+     */
+    public static void setReadUncommitted(boolean value) {
+        readUncommitted = value;
     }
 
     public static void applyArguments(CommandLine cmd) {
         Properties prop = Utils.loadProperties(cmd.getOptionValue("db-config"));
+        DEFAULT_MAX_CONNECTIONS = Integer.parseInt(cmd.getOptionValue("db-max-connections", Integer.toString(DEFAULT_MAX_CONNECTIONS)));
         DEFAULT_CONN_URL = cmd.getOptionValue("db-url", prop.getProperty("db-url", DEFAULT_CONN_URL));
         DEFAULT_DB_USER = cmd.getOptionValue("db-user", prop.getProperty("db-user", DEFAULT_DB_USER));
         DEFAULT_DB_PASSWORD = cmd.getOptionValue("db-password", prop.getProperty("db-password", DEFAULT_DB_PASSWORD));
@@ -98,6 +249,64 @@ public class DBConnection {
         options.addOption(null, "db-user", true, "DB user name.");
         options.addOption(null, "db-password", true, "DB password.");
         options.addOption(null, "db-config", true, "Configuration file name with db url, user and password values.");
+        options.addOption(null, "db-max-connections", true, "Maximum number of DB connections. Threads wait for a free connection when the limit is reached."
+                + " DB writer threads are not limited and may add up to db-writer-threads connections over the limit. 0 - unlimited.");
         return options;
     }
+
+    private static final class PooledConnection {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > MAX_CACHED_STATEMENTS) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        private Connection getConnection() {
+            return connection;
+        }
+
+        private PreparedStatement getStatement(String sql) {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                try {
+                    ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(sql, e);
+                }
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        private void close() {
+            statements.values().forEach(PooledConnection::closeQuietly);
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug(e.getMessage(), e);
+            }
+        }
+
+        private static void closeQuietly(PreparedStatement ps) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                log.debug(e.getMessage(), e);
+            }
+        }
+    }
 }
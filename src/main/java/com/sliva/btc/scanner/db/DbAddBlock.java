@@ -17,7 +17,6 @@ package com.sliva.btc.scanner.db;
 
 import com.sliva.btc.scanner.db.model.BtcBlock;
 import com.sliva.btc.scanner.util.Utils;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -33,12 +32,12 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DbAddBlock extends DbUpdate {
 
-    private static int MIN_BATCH_SIZE = 1;
     public static int MAX_BATCH_SIZE = 10000;
     private static int MAX_INSERT_QUEUE_LENGTH = 30000;
+    //approximate heap bytes per queued record: block record with hash string and queue entry
+    private static final int QUEUED_RECORD_BYTES = 250;
     private static final String TABLE_NAME = "block";
-    private static final String SQL_ADD = "INSERT INTO block(height,hash,txn_count)VALUES(?,?,?)";
-    private final ThreadLocal<PreparedStatement> psAdd;
+    private static final String SQL_ADD_COLUMNS = "height,hash,txn_count";
     private final CacheData cacheData;
 
     public DbAddBlock(DBConnection conn) throws SQLException {
@@ -47,7 +46,6 @@ public class DbAddBlock extends DbUpdate {
 
     public DbAddBlock(DBConnection conn, CacheData cacheData) throws SQLException {
         super(conn);
-        this.psAdd = conn.prepareStatement(SQL_ADD);
         this.cacheData = cacheData;
     }
 
@@ -60,6 +58,21 @@ public class DbAddBlock extends DbUpdate {
         return TABLE_NAME;
     }
 
+    @Override
+    public int getPriority() {
+        return PRIORITY_PARENT;
+    }
+
+    @Override
+    public long getQueueFootprint() {
+        return cacheData == null ? 0 : (long) cacheData.addQueue.size() * QUEUED_RECORD_BYTES;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
     @Override
     public int getCacheFillPercent() {
         return cacheData == null ? 0 : cacheData.addQueue.size() * 100 / MAX_INSERT_QUEUE_LENGTH;
@@ -67,7 +80,7 @@ public class DbAddBlock extends DbUpdate {
 
     @Override
     public boolean needExecuteInserts() {
-        return cacheData == null ? false : cacheData.addQueue.size() >= MIN_BATCH_SIZE;
+        return cacheData == null ? false : isFlushDue(cacheData.addQueue.size());
     }
 
     public void add(BtcBlock btcBlock) throws SQLException {
@@ -76,6 +89,7 @@ public class DbAddBlock extends DbUpdate {
         synchronized (cacheData) {
             cacheData.addQueue.add(btcBlock);
         }
+        signalUpdate();
     }
 
     @Override
@@ -85,19 +99,21 @@ public class DbAddBlock extends DbUpdate {
             if (!cacheData.addQueue.isEmpty()) {
                 temp = new ArrayList<>();
                 Iterator<BtcBlock> it = cacheData.addQueue.iterator();
-                for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i++) {
+                for (int i = 0, n = getBatchSize(); i < n && it.hasNext(); i++) {
                     temp.add(it.next());
                     it.remove();
                 }
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
-                BatchExecutor.executeBatch(temp, psAdd.get(), (BtcBlock t, PreparedStatement ps) -> {
-                    ps.setInt(1, t.getHeight());
-                    ps.setBytes(2, Utils.id2bin(t.getHash()));
-                    ps.setInt(3, t.getTxnCount());
-                });
+            execLock.readLock().lock();
+            try {
+                BatchExecutor.executeInsert(temp, TABLE_NAME, SQL_ADD_COLUMNS, getConn(), (BtcBlock t, BatchExecutor.RowWriter row) -> row
+                        .add(t.getHeight())
+                        .add(Utils.id2bin(t.getHash()))
+                        .add(t.getTxnCount()));
+            } finally {
+                execLock.readLock().unlock();
             }
         }
         return temp == null ? 0 : temp.size();
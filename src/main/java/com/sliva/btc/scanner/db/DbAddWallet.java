@@ -33,9 +33,10 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DbAddWallet extends DbUpdate {
 
-    private static int MIN_BATCH_SIZE = 1;
     public static int MAX_BATCH_SIZE = 1000;
     private static int MAX_INSERT_QUEUE_LENGTH = 1000;
+    //approximate heap bytes per queued record: wallet record and list slot
+    private static final int QUEUED_RECORD_BYTES = 64;
     private static final String TABLE_NAME = "wallet";
     private static final String SQL = "INSERT INTO wallet(wallet_id,name,details)VALUES(?,?,?)";
     private final ThreadLocal<PreparedStatement> psAdd;
@@ -60,6 +61,21 @@ public class DbAddWallet extends DbUpdate {
         return TABLE_NAME;
     }
 
+    @Override
+    public int getPriority() {
+        return PRIORITY_PARENT;
+    }
+
+    @Override
+    public long getQueueFootprint() {
+        return cacheData == null ? 0 : (long) cacheData.addQueue.size() * QUEUED_RECORD_BYTES;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
     @Override
     public int getCacheFillPercent() {
         return cacheData == null ? 0 : cacheData.addQueue.size() * 100 / MAX_INSERT_QUEUE_LENGTH;
@@ -67,7 +83,7 @@ public class DbAddWallet extends DbUpdate {
 
     @Override
     public boolean needExecuteInserts() {
-        return cacheData == null ? false : cacheData.addQueue.size() >= MIN_BATCH_SIZE;
+        return cacheData == null ? false : isFlushDue(cacheData.addQueue.size());
     }
 
     public BtcWallet add(BtcWallet wallet) throws SQLException {
@@ -81,6 +97,7 @@ public class DbAddWallet extends DbUpdate {
         synchronized (cacheData) {
             cacheData.addQueue.add(wallet);
         }
+        signalUpdate();
         return wallet;
     }
 
@@ -100,19 +117,22 @@ public class DbAddWallet extends DbUpdate {
             if (!cacheData.addQueue.isEmpty()) {
                 temp = new ArrayList<>();
                 Iterator<BtcWallet> it = cacheData.addQueue.iterator();
-                for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i++) {
+                for (int i = 0, n = getBatchSize(); i < n && it.hasNext(); i++) {
                     temp.add(it.next());
                     it.remove();
                 }
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
+            execLock.readLock().lock();
+            try {
                 BatchExecutor.executeBatch(temp, psAdd.get(), (BtcWallet t, PreparedStatement ps) -> {
                     ps.setInt(1, t.getWalletId());
                     ps.setString(2, t.getName());
                     ps.setString(3, t.getDescription());
                 });
+            } finally {
+                execLock.readLock().unlock();
             }
         }
         return temp == null ? 0 : temp.size();
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only journal of blocks queued for DB write. A block record is
+ * appended and synced to disk when all rows of the block are queued, a
+ * checkpoint record is written once all queues were flushed and truncates
+ * the journal.
+ *
+ * Queued rows are not written to the journal. They are derived from the
+ * blocks only, so after unclean stop rows of blocks above the last checkpoint
+ * are rolled back and the blocks are processed again in regular mode. The
+ * journal tells where the last consistent state is, without safe-run rescan
+ * of the last blocks.
+ *
+ * Record format: type (1 byte), block height (4 bytes). Incomplete record at
+ * the end of the file is ignored. If the checkpoint record itself was lost
+ * (stop right after truncation), block before the first block record is
+ * taken as the checkpoint.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbBlockJournal implements AutoCloseable {
+
+    private static final byte TYPE_BLOCK = 1;
+    private static final byte TYPE_CHECKPOINT = 2;
+    private static final int RECORD_SIZE = 5;
+    private final File file;
+    private final int syncBlocks;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel channel;
+    private int unsyncedBlocks;
+    private int lastCheckpoint = -1;
+    private int lastBlock = -1;
+
+    /**
+     * @param file journal file
+     * @param syncBlocks number of block records between syncs to disk
+     */
+    public DbBlockJournal(File file, int syncBlocks) {
+        this.file = file;
+        this.syncBlocks = Math.max(syncBlocks, 1);
+    }
+
+    /**
+     * Read existing journal and open it for append.
+     *
+     * @return true if journal exists and has blocks above the last checkpoint,
+     * i.e. previous run did not stop cleanly
+     * @throws IOException
+     */
+    public boolean open() throws IOException {
+        if (file.exists()) {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer bb = ByteBuffer.allocate((int) Math.min(in.size(), Integer.MAX_VALUE));
+                while (bb.hasRemaining() && in.read(bb) >= 0) {
+                }
+                bb.flip();
+                int firstBlock = -1;
+                while (bb.remaining() >= RECORD_SIZE) {
+                    byte type = bb.get();
+                    int height = bb.getInt();
+                    if (type == TYPE_CHECKPOINT) {
+                        lastCheckpoint = height;
+                        lastBlock = height;
+                    } else if (type == TYPE_BLOCK) {
+                        if (firstBlock == -1) {
+                            firstBlock = height;
+                        }
+                        lastBlock = Math.max(lastBlock, height);
+                    } else {
+                        log.warn("Unknown record type {} in journal {}. Ignoring the rest of the file", type, file.getAbsolutePath());
+                        break;
+                    }
+                }
+                if (lastCheckpoint == -1 && firstBlock != -1) {
+                    lastCheckpoint = firstBlock - 1;
+                }
+            }
+            log.info("Journal {}: lastCheckpoint={}, lastBlock={}", file.getAbsolutePath(), lastCheckpoint, lastBlock);
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return lastBlock > lastCheckpoint;
+    }
+
+    /**
+     * Height of the last block that was completely stored in DB when
+     * journal was checkpointed.
+     *
+     * @return block height or -1 if there was no checkpoint
+     */
+    public int getLastCheckpoint() {
+        return lastCheckpoint;
+    }
+
+    /**
+     * Height of the last block queued for write.
+     *
+     * @return block height or -1 if journal is empty
+     */
+    public int getLastBlock() {
+        return lastBlock;
+    }
+
+    /**
+     * Record that all rows of the block are queued.
+     *
+     * @param blockHeight block height
+     * @throws IOException
+     */
+    public void blockQueued(int blockHeight) throws IOException {
+        write(TYPE_BLOCK, blockHeight);
+        lastBlock = blockHeight;
+        if (++unsyncedBlocks >= syncBlocks) {
+            channel.force(false);
+            unsyncedBlocks = 0;
+        }
+    }
+
+    /**
+     * Record that all blocks up to given height are stored in DB and drop
+     * older records. Caller has to flush all updaters first.
+     *
+     * @param blockHeight last stored block height
+     * @throws IOException
+     */
+    public void checkpoint(int blockHeight) throws IOException {
+        channel.truncate(0);
+        write(TYPE_CHECKPOINT, blockHeight);
+        channel.force(true);
+        unsyncedBlocks = 0;
+        lastCheckpoint = blockHeight;
+        lastBlock = blockHeight;
+        log.debug("Journal checkpoint at block {}", blockHeight);
+    }
+
+    private void write(byte type, int blockHeight) throws IOException {
+        buffer.clear();
+        buffer.put(type).putInt(blockHeight).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.force(true);
+            channel.close();
+            channel = null;
+        }
+    }
+}
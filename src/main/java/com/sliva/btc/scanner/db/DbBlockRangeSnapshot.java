@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.model.BtcBlock;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxInputSpecial;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In-memory copy of DB records of a block height range. Used by safe-run
+ * verification to compare rows of parsed blocks with DB content without
+ * issuing queries per transaction: blocks and transactions are loaded by
+ * height range, inputs, outputs and special inputs by transaction ID range.
+ *
+ * It is a plain copy, not a consistent read view. Only the rows of the
+ * loaded range are served from it. Lookups outside of it still run as
+ * regular queries (or cache lookups) against current DB state: transactions outside of the range (see
+ * {@link #containsTransaction(int)}), connected outputs of inputs and the
+ * check for another input spending the same output.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbBlockRangeSnapshot {
+
+    private final DbQueryBlock queryBlock;
+    private final DbQueryInput queryInput;
+    private final DbQueryOutput queryOutput;
+    private final DbQueryInputSpecial queryInputSpecial;
+    private final DbCachedTransaction cachedTxn;
+    private final Map<Integer, BtcBlock> blocks = new HashMap<>();
+    private final Map<Integer, List<BtcTransaction>> transactions = new HashMap<>();
+    private final Map<Integer, List<TxInput>> inputs = new HashMap<>();
+    private final Map<Integer, List<TxOutput>> outputs = new HashMap<>();
+    private final Map<Integer, List<TxInputSpecial>> inputsSpecial = new HashMap<>();
+    private final Map<Integer, Integer> transactionHeights = new HashMap<>();
+    @Getter
+    private int fromHeight = -1;
+    @Getter
+    private int toHeight = -1;
+
+    public DbBlockRangeSnapshot(DBConnection conn, DbCachedTransaction cachedTxn) {
+        this.queryBlock = new DbQueryBlock(conn);
+        this.queryInput = new DbQueryInput(conn);
+        this.queryOutput = new DbQueryOutput(conn);
+        this.queryInputSpecial = new DbQueryInputSpecial(conn);
+        this.cachedTxn = cachedTxn;
+    }
+
+    /**
+     * Replace snapshot content with DB records of given block range.
+     *
+     * @param fromHeight first block height (inclusive)
+     * @param toHeight last block height (inclusive)
+     * @throws SQLException
+     */
+    public void load(int fromHeight, int toHeight) throws SQLException {
+        long s = System.currentTimeMillis();
+        clear();
+        queryBlock.getBlocksInRange(fromHeight, toHeight).forEach(b -> blocks.put(b.getHeight(), b));
+        int minTxnId = Integer.MAX_VALUE;
+        int maxTxnId = 0;
+        for (BtcTransaction t : cachedTxn.getTransactionsInBlockRange(fromHeight, toHeight)) {
+            transactions.computeIfAbsent(t.getBlockHeight(), h -> new ArrayList<>()).add(t);
+            transactionHeights.put(t.getTransactionId(), t.getBlockHeight());
+            minTxnId = Math.min(minTxnId, t.getTransactionId());
+            maxTxnId = Math.max(maxTxnId, t.getTransactionId());
+        }
+        int nInputs = 0, nOutputs = 0, nInputsSpecial = 0;
+        if (!transactionHeights.isEmpty()) {
+            nInputs = groupByTransaction(queryInput.getInputsInTxnRange(minTxnId, maxTxnId), inputs, TxInput::getTransactionId);
+            nOutputs = groupByTransaction(queryOutput.getOutputsInTxnRange(minTxnId, maxTxnId), outputs, TxOutput::getTransactionId);
+            nInputsSpecial = groupByTransaction(queryInputSpecial.getInputsInTxnRange(minTxnId, maxTxnId), inputsSpecial, TxInputSpecial::getTransactionId);
+        }
+        this.fromHeight = fromHeight;
+        this.toHeight = toHeight;
+        log.info("Loaded DB snapshot for blocks {}-{}: blocks={}, txns={}, inputs={}, outputs={}, inputsSpecial={}. Runtime: {} msec.",
+                fromHeight, toHeight, blocks.size(), transactionHeights.size(), nInputs, nOutputs, nInputsSpecial, System.currentTimeMillis() - s);
+    }
+
+    public void clear() {
+        blocks.clear();
+        transactions.clear();
+        inputs.clear();
+        outputs.clear();
+        inputsSpecial.clear();
+        transactionHeights.clear();
+        fromHeight = -1;
+        toHeight = -1;
+    }
+
+    public boolean containsBlock(int blockHeight) {
+        return fromHeight >= 0 && blockHeight >= fromHeight && blockHeight <= toHeight;
+    }
+
+    public boolean containsTransaction(int transactionId) {
+        return transactionHeights.containsKey(transactionId);
+    }
+
+    public BtcBlock getBlock(int blockHeight) {
+        return blocks.get(blockHeight);
+    }
+
+    /**
+     * Get transactions of the block. Returns a new modifiable list, or null if
+     * DB has no transactions for the block (same as
+     * {@link DbQueryTransaction#getTransactionsInBlock(int)}).
+     *
+     * @param blockHeight block height
+     * @return list of transactions or null
+     */
+    public List<BtcTransaction> getTransactionsInBlock(int blockHeight) {
+        List<BtcTransaction> list = transactions.get(blockHeight);
+        return list == null ? null : new ArrayList<>(list);
+    }
+
+    public List<TxInput> getInputs(int transactionId) {
+        return copyOf(inputs.get(transactionId));
+    }
+
+    public List<TxOutput> getOutputs(int transactionId) {
+        return copyOf(outputs.get(transactionId));
+    }
+
+    public TxInputSpecial getInputSpecial(int transactionId, short pos) {
+        List<TxInputSpecial> list = inputsSpecial.get(transactionId);
+        return list == null ? null : list.stream().filter(i -> i.getPos() == pos).findAny().orElse(null);
+    }
+
+    private <T> int groupByTransaction(Collection<T> rows, Map<Integer, List<T>> map, ToIntFunction<T> getTransactionId) {
+        int count = 0;
+        for (T row : rows) {
+            int transactionId = getTransactionId.applyAsInt(row);
+            if (transactionHeights.containsKey(transactionId)) {
+                map.computeIfAbsent(transactionId, id -> new ArrayList<>()).add(row);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static <T> List<T> copyOf(List<T> list) {
+        return list == null ? new ArrayList<>() : new ArrayList<>(list);
+    }
+}
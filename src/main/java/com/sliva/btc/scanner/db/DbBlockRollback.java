@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.OutputStatus;
+import com.sliva.btc.scanner.util.Utils;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Removes records of orphaned blocks after chain reorganization. All rows
+ * are deleted with few set based statements joined by block height, so the
+ * cost does not depend on number of transactions in the orphaned blocks.
+ * Addresses are kept as they might be referenced from other outputs.
+ *
+ * Pending updates have to be flushed before calling
+ * {@link #rollbackBlocksAbove(int)} and caches invalidated after. Keyed
+ * caches get the rolled back transactions from
+ * {@link #findTransactionsAbove(int)}, called before the rollback.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbBlockRollback {
+
+    private static final String SQL_RESET_SPENT = "UPDATE output O"
+            + " INNER JOIN input I ON I.in_transaction_id=O.transaction_id AND I.in_pos=O.pos"
+            + " INNER JOIN transaction T ON T.transaction_id=I.transaction_id"
+            + " SET O.spent=" + OutputStatus.UNSPENT
+            + " WHERE T.block_height>? AND O.spent=" + OutputStatus.SPENT;
+    private static final String SQL_DELETE_INPUTS = "DELETE I FROM input I"
+            + " INNER JOIN transaction T ON T.transaction_id=I.transaction_id"
+            + " WHERE T.block_height>?";
+    private static final String SQL_DELETE_INPUTS_SPECIAL = "DELETE I FROM input_special I"
+            + " INNER JOIN transaction T ON T.transaction_id=I.transaction_id"
+            + " WHERE T.block_height>?";
+    private static final String SQL_DELETE_OUTPUTS = "DELETE O FROM output O"
+            + " INNER JOIN transaction T ON T.transaction_id=O.transaction_id"
+            + " WHERE T.block_height>?";
+    private static final String SQL_DELETE_TRANSACTIONS = "DELETE FROM transaction WHERE block_height>?";
+    private static final String SQL_DELETE_BLOCKS = "DELETE FROM block WHERE height>?";
+    private static final String SQL_QUERY_TRANSACTIONS_ABOVE = "SELECT transaction_id,txid,block_height FROM transaction WHERE block_height>?";
+    private static final String SQL_QUERY_MAX_TRANSACTION_ID = "SELECT IFNULL(MAX(transaction_id),0) FROM transaction";
+    private static final String SQL_DELETE_ORPHAN_INPUTS = "DELETE FROM input WHERE transaction_id>?";
+    private static final String SQL_DELETE_ORPHAN_INPUTS_SPECIAL = "DELETE FROM input_special WHERE transaction_id>?";
+    private static final String SQL_DELETE_ORPHAN_OUTPUTS = "DELETE FROM output WHERE transaction_id>?";
+    private final ThreadLocal<PreparedStatement> psResetSpent;
+    private final ThreadLocal<PreparedStatement> psDeleteInputs;
+    private final ThreadLocal<PreparedStatement> psDeleteInputsSpecial;
+    private final ThreadLocal<PreparedStatement> psDeleteOutputs;
+    private final ThreadLocal<PreparedStatement> psDeleteTransactions;
+    private final ThreadLocal<PreparedStatement> psDeleteBlocks;
+    private final ThreadLocal<PreparedStatement> psQueryTransactionsAbove;
+    private final ThreadLocal<PreparedStatement> psQueryMaxTransactionId;
+    private final ThreadLocal<PreparedStatement> psDeleteOrphanInputs;
+    private final ThreadLocal<PreparedStatement> psDeleteOrphanInputsSpecial;
+    private final ThreadLocal<PreparedStatement> psDeleteOrphanOutputs;
+
+    public DbBlockRollback(DBConnection conn) {
+        this.psResetSpent = conn.prepareStatement(SQL_RESET_SPENT);
+        this.psDeleteInputs = conn.prepareStatement(SQL_DELETE_INPUTS);
+        this.psDeleteInputsSpecial = conn.prepareStatement(SQL_DELETE_INPUTS_SPECIAL);
+        this.psDeleteOutputs = conn.prepareStatement(SQL_DELETE_OUTPUTS);
+        this.psDeleteTransactions = conn.prepareStatement(SQL_DELETE_TRANSACTIONS);
+        this.psDeleteBlocks = conn.prepareStatement(SQL_DELETE_BLOCKS);
+        this.psQueryTransactionsAbove = conn.prepareStatement(SQL_QUERY_TRANSACTIONS_ABOVE);
+        this.psQueryMaxTransactionId = conn.prepareStatement(SQL_QUERY_MAX_TRANSACTION_ID);
+        this.psDeleteOrphanInputs = conn.prepareStatement(SQL_DELETE_ORPHAN_INPUTS);
+        this.psDeleteOrphanInputsSpecial = conn.prepareStatement(SQL_DELETE_ORPHAN_INPUTS_SPECIAL);
+        this.psDeleteOrphanOutputs = conn.prepareStatement(SQL_DELETE_ORPHAN_OUTPUTS);
+    }
+
+    /**
+     * Get transactions of blocks above given height, i.e. the ones
+     * {@link #rollbackBlocksAbove(int)} is going to delete.
+     *
+     * @param blockHeight last valid block height
+     * @return transactions with ID, txid and block height set
+     * @throws SQLException
+     */
+    public List<BtcTransaction> findTransactionsAbove(int blockHeight) throws SQLException {
+        psQueryTransactionsAbove.get().setInt(1, blockHeight);
+        try (ResultSet rs = psQueryTransactionsAbove.get().executeQuery()) {
+            List<BtcTransaction> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(BtcTransaction.builder()
+                        .transactionId(rs.getInt(1))
+                        .txid(Utils.id2hex(rs.getBytes(2)))
+                        .blockHeight(rs.getInt(3))
+                        .build());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Delete all records of blocks above given height. Outputs spent by
+     * inputs of deleted transactions are marked as unspent.
+     *
+     * @param blockHeight last valid block height
+     * @throws SQLException
+     */
+    public void rollbackBlocksAbove(int blockHeight) throws SQLException {
+        long s = System.currentTimeMillis();
+        int nSpent = execute(psResetSpent, blockHeight);
+        int nInputs = execute(psDeleteInputs, blockHeight);
+        int nInputsSpecial = execute(psDeleteInputsSpecial, blockHeight);
+        int nOutputs = execute(psDeleteOutputs, blockHeight);
+        int nTxns = execute(psDeleteTransactions, blockHeight);
+        int nBlocks = execute(psDeleteBlocks, blockHeight);
+        log.info("Rolled back blocks above {}: blocks={}, txns={}, inputs={}, inputsSpecial={}, outputs={}, unspent={}. Runtime: {} msec.",
+                blockHeight, nBlocks, nTxns, nInputs, nInputsSpecial, nOutputs, nSpent, System.currentTimeMillis() - s);
+    }
+
+    /**
+     * Delete inputs and outputs of transactions that are not in transaction
+     * table. After unclean stop child rows can be stored while their
+     * transaction record was still queued, such rows are not found by
+     * {@link #rollbackBlocksAbove(int)}. Transaction IDs grow with block
+     * height, so these are the rows above the last stored transaction.
+     *
+     * @throws SQLException
+     */
+    public void deleteOrphans() throws SQLException {
+        int maxTransactionId;
+        try (ResultSet rs = psQueryMaxTransactionId.get().executeQuery()) {
+            maxTransactionId = rs.next() ? rs.getInt(1) : 0;
+        }
+        int nInputs = execute(psDeleteOrphanInputs, maxTransactionId);
+        int nInputsSpecial = execute(psDeleteOrphanInputsSpecial, maxTransactionId);
+        int nOutputs = execute(psDeleteOrphanOutputs, maxTransactionId);
+        log.info("Deleted rows above transaction {}: inputs={}, inputsSpecial={}, outputs={}", maxTransactionId, nInputs, nInputsSpecial, nOutputs);
+    }
+
+    private static int execute(ThreadLocal<PreparedStatement> ps, int value) throws SQLException {
+        ps.get().setInt(1, value);
+        return ps.get().executeUpdate();
+    }
+}
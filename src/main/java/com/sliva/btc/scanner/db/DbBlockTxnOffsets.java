@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.model.BtcBlock;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Block based transaction ID scheme. Transactions of a block get IDs
+ * starting right after the total number of transactions in all previous
+ * blocks (prefix sum of block.txn_count), in order of appearance in the
+ * block. Such IDs do not depend on processing order, can be computed by
+ * independent workers and stay the same on re-scan.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbBlockTxnOffsets {
+
+    private static final int MAX_CACHED_BLOCKS = 1000;
+    private final DbQueryBlock queryBlock;
+    private final DbQueryTransaction queryTransaction;
+    private final Map<Integer, Integer> firstTransactionIds = new ConcurrentHashMap<>();
+
+    public DbBlockTxnOffsets(DBConnection conn) {
+        this.queryBlock = new DbQueryBlock(conn);
+        this.queryTransaction = new DbQueryTransaction(conn);
+    }
+
+    /**
+     * Get ID of the first transaction in the block.
+     *
+     * @param blockHeight block height
+     * @return transaction ID
+     * @throws SQLException
+     */
+    public int getFirstTransactionId(int blockHeight) throws SQLException {
+        Integer result = firstTransactionIds.get(blockHeight);
+        if (result == null) {
+            result = queryBlock.getTxnCountBefore(blockHeight) + 1;
+            firstTransactionIds.put(blockHeight, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get ID of the transaction at given position in the block.
+     *
+     * @param blockHeight block height
+     * @param txIndex zero based position of transaction in the block
+     * @return transaction ID
+     * @throws SQLException
+     */
+    public int getTransactionId(int blockHeight, int txIndex) throws SQLException {
+        return getFirstTransactionId(blockHeight) + txIndex;
+    }
+
+    /**
+     * Register number of transactions in the block. Makes offset of the next
+     * block available before the block record gets stored in DB.
+     *
+     * @param blockHeight block height
+     * @param txnCount number of transactions in the block
+     * @throws SQLException
+     */
+    public void setTxnCount(int blockHeight, int txnCount) throws SQLException {
+        firstTransactionIds.put(blockHeight + 1, getFirstTransactionId(blockHeight) + txnCount);
+        firstTransactionIds.remove(blockHeight - MAX_CACHED_BLOCKS);
+    }
+
+    /**
+     * Forget offsets of blocks above given height, i.e. after the blocks were
+     * rolled back.
+     *
+     * @param blockHeight last valid block height
+     */
+    public void invalidateBlocksAbove(int blockHeight) {
+        firstTransactionIds.keySet().removeIf(h -> h > blockHeight + 1);
+    }
+
+    /**
+     * Check that IDs of transactions already stored in DB follow the block
+     * based scheme, i.e. last stored transaction belongs to ID range of its
+     * block. Block record itself might be missing after unclean stop, but
+     * all blocks below it must be stored, and the transaction right before
+     * the block range must be the last one of the previous block - a missing
+     * block record or a wrong txn_count below the tip shifts all later IDs.
+     *
+     * @param lastTransaction last transaction stored in DB (could be null)
+     * @throws SQLException
+     * @throws IllegalStateException if DB data is not compatible with the
+     * scheme
+     */
+    public void validate(BtcTransaction lastTransaction) throws SQLException {
+        if (lastTransaction == null) {
+            return;
+        }
+        int blockHeight = lastTransaction.getBlockHeight();
+        int nBlocks = queryBlock.countBlocksBefore(blockHeight);
+        if (nBlocks != blockHeight) {
+            throw new IllegalStateException("Transaction IDs can't be derived from block records. Found " + nBlocks
+                    + " block records below height " + blockHeight + ", expected " + blockHeight);
+        }
+        int first = queryBlock.getTxnCountBefore(blockHeight) + 1;
+        BtcBlock block = queryBlock.getBlock(blockHeight);
+        int next = block == null ? Integer.MAX_VALUE : first + block.getTxnCount();
+        if (lastTransaction.getTransactionId() < first || lastTransaction.getTransactionId() >= next) {
+            throw new IllegalStateException("Transaction IDs in DB are not block based. Last transaction " + lastTransaction
+                    + " is outside of its block range [" + first + "," + next + ")");
+        }
+        if (first > 1) {
+            BtcTransaction prev = queryTransaction.findTransaction(first - 1);
+            if (prev == null || prev.getBlockHeight() != blockHeight - 1) {
+                throw new IllegalStateException("Transaction IDs in DB do not match txn_count of blocks below " + blockHeight
+                        + ". Transaction " + (first - 1) + " is expected to be the last one in block " + (blockHeight - 1) + ", found: " + prev);
+            }
+        }
+        log.debug("validate: Last transaction {} is in block range [{},{})", lastTransaction.getTransactionId(), first, next);
+    }
+}
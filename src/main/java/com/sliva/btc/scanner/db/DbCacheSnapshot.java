@@ -0,0 +1,241 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.util.Utils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * Saves content of transaction, address and output caches to a binary file
+ * and loads it back on next start. Entries are written in iteration order of
+ * the cache maps, which is not their access order, so eviction order after
+ * reload is arbitrary. Snapshot is tagged with the last block height stored
+ * in DB at save time and is only loaded if DB is still at the same height.
+ *
+ * Pending update queues are not part of the snapshot - it has to be saved
+ * after updaters are closed (flushed).
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbCacheSnapshot {
+
+    private static final int MAGIC = 0x42545343;
+    private static final int VERSION = 2;
+    private final File file;
+
+    public DbCacheSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Write caches content to the file. File is replaced atomically.
+     *
+     * @param blockHeight last block height stored in DB
+     * @param txnData DbCachedTransaction cache
+     * @param addressData DbCachedAddress cache
+     * @param outputData DbCachedOutput cache
+     * @throws IOException
+     */
+    public void save(int blockHeight, DbCachedTransaction.CacheData txnData, DbCachedAddress.CacheData addressData, DbCachedOutput.CacheData outputData) throws IOException {
+        long s = System.currentTimeMillis();
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        int nTxns, nAddresses = 0, nOutputs;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmpFile))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(blockHeight);
+            List<BtcTransaction> txns = new ArrayList<>(txnData.getCacheMap().values());
+            nTxns = txns.size();
+            out.writeInt(nTxns);
+            for (BtcTransaction t : txns) {
+                out.writeInt(t.getTransactionId());
+                out.write(Utils.id2bin(t.getTxid()));
+                out.writeInt(t.getBlockHeight());
+                out.writeInt(t.getNInputs());
+                out.writeInt(t.getNOutputs());
+            }
+            out.writeInt(addressData.getDataOneMap().size());
+            for (Map.Entry<SrcAddressType, DbCachedAddressOne.CacheData> e : addressData.getDataOneMap().entrySet()) {
+                List<BtcAddress> addresses = new ArrayList<>(e.getValue().getCacheMap().values());
+                out.writeUTF(e.getKey().name());
+                out.writeInt(addresses.size());
+                for (BtcAddress a : addresses) {
+                    out.writeInt(a.getAddressId());
+                    out.writeShort(a.getAddress().length);
+                    out.write(a.getAddress());
+                    out.writeInt(a.getWalletId());
+                }
+                nAddresses += addresses.size();
+            }
+            List<Map.Entry<Integer, DbCachedOutput.OutputsList>> outputs = new ArrayList<>(outputData.getCacheMap().entrySet());
+            nOutputs = outputs.size();
+            out.writeInt(nOutputs);
+            for (Map.Entry<Integer, DbCachedOutput.OutputsList> e : outputs) {
+                List<TxOutput> list = e.getValue().getList();
+                synchronized (list) {
+                    out.writeInt(e.getKey());
+                    out.writeBoolean(e.getValue().isComplete());
+                    out.writeInt(list.size());
+                    for (TxOutput o : list) {
+                        out.writeShort(o.getPos());
+                        out.writeInt(o.getAddressId());
+                        out.writeLong(o.getAmount());
+                        out.writeByte(o.getStatus());
+                    }
+                }
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace file " + file.getAbsolutePath());
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Cannot rename file " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+        log.info("Saved cache snapshot at block {} to {}: txns={}, addresses={}, outputs={}. Runtime: {} msec.",
+                blockHeight, file.getAbsolutePath(), nTxns, nAddresses, nOutputs, System.currentTimeMillis() - s);
+    }
+
+    /**
+     * Delete snapshot file so caches are not restored from it on next start.
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete file " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Load caches content from the file if it exists and was saved at given
+     * block height. Caches have to be empty.
+     *
+     * @param blockHeight last block height stored in DB
+     * @param txnData DbCachedTransaction cache
+     * @param addressData DbCachedAddress cache
+     * @param outputData DbCachedOutput cache
+     * @return true if snapshot was loaded
+     */
+    public boolean load(int blockHeight, DbCachedTransaction.CacheData txnData, DbCachedAddress.CacheData addressData, DbCachedOutput.CacheData outputData) {
+        if (!file.exists()) {
+            log.info("Cache snapshot file not found: {}", file.getAbsolutePath());
+            return false;
+        }
+        long s = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.info("Cache snapshot ignored - unknown file format: {}", file.getAbsolutePath());
+                return false;
+            }
+            int savedHeight = in.readInt();
+            if (savedHeight != blockHeight) {
+                log.info("Cache snapshot ignored - saved at block {}, DB last block is {}", savedHeight, blockHeight);
+                return false;
+            }
+            int nTxns = in.readInt();
+            synchronized (txnData) {
+                for (int i = 0; i < nTxns; i++) {
+                    int transactionId = in.readInt();
+                    byte[] txid = new byte[32];
+                    in.readFully(txid);
+                    BtcTransaction t = BtcTransaction.builder()
+                            .transactionId(transactionId)
+                            .txid(Utils.id2hex(txid))
+                            .blockHeight(in.readInt())
+                            .nInputs(in.readInt())
+                            .nOutputs(in.readInt())
+                            .build();
+                    txnData.getCacheMap().put(t.getTxid(), t);
+                    txnData.getCacheMapId().put(t.getTransactionId(), t);
+                }
+            }
+            int nAddresses = 0;
+            int nTypes = in.readInt();
+            for (int n = 0; n < nTypes; n++) {
+                SrcAddressType type = SrcAddressType.valueOf(in.readUTF());
+                DbCachedAddressOne.CacheData data = addressData.getDataOneMap().get(type);
+                int size = in.readInt();
+                synchronized (data) {
+                    for (int i = 0; i < size; i++) {
+                        int addressId = in.readInt();
+                        byte[] address = new byte[in.readUnsignedShort()];
+                        in.readFully(address);
+                        BtcAddress a = BtcAddress.builder()
+                                .addressId(addressId)
+                                .address(address)
+                                .walletId(in.readInt())
+                                .type(type)
+                                .build();
+                        data.getCacheMap().put(Hex.toHexString(address), a);
+                        data.getCacheMapId().put(addressId, a);
+                    }
+                }
+                nAddresses += size;
+            }
+            int nOutputs = in.readInt();
+            synchronized (outputData) {
+                for (int i = 0; i < nOutputs; i++) {
+                    int transactionId = in.readInt();
+                    boolean complete = in.readBoolean();
+                    int size = in.readInt();
+                    List<TxOutput> list = new ArrayList<>(size);
+                    for (int j = 0; j < size; j++) {
+                        list.add(TxOutput.builder()
+                                .transactionId(transactionId)
+                                .pos(in.readShort())
+                                .addressId(in.readInt())
+                                .amount(in.readLong())
+                                .status(in.readByte())
+                                .build());
+                    }
+                    outputData.getCacheMap().put(transactionId, new DbCachedOutput.OutputsList(list, complete));
+                }
+            }
+            log.info("Loaded cache snapshot at block {} from {}: txns={}, addresses={}, outputs={}. Runtime: {} msec.",
+                    blockHeight, file.getAbsolutePath(), nTxns, nAddresses, nOutputs, System.currentTimeMillis() - s);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to load cache snapshot " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+            txnData.getCacheMap().clear();
+            txnData.getCacheMapId().clear();
+            addressData.getDataOneMap().values().forEach(d -> {
+                d.getCacheMap().clear();
+                d.getCacheMapId().clear();
+            });
+            outputData.getCacheMap().clear();
+            return false;
+        }
+    }
+}
@@ -18,7 +18,10 @@ package com.sliva.btc.scanner.db;
 import com.sliva.btc.scanner.db.model.BtcAddress;
 import com.sliva.btc.scanner.src.SrcAddress;
 import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.storage.AddressDictionary;
 import com.sliva.btc.scanner.util.Utils;
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
@@ -33,6 +36,7 @@ import org.bitcoinj.core.Address;
 @Slf4j
 public class DbCachedAddress implements AutoCloseable {
 
+    private static final String DICTIONARY_FILE_SUFFIX = ".dict";
     private final Map<SrcAddressType, DbCachedAddressOne> updaters = new HashMap<>();
     private final CacheData cacheData;
 
@@ -49,11 +53,60 @@ public class DbCachedAddress implements AutoCloseable {
         return cacheData;
     }
 
+    /**
+     * Cache hits of address lookups, summed over all address types.
+     *
+     * @return number of hits
+     */
+    public long getCacheHits() {
+        return cacheData.dataOneMap.values().stream().mapToLong(d -> d.getStats().getHits()).sum();
+    }
+
+    /**
+     * Cache misses of address lookups, summed over all address types.
+     *
+     * @return number of misses
+     */
+    public long getCacheMisses() {
+        return cacheData.dataOneMap.values().stream().mapToLong(d -> d.getStats().getMisses()).sum();
+    }
+
+    /**
+     * Open address dictionary of every address type in the directory, see
+     * {@link DbCachedAddressOne#useDictionary(AddressDictionary)}.
+     *
+     * @param dir dictionary directory
+     * @param slots number of slots of new dictionary files per address type.
+     * Types not in the map are sized by number of addresses in DB, see
+     * {@link AddressDictionary#getDefaultSlots}
+     * @throws SQLException
+     * @throws IOException
+     */
+    public void useDictionaries(File dir, Map<SrcAddressType, Long> slots) throws SQLException, IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir.getAbsolutePath());
+        }
+        for (Map.Entry<SrcAddressType, DbCachedAddressOne> e : updaters.entrySet()) {
+            File file = new File(dir, DbQueryAddress.getTableName(e.getKey()) + DICTIONARY_FILE_SUFFIX);
+            Long nSlots = slots.get(e.getKey());
+            if (nSlots == null) {
+                nSlots = file.length() > 0 ? 0 : AddressDictionary.getDefaultSlots(e.getValue().countAddresses());
+            }
+            e.getValue().useDictionary(new AddressDictionary(file, e.getKey(), nSlots));
+        }
+    }
+
+    /**
+     * Mark all dictionaries synced, see
+     * {@link DbCachedAddressOne#markDictionarySynced()}.
+     */
+    public void markDictionariesSynced() {
+        updaters.values().forEach(DbCachedAddressOne::markDictionarySynced);
+    }
+
     @SuppressWarnings("DoubleCheckedLocking")
     public int getOrAdd(SrcAddress address, boolean updateCache) throws SQLException {
-        return getOne(BtcAddress.builder()
-                .type(address.getType()).build())
-                .getOrAdd(address.getHash(), updateCache);
+        return getOne(address.getType()).getOrAdd(address.getHash(), updateCache);
     }
 
     public BtcAddress add(BtcAddress btcAddress, boolean updateCache) throws SQLException {
@@ -78,6 +131,18 @@ public class DbCachedAddress implements AutoCloseable {
         return updaters.get(addr.getType());
     }
 
+    private DbCachedAddressOne getOne(SrcAddressType addrType) {
+        DbCachedAddressOne result = updaters.get(addrType);
+        if (result == null) {
+            throw new IllegalArgumentException("Bad address type: " + addrType);
+        }
+        return result;
+    }
+
+    public void flushCache() {
+        updaters.values().forEach((updater) -> updater.flushCache());
+    }
+
     @Override
     public void close() {
         updaters.values().forEach((updater) -> updater.close());
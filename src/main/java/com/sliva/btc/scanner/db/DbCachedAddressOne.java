@@ -15,13 +15,17 @@
  */
 package com.sliva.btc.scanner.db;
 
+import com.google.common.util.concurrent.Striped;
 import com.sliva.btc.scanner.db.model.BtcAddress;
 import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.storage.AddressDictionary;
+import com.sliva.btc.scanner.util.CacheStats;
+import com.sliva.btc.scanner.util.Utils;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.spongycastle.util.encoders.Hex;
@@ -34,6 +38,7 @@ import org.spongycastle.util.encoders.Hex;
 public class DbCachedAddressOne implements AutoCloseable {
 
     private static final int MAX_CACHE_SIZE = 100000;
+    private static final int ADD_LOCK_STRIPES = 64;
     private final SrcAddressType addressType;
     private final DbUpdateAddressOne updateAddress;
     private final DbQueryAddress queryAddress;
@@ -54,7 +59,67 @@ public class DbCachedAddressOne implements AutoCloseable {
         return cacheData;
     }
 
+    /**
+     * Use dictionary for address lookups. Dictionary is synchronized with DB
+     * first: addresses above its synced address ID are removed, as some of
+     * them might have never made it to DB, and addresses after the remaining
+     * ones are loaded from DB.
+     *
+     * @param dictionary address dictionary of the type
+     * @throws SQLException
+     */
+    public void useDictionary(AddressDictionary dictionary) throws SQLException {
+        synchronized (cacheData) {
+            int lastAddressId = queryAddress.getLastAddressId();
+            dictionary.invalidateAbove(Math.min(dictionary.getSyncedAddressId(), lastAddressId));
+            if (dictionary.getMaxAddressId() < lastAddressId) {
+                long s = System.currentTimeMillis();
+                long n = queryAddress.forEachAddressAfter(dictionary.getMaxAddressId(), dictionary::add);
+                log.info("useDictionary-{}: Loaded {} addresses from DB. Runtime: {} sec.", addressType, n, (System.currentTimeMillis() - s) / 1000);
+            }
+            dictionary.markSynced(lastAddressId);
+            dictionary.setComplete(true);
+            cacheData.dictionary = dictionary;
+        }
+    }
+
+    /**
+     * Mark all addresses of the dictionary as stored in DB, so next start
+     * does not verify them again. Call only after all added addresses were
+     * written and committed.
+     */
+    public void markDictionarySynced() {
+        AddressDictionary dictionary = cacheData.dictionary;
+        if (dictionary != null) {
+            dictionary.markSynced(dictionary.getMaxAddressId());
+        }
+    }
+
+    public long countAddresses() throws SQLException {
+        return queryAddress.countAddresses();
+    }
+
+    /**
+     * Get address ID, add new address if not found. Addresses found in
+     * complete dictionary are resolved without locking and allocations.
+     *
+     * @param address address hash
+     * @param updateCache true to put the address in cache
+     * @return address ID
+     * @throws SQLException
+     */
     public int getOrAdd(byte[] address, boolean updateCache) throws SQLException {
+        AddressDictionary dictionary = cacheData.dictionary;
+        if (dictionary != null) {
+            int addressId = dictionary.find(address);
+            if (addressId != 0) {
+                cacheData.stats.hit();
+                return addressId;
+            }
+            if (dictionary.isComplete()) {
+                return _getOrAddSync(address, updateCache).getAddressId();
+            }
+        }
         BtcAddress a = getAddress(address, updateCache);
         if (a == null) {
             a = _getOrAddSync(address, updateCache);
@@ -62,14 +127,28 @@ public class DbCachedAddressOne implements AutoCloseable {
         return a.getAddressId();
     }
 
+    /**
+     * Check-then-add under a lock striped by address hash, so that adding
+     * different addresses does not serialize on one monitor.
+     */
     private BtcAddress _getOrAddSync(byte[] address, boolean updateCache) throws SQLException {
-        synchronized (cacheData) {
+        Lock lock = cacheData.addLocks.getAt(Math.floorMod(Arrays.hashCode(address), cacheData.addLocks.size()));
+        lock.lock();
+        try {
             return _getOrAddNotSync(address, updateCache);
+        } finally {
+            lock.unlock();
         }
     }
 
     private BtcAddress _getOrAddNotSync(byte[] address, boolean updateCache) throws SQLException {
-        BtcAddress a = cacheData.cacheMap.get(Hex.toHexString(address));
+        BtcAddress a;
+        if (cacheData.dictionary != null && cacheData.dictionary.isComplete()) {
+            int addressId = cacheData.dictionary.findSync(address);
+            a = addressId == 0 ? null : BtcAddress.builder().type(addressType).addressId(addressId).address(address).build();
+        } else {
+            a = cacheData.cacheMap.get(Hex.toHexString(address));
+        }
         if (a == null) {
             a = add(BtcAddress.builder().type(addressType).address(address).build(), updateCache);
         }
@@ -81,9 +160,12 @@ public class DbCachedAddressOne implements AutoCloseable {
         if (a.getAddressId() == 0) {
             a = a.toBuilder().addressId(getNextAddressId()).build();
         }
-        if (updateCache) {
+        if (updateCache || !BatchExecutor.getRowSink().isReadable()) {
             updateCache(a);
         }
+        if (cacheData.dictionary != null) {
+            cacheData.dictionary.add(a.getAddress(), a.getAddressId());
+        }
         updateAddress.add(a);
         return a;
     }
@@ -108,8 +190,20 @@ public class DbCachedAddressOne implements AutoCloseable {
         if (result == null) {
             result = updateAddress.getCacheData().getAddMap().get(hexAddr);
         }
+        if (result == null && cacheData.dictionary != null) {
+            int addressId = cacheData.dictionary.find(address);
+            if (addressId != 0) {
+                result = BtcAddress.builder().type(addressType).addressId(addressId).address(address).build();
+            } else if (cacheData.dictionary.isComplete()) {
+                cacheData.stats.hit();
+                return null;
+            }
+        }
         if (result == null) {
+            cacheData.stats.miss();
             result = queryAddress.findByAddress(address);
+        } else {
+            cacheData.stats.hit();
         }
         if (result != null && updateCache) {
             updateCache(result);
@@ -127,16 +221,13 @@ public class DbCachedAddressOne implements AutoCloseable {
     }
 
     private void updateCache(BtcAddress btcAddress) throws SQLException {
+        cacheData.cacheMap.put(Hex.toHexString(btcAddress.getAddress()), btcAddress);
+        cacheData.cacheMapId.put(btcAddress.getAddressId(), btcAddress);
+    }
+
+    public void flushCache() {
         synchronized (cacheData) {
-            String hexAddr = Hex.toHexString(btcAddress.getAddress());
-            cacheData.cacheMap.remove(hexAddr);
-            cacheData.cacheMap.put(hexAddr, btcAddress);
-            cacheData.cacheMapId.put(btcAddress.getAddressId(), btcAddress);
-            if (cacheData.cacheMap.size() >= MAX_CACHE_SIZE) {
-                BtcAddress a = cacheData.cacheMap.entrySet().iterator().next().getValue();
-                cacheData.cacheMap.remove(Hex.toHexString(a.getAddress()));
-                cacheData.cacheMapId.remove(a.getAddressId());
-            }
+            updateAddress.flushCache();
         }
     }
 
@@ -145,15 +236,21 @@ public class DbCachedAddressOne implements AutoCloseable {
         log.debug("DbCachedAddressOne-{}.close()", addressType);
         synchronized (cacheData) {
             updateAddress.close();
+            if (cacheData.dictionary != null) {
+                cacheData.dictionary.close();
+            }
         }
     }
 
     @Getter
     public static class CacheData {
 
-        private final Map<String, BtcAddress> cacheMap = new LinkedHashMap<>();
-        private final Map<Integer, BtcAddress> cacheMapId = new HashMap<>();
+        private final Map<String, BtcAddress> cacheMap = Utils.newLruMap(BatchExecutor.getCacheLimit(MAX_CACHE_SIZE));
+        private final Map<Integer, BtcAddress> cacheMapId = Utils.newLruMap(BatchExecutor.getCacheLimit(MAX_CACHE_SIZE));
+        private final Striped<Lock> addLocks = Striped.lock(ADD_LOCK_STRIPES);
         private final AtomicInteger lastAddressId = new AtomicInteger(0);
         private final DbUpdateAddressOne.CacheData updateCachedData = new DbUpdateAddressOne.CacheData();
+        private final CacheStats stats = new CacheStats();
+        private volatile AddressDictionary dictionary;
     }
 }
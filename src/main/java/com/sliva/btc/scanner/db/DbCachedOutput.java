@@ -15,12 +15,12 @@
  */
 package com.sliva.btc.scanner.db;
 
-import com.sliva.btc.scanner.db.model.InOutKey;
 import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.util.CacheStats;
+import com.sliva.btc.scanner.util.Utils;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import lombok.Getter;
@@ -54,60 +54,52 @@ public class DbCachedOutput implements AutoCloseable {
     }
 
     public void add(TxOutput txOutput) {
-        synchronized (cacheData) {
-            updateOutput.add(txOutput);
-            updateCache(txOutput);
-        }
+        updateOutput.add(txOutput);
+        updateCache(txOutput);
     }
 
     public void delete(TxOutput txOutput) throws SQLException {
-        synchronized (cacheData) {
-            updateOutput.delete(txOutput);
-            OutputsList ol = cacheData.cacheMap.get(txOutput.getTransactionId());
-            if (ol != null) {
+        updateOutput.delete(txOutput);
+        OutputsList ol = cacheData.cacheMap.get(txOutput.getTransactionId());
+        if (ol != null) {
+            synchronized (ol.list) {
                 ol.list.remove(txOutput);
                 if (ol.list.isEmpty()) {
-                    cacheData.cacheMap.remove(txOutput.getTransactionId());
+                    cacheData.cacheMap.remove(txOutput.getTransactionId(), ol);
                 }
             }
         }
     }
 
     public void updateStatus(int transactionId, short pos, byte status) throws SQLException {
-        synchronized (cacheData) {
-            updateOutput.updateSpent(transactionId, pos, status);
-            OutputsList ol = cacheData.cacheMap.get(transactionId);
-            if (ol != null) {
-                TxOutput to = ol.find(pos);
-                if (to != null && to.getStatus() != status) {
-                    ol.merge(to.toBuilder().status(status).build());
-                }
+        updateOutput.updateSpent(transactionId, pos, status);
+        OutputsList ol = cacheData.cacheMap.get(transactionId);
+        if (ol != null) {
+            TxOutput to = ol.find(pos);
+            if (to != null && to.getStatus() != status) {
+                ol.merge(to.toBuilder().status(status).build());
             }
         }
     }
 
     public void updateAddress(int transactionId, short pos, int addressId) throws SQLException {
-        synchronized (cacheData) {
-            updateOutput.updateAddress(transactionId, pos, addressId);
-            OutputsList ol = cacheData.cacheMap.get(transactionId);
-            if (ol != null) {
-                TxOutput to = ol.find(pos);
-                if (to != null && to.getAddressId() != addressId) {
-                    ol.merge(to.toBuilder().addressId(addressId).build());
-                }
+        updateOutput.updateAddress(transactionId, pos, addressId);
+        OutputsList ol = cacheData.cacheMap.get(transactionId);
+        if (ol != null) {
+            TxOutput to = ol.find(pos);
+            if (to != null && to.getAddressId() != addressId) {
+                ol.merge(to.toBuilder().addressId(addressId).build());
             }
         }
     }
 
     public void updateAmount(int transactionId, short pos, long amount) throws SQLException {
-        synchronized (cacheData) {
-            updateOutput.updateAmount(transactionId, pos, amount);
-            OutputsList ol = cacheData.cacheMap.get(transactionId);
-            if (ol != null) {
-                TxOutput to = ol.find(pos);
-                if (to != null && to.getAmount() != amount) {
-                    ol.merge(to.toBuilder().amount(amount).build());
-                }
+        updateOutput.updateAmount(transactionId, pos, amount);
+        OutputsList ol = cacheData.cacheMap.get(transactionId);
+        if (ol != null) {
+            TxOutput to = ol.find(pos);
+            if (to != null && to.getAmount() != amount) {
+                ol.merge(to.toBuilder().amount(amount).build());
             }
         }
     }
@@ -115,22 +107,20 @@ public class DbCachedOutput implements AutoCloseable {
     public List<TxOutput> getOutputs(int transactionId) throws SQLException {
         OutputsList ol = cacheData.cacheMap.get(transactionId);
         if (ol != null && ol.isComplete()) {
-            updateCache(transactionId, ol);
             return ol.getList();
         }
-        List<TxOutput> lt = updateOutput.getCacheData().getQueueMapTx().get(transactionId);
-        if (lt != null) {
-            updateCache(lt);
-            ol = cacheData.cacheMap.get(transactionId);
+        List<TxOutput> lt;
+        synchronized (updateOutput.getCacheData()) {
+            lt = updateOutput.getCacheData().getAddQueue().getByTransaction(transactionId);
+        }
+        if (lt != null && !lt.isEmpty()) {
+            ol = updateCache(transactionId, lt);
         }
         lt = queryOutput.getOutputs(transactionId);
         if (lt != null) {
-            if (ol != null) {
-                ol.merge(lt, true);
-                updateCache(transactionId, ol);
-                return ol.getList();
-            } else {
-                updateCache(lt);
+            lt.removeIf(t -> updateOutput.isDeletePending(t.getTransactionId(), t.getPos()));
+            if (ol != null || !lt.isEmpty()) {
+                return updateCache(transactionId, lt).getList();
             }
         }
         return lt;
@@ -140,15 +130,21 @@ public class DbCachedOutput implements AutoCloseable {
         OutputsList ol = cacheData.cacheMap.get(transactionId);
         TxOutput result = ol == null ? null : ol.find(pos);
         if (result != null) {
-            updateCache(transactionId);
+            cacheData.stats.hit();
             return result;
         }
-        result = updateOutput.getCacheData().getQueueMap().get(new InOutKey(transactionId, pos));
+        synchronized (updateOutput.getCacheData()) {
+            result = updateOutput.getCacheData().getAddQueue().get(transactionId, pos);
+        }
         if (result != null) {
-            updateCache(transactionId);
+            cacheData.stats.hit();
             return result;
         }
+        cacheData.stats.miss();
         TxOutput to = queryOutput.getOutput(transactionId, pos);
+        if (to != null && updateOutput.isDeletePending(transactionId, pos)) {
+            to = null;
+        }
         if (to != null) {
             updateCache(to);
         }
@@ -160,52 +156,42 @@ public class DbCachedOutput implements AutoCloseable {
 //        return list == null ? null : list.stream().filter((t) -> t.getPos() == pos).findAny().orElse(null);
 //    }
 
-    private void updateCache(int transactionId) throws SQLException {
-        synchronized (cacheData) {
-            OutputsList ol = cacheData.cacheMap.remove(transactionId);
-            if (ol != null) {
-                cacheData.cacheMap.put(transactionId, ol);
-            }
-        }
+    /**
+     * Cache entries are changed inside compute(), so a merge of single output
+     * and a load of the whole list of the same transaction do not overwrite
+     * each other.
+     */
+    private void updateCache(TxOutput txOutput) {
+        cacheData.cacheMap.compute(txOutput.getTransactionId(), (k, ol) -> {
+            OutputsList result = ol == null ? new OutputsList() : ol;
+            result.merge(txOutput);
+            return result;
+        });
     }
 
-    private void updateCache(int transactionId, OutputsList ol) throws SQLException {
-        synchronized (cacheData) {
-            cacheData.cacheMap.remove(transactionId);
-            cacheData.cacheMap.put(transactionId, ol);
-        }
+    /**
+     * Add loaded outputs of the transaction and mark the list complete.
+     * Outputs already in cache are kept, as they are not older than loaded
+     * ones.
+     */
+    private OutputsList updateCache(int transactionId, Collection<TxOutput> lt) {
+        return cacheData.cacheMap.compute(transactionId, (k, ol) -> {
+            OutputsList result = ol == null ? new OutputsList() : ol;
+            result.fill(lt);
+            return result;
+        });
     }
 
-    private void updateCache(TxOutput txOutput) {
-        synchronized (cacheData) {
-            int transactionId = txOutput.getTransactionId();
-            OutputsList outList = cacheData.cacheMap.get(transactionId);
-            if (outList == null) {
-                outList = new OutputsList();
-                cacheData.cacheMap.put(transactionId, outList);
-            }
-            outList.merge(txOutput);
-            cacheData.cacheMap.remove(transactionId);
-            cacheData.cacheMap.put(transactionId, outList);
-            if (cacheData.cacheMap.size() >= MAX_CACHE_SIZE) {
-                cacheData.cacheMap.remove(cacheData.cacheMap.entrySet().iterator().next().getKey());
-            }
-        }
+    public void flushCache() {
+        updateOutput.flushCache();
     }
 
-    private void updateCache(List<TxOutput> lt) throws SQLException {
-        synchronized (cacheData) {
-            if (!lt.isEmpty()) {
-                int transactionId = lt.get(0).getTransactionId();
-                OutputsList ol = new OutputsList();
-                ol.merge(lt, true);
-                cacheData.cacheMap.remove(transactionId);
-                cacheData.cacheMap.put(transactionId, ol);
-                if (cacheData.cacheMap.size() >= MAX_CACHE_SIZE) {
-                    cacheData.cacheMap.remove(cacheData.cacheMap.entrySet().iterator().next().getKey());
-                }
-            }
-        }
+    /**
+     * Drop all cached outputs. Used after DB records were changed directly,
+     * i.e. spent flags reset by a rollback.
+     */
+    public void clearCache() {
+        cacheData.cacheMap.clear();
     }
 
     @Override
@@ -219,8 +205,9 @@ public class DbCachedOutput implements AutoCloseable {
     @Getter
     public static class CacheData {
 
-        private final Map<Integer, OutputsList> cacheMap = new LinkedHashMap<>();
+        private final Map<Integer, OutputsList> cacheMap = Utils.newLruMap(BatchExecutor.getCacheLimit(MAX_CACHE_SIZE));
         private final DbUpdateOutput.CacheData updateCachedData = new DbUpdateOutput.CacheData();
+        private final CacheStats stats = new CacheStats();
     }
 
     @Getter
@@ -241,10 +228,10 @@ public class DbCachedOutput implements AutoCloseable {
             }
         }
 
-        void merge(Collection<TxOutput> c, boolean complete) {
+        void fill(Collection<TxOutput> c) {
             synchronized (list) {
-                c.forEach((t) -> merge(t));
-                this.complete |= complete;
+                c.stream().filter(t -> find(t.getPos()) == null).forEach(t -> merge(t));
+                complete = true;
             }
         }
 
@@ -16,13 +16,16 @@
 package com.sliva.btc.scanner.db;
 
 import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.storage.TxidIndex;
+import com.sliva.btc.scanner.util.CacheStats;
+import com.sliva.btc.scanner.util.Utils;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -51,35 +54,47 @@ public class DbCachedTransaction implements AutoCloseable {
         return cacheData;
     }
 
+    /**
+     * Add new transaction. Transaction ID is assigned sequentially if not set
+     * by caller. Pre-assigned IDs (i.e. block based ones from
+     * DbBlockTxnOffsets) do not take the sequence lock.
+     *
+     * @param btcTransaction transaction to add
+     * @return transaction with ID assigned
+     * @throws SQLException
+     */
     public BtcTransaction add(BtcTransaction btcTransaction) throws SQLException {
-        synchronized (cacheData) {
-            if (btcTransaction.getTransactionId() == 0) {
-                if (cacheData.lastTransactionId.get() == 0) {
-                    cacheData.lastTransactionId.set(queryTransaction.getLastTransactionId());
-                }
-                btcTransaction = btcTransaction.toBuilder().transactionId(cacheData.lastTransactionId.incrementAndGet()).build();
-            }
-            updateTransaction.add(btcTransaction);
-            updateCache(btcTransaction);
-            return btcTransaction;
+        if (btcTransaction.getTransactionId() == 0) {
+            btcTransaction = btcTransaction.toBuilder().transactionId(getNextTransactionId()).build();
+        }
+        updateTransaction.add(btcTransaction);
+        updateCache(btcTransaction);
+        if (cacheData.txidIndex != null) {
+            cacheData.txidIndex.add(btcTransaction.getTxid(), btcTransaction.getTransactionId(), btcTransaction.getBlockHeight());
         }
+        return btcTransaction;
     }
 
     public void delete(BtcTransaction tx) throws SQLException {
-        synchronized (cacheData) {
-            updateTransaction.delete(tx);
-            cacheData.cacheMap.remove(tx.getTxid());
-            cacheData.cacheMapId.remove(tx.getTransactionId());
+        updateTransaction.delete(tx);
+        cacheData.cacheMap.remove(tx.getTxid());
+        cacheData.cacheMapId.remove(tx.getTransactionId());
+        if (cacheData.txidIndex != null) {
+            cacheData.txidIndex.delete(tx.getTxid(), tx.getTransactionId());
         }
     }
 
+    private BtcTransaction skipDeleted(BtcTransaction tx) {
+        return tx == null || updateTransaction.isDeletePending(tx.getTransactionId()) ? null : tx;
+    }
+
     public BtcTransaction getTransaction(int transactionId) throws SQLException {
         BtcTransaction result = cacheData.cacheMapId.get(transactionId);
         if (result == null) {
             result = updateTransaction.getCacheData().getAddMapId().get(transactionId);
         }
         if (result == null) {
-            result = queryTransaction.findTransaction(transactionId);
+            result = skipDeleted(queryTransaction.findTransaction(transactionId));
         }
         if (result != null) {
             updateCache(result);
@@ -87,13 +102,31 @@ public class DbCachedTransaction implements AutoCloseable {
         return result;
     }
 
+    /**
+     * Find transaction by txid. Transaction found in txid index is not cached
+     * and has only ID and block height set.
+     *
+     * @param txid transaction hash
+     * @return transaction or null if not found
+     * @throws SQLException
+     */
     public BtcTransaction getTransaction(String txid) throws SQLException {
         BtcTransaction result = cacheData.cacheMap.get(txid);
         if (result == null) {
             result = updateTransaction.getCacheData().getAddMap().get(txid);
         }
+        if (result == null && cacheData.txidIndex != null) {
+            result = cacheData.txidIndex.find(txid);
+            if (result != null) {
+                cacheData.stats.hit();
+                return result;
+            }
+        }
         if (result == null) {
-            result = queryTransaction.findTransaction(txid);
+            cacheData.stats.miss();
+            result = skipDeleted(queryTransaction.findTransaction(txid));
+        } else {
+            cacheData.stats.hit();
         }
         if (result != null) {
             updateCache(result);
@@ -111,19 +144,60 @@ public class DbCachedTransaction implements AutoCloseable {
         return result;
     }
 
-    private void updateCache(BtcTransaction btcTransaction) throws SQLException {
-        synchronized (cacheData) {
-            cacheData.cacheMap.remove(btcTransaction.getTxid());
-            cacheData.cacheMap.put(btcTransaction.getTxid(), btcTransaction);
-            cacheData.cacheMapId.put(btcTransaction.getTransactionId(), btcTransaction);
-            if (cacheData.cacheMap.size() >= MAX_CACHE_SIZE) {
-                BtcTransaction t = cacheData.cacheMap.entrySet().iterator().next().getValue();
-                cacheData.cacheMap.remove(t.getTxid());
-                cacheData.cacheMapId.remove(t.getTransactionId());
+    /**
+     * Load transactions of all blocks in the height range with single query.
+     * Loaded transactions are put to the cache.
+     *
+     * @param fromHeight first block height (inclusive)
+     * @param toHeight last block height (inclusive)
+     * @return list of transactions
+     * @throws SQLException
+     */
+    public List<BtcTransaction> getTransactionsInBlockRange(int fromHeight, int toHeight) throws SQLException {
+        List<BtcTransaction> result = queryTransaction.getTransactionsInBlockRange(fromHeight, toHeight);
+        for (BtcTransaction t : result) {
+            updateCache(t);
+        }
+        return result;
+    }
+
+    public void flushCache() {
+        updateTransaction.flushCache();
+    }
+
+    /**
+     * Remove cached transactions of blocks above given height. Last
+     * transaction ID is re-read from DB on next sequential assignment.
+     *
+     * @param blockHeight last valid block height
+     * @param rolledBack transactions of the rolled back blocks, removed from
+     * txid index by key
+     */
+    public void invalidateBlocksAbove(int blockHeight, Collection<BtcTransaction> rolledBack) {
+        cacheData.cacheMap.values().removeIf(t -> t.getBlockHeight() > blockHeight);
+        cacheData.cacheMapId.values().removeIf(t -> t.getBlockHeight() > blockHeight);
+        if (cacheData.txidIndex != null) {
+            cacheData.txidIndex.deleteBlocksAbove(blockHeight, rolledBack);
+        }
+        synchronized (cacheData.lastTransactionId) {
+            cacheData.lastTransactionId.set(0);
+        }
+    }
+
+    private int getNextTransactionId() throws SQLException {
+        synchronized (cacheData.lastTransactionId) {
+            if (cacheData.lastTransactionId.get() == 0) {
+                cacheData.lastTransactionId.set(queryTransaction.getLastTransactionId());
             }
+            return cacheData.lastTransactionId.incrementAndGet();
         }
     }
 
+    private void updateCache(BtcTransaction btcTransaction) throws SQLException {
+        cacheData.cacheMap.put(btcTransaction.getTxid(), btcTransaction);
+        cacheData.cacheMapId.put(btcTransaction.getTransactionId(), btcTransaction);
+    }
+
     @Override
     public void close() throws SQLException {
         log.debug("DbCachedTransaction.close()");
@@ -135,9 +209,12 @@ public class DbCachedTransaction implements AutoCloseable {
     @Getter
     public static class CacheData {
 
-        private final Map<String, BtcTransaction> cacheMap = new LinkedHashMap<>();
-        private final Map<Integer, BtcTransaction> cacheMapId = new HashMap<>();
+        private final Map<String, BtcTransaction> cacheMap = Utils.newLruMap(BatchExecutor.getCacheLimit(MAX_CACHE_SIZE));
+        private final Map<Integer, BtcTransaction> cacheMapId = Utils.newLruMap(BatchExecutor.getCacheLimit(MAX_CACHE_SIZE));
         private final AtomicInteger lastTransactionId = new AtomicInteger(0);
         private final DbUpdateTransaction.CacheData updateCachedData = new DbUpdateTransaction.CacheData();
+        private final CacheStats stats = new CacheStats();
+        @Setter
+        private TxidIndex txidIndex;
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Drops secondary indexes before a large catch-up and rebuilds them after.
+ * Index state is read from information_schema, so a run interrupted while
+ * indexes are deferred is resumed by calling {@link #rebuildIndexes()} again.
+ *
+ * Only indexes that are not used for lookups by a regular (non safe-run)
+ * update are managed here: ix_txid and address ix_address stay in place
+ * because cache misses on txid and address resolution are served by them.
+ * Input ix_in_txn_pos is never deferred - it guards against duplicate input
+ * rows (double spend) and serves input lookups by spent output.
+ * Unique keys of partitioned tables are rebuilt as non-unique, see
+ * {@link DbPartitioning}.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbIndexManager {
+
+    private static final long PROGRESS_REPORT_PERIOD_SEC = 60;
+    private static final String SQL_QUERY_INDEXES = "SELECT DISTINCT INDEX_NAME FROM information_schema.STATISTICS WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=?";
+    private static final List<IndexDef> DEFERRABLE_INDEXES = Arrays.asList(
+            new IndexDef("transaction", "ix_block_height", "KEY `ix_block_height` (`block_height`)"),
+            new IndexDef("output", "ix_address", "KEY `ix_address` (`address_id`)"),
+            new IndexDef("address_p2pkh", "ix_wallet_id", "KEY `ix_wallet_id` (`wallet_id`)"),
+            new IndexDef("address_p2sh", "ix_wallet_id", "KEY `ix_wallet_id` (`wallet_id`)"),
+            new IndexDef("address_p2wpkh", "ix_wallet_id", "KEY `ix_wallet_id` (`wallet_id`)"),
+            new IndexDef("address_p2wsh", "ix_wallet_id", "KEY `ix_wallet_id` (`wallet_id`)"));
+    private static final List<IndexDef> KEPT_INDEXES = Arrays.asList(
+            new IndexDef("input", "ix_in_txn_pos", "UNIQUE KEY `ix_in_txn_pos` (`in_transaction_id`,`in_pos`)"));
+    private final DBConnection conn;
+    private final ThreadLocal<PreparedStatement> psQueryIndexes;
+
+    public DbIndexManager(DBConnection conn) {
+        this.conn = conn;
+        this.psQueryIndexes = conn.prepareStatement(SQL_QUERY_INDEXES);
+    }
+
+    public static List<IndexDef> getDeferrableIndexes() {
+        return DEFERRABLE_INDEXES;
+    }
+
+    /**
+     * Find definition of a secondary index, deferrable or not.
+     *
+     * @param table table name
+     * @param name index name
+     * @return index definition or null if index is not known
+     */
+    public static IndexDef findIndexDef(String table, String name) {
+        return Stream.concat(DEFERRABLE_INDEXES.stream(), KEPT_INDEXES.stream())
+                .filter(ix -> ix.getTable().equals(table) && ix.getName().equals(name))
+                .findAny().orElse(null);
+    }
+
+    /**
+     * Get managed indexes that currently do not exist in DB.
+     *
+     * @return list of missing indexes
+     * @throws SQLException
+     */
+    public List<IndexDef> getMissingIndexes() throws SQLException {
+        List<IndexDef> result = new ArrayList<>();
+        for (Map.Entry<String, List<IndexDef>> e : groupByTable(DEFERRABLE_INDEXES).entrySet()) {
+            Set<String> existing = queryIndexes(e.getKey());
+            e.getValue().stream().filter(ix -> !existing.contains(ix.getName())).forEach(result::add);
+        }
+        return result;
+    }
+
+    /**
+     * Drop all managed indexes that exist in DB. One ALTER TABLE statement is
+     * executed per table.
+     *
+     * @throws SQLException
+     */
+    public void dropIndexes() throws SQLException {
+        for (Map.Entry<String, List<IndexDef>> e : groupByTable(DEFERRABLE_INDEXES).entrySet()) {
+            Set<String> existing = queryIndexes(e.getKey());
+            List<IndexDef> toDrop = e.getValue().stream().filter(ix -> existing.contains(ix.getName())).collect(Collectors.toList());
+            if (!toDrop.isEmpty()) {
+                String sql = "ALTER TABLE `" + e.getKey() + "` "
+                        + toDrop.stream().map(ix -> "DROP INDEX `" + ix.getName() + "`").collect(Collectors.joining(","));
+                log.info("Deferring indexes: {}", sql);
+                long s = System.currentTimeMillis();
+                execute(sql);
+                log.info("Dropped indexes {} on table {}. Runtime: {} sec.", toDrop, e.getKey(), (System.currentTimeMillis() - s) / 1000);
+            }
+        }
+    }
+
+    /**
+     * Re-create missing managed indexes. Tables are processed in parallel,
+     * all missing indexes of one table are added with single ALTER TABLE
+     * statement.
+     *
+     * @return true if all indexes were rebuilt successfully
+     * @throws SQLException
+     */
+    @SuppressWarnings("UseSpecificCatch")
+    public boolean rebuildIndexes() throws SQLException {
+        Map<String, List<IndexDef>> missing = groupByTable(getMissingIndexes());
+        if (missing.isEmpty()) {
+            log.info("rebuildIndexes: All indexes are in place");
+            return true;
+        }
+        log.info("rebuildIndexes: Rebuilding indexes on {} tables: {}", missing.size(), missing.values());
+        Map<String, Long> running = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(missing.size());
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> running.forEach((table, start)
+                -> log.info("rebuildIndexes: {} - still running. Elapsed: {} sec.", table, (System.currentTimeMillis() - start) / 1000)),
+                PROGRESS_REPORT_PERIOD_SEC, PROGRESS_REPORT_PERIOD_SEC, TimeUnit.SECONDS);
+        long s = System.currentTimeMillis();
+        boolean success = true;
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int total = missing.size();
+            for (Map.Entry<String, List<IndexDef>> e : missing.entrySet()) {
+                futures.add(executor.submit(() -> {
+                    String sql = "ALTER TABLE `" + e.getKey() + "` "
+                            + e.getValue().stream().map(ix -> "ADD " + DbPartitioning.getIndexDefinition(ix)).collect(Collectors.joining(","));
+                    running.put(e.getKey(), System.currentTimeMillis());
+                    try {
+                        log.info("rebuildIndexes: {}", sql);
+                        execute(sql);
+                        log.info("rebuildIndexes: {} - done in {} sec. Remaining tables: {} of {}", e.getKey(),
+                                (System.currentTimeMillis() - running.get(e.getKey())) / 1000, running.size() - 1, total);
+                    } finally {
+                        running.remove(e.getKey());
+                        conn.releaseConnection();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (Exception e) {
+                    log.error("rebuildIndexes: " + e.getMessage(), e);
+                    success = false;
+                }
+            }
+        } finally {
+            reporter.shutdownNow();
+            executor.shutdown();
+        }
+        log.info("rebuildIndexes: Finished {}. Runtime: {} sec.", success ? "successfully" : "with errors", (System.currentTimeMillis() - s) / 1000);
+        return success;
+    }
+
+    private Set<String> queryIndexes(String tableName) throws SQLException {
+        psQueryIndexes.get().setString(1, tableName);
+        Set<String> result = new HashSet<>();
+        try (ResultSet rs = psQueryIndexes.get().executeQuery()) {
+            while (rs.next()) {
+                result.add(rs.getString(1));
+            }
+        }
+        return result;
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement st = conn.getConnection().createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    private static Map<String, List<IndexDef>> groupByTable(Collection<IndexDef> indexes) {
+        Map<String, List<IndexDef>> result = new LinkedHashMap<>();
+        indexes.forEach(ix -> result.computeIfAbsent(ix.getTable(), t -> new ArrayList<>()).add(ix));
+        return result;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    @ToString(of = {"table", "name"})
+    public static class IndexDef {
+
+        private final String table;
+        private final String name;
+        private final String definition;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.DbIndexManager.IndexDef;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+
+/**
+ * Range partitioning of input and output tables by transaction_id.
+ * Partition pN holds transaction IDs in range [N*size, (N+1)*size), the last
+ * partition pmax (VALUES LESS THAN MAXVALUE) is kept empty by adding named
+ * partitions ahead of the scan. Queued inserts of one partition are executed
+ * in one writer lane, so batches to different partitions run concurrently
+ * (see {@link PartitionLanes}).
+ *
+ * MySQL supports native partitioning for InnoDB tables only. Unique keys
+ * must include transaction_id, so unique ix_in_txn_pos of input table is
+ * converted to a non-unique key when the table gets partitioned.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbPartitioning {
+
+    private static final int DEFAULT_PARTITION_TRANSACTIONS = 0;
+    private static final int SPARE_PARTITIONS = 1;
+    private static final String MAX_PARTITION_NAME = "pmax";
+    private static final List<String> PARTITIONED_TABLES = Arrays.asList("input", "output");
+    private static final String SQL_QUERY_PARTITIONS = "SELECT PARTITION_NAME,PARTITION_DESCRIPTION FROM information_schema.PARTITIONS"
+            + " WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=? ORDER BY PARTITION_ORDINAL_POSITION";
+    private static final String SQL_QUERY_UNIQUE_INDEXES = "SELECT DISTINCT INDEX_NAME FROM information_schema.STATISTICS"
+            + " WHERE TABLE_SCHEMA=DATABASE() AND TABLE_NAME=? AND NON_UNIQUE=0 AND INDEX_NAME<>'PRIMARY'";
+    private static volatile int partitionTransactions = DEFAULT_PARTITION_TRANSACTIONS;
+    private final DBConnection conn;
+    private final ThreadLocal<PreparedStatement> psQueryPartitions;
+    private final ThreadLocal<PreparedStatement> psQueryUniqueIndexes;
+    private int preparedPartitions;
+
+    public DbPartitioning(DBConnection conn) {
+        this.conn = conn;
+        this.psQueryPartitions = conn.prepareStatement(SQL_QUERY_PARTITIONS);
+        this.psQueryUniqueIndexes = conn.prepareStatement(SQL_QUERY_UNIQUE_INDEXES);
+    }
+
+    /**
+     * Set partition size.
+     *
+     * @param transactions number of transaction IDs per partition, 0 to
+     * disable partitioning
+     */
+    public static void setPartitionTransactions(int transactions) {
+        partitionTransactions = transactions;
+    }
+
+    public static int getPartitionTransactions() {
+        return partitionTransactions;
+    }
+
+    public static boolean isEnabled() {
+        return partitionTransactions > 0;
+    }
+
+    public static boolean isPartitioned(String tableName) {
+        return isEnabled() && PARTITIONED_TABLES.contains(tableName);
+    }
+
+    /**
+     * Get partition number of the transaction.
+     *
+     * @param transactionId transaction ID
+     * @return partition number, 0 if partitioning is disabled
+     */
+    public static int getPartition(int transactionId) {
+        return isEnabled() ? transactionId / partitionTransactions : 0;
+    }
+
+    public static String getPartitionName(int partition) {
+        return "p" + partition;
+    }
+
+    public static int getFirstTransactionId(int partition) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) partition * partitionTransactions);
+    }
+
+    public static int getLastTransactionId(int partition) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) (partition + 1) * partitionTransactions - 1);
+    }
+
+    /**
+     * Index definition adjusted for partitioned table, i.e. unique keys
+     * become non-unique.
+     *
+     * @param ix index
+     * @return definition for ALTER TABLE ADD
+     */
+    public static String getIndexDefinition(IndexDef ix) {
+        return isPartitioned(ix.getTable()) ? ix.getDefinition().replaceFirst("^UNIQUE ", "") : ix.getDefinition();
+    }
+
+    public static void applyArguments(CommandLine cmd) {
+        setPartitionTransactions(Integer.parseInt(cmd.getOptionValue("db-partition-txns", Integer.toString(DEFAULT_PARTITION_TRANSACTIONS))));
+    }
+
+    public static Options addOptions(Options options) {
+        options.addOption(null, "db-partition-txns", true, "InnoDB only. Partition input and output tables by ranges of this number of transaction IDs."
+                + " Inserts to different partitions run concurrently. 0 - no partitioning. Default is " + DEFAULT_PARTITION_TRANSACTIONS);
+        return options;
+    }
+
+    /**
+     * Make sure partitioned tables have named partitions for transaction IDs
+     * up to the given one plus {@link #SPARE_PARTITIONS} partitions ahead.
+     * Table that is not partitioned yet gets re-created with partitions,
+     * which takes long time on a large table. Otherwise new partitions are
+     * split off the empty pmax partition. Executes DDL, so must not be called
+     * inside of an open DB transaction.
+     *
+     * @param lastTransactionId last transaction ID stored or queued
+     * @throws SQLException
+     */
+    public void ensurePartitions(int lastTransactionId) throws SQLException {
+        if (!isEnabled()) {
+            return;
+        }
+        int needed = getPartition(lastTransactionId) + 1 + SPARE_PARTITIONS;
+        if (needed <= preparedPartitions) {
+            return;
+        }
+        for (String table : PARTITIONED_TABLES) {
+            ensurePartitions(table, needed);
+        }
+        preparedPartitions = needed;
+    }
+
+    private void ensurePartitions(String table, int needed) throws SQLException {
+        Map<String, String> partitions = queryPartitions(table);
+        if (partitions.isEmpty() || partitions.containsKey(null)) {
+            String sql = "ALTER TABLE `" + table + "` ";
+            List<String> uniqueKeys = queryUniqueIndexes(table);
+            if (!uniqueKeys.isEmpty()) {
+                sql += uniqueKeys.stream().map(name -> "DROP INDEX `" + name + "`,ADD " + getIndexDefinition(getIndexDef(table, name)))
+                        .collect(Collectors.joining(",")) + " ";
+            }
+            sql += "PARTITION BY RANGE (transaction_id) (" + getPartitionDefs(0, needed) + ")";
+            log.info("Partitioning table {}: {}", table, sql);
+            long s = System.currentTimeMillis();
+            execute(sql);
+            log.info("Partitioned table {}. Runtime: {} sec.", table, (System.currentTimeMillis() - s) / 1000);
+            return;
+        }
+        int existing = 0;
+        for (Map.Entry<String, String> e : partitions.entrySet()) {
+            if (MAX_PARTITION_NAME.equals(e.getKey())) {
+                continue;
+            }
+            if (!e.getKey().equals(getPartitionName(existing)) || !e.getValue().equals(Long.toString((long) (existing + 1) * partitionTransactions))) {
+                throw new IllegalStateException("Table " + table + " is partitioned with a different scheme. Partition " + e.getKey()
+                        + " VALUES LESS THAN (" + e.getValue() + ") does not match partition size " + partitionTransactions);
+            }
+            existing++;
+        }
+        if (!partitions.containsKey(MAX_PARTITION_NAME)) {
+            throw new IllegalStateException("Table " + table + " has no " + MAX_PARTITION_NAME + " partition");
+        }
+        if (existing < needed) {
+            String sql = "ALTER TABLE `" + table + "` REORGANIZE PARTITION " + MAX_PARTITION_NAME + " INTO (" + getPartitionDefs(existing, needed) + ")";
+            log.info("Adding partitions to table {}: {}", table, sql);
+            execute(sql);
+        }
+    }
+
+    private static String getPartitionDefs(int from, int to) {
+        return IntStream.range(from, to)
+                .mapToObj(p -> "PARTITION " + getPartitionName(p) + " VALUES LESS THAN (" + ((long) (p + 1) * partitionTransactions) + ")")
+                .collect(Collectors.joining(",")) + ",PARTITION " + MAX_PARTITION_NAME + " VALUES LESS THAN MAXVALUE";
+    }
+
+    private static IndexDef getIndexDef(String table, String name) {
+        IndexDef ix = DbIndexManager.findIndexDef(table, name);
+        if (ix == null) {
+            throw new IllegalStateException("Unique key " + name + " of table " + table
+                    + " does not include transaction_id and can't be partitioned");
+        }
+        return ix;
+    }
+
+    private Map<String, String> queryPartitions(String table) throws SQLException {
+        psQueryPartitions.get().setString(1, table);
+        Map<String, String> result = new LinkedHashMap<>();
+        try (ResultSet rs = psQueryPartitions.get().executeQuery()) {
+            while (rs.next()) {
+                result.put(rs.getString(1), rs.getString(2));
+            }
+        }
+        return result;
+    }
+
+    private List<String> queryUniqueIndexes(String table) throws SQLException {
+        psQueryUniqueIndexes.get().setString(1, table);
+        List<String> result = new ArrayList<>();
+        try (ResultSet rs = psQueryUniqueIndexes.get().executeQuery()) {
+            while (rs.next()) {
+                result.add(rs.getString(1));
+            }
+        }
+        return result;
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement st = conn.getConnection().createStatement()) {
+            st.execute(sql);
+        }
+    }
+}
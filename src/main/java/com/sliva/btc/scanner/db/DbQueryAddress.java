@@ -20,6 +20,7 @@ import com.sliva.btc.scanner.src.SrcAddressType;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.function.ObjIntConsumer;
 
 /**
  *
@@ -31,11 +32,15 @@ public class DbQueryAddress {
     private static final String SQL_FIND_BY_ADDRESS = "SELECT address_id FROM address_table_name WHERE address=? LIMIT 1";
     private static final String SQL_QUERY_WALLET_ID = "SELECT wallet_id FROM address_table_name WHERE address_id=?";
     private static final String SQL_QUERY_LAST_ADDRESS_ID = "SELECT address_id FROM address_table_name ORDER BY address_id DESC LIMIT 1";
+    private static final String SQL_QUERY_ADDRESSES_AFTER = "SELECT address_id,address FROM address_table_name WHERE address_id>? ORDER BY address_id";
+    private static final String SQL_COUNT_ADDRESSES = "SELECT COUNT(*) FROM address_table_name";
     private final SrcAddressType addressType;
     private final ThreadLocal<PreparedStatement> psFindByAddressId;
     private final ThreadLocal<PreparedStatement> psFindByAddress;
     private final ThreadLocal<PreparedStatement> psQueryWalletId;
     private final ThreadLocal<PreparedStatement> psQueryLastAddressId;
+    private final ThreadLocal<PreparedStatement> psQueryAddressesAfter;
+    private final ThreadLocal<PreparedStatement> psCountAddresses;
 
     public DbQueryAddress(DBConnection conn, SrcAddressType addressType) {
         this.addressType = addressType;
@@ -43,6 +48,8 @@ public class DbQueryAddress {
         this.psFindByAddress = conn == null ? null : conn.prepareStatement(fixTableName(SQL_FIND_BY_ADDRESS));
         this.psQueryWalletId = conn == null ? null : conn.prepareStatement(fixTableName(SQL_QUERY_WALLET_ID));
         this.psQueryLastAddressId = conn == null ? null : conn.prepareStatement(fixTableName(SQL_QUERY_LAST_ADDRESS_ID));
+        this.psQueryAddressesAfter = conn == null ? null : conn.prepareStatement(fixTableName(SQL_QUERY_ADDRESSES_AFTER));
+        this.psCountAddresses = conn == null ? null : conn.prepareStatement(fixTableName(SQL_COUNT_ADDRESSES));
     }
 
     public String getTableName() {
@@ -90,6 +97,34 @@ public class DbQueryAddress {
         }
     }
 
+    public long countAddresses() throws SQLException {
+        try (ResultSet rs = psCountAddresses.get().executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Stream all addresses with ID above given one, in order of address ID.
+     *
+     * @param addressId last address ID to skip
+     * @param consumer receives address hash and address ID
+     * @return number of addresses
+     * @throws SQLException
+     */
+    public long forEachAddressAfter(int addressId, ObjIntConsumer<byte[]> consumer) throws SQLException {
+        PreparedStatement ps = psQueryAddressesAfter.get();
+        ps.setFetchSize(Integer.MIN_VALUE);
+        ps.setInt(1, addressId);
+        long result = 0;
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                consumer.accept(rs.getBytes(2), rs.getInt(1));
+                result++;
+            }
+        }
+        return result;
+    }
+
     private String fixTableName(String sql) {
         return updateQueryTableName(sql, addressType);
     }
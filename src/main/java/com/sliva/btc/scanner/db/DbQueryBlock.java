@@ -20,6 +20,8 @@ import com.sliva.btc.scanner.util.Utils;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.codec.binary.Hex;
 
 /**
@@ -31,14 +33,23 @@ public class DbQueryBlock {
     private static final String SQL_QUERY_BLOCK_HASH = "SELECT hash,txn_count FROM block WHERE height=?";
     private static final String SQL_FIND_BLOCK_BY_HASH = "SELECT height,txn_count FROM block WHERE hash=?";
     private static final String SQL_FIND_LAST_HEIGHT = "SELECT height FROM block ORDER BY height DESC LIMIT 1";
+    private static final String SQL_QUERY_TXN_COUNT_BEFORE = "SELECT IFNULL(SUM(txn_count),0) FROM block WHERE height<?";
+    private static final String SQL_COUNT_BLOCKS_BEFORE = "SELECT COUNT(*) FROM block WHERE height<?";
+    private static final String SQL_QUERY_BLOCKS_RANGE = "SELECT height,hash,txn_count FROM block WHERE height BETWEEN ? AND ?";
     private final ThreadLocal<PreparedStatement> psQueryBlockHash;
     private final ThreadLocal<PreparedStatement> psFindBlockByHash;
     private final ThreadLocal<PreparedStatement> psFindLastHeight;
+    private final ThreadLocal<PreparedStatement> psQueryTxnCountBefore;
+    private final ThreadLocal<PreparedStatement> psCountBlocksBefore;
+    private final ThreadLocal<PreparedStatement> psQueryBlocksRange;
 
     public DbQueryBlock(DBConnection conn) {
         this.psQueryBlockHash = conn.prepareStatement(SQL_QUERY_BLOCK_HASH);
         this.psFindBlockByHash = conn.prepareStatement(SQL_FIND_BLOCK_BY_HASH);
         this.psFindLastHeight = conn.prepareStatement(SQL_FIND_LAST_HEIGHT);
+        this.psQueryTxnCountBefore = conn.prepareStatement(SQL_QUERY_TXN_COUNT_BEFORE);
+        this.psCountBlocksBefore = conn.prepareStatement(SQL_COUNT_BLOCKS_BEFORE);
+        this.psQueryBlocksRange = conn.prepareStatement(SQL_QUERY_BLOCKS_RANGE);
     }
 
     public byte[] getBlockHash(int blockHeight) throws SQLException {
@@ -59,6 +70,22 @@ public class DbQueryBlock {
         }
     }
 
+    public List<BtcBlock> getBlocksInRange(int fromHeight, int toHeight) throws SQLException {
+        psQueryBlocksRange.get().setInt(1, fromHeight);
+        psQueryBlocksRange.get().setInt(2, toHeight);
+        try (ResultSet rs = psQueryBlocksRange.get().executeQuery()) {
+            List<BtcBlock> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(BtcBlock.builder()
+                        .height(rs.getInt(1))
+                        .hash(Hex.encodeHexString(rs.getBytes(2)))
+                        .txnCount(rs.getInt(3))
+                        .build());
+            }
+            return result;
+        }
+    }
+
     public BtcBlock findBlockByHash(String hash) throws SQLException {
         psFindBlockByHash.get().setBytes(1, Utils.id2bin(hash));
         try (ResultSet rs = psFindBlockByHash.get().executeQuery()) {
@@ -75,4 +102,32 @@ public class DbQueryBlock {
             return rs.next() ? rs.getInt(1) : -1;
         }
     }
+
+    /**
+     * Get total number of transactions in all blocks below given height.
+     *
+     * @param blockHeight block height
+     * @return sum of txn_count of blocks with height less than blockHeight
+     * @throws SQLException
+     */
+    public int getTxnCountBefore(int blockHeight) throws SQLException {
+        psQueryTxnCountBefore.get().setInt(1, blockHeight);
+        try (ResultSet rs = psQueryTxnCountBefore.get().executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Get number of block records below given height.
+     *
+     * @param blockHeight block height
+     * @return number of blocks with height less than blockHeight
+     * @throws SQLException
+     */
+    public int countBlocksBefore(int blockHeight) throws SQLException {
+        psCountBlocksBefore.get().setInt(1, blockHeight);
+        try (ResultSet rs = psCountBlocksBefore.get().executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
 }
@@ -38,6 +38,7 @@ import lombok.extern.slf4j.Slf4j;
 public class DbQueryInput {
 
     private static final String SQL_QUERY_INPUTS = "SELECT pos,in_transaction_id,in_pos FROM input WHERE transaction_id=? ORDER BY pos";
+    private static final String SQL_QUERY_INPUTS_IN_TXN_RANGE = "SELECT transaction_id,pos,in_transaction_id,in_pos FROM input WHERE transaction_id BETWEEN ? AND ?";
     private static final String SQL_FIND_INPUT_BY_OUT_TX = "SELECT transaction_id,pos FROM input WHERE in_transaction_id=? AND in_pos=? LIMIT 1";
     private static final String SQL_QUERY_INPUTS_WITH_OUTPUT = "SELECT"
             + " I.pos,I.in_transaction_id,I.in_pos"
@@ -55,12 +56,14 @@ public class DbQueryInput {
             + " LEFT JOIN address_p2wsh P2WSH ON P2WSH.address_id=O.address_id"
             + " WHERE O.address_id>0 AND I.transaction_id=?";
     private final ThreadLocal<PreparedStatement> psQueryInputs;
+    private final ThreadLocal<PreparedStatement> psQueryInputsInTxnRange;
     private final ThreadLocal<PreparedStatement> psFindInputByOutTx;
     private final ThreadLocal<PreparedStatement> psQueryInputsWithOutput;
     private final ThreadLocal<PreparedStatement> psQueryInputAddresses;
 
     public DbQueryInput(DBConnection conn) {
         this.psQueryInputs = conn.prepareStatement(SQL_QUERY_INPUTS);
+        this.psQueryInputsInTxnRange = conn.prepareStatement(SQL_QUERY_INPUTS_IN_TXN_RANGE);
         this.psFindInputByOutTx = conn.prepareStatement(SQL_FIND_INPUT_BY_OUT_TX);
         this.psQueryInputsWithOutput = conn.prepareStatement(SQL_QUERY_INPUTS_WITH_OUTPUT);
         this.psQueryInputAddresses = conn.prepareStatement(SQL_QUERY_INPUT_ADDRESSES);
@@ -83,6 +86,23 @@ public class DbQueryInput {
         return result;
     }
 
+    public List<TxInput> getInputsInTxnRange(int startTransactionId, int endTransactionId) throws SQLException {
+        psQueryInputsInTxnRange.get().setInt(1, startTransactionId);
+        psQueryInputsInTxnRange.get().setInt(2, endTransactionId);
+        List<TxInput> result = new ArrayList<>();
+        try (ResultSet rs = psQueryInputsInTxnRange.get().executeQuery()) {
+            while (rs.next()) {
+                result.add(TxInput.builder()
+                        .transactionId(rs.getInt(1))
+                        .pos(rs.getShort(2))
+                        .inTransactionId(rs.getInt(3))
+                        .inPos(rs.getShort(4))
+                        .build());
+            }
+        }
+        return result;
+    }
+
     public TxInput findInputByOutTx(int inTransactionId, short inPos) throws SQLException {
         psFindInputByOutTx.get().setInt(1, inTransactionId);
         psFindInputByOutTx.get().setInt(2, inPos);
@@ -36,12 +36,15 @@ public class DbQueryInputSpecial {
 
     private static final String SQL_QUERY_INPUT = "SELECT sighash_type,segwit,multisig FROM input_special WHERE transaction_id=? AND pos=?";
     private static final String SQL_QUERY_INPUTS = "SELECT pos,sighash_type,segwit,multisig FROM input_special WHERE transaction_id=? ORDER BY pos";
+    private static final String SQL_QUERY_INPUTS_IN_TXN_RANGE = "SELECT transaction_id,pos,sighash_type,segwit,multisig FROM input_special WHERE transaction_id BETWEEN ? AND ?";
     private final ThreadLocal<PreparedStatement> psQueryInput;
     private final ThreadLocal<PreparedStatement> psQueryInputs;
+    private final ThreadLocal<PreparedStatement> psQueryInputsInTxnRange;
 
     public DbQueryInputSpecial(DBConnection conn) {
         this.psQueryInput = conn.prepareStatement(SQL_QUERY_INPUT);
         this.psQueryInputs = conn.prepareStatement(SQL_QUERY_INPUTS);
+        this.psQueryInputsInTxnRange = conn.prepareStatement(SQL_QUERY_INPUTS_IN_TXN_RANGE);
     }
 
     public TxInputSpecial getInput(int transactionId, short pos) throws SQLException {
@@ -79,6 +82,24 @@ public class DbQueryInputSpecial {
         return result;
     }
 
+    public List<TxInputSpecial> getInputsInTxnRange(int startTransactionId, int endTransactionId) throws SQLException {
+        psQueryInputsInTxnRange.get().setInt(1, startTransactionId);
+        psQueryInputsInTxnRange.get().setInt(2, endTransactionId);
+        List<TxInputSpecial> result = new ArrayList<>();
+        try (ResultSet rs = psQueryInputsInTxnRange.get().executeQuery()) {
+            while (rs.next()) {
+                result.add(TxInputSpecial.builder()
+                        .transactionId(rs.getInt(1))
+                        .pos(rs.getShort(2))
+                        .sighashType(rs.getByte(3))
+                        .segwit(rs.getBoolean(4))
+                        .multisig(rs.getBoolean(5))
+                        .build());
+            }
+        }
+        return result;
+    }
+
     @Getter
     @Builder
     @ToString
@@ -39,6 +39,7 @@ import lombok.ToString;
 public class DbQueryOutput {
 
     private static final String SQL_QUERY_OUTPUTS = "SELECT pos,address_id,amount,spent FROM output WHERE transaction_id=?";
+    private static final String SQL_QUERY_OUTPUTS_RANGE = "SELECT transaction_id,pos,address_id,amount,spent FROM output WHERE transaction_id BETWEEN ? AND ?";
     private static final String SQL_QUERY_OUTPUT = "SELECT address_id,amount,spent FROM output WHERE transaction_id=? AND pos=?";
     private static final String SQL_QUERY_OUTPUTS_WITH_INPUT = "SELECT O.pos,O.address_id,O.amount,O.spent"
             + ",I.transaction_id,I.pos"
@@ -51,12 +52,14 @@ public class DbQueryOutput {
             + " INNER JOIN wallet W ON W.wallet_id=A.wallet_id"
             + " WHERE transaction_id BETWEEN ? AND ?";
     private final ThreadLocal<PreparedStatement> psQueryOutputs;
+    private final ThreadLocal<PreparedStatement> psQueryOutputsRange;
     private final ThreadLocal<PreparedStatement> psQueryOutput;
     private final ThreadLocal<PreparedStatement> psQueryOutputsWithInput;
     private final Map<SrcAddressType, ThreadLocal<PreparedStatement>> psQueryOutputsInTxnRange = new HashMap<>();
 
     public DbQueryOutput(DBConnection conn) {
         this.psQueryOutputs = conn.prepareStatement(SQL_QUERY_OUTPUTS);
+        this.psQueryOutputsRange = conn.prepareStatement(SQL_QUERY_OUTPUTS_RANGE);
         this.psQueryOutput = conn.prepareStatement(SQL_QUERY_OUTPUT);
         this.psQueryOutputsWithInput = conn.prepareStatement(SQL_QUERY_OUTPUTS_WITH_INPUT);
         BtcAddress.getRealTypes().forEach(t -> psQueryOutputsInTxnRange.put(t, conn.prepareStatement(DbQueryAddress.updateQueryTableName(SQL_QUERY_OUTPUTS_IN_TXN_RANGE, t))));
@@ -79,6 +82,24 @@ public class DbQueryOutput {
         }
     }
 
+    public List<TxOutput> getOutputsInTxnRange(int startTransactionId, int endTransactionId) throws SQLException {
+        psQueryOutputsRange.get().setInt(1, startTransactionId);
+        psQueryOutputsRange.get().setInt(2, endTransactionId);
+        try (ResultSet rs = psQueryOutputsRange.get().executeQuery()) {
+            List<TxOutput> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(TxOutput.builder()
+                        .transactionId(rs.getInt(1))
+                        .pos(rs.getShort(2))
+                        .addressId(rs.getInt(3))
+                        .amount(rs.getLong(4))
+                        .status(rs.getByte(5))
+                        .build());
+            }
+            return result;
+        }
+    }
+
     public TxOutput getOutput(int transactionId, short pos) throws SQLException {
         psQueryOutput.get().setInt(1, transactionId);
         psQueryOutput.get().setInt(2, pos);
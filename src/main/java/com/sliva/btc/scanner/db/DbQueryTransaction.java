@@ -38,6 +38,7 @@ public class DbQueryTransaction {
     private static final String SQL_FIND_TRANSACTION_ID_BY_TXID = "SELECT transaction_id FROM transaction WHERE txid=?";
     private static final String SQL_FIND_TRANSACTION_BY_ID = "SELECT txid,block_height,nInputs,nOutputs FROM transaction WHERE transaction_id=?";
     private static final String SQL_QUERY_TRANSACTIONS_IN_BLOCK = "SELECT transaction_id,txid,nInputs,nOutputs FROM transaction WHERE block_height=?";
+    private static final String SQL_QUERY_TRANSACTIONS_IN_BLOCK_RANGE = "SELECT transaction_id,txid,block_height,nInputs,nOutputs FROM transaction WHERE block_height BETWEEN ? AND ?";
     private static final String SQL_FIND_LAST_TRANSACTION = "SELECT transaction_id,txid,block_height,nInputs,nOutputs FROM transaction ORDER BY transaction_id DESC LIMIT 1";
     private static final String SQL_QUERY_SPENDING_TRANSACTIONS_BY_ADDRESS
             = "SELECT I.transaction_id FROM input I"
@@ -51,6 +52,7 @@ public class DbQueryTransaction {
     private final ThreadLocal<PreparedStatement> psFindTransactionIdByTxid;
     private final ThreadLocal<PreparedStatement> psFindTransactionById;
     private final ThreadLocal<PreparedStatement> psQueryTransactionsInBlock;
+    private final ThreadLocal<PreparedStatement> psQueryTransactionsInBlockRange;
     private final ThreadLocal<PreparedStatement> psFindLastTransaction;
     private final ThreadLocal<PreparedStatement> psQuerySpeninfTransactionsByAddress;
 
@@ -63,6 +65,7 @@ public class DbQueryTransaction {
         this.psFindTransactionIdByTxid = conn.prepareStatement(SQL_FIND_TRANSACTION_ID_BY_TXID);
         this.psFindTransactionById = conn.prepareStatement(SQL_FIND_TRANSACTION_BY_ID);
         this.psQueryTransactionsInBlock = conn.prepareStatement(SQL_QUERY_TRANSACTIONS_IN_BLOCK);
+        this.psQueryTransactionsInBlockRange = conn.prepareStatement(SQL_QUERY_TRANSACTIONS_IN_BLOCK_RANGE);
         this.psFindLastTransaction = conn.prepareStatement(SQL_FIND_LAST_TRANSACTION);
         this.psQuerySpeninfTransactionsByAddress = conn.prepareStatement(SQL_QUERY_SPENDING_TRANSACTIONS_BY_ADDRESS);
     }
@@ -173,6 +176,24 @@ public class DbQueryTransaction {
         }
     }
 
+    public List<BtcTransaction> getTransactionsInBlockRange(int fromHeight, int toHeight) throws SQLException {
+        psQueryTransactionsInBlockRange.get().setInt(1, fromHeight);
+        psQueryTransactionsInBlockRange.get().setInt(2, toHeight);
+        try (ResultSet rs = psQueryTransactionsInBlockRange.get().executeQuery()) {
+            List<BtcTransaction> result = new ArrayList<>();
+            while (rs.next()) {
+                result.add(BtcTransaction.builder()
+                        .transactionId(rs.getInt(1))
+                        .txid(Utils.id2hex(rs.getBytes(2)))
+                        .blockHeight(rs.getInt(3))
+                        .nInputs(rs.getInt(4))
+                        .nOutputs(rs.getInt(5))
+                        .build());
+            }
+            return result;
+        }
+    }
+
     public BtcTransaction getLastTransaction() throws SQLException {
         try (ResultSet rs = psFindLastTransaction.get().executeQuery()) {
             return rs.next() ? BtcTransaction.builder()
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coordinator of sharded scanning. Height ranges (shards) of every pass are
+ * stored in table scan_shard. Workers claim shards with atomic update, keep
+ * heartbeat while processing and mark them done. Shards of a worker that
+ * stopped sending heartbeat are claimed again by other workers.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbScanShard {
+
+    public static final int PASS_OUTPUTS = 1;
+    public static final int PASS_INPUTS = 2;
+    public static final int STATUS_NEW = 0;
+    public static final int STATUS_RUNNING = 1;
+    public static final int STATUS_DONE = 2;
+    private static final String SQL_ADD = "INSERT INTO scan_shard(shard_id,pass,start_height,end_height,status)VALUES(?,?,?,?," + STATUS_NEW + ")";
+    private static final String SQL_CLAIM = "UPDATE scan_shard SET status=" + STATUS_RUNNING + ",worker=?,heartbeat=NOW()"
+            + " WHERE pass=? AND (status=" + STATUS_NEW + " OR (status=" + STATUS_RUNNING + " AND heartbeat<NOW()-INTERVAL ? SECOND))"
+            + " ORDER BY shard_id LIMIT 1";
+    private static final String SQL_QUERY_CLAIMED = "SELECT shard_id,start_height,end_height FROM scan_shard WHERE pass=? AND worker=? AND status=" + STATUS_RUNNING + " LIMIT 1";
+    private static final String SQL_HEARTBEAT = "UPDATE scan_shard SET heartbeat=NOW() WHERE pass=? AND shard_id=? AND worker=? AND status=" + STATUS_RUNNING;
+    private static final String SQL_COMPLETE = "UPDATE scan_shard SET status=" + STATUS_DONE + ",heartbeat=NOW() WHERE pass=? AND shard_id=? AND worker=? AND status=" + STATUS_RUNNING;
+    private static final String SQL_RELEASE = "UPDATE scan_shard SET status=" + STATUS_NEW + ",worker=NULL WHERE pass=? AND shard_id=? AND worker=? AND status=" + STATUS_RUNNING;
+    private static final String SQL_COUNT_NOT_DONE = "SELECT count(*) FROM scan_shard WHERE pass=? AND status<>" + STATUS_DONE;
+    private static final String SQL_FIND_LAST_SHARD_ID = "SELECT IFNULL(MAX(shard_id),0) FROM scan_shard WHERE pass=?";
+    private static final String SQL_DELETE_TRANSACTIONS = "DELETE FROM transaction WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_OUTPUTS = "DELETE FROM output WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_INPUTS = "DELETE FROM input WHERE transaction_id BETWEEN ? AND ?";
+    private static final String SQL_DELETE_INPUTS_SPECIAL = "DELETE FROM input_special WHERE transaction_id BETWEEN ? AND ?";
+    private final ThreadLocal<PreparedStatement> psAdd;
+    private final ThreadLocal<PreparedStatement> psClaim;
+    private final ThreadLocal<PreparedStatement> psQueryClaimed;
+    private final ThreadLocal<PreparedStatement> psHeartbeat;
+    private final ThreadLocal<PreparedStatement> psComplete;
+    private final ThreadLocal<PreparedStatement> psRelease;
+    private final ThreadLocal<PreparedStatement> psCountNotDone;
+    private final ThreadLocal<PreparedStatement> psFindLastShardId;
+    private final ThreadLocal<PreparedStatement> psDeleteTransactions;
+    private final ThreadLocal<PreparedStatement> psDeleteOutputs;
+    private final ThreadLocal<PreparedStatement> psDeleteInputs;
+    private final ThreadLocal<PreparedStatement> psDeleteInputsSpecial;
+
+    public DbScanShard(DBConnection conn) {
+        this.psAdd = conn.prepareStatement(SQL_ADD);
+        this.psClaim = conn.prepareStatement(SQL_CLAIM);
+        this.psQueryClaimed = conn.prepareStatement(SQL_QUERY_CLAIMED);
+        this.psHeartbeat = conn.prepareStatement(SQL_HEARTBEAT);
+        this.psComplete = conn.prepareStatement(SQL_COMPLETE);
+        this.psRelease = conn.prepareStatement(SQL_RELEASE);
+        this.psCountNotDone = conn.prepareStatement(SQL_COUNT_NOT_DONE);
+        this.psFindLastShardId = conn.prepareStatement(SQL_FIND_LAST_SHARD_ID);
+        this.psDeleteTransactions = conn.prepareStatement(SQL_DELETE_TRANSACTIONS);
+        this.psDeleteOutputs = conn.prepareStatement(SQL_DELETE_OUTPUTS);
+        this.psDeleteInputs = conn.prepareStatement(SQL_DELETE_INPUTS);
+        this.psDeleteInputsSpecial = conn.prepareStatement(SQL_DELETE_INPUTS_SPECIAL);
+    }
+
+    /**
+     * Register shards for height range.
+     *
+     * @param pass pass number
+     * @param fromHeight first block height (inclusive)
+     * @param toHeight last block height (inclusive)
+     * @param shardSize number of blocks in a shard
+     * @return number of shards created
+     * @throws SQLException
+     */
+    public int createShards(int pass, int fromHeight, int toHeight, int shardSize) throws SQLException {
+        int shardId;
+        psFindLastShardId.get().setInt(1, pass);
+        try (ResultSet rs = psFindLastShardId.get().executeQuery()) {
+            shardId = rs.next() ? rs.getInt(1) : 0;
+        }
+        int count = 0;
+        for (int start = fromHeight; start <= toHeight; start += shardSize) {
+            psAdd.get().setInt(1, ++shardId);
+            psAdd.get().setInt(2, pass);
+            psAdd.get().setInt(3, start);
+            psAdd.get().setInt(4, Math.min(start + shardSize - 1, toHeight));
+            psAdd.get().executeUpdate();
+            count++;
+        }
+        log.info("createShards: pass={}, blocks {}-{}, shards={}", pass, fromHeight, toHeight, count);
+        return count;
+    }
+
+    /**
+     * Claim next available shard: a new one or one with expired heartbeat.
+     *
+     * @param pass pass number
+     * @param worker unique worker name
+     * @param timeoutSec heartbeat timeout in seconds
+     * @return claimed shard or null if nothing to claim
+     * @throws SQLException
+     */
+    public Shard claim(int pass, String worker, int timeoutSec) throws SQLException {
+        psClaim.get().setString(1, worker);
+        psClaim.get().setInt(2, pass);
+        psClaim.get().setInt(3, timeoutSec);
+        if (psClaim.get().executeUpdate() == 0) {
+            return null;
+        }
+        psQueryClaimed.get().setInt(1, pass);
+        psQueryClaimed.get().setString(2, worker);
+        try (ResultSet rs = psQueryClaimed.get().executeQuery()) {
+            return rs.next() ? Shard.builder()
+                    .shardId(rs.getInt(1))
+                    .pass(pass)
+                    .startHeight(rs.getInt(2))
+                    .endHeight(rs.getInt(3))
+                    .worker(worker)
+                    .build() : null;
+        }
+    }
+
+    /**
+     * Update heartbeat of the shard.
+     *
+     * @param shard shard
+     * @return false if shard is not owned by the worker anymore
+     * @throws SQLException
+     */
+    public boolean heartbeat(Shard shard) throws SQLException {
+        return execute(psHeartbeat, shard) == 1;
+    }
+
+    /**
+     * Mark shard as done.
+     *
+     * @param shard shard
+     * @return false if shard is not owned by the worker anymore
+     * @throws SQLException
+     */
+    public boolean complete(Shard shard) throws SQLException {
+        return execute(psComplete, shard) == 1;
+    }
+
+    /**
+     * Return claimed shard back to the pool without processing.
+     *
+     * @param shard shard
+     * @throws SQLException
+     */
+    public void release(Shard shard) throws SQLException {
+        execute(psRelease, shard);
+    }
+
+    public int countNotDone(int pass) throws SQLException {
+        psCountNotDone.get().setInt(1, pass);
+        try (ResultSet rs = psCountNotDone.get().executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Delete rows written by previous attempt of the shard pass.
+     *
+     * @param pass pass number
+     * @param fromTransactionId first transaction ID of the shard
+     * @param toTransactionId last transaction ID of the shard
+     * @throws SQLException
+     */
+    public void deleteShardRows(int pass, int fromTransactionId, int toTransactionId) throws SQLException {
+        if (pass == PASS_OUTPUTS) {
+            deleteRange(psDeleteTransactions, fromTransactionId, toTransactionId);
+            deleteRange(psDeleteOutputs, fromTransactionId, toTransactionId);
+        } else {
+            deleteRange(psDeleteInputs, fromTransactionId, toTransactionId);
+            deleteRange(psDeleteInputsSpecial, fromTransactionId, toTransactionId);
+        }
+    }
+
+    private static int execute(ThreadLocal<PreparedStatement> ps, Shard shard) throws SQLException {
+        ps.get().setInt(1, shard.getPass());
+        ps.get().setInt(2, shard.getShardId());
+        ps.get().setString(3, shard.getWorker());
+        return ps.get().executeUpdate();
+    }
+
+    private static void deleteRange(ThreadLocal<PreparedStatement> ps, int fromTransactionId, int toTransactionId) throws SQLException {
+        ps.get().setInt(1, fromTransactionId);
+        ps.get().setInt(2, toTransactionId);
+        ps.get().executeUpdate();
+    }
+
+    @Getter
+    @Builder
+    @ToString
+    public static class Shard {
+
+        private final int shardId;
+        private final int pass;
+        private final int startHeight;
+        private final int endHeight;
+        private final String worker;
+    }
+}
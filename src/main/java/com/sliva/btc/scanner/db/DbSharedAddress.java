@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.src.SrcAddress;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.spongycastle.util.encoders.Hex;
+
+/**
+ * Address resolution safe to use from several processes writing the same DB.
+ * New address IDs are taken from chunks allocated in table address_id_alloc,
+ * addresses are inserted right away with INSERT IGNORE and re-queried if
+ * another process inserted the same address first.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class DbSharedAddress {
+
+    private static final int ID_CHUNK_SIZE = 1000;
+    private static final int MAX_CACHE_SIZE = 100000;
+    private static final String SQL_INIT_ALLOC = "INSERT IGNORE INTO address_id_alloc(address_type,next_id)VALUES(?,?)";
+    private static final String SQL_ALLOC = "UPDATE address_id_alloc SET next_id=LAST_INSERT_ID(next_id+?) WHERE address_type=?";
+    private static final String SQL_LAST_INSERT_ID = "SELECT LAST_INSERT_ID()";
+    private static final String SQL_ADD = "INSERT IGNORE INTO address_table_name(address_id,address,wallet_id)VALUES(?,?,0)";
+    private final ThreadLocal<PreparedStatement> psInitAlloc;
+    private final ThreadLocal<PreparedStatement> psAlloc;
+    private final ThreadLocal<PreparedStatement> psLastInsertId;
+    private final Map<SrcAddressType, TypeData> types = new HashMap<>();
+
+    public DbSharedAddress(DBConnection conn) {
+        this.psInitAlloc = conn.prepareStatement(SQL_INIT_ALLOC);
+        this.psAlloc = conn.prepareStatement(SQL_ALLOC);
+        this.psLastInsertId = conn.prepareStatement(SQL_LAST_INSERT_ID);
+        BtcAddress.getRealTypes().forEach(t -> types.put(t, new TypeData(conn, t)));
+    }
+
+    /**
+     * Create allocator records for all address types if not exist yet. The
+     * first allocated ID follows the last address ID in DB.
+     *
+     * @throws SQLException
+     */
+    public void initAllocator() throws SQLException {
+        for (Map.Entry<SrcAddressType, TypeData> e : types.entrySet()) {
+            psInitAlloc.get().setString(1, e.getKey().name());
+            psInitAlloc.get().setInt(2, e.getValue().queryAddress.getLastAddressId() + 1);
+            psInitAlloc.get().executeUpdate();
+        }
+    }
+
+    public int getOrAdd(SrcAddress address) throws SQLException {
+        TypeData data = types.get(address.getType());
+        if (data == null) {
+            throw new IllegalArgumentException("Bad address type: " + address.getType());
+        }
+        byte[] hash = address.getHash();
+        String hexAddr = Hex.toHexString(hash);
+        synchronized (data.cache) {
+            Integer id = data.cache.get(hexAddr);
+            if (id != null) {
+                return id;
+            }
+        }
+        BtcAddress a = data.queryAddress.findByAddress(hash);
+        int addressId;
+        if (a != null) {
+            addressId = a.getAddressId();
+        } else {
+            addressId = data.nextId();
+            data.psAdd.get().setInt(1, addressId);
+            data.psAdd.get().setBytes(2, hash);
+            if (data.psAdd.get().executeUpdate() == 0) {
+                //added by another worker
+                a = data.queryAddress.findByAddress(hash);
+                if (a == null) {
+                    throw new IllegalStateException("Address not found after insert conflict: " + hexAddr);
+                }
+                addressId = a.getAddressId();
+            }
+        }
+        synchronized (data.cache) {
+            data.cache.put(hexAddr, addressId);
+        }
+        return addressId;
+    }
+
+    private int allocateChunk(SrcAddressType type) throws SQLException {
+        psAlloc.get().setInt(1, ID_CHUNK_SIZE);
+        psAlloc.get().setString(2, type.name());
+        if (psAlloc.get().executeUpdate() == 0) {
+            throw new IllegalStateException("Address ID allocator is not initialized for type " + type);
+        }
+        try (ResultSet rs = psLastInsertId.get().executeQuery()) {
+            rs.next();
+            return rs.getInt(1) - ID_CHUNK_SIZE;
+        }
+    }
+
+    private class TypeData {
+
+        private final SrcAddressType type;
+        private final DbQueryAddress queryAddress;
+        private final ThreadLocal<PreparedStatement> psAdd;
+        private final Map<String, Integer> cache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > MAX_CACHE_SIZE;
+            }
+        };
+        private int nextId;
+        private int endId;
+
+        TypeData(DBConnection conn, SrcAddressType type) {
+            this.type = type;
+            this.queryAddress = new DbQueryAddress(conn, type);
+            this.psAdd = conn.prepareStatement(DbQueryAddress.updateQueryTableName(SQL_ADD, type));
+        }
+
+        synchronized int nextId() throws SQLException {
+            if (nextId >= endId) {
+                nextId = allocateChunk(type);
+                endId = nextId + ID_CHUNK_SIZE;
+            }
+            return nextId++;
+        }
+    }
+}
@@ -15,60 +15,114 @@
  */
 package com.sliva.btc.scanner.db;
 
-import com.sliva.btc.scanner.util.Utils;
-import java.sql.SQLException;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
 import org.apache.commons.lang.StringUtils;
 
 /**
+ * Base class of queued DB updaters. Queued inserts are executed by a pool of
+ * writer threads. Writers sleep until an updater signals that its queue has
+ * records to insert, then pick the updater with the highest priority (parent
+ * tables first) and the fullest queue among tables that have not reached
+ * their concurrency limit.
+ *
+ * Inserts of one updater run under the read lock of {@link #execLock}, so
+ * several batches of the same table can be inserted at the same time.
+ * Updates and deletes take the write lock and never overlap with inserts.
+ *
+ * Batch size of every table is tuned by its {@link BatchSizeController}
+ * from measured batch latency and rows/sec. Writers pick an updater once its
+ * queue reaches the flush threshold or rows have been waiting long enough.
+ *
+ * Queued records of all updaters share one memory budget. Each updater
+ * reports estimated heap footprint of its queue. Producers block in
+ * {@link #waitFullQueue} while the total is over the budget, and writers
+ * drain the largest queues first once the total passes
+ * {@link #BUDGET_PRESSURE_PERCENT} of the budget.
+ *
+ * Updaters of partitioned tables run one batch per partition at a time
+ * instead of the table concurrency limit, see {@link #getConcurrency()}.
+ *
+ * In group commit mode (InnoDB) writer threads stay idle. Queues are
+ * flushed by the caller thread inside one DB transaction per group of blocks,
+ * see {@link #isGroupCommit()}.
  *
  * @author Sliva Co
  */
 @Slf4j
 public abstract class DbUpdate implements AutoCloseable {
 
-    private static final int MYSQL_BULK_INSERT_BUFFER_SIZE = 256 * 1024 * 1024;
-    private static final int UPDATER_THREADS = 2;
-    private static final ExecuteDbUpdate thread = new ExecuteDbUpdate();
+    public static final int PRIORITY_PARENT = 0;
+    public static final int PRIORITY_DEFAULT = 5;
+    public static final int PRIORITY_CHILD = 10;
+    private static final int DEFAULT_WRITER_THREADS = 4;
+    private static final int DEFAULT_TABLE_CONCURRENCY = 1;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 10000;
+    private static final boolean DEFAULT_LOAD_DATA = false;
+    private static final String ROW_SINK_MYSQL = "mysql";
+    private static final String ROW_SINK_NULL = "null";
+    private static final String ROW_SINK_FILE = "file:";
+    private static final long WRITER_IDLE_WAIT_MSEC = 1000;
+    private static final long DEFAULT_QUEUE_MEMORY_MB = 2048;
+    private static final int BUDGET_PRESSURE_PERCENT = 75;
+    private static final long QUEUE_WAIT_MSEC = 100;
+    private static final long QUEUE_WAIT_WARN_MSEC = 30000;
     private static final Collection<DbUpdate> dbUpdateInstances = new ArrayList<>();
-    private static final Set<DbUpdate> executingInstances = new HashSet<>();
-    private static final ExecutorService executor = new ThreadPoolExecutor(UPDATER_THREADS, UPDATER_THREADS,
-            0L, TimeUnit.MILLISECONDS,
-            new LinkedBlockingQueue<Runnable>(1));
+    private static final Map<String, Integer> tableConcurrency = new ConcurrentHashMap<>();
+    private static final Map<String, BatchSizeController> batchSizeControllers = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> runningByTable = new HashMap<>();
+    private static final ReentrantLock schedulerLock = new ReentrantLock();
+    private static final Condition workAvailable = schedulerLock.newCondition();
+    private static final Condition spaceAvailable = schedulerLock.newCondition();
+    private static volatile DbUpdate[] updaters = new DbUpdate[0];
+    private static volatile long maxQueueBytes = DEFAULT_QUEUE_MEMORY_MB * 1024 * 1024;
+    private static volatile int groupCommitBlocks = 0;
     private static final Map<String, ExecStats> execStats = new HashMap<>();
+    private static final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private static final AtomicLong totalWriteNanos = new AtomicLong();
+    private static final AtomicLong failedBatches = new AtomicLong();
+    private static int writerThreads = DEFAULT_WRITER_THREADS;
+    private static int liveWriters;
+    private static int runningTotal;
+    private static volatile int idleWriters;
     private static long startTimeMsec;
     private final DBConnection conn;
+    private volatile BatchSizeController batchSizeController;
     private boolean isClosed = false;
-    protected final Object execSync = new Object();
-
-    static {
-        thread.start();
-    }
+    protected final ReadWriteLock execLock = new ReentrantReadWriteLock();
 
     @SuppressWarnings("LeakingThisInConstructor")
     public DbUpdate(DBConnection conn) {
         this.conn = conn;
+        schedulerLock.lock();
         try {
-            conn.getConnection().createStatement().execute("SET bulk_insert_buffer_size=" + MYSQL_BULK_INSERT_BUFFER_SIZE);
-        } catch (SQLException e) {
-            log.error(e.getMessage(), e);
-        }
-        synchronized (dbUpdateInstances) {
-            dbUpdateInstances.add(this);
+            synchronized (dbUpdateInstances) {
+                dbUpdateInstances.add(this);
+                updaters = dbUpdateInstances.toArray(new DbUpdate[dbUpdateInstances.size()]);
+            }
+            if (liveWriters == 0) {
+                startWriters();
+            }
+        } finally {
+            schedulerLock.unlock();
         }
     }
 
@@ -84,10 +138,22 @@ public abstract class DbUpdate implements AutoCloseable {
         this.isClosed = isClosed;
     }
 
+    /**
+     * Insert all queued records on the calling thread. If nothing can be
+     * taken while records are still pending (their partitions are busy with
+     * batches of writer threads), waits for writers to finish a batch and
+     * tries again, so all records are stored when the method returns.
+     */
     public void flushCache() {
         log.trace("flushCache() Called");
         DBUpdateCall c = new DBUpdateCall(this);
-        while (c.call() != 0) {
+        for (;;) {
+            if (c.call() == 0) {
+                if (!hasPendingInserts()) {
+                    break;
+                }
+                awaitBatchDone();
+            }
         }
     }
 
@@ -96,6 +162,7 @@ public abstract class DbUpdate implements AutoCloseable {
         log.debug("{}.close()", this.getTableName());
         setIsClosed(true);
         flushCache();
+        signalWriters();
         log.trace("{}.close() FINISHED", this.getTableName());
     }
 
@@ -107,9 +174,398 @@ public abstract class DbUpdate implements AutoCloseable {
 
     public abstract int executeInserts();
 
+    /**
+     * Check if there are queued records or batches being inserted by writer
+     * threads that {@link #executeInserts()} can't wait for, i.e. batches
+     * holding partition lanes.
+     *
+     * @return true if {@link #flushCache()} has to wait
+     */
+    protected boolean hasPendingInserts() {
+        return false;
+    }
+
+    /**
+     * Estimated heap used by records queued for insert. Counted against the
+     * shared queue memory budget.
+     *
+     * @return size in bytes
+     */
+    public long getQueueFootprint() {
+        return 0;
+    }
+
+    /**
+     * Scheduling priority of the updater. Lower value is executed first, so
+     * parent records (blocks, transactions, addresses) get to DB before
+     * records referencing them.
+     *
+     * @return priority
+     */
+    public int getPriority() {
+        return PRIORITY_DEFAULT;
+    }
+
+    /**
+     * Upper bound of insert batch size of the updater.
+     *
+     * @return number of rows
+     */
+    protected int getMaxBatchSize() {
+        return DEFAULT_MAX_BATCH_SIZE;
+    }
+
+    /**
+     * Batch size controller of the updater's table, shared by all updaters of
+     * the same table.
+     *
+     * @return controller
+     */
+    protected BatchSizeController getBatchSizeController() {
+        BatchSizeController result = batchSizeController;
+        if (result == null) {
+            batchSizeController = result = batchSizeControllers.computeIfAbsent(getTableName(), t -> new BatchSizeController(t, getMaxBatchSize()));
+        }
+        return result;
+    }
+
+    /**
+     * Check if queue of the given size is worth a batch now.
+     *
+     * @param queued number of queued rows
+     * @return true if writer should start a batch
+     */
+    protected boolean isFlushDue(int queued) {
+        return getBatchSizeController().isFlushDue(queued);
+    }
+
+    /**
+     * Number of rows to take for the next insert batch.
+     *
+     * @return batch size
+     */
+    protected int getBatchSize() {
+        return getBatchSizeController().getBatchSize();
+    }
+
+    /**
+     * Maximum number of batches of the updater executed at the same time.
+     * Updaters of partitioned tables override it to run a batch per
+     * partition, {@link #needExecuteInserts()} then reports only queues with
+     * an idle partition.
+     *
+     * @return number of concurrent batches
+     */
+    protected int getConcurrency() {
+        return tableConcurrency.getOrDefault(getTableName(), DEFAULT_TABLE_CONCURRENCY);
+    }
+
+    /**
+     * Wake up an idle writer if this updater has records to insert. Called by
+     * subclasses after adding records to the insert queue.
+     */
+    protected void signalUpdate() {
+        if (idleWriters > 0 && needExecuteInserts()) {
+            signalWriters();
+        }
+    }
+
+    private static void signalWriters() {
+        schedulerLock.lock();
+        try {
+            workAvailable.signalAll();
+        } finally {
+            schedulerLock.unlock();
+        }
+    }
+
+    /**
+     * Set number of writer threads. Applied when writers are started next
+     * time, i.e. before the first updater is created.
+     *
+     * @param threads number of threads
+     */
+    public static void setWriterThreads(int threads) {
+        writerThreads = threads;
+    }
+
+    /**
+     * Set maximum number of batches of the table inserted at the same time.
+     *
+     * @param tableName table name
+     * @param concurrency number of concurrent writers
+     */
+    public static void setTableConcurrency(String tableName, int concurrency) {
+        tableConcurrency.put(tableName, concurrency);
+    }
+
+    /**
+     * Set memory budget shared by insert queues of all updaters.
+     *
+     * @param bytes budget in bytes, 0 to disable
+     */
+    public static void setMaxQueueBytes(long bytes) {
+        maxQueueBytes = bytes;
+    }
+
+    /**
+     * Estimated heap used by insert queues of all updaters.
+     *
+     * @return size in bytes
+     */
+    public static long getTotalQueueFootprint() {
+        long result = 0;
+        for (DbUpdate dbUpdate : updaters) {
+            result += dbUpdate.getQueueFootprint();
+        }
+        return result;
+    }
+
+    /**
+     * Enable group commit mode. Writer threads stop executing inserts and
+     * producers are not blocked on full queues. Caller commits every
+     * {@link #getGroupCommitBlocks()} blocks, or earlier if
+     * {@link #isGroupCommitDue()}.
+     *
+     * @param blocks number of blocks per DB transaction, 0 to disable
+     */
+    public static void setGroupCommitBlocks(int blocks) {
+        groupCommitBlocks = blocks;
+        DBConnection.setReadUncommitted(blocks > 0);
+    }
+
+    public static int getGroupCommitBlocks() {
+        return groupCommitBlocks;
+    }
+
+    public static boolean isGroupCommit() {
+        return groupCommitBlocks > 0;
+    }
+
+    /**
+     * Check if queued records reached the memory budget and the group has to
+     * be committed before it gets {@link #getGroupCommitBlocks()} blocks.
+     *
+     * @return true if group has to be committed
+     */
+    public static boolean isGroupCommitDue() {
+        return maxQueueBytes > 0 && getTotalQueueFootprint() >= maxQueueBytes / 100 * BUDGET_PRESSURE_PERCENT;
+    }
+
+    public static void applyArguments(CommandLine cmd) {
+        setGroupCommitBlocks(Integer.parseInt(cmd.getOptionValue("db-group-commit-blocks", "0")));
+        setMaxQueueBytes(Long.parseLong(cmd.getOptionValue("db-queue-memory-mb", Long.toString(DEFAULT_QUEUE_MEMORY_MB))) * 1024 * 1024);
+        setWriterThreads(Integer.parseInt(cmd.getOptionValue("db-writer-threads", Integer.toString(DEFAULT_WRITER_THREADS))));
+        BatchSizeController.setAdaptive("true".equalsIgnoreCase(cmd.getOptionValue("db-adaptive-batch", String.valueOf(BatchSizeController.DEFAULT_ADAPTIVE))));
+        BatchSizeController.setTargetLatencyMsec(Long.parseLong(cmd.getOptionValue("db-batch-target-ms", Long.toString(BatchSizeController.DEFAULT_TARGET_LATENCY_MSEC))));
+        BatchSizeController.setMaxFlushDelayMsec(Long.parseLong(cmd.getOptionValue("db-batch-max-delay-ms", Long.toString(BatchSizeController.DEFAULT_MAX_FLUSH_DELAY_MSEC))));
+        BatchExecutor.setUseLoadData("true".equalsIgnoreCase(cmd.getOptionValue("db-load-data", String.valueOf(DEFAULT_LOAD_DATA))));
+        if (cmd.hasOption("db-row-sink")) {
+            BatchExecutor.setRowSink(createRowSink(cmd.getOptionValue("db-row-sink")));
+        }
+        if (cmd.hasOption("db-table-writers")) {
+            for (String s : cmd.getOptionValue("db-table-writers").split(",")) {
+                String[] a = s.split("=");
+                if (a.length != 2) {
+                    throw new IllegalArgumentException("Bad db-table-writers value: " + s);
+                }
+                setTableConcurrency(a[0].trim(), Integer.parseInt(a[1].trim()));
+            }
+        }
+    }
+
+    public static Options addOptions(Options options) {
+        options.addOption(null, "db-queue-memory-mb", true, "Memory budget in MB shared by all DB insert queues. 0 - no limit. Default is " + DEFAULT_QUEUE_MEMORY_MB);
+        options.addOption(null, "db-group-commit-blocks", true, "InnoDB only. Write all rows of this number of blocks in one DB transaction, committed at block boundary."
+                + " Writer threads are not used in this mode. 0 - autocommit batches (MyISAM). Default is 0");
+        options.addOption(null, "db-writer-threads", true, "Number of threads executing queued DB inserts. Default is " + DEFAULT_WRITER_THREADS);
+        options.addOption(null, "db-table-writers", true, "Maximum number of concurrent insert batches per table, i.e. 'output=2,input=2'. Default is " + DEFAULT_TABLE_CONCURRENCY);
+        options.addOption(null, "db-adaptive-batch", true, "Tune insert batch size of every table from measured latency and rows/sec,"
+                + " start a batch when queue reaches a fraction of it. false - fixed maximum batch size, flush any queued rows. Default is " + BatchSizeController.DEFAULT_ADAPTIVE);
+        options.addOption(null, "db-batch-target-ms", true, "Target execution time of one insert batch for adaptive batch size. Default is " + BatchSizeController.DEFAULT_TARGET_LATENCY_MSEC);
+        options.addOption(null, "db-batch-max-delay-ms", true, "Maximum time queued rows wait for a batch to fill up with adaptive batch size. Default is " + BatchSizeController.DEFAULT_MAX_FLUSH_DELAY_MSEC);
+        options.addOption(null, "db-load-data", true, "Insert queued records with LOAD DATA LOCAL INFILE streamed from memory instead of multi-row INSERT."
+                + " Requires allowLoadLocalInfile=true in db-url and local_infile enabled on server. Default is " + DEFAULT_LOAD_DATA);
+        options.addOption(null, "db-row-sink", true, "Destination of inserted rows: '" + ROW_SINK_MYSQL + "' (default), '" + ROW_SINK_NULL
+                + "' - discard rows to measure parsing without DB writes, '" + ROW_SINK_FILE + "<dir>' - append rows to <dir>/<table>.data for staged load."
+                + " Updates of written rows go to the sink as staged rows applied by the load script, lookups and deletes still use DB, so safe-run and follow are not supported."
+                + " Rows written to null or file sink are resolved from caches only,"
+                + " caches are not bounded then - run on a fresh DB and limit number of blocks to fit in memory");
+        return options;
+    }
+
+    private static RowSink createRowSink(String value) {
+        if (ROW_SINK_MYSQL.equalsIgnoreCase(value)) {
+            return new MysqlRowSink();
+        } else if (ROW_SINK_NULL.equalsIgnoreCase(value)) {
+            return new NullRowSink();
+        } else if (value.startsWith(ROW_SINK_FILE)) {
+            try {
+                return new FileRowSink(new File(value.substring(ROW_SINK_FILE.length())));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Bad db-row-sink value: " + value, e);
+            }
+        }
+        throw new IllegalArgumentException("Bad db-row-sink value: " + value);
+    }
+
     protected static void waitFullQueue(Collection queue, int maxQueueLength) {
-        while (queue.size() >= maxQueueLength) {
-            Utils.sleep(10);
+        waitFullQueue(queue::size, maxQueueLength);
+    }
+
+    /**
+     * Block the caller while the queue is full or insert queues of all
+     * updaters are over the memory budget. Writers signal after every
+     * executed batch.
+     *
+     * @param queueSize current size of the caller's queue
+     * @param maxQueueLength maximum size of the caller's queue
+     */
+    protected static void waitFullQueue(IntSupplier queueSize, int maxQueueLength) {
+        if (isGroupCommit()) {
+            //queues are drained at group commit only, size is limited by isGroupCommitDue()
+            return;
+        }
+        if (queueSize.getAsInt() >= maxQueueLength || isOverBudget()) {
+            long s = System.nanoTime();
+            long lastWarn = s;
+            schedulerLock.lock();
+            try {
+                workAvailable.signalAll();
+                while (queueSize.getAsInt() >= maxQueueLength || isOverBudget()) {
+                    //timeout covers queue changes that are not signalled, i.e. records removed by delete()
+                    spaceAvailable.await(QUEUE_WAIT_MSEC, TimeUnit.MILLISECONDS);
+                    if (System.nanoTime() - lastWarn > TimeUnit.MILLISECONDS.toNanos(QUEUE_WAIT_WARN_MSEC)) {
+                        lastWarn = System.nanoTime();
+                        log.warn("{}: Waiting for DB queues for {} sec. Queued: {} MB of {} MB", Thread.currentThread().getName(),
+                                TimeUnit.NANOSECONDS.toSeconds(lastWarn - s), getTotalQueueFootprint() >> 20, maxQueueBytes >> 20);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                schedulerLock.unlock();
+            }
+            totalQueueWaitNanos.addAndGet(System.nanoTime() - s);
+        }
+    }
+
+    private static boolean isOverBudget() {
+        return maxQueueBytes > 0 && getTotalQueueFootprint() >= maxQueueBytes;
+    }
+
+    /**
+     * Wait until batches taken by writer threads are executed. Together with
+     * flushCache() of all updaters makes sure queued records are stored in
+     * DB.
+     *
+     * @throws InterruptedException
+     */
+    public static void awaitRunningBatches() throws InterruptedException {
+        schedulerLock.lock();
+        try {
+            while (runningTotal > 0) {
+                spaceAvailable.await(QUEUE_WAIT_MSEC, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            schedulerLock.unlock();
+        }
+    }
+
+    private static void awaitBatchDone() {
+        schedulerLock.lock();
+        try {
+            //timeout covers a batch finished between the check and the wait
+            spaceAvailable.await(QUEUE_WAIT_MSEC, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for DB writers", e);
+        } finally {
+            schedulerLock.unlock();
+        }
+    }
+
+    /**
+     * Total time callers were blocked on full insert queues, over all
+     * updaters and threads.
+     *
+     * @return time in nanoseconds
+     */
+    public static long getTotalQueueWaitNanos() {
+        return totalQueueWaitNanos.get();
+    }
+
+    /**
+     * Total time spent executing DB inserts by updater threads.
+     *
+     * @return time in nanoseconds
+     */
+    public static long getTotalWriteNanos() {
+        return totalWriteNanos.get();
+    }
+
+    /**
+     * Number of insert failures so far: batches aborted by an exception plus
+     * records dropped by {@link BatchExecutor}. Compare values taken before
+     * and after a unit of work (after {@link #awaitRunningBatches()}) to find
+     * out if all of its records were stored.
+     *
+     * @return number of failures
+     */
+    public static long getFailureCount() {
+        return failedBatches.get() + BatchExecutor.getFailedRecords();
+    }
+
+    private static void startWriters() {
+        log.info("Starting {} DB writer threads", writerThreads);
+        startTimeMsec = System.currentTimeMillis();
+        for (int i = 0; i < writerThreads; i++) {
+            new DbUpdateWriter(i).start();
+            liveWriters++;
+        }
+    }
+
+    /**
+     * Pick next updater to execute. Must be called under schedulerLock.
+     *
+     * @return updater or null if there is nothing to execute
+     */
+    private static DbUpdate pickNext() {
+        if (isGroupCommit()) {
+            return null;
+        }
+        boolean underPressure = maxQueueBytes > 0 && getTotalQueueFootprint() >= maxQueueBytes / 100 * BUDGET_PRESSURE_PERCENT;
+        DbUpdate result = null;
+        int resultFillPercent = 0;
+        long resultFootprint = 0;
+        synchronized (dbUpdateInstances) {
+            for (DbUpdate dbUpdate : dbUpdateInstances) {
+                if (!dbUpdate.isClosed && dbUpdate.needExecuteInserts()
+                        && runningByTable.getOrDefault(dbUpdate.getTableName(), 0) < dbUpdate.getConcurrency()) {
+                    if (underPressure) {
+                        //drain largest consumer of the memory budget first
+                        long footprint = dbUpdate.getQueueFootprint();
+                        if (result == null || footprint > resultFootprint) {
+                            result = dbUpdate;
+                            resultFootprint = footprint;
+                        }
+                        continue;
+                    }
+                    int fillPercent = dbUpdate.getCacheFillPercent();
+                    if (result == null || dbUpdate.getPriority() < result.getPriority()
+                            || (dbUpdate.getPriority() == result.getPriority() && fillPercent > resultFillPercent)) {
+                        result = dbUpdate;
+                        resultFillPercent = fillPercent;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isAllClosed() {
+        synchronized (dbUpdateInstances) {
+            return dbUpdateInstances.stream().allMatch(u -> u.isClosed);
         }
     }
 
@@ -130,85 +586,95 @@ public abstract class DbUpdate implements AutoCloseable {
             synchronized (execStats) {
                 execStats.entrySet().forEach((e) -> {
                     ExecStats s = e.getValue();
-                    log.debug("{}\t Executions: {},\t Records: {},\t speed: {} rec/sec,\t runtime: {} sec.\t ({}%)",
+                    BatchSizeController bsc = batchSizeControllers.get(e.getKey());
+                    log.debug("{}\t Executions: {},\t Records: {},\t speed: {} rec/sec,\t runtime: {} sec.\t ({}%),\t batch: {}",
                             StringUtils.rightPad(e.getKey(), 16),
                             s.getExecutions(),
                             s.getTotalRecords(),
                             s.getTotalRecords() / runtimeInSec,
                             TimeUnit.NANOSECONDS.toSeconds(s.getTotalRuntime()),
-                            TimeUnit.NANOSECONDS.toSeconds(s.getTotalRuntime() * 100 / (runtimeInSec * UPDATER_THREADS))
+                            TimeUnit.NANOSECONDS.toSeconds(s.getTotalRuntime() * 100 / (runtimeInSec * writerThreads)),
+                            bsc == null ? "-" : bsc.getBatchSize()
                     );
                 });
             }
+            log.debug("Queued records: {} MB of {} MB", getTotalQueueFootprint() >> 20, maxQueueBytes >> 20);
         }
     }
     private static long lastPrintedTime = System.currentTimeMillis();
 
-    private static final class ExecuteDbUpdate extends Thread {
+    private static final class DbUpdateWriter extends Thread {
 
-        public ExecuteDbUpdate() {
-            super("ExecuteDbUpdate");
+        public DbUpdateWriter(int n) {
+            super("DbUpdateWriter-" + n);
         }
 
         @Override
-        @SuppressWarnings({"SleepWhileInLoop"})
+        @SuppressWarnings("UseSpecificCatch")
         public void run() {
-            Utils.sleep(1000);
-            log.info(getName() + ": STARTED");
-            startTimeMsec = System.currentTimeMillis();
+            log.debug(getName() + ": STARTED");
+            DBConnection.setUnboundedThread();
+            boolean exited = false;
             try {
                 for (;;) {
-                    boolean executed = false;
+                    DbUpdate dbUpdate;
+                    schedulerLock.lock();
                     try {
-                        boolean allClosed = true;
-                        int maxFillPercent = 0;
-                        DbUpdate dbUpdateMaxFilled = null;
-                        synchronized (dbUpdateInstances) {
-                            for (DbUpdate dbUpdate : dbUpdateInstances) {
-                                if (!dbUpdate.isClosed) {
-                                    allClosed = false;
-                                    if (!executingInstances.contains(dbUpdate) && dbUpdate.needExecuteInserts()) {
-                                        int fillPercent = dbUpdate.getCacheFillPercent();
-                                        if (fillPercent > maxFillPercent) {
-                                            maxFillPercent = fillPercent;
-                                            dbUpdateMaxFilled = dbUpdate;
-                                        }
-                                    }
-                                }
+                        for (;;) {
+                            dbUpdate = pickNext();
+                            if (dbUpdate != null) {
+                                break;
                             }
-                        }
-                        if (allClosed && dbUpdateMaxFilled == null && executingInstances.isEmpty()) {
-                            log.info("ExecuteDbUpdate: All updaters are closed - exiting this thread");
-                            break;
-                        }
-                        if (dbUpdateMaxFilled != null) {
-                            for (;;) {
-                                try {
-                                    synchronized (executingInstances) {
-                                        log.trace("{}.Submitting ", dbUpdateMaxFilled.getClass().getSimpleName());
-                                        executor.submit(new DBUpdateCall(dbUpdateMaxFilled));
-                                        log.trace("{}.Submitted ", dbUpdateMaxFilled.getClass().getSimpleName());
-                                        executingInstances.add(dbUpdateMaxFilled);
-                                    }
-                                    break;
-                                } catch (RejectedExecutionException e) {
-                                    Utils.sleep(500);
-                                }
+                            if (runningTotal == 0 && isAllClosed()) {
+                                log.debug("{}: All updaters are closed - exiting this thread", getName());
+                                //under the lock, so a new updater sees it and starts new writers
+                                liveWriters--;
+                                exited = true;
+                                return;
+                            }
+                            idleWriters++;
+                            try {
+                                //timeout covers queue changes that are not signalled, i.e. records re-queued by update()
+                                workAvailable.await(WRITER_IDLE_WAIT_MSEC, TimeUnit.MILLISECONDS);
+                            } finally {
+                                idleWriters--;
                             }
-                            executed = true;
                         }
+                        runningByTable.merge(dbUpdate.getTableName(), 1, Integer::sum);
+                        runningTotal++;
+                    } finally {
+                        schedulerLock.unlock();
+                    }
+                    try {
+                        new DBUpdateCall(dbUpdate).call();
                         printStats();
                     } catch (Exception e) {
                         log.error(e.getMessage(), e);
                     } finally {
-                        if (!executed) {
-                            Utils.sleep(10);
+                        dbUpdate.getConn().releaseConnection();
+                        schedulerLock.lock();
+                        try {
+                            runningByTable.merge(dbUpdate.getTableName(), -1, Integer::sum);
+                            runningTotal--;
+                            workAvailable.signalAll();
+                            spaceAvailable.signalAll();
+                        } finally {
+                            schedulerLock.unlock();
                         }
                     }
                 }
+            } catch (InterruptedException e) {
+                log.info("{}: Interrupted", getName());
             } finally {
-                executor.shutdown();
-                log.info(getName() + ": FINISHED");
+                if (!exited) {
+                    schedulerLock.lock();
+                    try {
+                        liveWriters--;
+                    } finally {
+                        schedulerLock.unlock();
+                    }
+                }
+                log.debug(getName() + ": FINISHED");
             }
         }
     }
@@ -223,23 +689,20 @@ public abstract class DbUpdate implements AutoCloseable {
         @SuppressWarnings("UseSpecificCatch")
         public Integer call() {
             int nRecs = 0;
+            log.trace("{}.executeInserts(): STARTED", dbUpdate.getTableName());
+            long s = System.nanoTime();
             try {
-                log.trace("{}.executeInserts(): STARTED", dbUpdate.getTableName());
-                long s = System.nanoTime();
-                try {
-                    nRecs = dbUpdate.executeInserts();
-                } catch (Exception e) {
-                    log.error(e.getMessage(), e);
-                } finally {
-                    long runtime = System.nanoTime() - s;
-                    updateRuntimeMap(dbUpdate.getTableName(), nRecs, runtime);
-                    if (nRecs > 0) {
-                        log.debug("{}.executeInserts(): Records inserted: {} runtime {} ms.", dbUpdate.getTableName(), nRecs, TimeUnit.NANOSECONDS.toMillis(runtime));
-                    }
-                }
+                nRecs = dbUpdate.executeInserts();
+            } catch (Exception e) {
+                failedBatches.incrementAndGet();
+                log.error(e.getMessage(), e);
             } finally {
-                synchronized (executingInstances) {
-                    executingInstances.remove(dbUpdate);
+                long runtime = System.nanoTime() - s;
+                dbUpdate.getBatchSizeController().onBatch(nRecs, runtime);
+                totalWriteNanos.addAndGet(runtime);
+                updateRuntimeMap(dbUpdate.getTableName(), nRecs, runtime);
+                if (nRecs > 0) {
+                    log.debug("{}.executeInserts(): Records inserted: {} runtime {} ms.", dbUpdate.getTableName(), nRecs, TimeUnit.NANOSECONDS.toMillis(runtime));
                 }
             }
             return nRecs;
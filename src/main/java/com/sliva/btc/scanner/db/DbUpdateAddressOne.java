@@ -21,9 +21,11 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import lombok.Getter;
@@ -38,14 +40,14 @@ import org.spongycastle.util.encoders.Hex;
 @Slf4j
 public class DbUpdateAddressOne extends DbUpdate {
 
-    public static int MIN_BATCH_SIZE = 1;
     public static int MAX_BATCH_SIZE = 40000;
     public static int MAX_INSERT_QUEUE_LENGTH = 1000000;
+    //approximate heap bytes per queued record: address record, queue entry and two index entries
+    private static final int QUEUED_RECORD_BYTES = 300;
     private static int MAX_UPDATE_QUEUE_LENGTH = 10000;
-    private static final String SQL_ADD = "INSERT INTO address_table_name(address_id,address,wallet_id)VALUES(?,?,?)";
+    private static final String SQL_ADD_COLUMNS = "address_id,address,wallet_id";
     private static final String SQL_UPDATE_WALLET = "UPDATE address_table_name SET wallet_id=? WHERE address_id=?";
     private final SrcAddressType addressType;
-    private final ThreadLocal<PreparedStatement> psAdd;
     private final ThreadLocal<PreparedStatement> psUpdateWallet;
     private final CacheData cacheData;
 
@@ -56,7 +58,6 @@ public class DbUpdateAddressOne extends DbUpdate {
     public DbUpdateAddressOne(DBConnection conn, SrcAddressType addressType, CacheData cacheData) {
         super(conn);
         this.addressType = addressType;
-        this.psAdd = conn.prepareStatement(fixTableName(SQL_ADD));
         this.psUpdateWallet = conn.prepareStatement(fixTableName(SQL_UPDATE_WALLET));
         this.cacheData = cacheData;
     }
@@ -70,6 +71,21 @@ public class DbUpdateAddressOne extends DbUpdate {
         return "address_" + addressType.name().toLowerCase();
     }
 
+    @Override
+    public int getPriority() {
+        return PRIORITY_PARENT;
+    }
+
+    @Override
+    public long getQueueFootprint() {
+        return cacheData == null ? 0 : (long) cacheData.addQueue.size() * QUEUED_RECORD_BYTES;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
     @Override
     public int getCacheFillPercent() {
         return cacheData == null ? 0 : cacheData.addQueue.size() * 100 / MAX_INSERT_QUEUE_LENGTH;
@@ -77,7 +93,7 @@ public class DbUpdateAddressOne extends DbUpdate {
 
     @Override
     public boolean needExecuteInserts() {
-        return cacheData == null ? false : cacheData.addQueue.size() >= MIN_BATCH_SIZE;
+        return cacheData == null ? false : isFlushDue(cacheData.addQueue.size());
     }
 
     public void add(BtcAddress addr) throws SQLException {
@@ -94,6 +110,7 @@ public class DbUpdateAddressOne extends DbUpdate {
                         addr, cacheData.addMap.get(hexAddr), cacheData.addMapId.get(addr.getAddressId()));
             }
         }
+        signalUpdate();
     }
 
     public void updateWallet(BtcAddress btcAddress) throws SQLException {
@@ -122,30 +139,34 @@ public class DbUpdateAddressOne extends DbUpdate {
 
     @Override
     public int executeInserts() {
-        Collection<BtcAddress> temp = null;
+        List<BtcAddress> temp = null;
         synchronized (cacheData) {
             if (!cacheData.addQueue.isEmpty()) {
                 temp = new ArrayList<>();
                 Iterator<BtcAddress> it = cacheData.addQueue.iterator();
-                for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i++) {
+                for (int i = 0, n = getBatchSize(); i < n && it.hasNext(); i++) {
                     temp.add(it.next());
                     it.remove();
                 }
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
-                BatchExecutor.executeBatch(temp, psAdd.get(), (t, ps) -> {
-                    ps.setInt(1, t.getAddressId());
-                    ps.setBytes(2, t.getAddress());
-                    ps.setInt(3, t.getWalletId());
-                });
+            //IDs are assigned by concurrent resolver threads, insert in primary key order
+            temp.sort(Comparator.comparingInt(BtcAddress::getAddressId));
+            execLock.readLock().lock();
+            try {
+                BatchExecutor.executeInsert(temp, getTableName(), SQL_ADD_COLUMNS, getConn(), (t, row) -> row
+                        .add(t.getAddressId())
+                        .add(t.getAddress())
+                        .add(t.getWalletId()));
                 synchronized (cacheData) {
                     for (BtcAddress t : temp) {
                         cacheData.addMap.remove(Hex.toHexString(t.getAddress()));
                         cacheData.addMapId.remove(t.getAddressId());
                     }
                 }
+            } finally {
+                execLock.readLock().unlock();
             }
         }
         return temp == null ? 0 : temp.size();
@@ -160,7 +181,8 @@ public class DbUpdateAddressOne extends DbUpdate {
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
+            execLock.writeLock().lock();
+            try {
                 long s = System.nanoTime();
                 BatchExecutor.executeBatch(temp, psUpdateWallet.get(), (BtcAddress t, PreparedStatement ps) -> {
                     ps.setInt(1, t.getWalletId());
@@ -168,6 +190,8 @@ public class DbUpdateAddressOne extends DbUpdate {
                 });
                 long runtime = System.nanoTime() - s;
                 log.debug("{}.executeUpdateWallet(): Updated {} records. runtime {} ms.", getTableName(), temp.size(), TimeUnit.NANOSECONDS.toMillis(runtime));
+            } finally {
+                execLock.writeLock().unlock();
             }
         }
     }
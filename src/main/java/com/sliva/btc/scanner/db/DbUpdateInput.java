@@ -27,6 +27,7 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -37,15 +38,15 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DbUpdateInput extends DbUpdate {
 
-    public static int MIN_BATCH_SIZE = 1;
     public static int MAX_BATCH_SIZE = 40000;
     public static int MAX_INSERT_QUEUE_LENGTH = 1000000;
+    //approximate heap bytes per queued record: input record, queue entry and two index entries
+    private static final int QUEUED_RECORD_BYTES = 180;
     private static int MAX_UPDATE_QUEUE_LENGTH = 1000;
     private static final String TABLE_NAME = "input";
-    private static final String SQL_ADD = "INSERT INTO input(transaction_id,pos,in_transaction_id,in_pos)VALUES(?,?,?,?)";
+    private static final String SQL_ADD_COLUMNS = "transaction_id,pos,in_transaction_id,in_pos";
     private static final String SQL_DELETE = "DELETE FROM input WHERE transaction_id=? AND pos=?";
     private static final String SQL_UPDATE = "UPDATE input SET in_transaction_id=?,in_pos=? WHERE transaction_id=? AND pos=?";
-    private final ThreadLocal<PreparedStatement> psAdd;
     private final ThreadLocal<PreparedStatement> psDelete;
     private final ThreadLocal<PreparedStatement> psUpdate;
     private final CacheData cacheData;
@@ -56,7 +57,6 @@ public class DbUpdateInput extends DbUpdate {
 
     public DbUpdateInput(DBConnection conn, CacheData cacheData) {
         super(conn);
-        this.psAdd = conn.prepareStatement(SQL_ADD);
         this.psDelete = conn.prepareStatement(SQL_DELETE);
         this.psUpdate = conn.prepareStatement(SQL_UPDATE);
         this.cacheData = cacheData;
@@ -71,6 +71,21 @@ public class DbUpdateInput extends DbUpdate {
         return TABLE_NAME;
     }
 
+    @Override
+    public int getPriority() {
+        return PRIORITY_CHILD;
+    }
+
+    @Override
+    public long getQueueFootprint() {
+        return cacheData == null ? 0 : (long) cacheData.addQueue.size() * QUEUED_RECORD_BYTES;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
     @Override
     public int getCacheFillPercent() {
         return cacheData == null ? 0 : cacheData.addQueue.size() * 100 / MAX_INSERT_QUEUE_LENGTH;
@@ -78,14 +93,29 @@ public class DbUpdateInput extends DbUpdate {
 
     @Override
     public boolean needExecuteInserts() {
-        return cacheData == null ? false : cacheData.addQueue.size() >= MIN_BATCH_SIZE;
+        if (cacheData == null || !isFlushDue(cacheData.addQueue.size())) {
+            return false;
+        }
+        if (DbPartitioning.isPartitioned(TABLE_NAME)) {
+            synchronized (cacheData) {
+                return cacheData.lanes.hasIdleLane();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected int getConcurrency() {
+        return DbPartitioning.isPartitioned(TABLE_NAME) ? Integer.MAX_VALUE : super.getConcurrency();
     }
 
     public void add(TxInput txInput) throws SQLException {
         log.trace("add(txInput:{})", txInput);
         waitFullQueue(cacheData.addQueue, MAX_INSERT_QUEUE_LENGTH);
         synchronized (cacheData) {
-            cacheData.addQueue.add(txInput);
+            if (cacheData.addQueue.add(txInput)) {
+                cacheData.lanes.added(txInput.getTransactionId());
+            }
             cacheData.queueMap.put(new InOutKey(txInput.getTransactionId(), txInput.getPos()), txInput);
             List<TxInput> list = cacheData.queueMapTx.get(txInput.getTransactionId());
             if (list == null) {
@@ -93,6 +123,7 @@ public class DbUpdateInput extends DbUpdate {
             }
             list.add(txInput);
         }
+        signalUpdate();
     }
 
     public void delete(TxInput txInput) throws SQLException {
@@ -101,7 +132,9 @@ public class DbUpdateInput extends DbUpdate {
             psDelete.get().setInt(1, txInput.getTransactionId());
             psDelete.get().setInt(2, txInput.getPos());
             psDelete.get().execute();
-            cacheData.addQueue.remove(txInput);
+            if (cacheData.addQueue.remove(txInput)) {
+                cacheData.lanes.removed(txInput.getTransactionId());
+            }
             cacheData.queueMap.remove(new InOutKey(txInput.getTransactionId(), txInput.getPos()));
             List<TxInput> l = cacheData.queueMapTx.get(txInput.getTransactionId());
             if (l != null) {
@@ -140,11 +173,27 @@ public class DbUpdateInput extends DbUpdate {
     @Override
     public int executeInserts() {
         Collection<TxInput> temp = null;
+        int partition = -1;
         synchronized (cacheData) {
-            if (!cacheData.addQueue.isEmpty()) {
+            if (DbPartitioning.isPartitioned(TABLE_NAME)) {
+                partition = cacheData.lanes.claim();
+                if (partition >= 0) {
+                    temp = new ArrayList<>();
+                    Iterator<TxInput> it = cacheData.addQueue.iterator();
+                    int n = getBatchSize();
+                    while (temp.size() < n && it.hasNext()) {
+                        TxInput t = it.next();
+                        if (DbPartitioning.getPartition(t.getTransactionId()) == partition) {
+                            temp.add(t);
+                            it.remove();
+                            cacheData.lanes.removed(t.getTransactionId());
+                        }
+                    }
+                }
+            } else if (!cacheData.addQueue.isEmpty()) {
                 temp = new ArrayList<>();
                 Iterator<TxInput> it = cacheData.addQueue.iterator();
-                for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i++) {
+                for (int i = 0, n = getBatchSize(); i < n && it.hasNext(); i++) {
                     temp.add(it.next());
                     it.remove();
                 }
@@ -152,24 +201,38 @@ public class DbUpdateInput extends DbUpdate {
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
-                BatchExecutor.executeBatch(temp, psAdd.get(), (TxInput t, PreparedStatement ps) -> {
-                    ps.setInt(1, t.getTransactionId());
-                    ps.setInt(2, t.getPos());
-                    ps.setInt(3, t.getInTransactionId());
-                    ps.setInt(4, t.getInPos());
-                });
+            execLock.readLock().lock();
+            try {
+                BatchExecutor.executeInsert(temp, TABLE_NAME, SQL_ADD_COLUMNS, getConn(), (TxInput t, BatchExecutor.RowWriter row) -> row
+                        .add(t.getTransactionId())
+                        .add(t.getPos())
+                        .add(t.getInTransactionId())
+                        .add(t.getInPos()));
                 synchronized (cacheData) {
                     for (TxInput t : temp) {
                         cacheData.queueMap.remove(new InOutKey(t.getTransactionId(), t.getPos()));
                         cacheData.queueMapTx.remove(t.getTransactionId());
                     }
                 }
+            } finally {
+                execLock.readLock().unlock();
+                if (partition >= 0) {
+                    synchronized (cacheData) {
+                        cacheData.lanes.release(partition);
+                    }
+                }
             }
         }
         return temp == null ? 0 : temp.size();
     }
 
+    @Override
+    protected boolean hasPendingInserts() {
+        synchronized (cacheData) {
+            return !cacheData.addQueue.isEmpty() || cacheData.lanes.isBusy();
+        }
+    }
+
     public void executeUpdate() {
         Collection<TxInput> temp = null;
         synchronized (cacheData) {
@@ -179,13 +242,16 @@ public class DbUpdateInput extends DbUpdate {
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
+            execLock.writeLock().lock();
+            try {
                 BatchExecutor.executeBatch(temp, psUpdate.get(), (TxInput t, PreparedStatement ps) -> {
                     ps.setInt(1, t.getInTransactionId());
                     ps.setInt(2, t.getInPos());
                     ps.setInt(3, t.getTransactionId());
                     ps.setInt(4, t.getPos());
                 });
+            } finally {
+                execLock.writeLock().unlock();
             }
         }
     }
@@ -203,5 +269,7 @@ public class DbUpdateInput extends DbUpdate {
         private final Map<InOutKey, TxInput> queueMap = new HashMap<>();
         private final Map<Integer, List<TxInput>> queueMapTx = new HashMap<>();
         private final Collection<TxInput> queueUpdate = new ArrayList<>();
+        @Getter(AccessLevel.NONE)
+        private final PartitionLanes lanes = new PartitionLanes();
     }
 }
@@ -37,15 +37,15 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DbUpdateInputSpecial extends DbUpdate {
 
-    public static int MIN_BATCH_SIZE = 1;
     public static int MAX_BATCH_SIZE = 40000;
     public static int MAX_INSERT_QUEUE_LENGTH = 1000000;
+    //approximate heap bytes per queued record: input record, queue entry and two index entries
+    private static final int QUEUED_RECORD_BYTES = 200;
     private static int MAX_UPDATE_QUEUE_LENGTH = 100;
-    private static final String TABLE_NAME = "input";
-    private static final String SQL_ADD = "INSERT INTO input_special(transaction_id,pos,sighash_type,segwit,multisig)VALUES(?,?,?,?,?)";
+    private static final String TABLE_NAME = "input_special";
+    private static final String SQL_ADD_COLUMNS = "transaction_id,pos,sighash_type,segwit,multisig";
     private static final String SQL_DELETE = "DELETE FROM input_special WHERE transaction_id=? AND pos=?";
     private static final String SQL_UPDATE = "UPDATE input_special SET sighash_type=?,segwit=?,multisig=? WHERE transaction_id=? AND pos=?";
-    private final ThreadLocal<PreparedStatement> psAdd;
     private final ThreadLocal<PreparedStatement> psDelete;
     private final ThreadLocal<PreparedStatement> psUpdate;
     private final CacheData cacheData;
@@ -56,7 +56,6 @@ public class DbUpdateInputSpecial extends DbUpdate {
 
     public DbUpdateInputSpecial(DBConnection conn, CacheData cacheData) {
         super(conn);
-        this.psAdd = conn.prepareStatement(SQL_ADD);
         this.psDelete = conn.prepareStatement(SQL_DELETE);
         this.psUpdate = conn.prepareStatement(SQL_UPDATE);
         this.cacheData = cacheData;
@@ -71,6 +70,21 @@ public class DbUpdateInputSpecial extends DbUpdate {
         return TABLE_NAME;
     }
 
+    @Override
+    public int getPriority() {
+        return PRIORITY_CHILD;
+    }
+
+    @Override
+    public long getQueueFootprint() {
+        return cacheData == null ? 0 : (long) cacheData.addQueue.size() * QUEUED_RECORD_BYTES;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
     @Override
     public int getCacheFillPercent() {
         return cacheData == null ? 0 : cacheData.addQueue.size() * 100 / MAX_INSERT_QUEUE_LENGTH;
@@ -78,7 +92,7 @@ public class DbUpdateInputSpecial extends DbUpdate {
 
     @Override
     public boolean needExecuteInserts() {
-        return cacheData == null ? false : cacheData.addQueue.size() >= MIN_BATCH_SIZE;
+        return cacheData == null ? false : isFlushDue(cacheData.addQueue.size());
     }
 
     public void add(TxInputSpecial txInput) throws SQLException {
@@ -93,6 +107,7 @@ public class DbUpdateInputSpecial extends DbUpdate {
             }
             list.add(txInput);
         }
+        signalUpdate();
     }
 
     public void delete(TxInputSpecial txInput) throws SQLException {
@@ -144,7 +159,7 @@ public class DbUpdateInputSpecial extends DbUpdate {
             if (!cacheData.addQueue.isEmpty()) {
                 temp = new ArrayList<>();
                 Iterator<TxInputSpecial> it = cacheData.addQueue.iterator();
-                for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i++) {
+                for (int i = 0, n = getBatchSize(); i < n && it.hasNext(); i++) {
                     temp.add(it.next());
                     it.remove();
                 }
@@ -152,20 +167,22 @@ public class DbUpdateInputSpecial extends DbUpdate {
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
-                BatchExecutor.executeBatch(temp, psAdd.get(), (TxInputSpecial t, PreparedStatement ps) -> {
-                    ps.setInt(1, t.getTransactionId());
-                    ps.setInt(2, t.getPos());
-                    ps.setInt(3, Byte.toUnsignedInt(t.getSighashType()));
-                    ps.setBoolean(4, t.isSegwit());
-                    ps.setBoolean(5, t.isMultisig());
-                });
+            execLock.readLock().lock();
+            try {
+                BatchExecutor.executeInsert(temp, TABLE_NAME, SQL_ADD_COLUMNS, getConn(), (TxInputSpecial t, BatchExecutor.RowWriter row) -> row
+                        .add(t.getTransactionId())
+                        .add(t.getPos())
+                        .add(Byte.toUnsignedInt(t.getSighashType()))
+                        .add(t.isSegwit())
+                        .add(t.isMultisig()));
                 synchronized (cacheData) {
                     for (TxInputSpecial t : temp) {
                         cacheData.queueMap.remove(new InOutKey(t.getTransactionId(), t.getPos()));
                         cacheData.queueMapTx.remove(t.getTransactionId());
                     }
                 }
+            } finally {
+                execLock.readLock().unlock();
             }
         }
         return temp == null ? 0 : temp.size();
@@ -180,7 +197,8 @@ public class DbUpdateInputSpecial extends DbUpdate {
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
+            execLock.writeLock().lock();
+            try {
                 BatchExecutor.executeBatch(temp, psUpdate.get(), (TxInputSpecial t, PreparedStatement ps) -> {
                     ps.setInt(1, Byte.toUnsignedInt(t.getSighashType()));
                     ps.setBoolean(2, t.isSegwit());
@@ -188,6 +206,8 @@ public class DbUpdateInputSpecial extends DbUpdate {
                     ps.setInt(4, t.getTransactionId());
                     ps.setInt(5, t.getPos());
                 });
+            } finally {
+                execLock.writeLock().unlock();
             }
         }
     }
@@ -16,41 +16,95 @@
 package com.sliva.btc.scanner.db;
 
 import com.sliva.btc.scanner.db.model.InOutKey;
+import com.sliva.btc.scanner.db.model.OutputStatus;
 import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.util.OutputBitmap;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * Outputs marked as SPENT are not updated one by one. Markers are collected
+ * in a bitmap and applied in bulk by joining a temporary table with output
+ * table, one range of transaction IDs at a time. Outputs still waiting in
+ * insert queue are inserted with the new status directly.
+ *
+ * Updates of other values are coalesced per output into one pending patch,
+ * repeated updates of the same output keep the last value. Patches are
+ * applied with one multi-column UPDATE per row, or joined from a temporary
+ * table when there are many of them. With a row sink that is not readable
+ * patches and SPENT markers are written to the sink as staged update rows
+ * instead, see {@link RowSink#writeUpdates}.
+ *
+ * Insert queue is kept in primitive columns ({@link OutputQueue}), so queued
+ * values are patched in place and a full queue costs tens of bytes per
+ * output.
+ *
+ * Deletes are queued as well and executed ahead of the updates, consecutive
+ * positions of a transaction with one range statement.
  *
  * @author Sliva Co
  */
 @Slf4j
 public class DbUpdateOutput extends DbUpdate {
 
-    public static int MIN_BATCH_SIZE = 1;
     public static int MAX_BATCH_SIZE = 40000;
     public static int MAX_INSERT_QUEUE_LENGTH = 1000000;
+    //approximate heap bytes per queued record: primitive columns and two index slots
+    private static final int QUEUED_RECORD_BYTES = 80;
     public static int MAX_UPDATE_QUEUE_LENGTH = 10000;
+    public static int MAX_SPENT_BITMAP_SIZE = 1000000;
+    public static int MAX_SPENT_RANGE_SIZE = 100000;
+    public static int MAX_DELETE_QUEUE_LENGTH = 1000;
     private static final String TABLE_NAME = "output";
-    private static final String SQL_ADD = "INSERT INTO output(transaction_id,pos,address_id,amount,spent)VALUES(?,?,?,?,?)";
-    private static final String SQL_DELETE = "DELETE FROM output WHERE transaction_id=? AND pos=?";
-    private static final String SQL_UPDATE_SPENT = "UPDATE output SET spent=? WHERE transaction_id=? AND pos=?";
-    private static final String SQL_UPDATE_ADDRESS = "UPDATE output SET address_id=? WHERE transaction_id=? AND pos=?";
-    private static final String SQL_UPDATE_AMOUNT = "UPDATE output SET amount=? WHERE transaction_id=? AND pos=?";
-    private final ThreadLocal<PreparedStatement> psAdd;
+    private static final String SQL_ADD_COLUMNS = "transaction_id,pos,address_id,amount,spent";
+    private static final String SQL_DELETE_RANGE = "DELETE FROM output WHERE transaction_id=? AND pos BETWEEN ? AND ?";
+    private static final String SQL_UPDATE_PATCH = "UPDATE output SET address_id=IF(?,?,address_id),amount=IF(?,?,amount),spent=IF(?,?,spent)"
+            + " WHERE transaction_id=? AND pos=?";
+    private static final String SQL_CREATE_TEMP_PATCH = "CREATE TEMPORARY TABLE IF NOT EXISTS tmp_output_patch("
+            + "transaction_id int(10) unsigned NOT NULL,pos smallint(5) unsigned NOT NULL,"
+            + "fields tinyint(3) unsigned NOT NULL,address_id int(10) NOT NULL,amount bigint(20) NOT NULL,spent tinyint(3) unsigned NOT NULL,"
+            + "PRIMARY KEY(transaction_id,pos))ENGINE=MEMORY";
+    private static final String SQL_ADD_TEMP_PATCH = "INSERT INTO tmp_output_patch(transaction_id,pos,fields,address_id,amount,spent)VALUES";
+    private static final String SQL_UPDATE_PATCH_FROM_TEMP = "UPDATE output o JOIN tmp_output_patch t ON t.transaction_id=o.transaction_id AND t.pos=o.pos"
+            + " SET o.address_id=IF(t.fields&" + OutputPatch.ADDRESS_ID + ",t.address_id,o.address_id)"
+            + ",o.amount=IF(t.fields&" + OutputPatch.AMOUNT + ",t.amount,o.amount)"
+            + ",o.spent=IF(t.fields&" + OutputPatch.STATUS + ",t.spent,o.spent)";
+    private static final String SQL_CLEAR_TEMP_PATCH = "DELETE FROM tmp_output_patch";
+    private static final int MIN_PATCH_JOIN_SIZE = 100;
+    private static final String SQL_CREATE_TEMP_SPENT = "CREATE TEMPORARY TABLE IF NOT EXISTS tmp_output_spent("
+            + "transaction_id int(10) unsigned NOT NULL,pos smallint(5) unsigned NOT NULL,PRIMARY KEY(transaction_id,pos))ENGINE=MEMORY";
+    private static final String SQL_ADD_TEMP_SPENT = "INSERT IGNORE INTO tmp_output_spent(transaction_id,pos)VALUES";
+    private static final String SQL_UPDATE_SPENT_FROM_TEMP = "UPDATE output o JOIN tmp_output_spent t"
+            + " ON t.transaction_id=o.transaction_id AND t.pos=o.pos SET o.spent=?";
+    private static final String SQL_CLEAR_TEMP_SPENT = "DELETE FROM tmp_output_spent";
+    private static final String STAGED_TABLE_NAME = "output_update";
+    private static final StagedUpdate STAGED_UPDATE = new StagedUpdate(STAGED_TABLE_NAME, "seq,transaction_id,pos,fields,address_id,amount,spent",
+            "CREATE TABLE IF NOT EXISTS " + STAGED_TABLE_NAME + "(seq bigint(20) NOT NULL,"
+            + "transaction_id int(10) unsigned NOT NULL,pos smallint(5) unsigned NOT NULL,"
+            + "fields tinyint(3) unsigned NOT NULL,address_id int(10) NOT NULL,amount bigint(20) NOT NULL,spent tinyint(3) unsigned NOT NULL,"
+            + "PRIMARY KEY(seq),KEY(transaction_id,pos))",
+            getApplyStagedSql(OutputPatch.ADDRESS_ID, "address_id"),
+            getApplyStagedSql(OutputPatch.AMOUNT, "amount"),
+            getApplyStagedSql(OutputPatch.STATUS, "spent"),
+            "DROP TABLE " + STAGED_TABLE_NAME);
+    //sequence of staged update rows, the latest value of an output wins. Seeded with time, so rows appended by later runs sort after
+    private static final AtomicLong stagedSeq = new AtomicLong(System.currentTimeMillis() << 20);
     private final ThreadLocal<PreparedStatement> psDelete;
-    private final ThreadLocal<PreparedStatement> psUpdateSpent;
-    private final ThreadLocal<PreparedStatement> psUpdateAddress;
-    private final ThreadLocal<PreparedStatement> psUpdateAmount;
+    private final ThreadLocal<PreparedStatement> psUpdatePatch;
+    private final ThreadLocal<PreparedStatement> psUpdateSpentFromTemp;
     private final CacheData cacheData;
 
     public DbUpdateOutput(DBConnection conn) {
@@ -59,11 +113,9 @@ public class DbUpdateOutput extends DbUpdate {
 
     public DbUpdateOutput(DBConnection conn, CacheData cacheData) {
         super(conn);
-        this.psAdd = conn.prepareStatement(SQL_ADD);
-        this.psDelete = conn.prepareStatement(SQL_DELETE);
-        this.psUpdateSpent = conn.prepareStatement(SQL_UPDATE_SPENT);
-        this.psUpdateAddress = conn.prepareStatement(SQL_UPDATE_ADDRESS);
-        this.psUpdateAmount = conn.prepareStatement(SQL_UPDATE_AMOUNT);
+        this.psDelete = conn.prepareStatement(SQL_DELETE_RANGE);
+        this.psUpdatePatch = conn.prepareStatement(SQL_UPDATE_PATCH);
+        this.psUpdateSpentFromTemp = conn.prepareStatement(SQL_UPDATE_SPENT_FROM_TEMP);
         this.cacheData = cacheData;
     }
 
@@ -76,6 +128,21 @@ public class DbUpdateOutput extends DbUpdate {
         return TABLE_NAME;
     }
 
+    @Override
+    public int getPriority() {
+        return PRIORITY_DEFAULT;
+    }
+
+    @Override
+    public long getQueueFootprint() {
+        return cacheData == null ? 0 : (long) cacheData.addQueue.size() * QUEUED_RECORD_BYTES;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
     @Override
     public int getCacheFillPercent() {
         return cacheData == null ? 0 : cacheData.addQueue.size() * 100 / MAX_INSERT_QUEUE_LENGTH;
@@ -83,218 +150,327 @@ public class DbUpdateOutput extends DbUpdate {
 
     @Override
     public boolean needExecuteInserts() {
-        return cacheData == null ? false : cacheData.addQueue.size() >= MIN_BATCH_SIZE;
+        if (cacheData == null || !isFlushDue(cacheData.addQueue.size())) {
+            return false;
+        }
+        if (DbPartitioning.isPartitioned(TABLE_NAME)) {
+            synchronized (cacheData) {
+                return cacheData.addQueue.getLanes().hasIdleLane();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected int getConcurrency() {
+        return DbPartitioning.isPartitioned(TABLE_NAME) ? Integer.MAX_VALUE : super.getConcurrency();
     }
 
     public void add(TxOutput txOutput) {
         log.trace("add(txOutput:{})", txOutput);
-        waitFullQueue(cacheData.addQueue, MAX_INSERT_QUEUE_LENGTH);
+        waitFullQueue(cacheData.addQueue::size, MAX_INSERT_QUEUE_LENGTH);
+        if (isDeletePending(txOutput.getTransactionId(), txOutput.getPos())) {
+            //old row with the same key has to be gone before the new one is inserted
+            executeUpdates();
+        }
         synchronized (cacheData) {
             cacheData.addQueue.add(txOutput);
-            cacheData.queueMap.put(new InOutKey(txOutput.getTransactionId(), txOutput.getPos()), txOutput);
-            List<TxOutput> list = cacheData.queueMapTx.get(txOutput.getTransactionId());
-            if (list == null) {
-                cacheData.queueMapTx.put(txOutput.getTransactionId(), list = new ArrayList<>());
-            }
-            list.add(txOutput);
         }
+        signalUpdate();
     }
 
+    /**
+     * Queue delete of the output. Pending insert of the output is cancelled,
+     * DB row is deleted with the next {@link #executeUpdates()}.
+     *
+     * @param txOutput output
+     * @throws SQLException
+     */
     public void delete(TxOutput txOutput) throws SQLException {
         log.trace("delete(txOutput:{})", txOutput);
         synchronized (cacheData) {
-            psDelete.get().setInt(1, txOutput.getTransactionId());
-            psDelete.get().setInt(2, txOutput.getPos());
-            psDelete.get().execute();
-            cacheData.addQueue.remove(txOutput);
-            cacheData.queueMap.remove(new InOutKey(txOutput.getTransactionId(), txOutput.getPos()));
-            List<TxOutput> l = cacheData.queueMapTx.get(txOutput.getTransactionId());
-            if (l != null) {
-                l.remove(txOutput);
-                if (l.isEmpty()) {
-                    cacheData.queueMapTx.remove(txOutput.getTransactionId());
-                }
-            }
+            cacheData.addQueue.remove(txOutput.getTransactionId(), txOutput.getPos());
+            cacheData.deleteQueue.add(new InOutKey(txOutput.getTransactionId(), txOutput.getPos()));
+        }
+        if (cacheData.deleteQueue.size() >= MAX_DELETE_QUEUE_LENGTH) {
+            executeUpdates();
+        }
+    }
+
+    /**
+     * Check if output is queued for delete, so its DB row should be ignored.
+     *
+     * @param transactionId transaction ID
+     * @param pos output position
+     * @return true if delete is pending
+     */
+    public boolean isDeletePending(int transactionId, int pos) {
+        synchronized (cacheData) {
+            return !cacheData.deleteQueue.isEmpty() && cacheData.deleteQueue.contains(new InOutKey(transactionId, pos));
         }
     }
 
     public void updateSpent(int transactionId, short pos, byte status) throws SQLException {
         log.trace("updateSpent(transactionId:{},pos:{},status:{})", transactionId, pos, status);
         synchronized (cacheData) {
-            InOutKey pk = new InOutKey(transactionId, pos);
-            TxOutput txOutput = cacheData.queueMap.get(pk);
-            boolean updatedInQueue = false;
-            if (txOutput != null) {
-                if (txOutput.getStatus() != status) {
-                    txOutput = txOutput.toBuilder().status(status).build();
-                    if (cacheData.addQueue.remove(txOutput)) {
-                        cacheData.addQueue.add(txOutput);
-                        updatedInQueue = true;
-                    }
+            if (!cacheData.addQueue.setStatus(transactionId, pos, status)) {
+                if (status == OutputStatus.SPENT) {
+                    cacheData.spentBitmap.set(transactionId, pos);
                 } else {
-                    //value not changed
-                    updatedInQueue = true;
+                    //patches are applied before the bitmap, so drop pending SPENT marker
+                    cacheData.spentBitmap.clear(transactionId, pos);
+                    getPatch(transactionId, pos).setStatus(status);
                 }
-                cacheData.queueMap.put(pk, txOutput);
-            }
-            if (!updatedInQueue) {
-                cacheData.queueUpdateSpent.add(TxOutput.builder().transactionId(transactionId).pos(pos).status(status).build());
             }
         }
-        if (cacheData.queueUpdateSpent.size() >= MAX_UPDATE_QUEUE_LENGTH) {
-            executeUpdateSpent();
+        if (cacheData.queueUpdate.size() >= MAX_UPDATE_QUEUE_LENGTH || cacheData.spentBitmap.size() >= MAX_SPENT_BITMAP_SIZE) {
+            executeUpdates();
         }
     }
 
     public void updateAddress(int transactionId, short pos, int addressId) throws SQLException {
         log.trace("updateAddress(transactionId:{},pos:{},addressId:{})", transactionId, pos, addressId);
         synchronized (cacheData) {
-            InOutKey pk = new InOutKey(transactionId, pos);
-            TxOutput txOutput = cacheData.queueMap.get(pk);
-            boolean updatedInQueue = false;
-            if (txOutput != null) {
-                if (txOutput.getAddressId() != addressId) {
-                    txOutput = txOutput.toBuilder().addressId(addressId).build();
-                    if (cacheData.addQueue.remove(txOutput)) {
-                        cacheData.addQueue.add(txOutput);
-                        updatedInQueue = true;
-                    }
-                } else {
-                    //value not changed
-                    updatedInQueue = true;
-                }
-                cacheData.queueMap.put(pk, txOutput);
-            }
-            if (!updatedInQueue) {
-                cacheData.queueUpdateAddress.add(TxOutput.builder().transactionId(transactionId).pos(pos).addressId(addressId).build());
+            if (!cacheData.addQueue.setAddressId(transactionId, pos, addressId)) {
+                getPatch(transactionId, pos).setAddressId(addressId);
             }
         }
-        if (cacheData.queueUpdateAddress.size() >= MAX_UPDATE_QUEUE_LENGTH) {
-            executeUpdateAddress();
+        if (cacheData.queueUpdate.size() >= MAX_UPDATE_QUEUE_LENGTH) {
+            executeUpdates();
         }
     }
 
     public void updateAmount(int transactionId, short pos, long amount) throws SQLException {
         log.trace("updateAmount(transactionId:{},pos:{},amount:{})", transactionId, pos, amount);
         synchronized (cacheData) {
-            InOutKey pk = new InOutKey(transactionId, pos);
-            TxOutput txOutput = cacheData.queueMap.get(pk);
-            boolean updatedInQueue = false;
-            if (txOutput != null) {
-                if (txOutput.getAmount() != amount) {
-                    txOutput = txOutput.toBuilder().amount(amount).build();
-                    if (cacheData.addQueue.remove(txOutput)) {
-                        cacheData.addQueue.add(txOutput);
-                        updatedInQueue = true;
-                    }
-                } else {
-                    //value not changed
-                    updatedInQueue = true;
-                }
-                cacheData.queueMap.put(pk, txOutput);
-            }
-            if (!updatedInQueue) {
-                cacheData.queueUpdateAmount.add(TxOutput.builder().transactionId(transactionId).pos(pos).amount(amount).build());
+            if (!cacheData.addQueue.setAmount(transactionId, pos, amount)) {
+                getPatch(transactionId, pos).setAmount(amount);
             }
         }
-        if (cacheData.queueUpdateAddress.size() >= MAX_UPDATE_QUEUE_LENGTH) {
-            executeUpdateAddress();
+        if (cacheData.queueUpdate.size() >= MAX_UPDATE_QUEUE_LENGTH) {
+            executeUpdates();
         }
     }
 
+    private OutputPatch getPatch(int transactionId, short pos) {
+        return cacheData.queueUpdate.computeIfAbsent(new InOutKey(transactionId, pos), k -> new OutputPatch(transactionId, pos));
+    }
+
     @Override
     public int executeInserts() {
-        Collection<TxOutput> temp = null;
-        synchronized (cacheData) {
-            if (!cacheData.addQueue.isEmpty()) {
-                temp = new ArrayList<>();
-                Iterator<TxOutput> it = cacheData.addQueue.iterator();
-                for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i++) {
-                    temp.add(it.next());
-                    it.remove();
+        List<TxOutput> temp = null;
+        int partition = -1;
+        //take records under read lock, so bulk spent update can't run before they are inserted
+        execLock.readLock().lock();
+        try {
+            synchronized (cacheData) {
+                if (DbPartitioning.isPartitioned(TABLE_NAME)) {
+                    partition = cacheData.addQueue.getLanes().claim();
+                    if (partition >= 0) {
+                        temp = cacheData.addQueue.poll(getBatchSize(), partition);
+                    }
+                } else if (!cacheData.addQueue.isEmpty()) {
+                    temp = cacheData.addQueue.poll(getBatchSize());
                 }
             }
-        }
-        if (temp != null) {
-            synchronized (execSync) {
-                BatchExecutor.executeBatch(temp, psAdd.get(), (TxOutput t, PreparedStatement ps) -> {
-                    ps.setInt(1, t.getTransactionId());
-                    ps.setInt(2, t.getPos());
-                    ps.setInt(3, t.getAddressId());
-                    ps.setLong(4, t.getAmount());
-                    ps.setInt(5, t.getStatus());
-                });
+            if (temp != null) {
+                BatchExecutor.executeInsert(temp, TABLE_NAME, SQL_ADD_COLUMNS, getConn(), (TxOutput t, BatchExecutor.RowWriter row) -> row
+                        .add(t.getTransactionId())
+                        .add(t.getPos())
+                        .add(t.getAddressId())
+                        .add(t.getAmount())
+                        .add(t.getStatus()));
                 synchronized (cacheData) {
-                    for (TxOutput t : temp) {
-                        cacheData.queueMap.remove(new InOutKey(t.getTransactionId(), t.getPos()));
-                        cacheData.queueMapTx.remove(t.getTransactionId());
-                    }
+                    cacheData.addQueue.release(temp);
                 }
             }
+        } finally {
+            if (partition >= 0) {
+                synchronized (cacheData) {
+                    cacheData.addQueue.getLanes().release(partition);
+                }
+            }
+            execLock.readLock().unlock();
         }
         return temp == null ? 0 : temp.size();
     }
 
-    public void executeUpdateSpent() {
-        Collection<TxOutput> temp = null;
-        synchronized (cacheData) {
-            if (!cacheData.queueUpdateSpent.isEmpty()) {
-                temp = new ArrayList<>(cacheData.queueUpdateSpent);
-                cacheData.queueUpdateSpent.clear();
+    /**
+     * Execute pending deletes, then apply pending patches and then SPENT
+     * markers.
+     */
+    public void executeUpdates() {
+        execLock.writeLock().lock();
+        try {
+            executeDeletes();
+            List<OutputPatch> temp = null;
+            int nSpent;
+            synchronized (cacheData) {
+                if (!cacheData.queueUpdate.isEmpty()) {
+                    temp = new ArrayList<>(cacheData.queueUpdate.values());
+                    cacheData.queueUpdate.clear();
+                }
+                nSpent = cacheData.spentBitmap.size();
             }
-        }
-        if (temp != null) {
-            synchronized (execSync) {
-                long s = System.currentTimeMillis();
-                BatchExecutor.executeBatch(temp, psUpdateSpent.get(), (TxOutput t, PreparedStatement ps) -> {
-                    ps.setInt(1, t.getStatus());
-                    ps.setInt(2, t.getTransactionId());
-                    ps.setInt(3, t.getPos());
-                });
-                log.debug("executeUpdateSpent({}): runtime={}", temp.size(), (System.currentTimeMillis() - s) + " ms.");
+            if (temp != null) {
+                executeUpdatePatches(temp);
             }
+            while (nSpent > 0) {
+                NavigableMap<Integer, BitSet> range;
+                synchronized (cacheData) {
+                    range = cacheData.spentBitmap.pollRange(MAX_SPENT_RANGE_SIZE);
+                }
+                if (range.isEmpty()) {
+                    break;
+                }
+                nSpent -= executeUpdateSpentRange(range);
+            }
+        } finally {
+            execLock.writeLock().unlock();
         }
     }
 
-    public void executeUpdateAddress() {
-        Collection<TxOutput> temp = null;
+    private void executeDeletes() {
+        List<InOutKey> keys;
         synchronized (cacheData) {
-            if (!cacheData.queueUpdateAddress.isEmpty()) {
-                temp = new ArrayList<>(cacheData.queueUpdateAddress);
-                cacheData.queueUpdateAddress.clear();
+            if (cacheData.deleteQueue.isEmpty()) {
+                return;
             }
+            keys = new ArrayList<>(cacheData.deleteQueue);
         }
-        if (temp != null) {
-            synchronized (execSync) {
-                long s = System.currentTimeMillis();
-                BatchExecutor.executeBatch(temp, psUpdateAddress.get(), (TxOutput t, PreparedStatement ps) -> {
-                    ps.setInt(1, t.getAddressId());
-                    ps.setInt(2, t.getTransactionId());
-                    ps.setInt(3, t.getPos());
-                });
-                log.debug("executeUpdateAddress({}): runtime={}", temp.size(), (System.currentTimeMillis() - s) + " ms.");
+        Collections.sort(keys);
+        List<int[]> ranges = new ArrayList<>();
+        for (InOutKey k : keys) {
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[0] == k.getTransactionId() && last[2] + 1 == k.getPos()) {
+                last[2] = k.getPos();
+            } else {
+                ranges.add(new int[]{k.getTransactionId(), k.getPos(), k.getPos()});
             }
         }
+        BatchExecutor.executeBatch(ranges, psDelete.get(), (int[] r, PreparedStatement ps) -> {
+            ps.setInt(1, r[0]);
+            ps.setInt(2, r[1]);
+            ps.setInt(3, r[2]);
+        });
+        log.debug("executeDeletes: Deleted {} outputs with {} statements", keys.size(), ranges.size());
+        synchronized (cacheData) {
+            cacheData.deleteQueue.removeAll(keys);
+        }
     }
 
-    public void executeUpdateAmount() {
-        Collection<TxOutput> temp = null;
-        synchronized (cacheData) {
-            if (!cacheData.queueUpdateAmount.isEmpty()) {
-                temp = new ArrayList<>(cacheData.queueUpdateAmount);
-                cacheData.queueUpdateAmount.clear();
+    private int executeUpdateSpentRange(NavigableMap<Integer, BitSet> range) {
+        List<InOutKey> keys = new ArrayList<>();
+        range.forEach((transactionId, bits) -> bits.stream().forEach(pos -> keys.add(new InOutKey(transactionId, pos))));
+        if (!BatchExecutor.getRowSink().isReadable()) {
+            List<OutputPatch> patches = new ArrayList<>(keys.size());
+            for (InOutKey k : keys) {
+                OutputPatch p = new OutputPatch(k.getTransactionId(), (short) k.getPos());
+                p.setStatus(OutputStatus.SPENT);
+                patches.add(p);
+            }
+            stagePatches(patches);
+            return keys.size();
+        }
+        long s = System.currentTimeMillis();
+        try (Statement st = getConn().getConnection().createStatement()) {
+            st.execute(SQL_CREATE_TEMP_SPENT);
+            try {
+                BatchExecutor.executeMultiRowInsert(keys, SQL_ADD_TEMP_SPENT, getConn(), (InOutKey k, BatchExecutor.RowWriter row) -> row
+                        .add(k.getTransactionId())
+                        .add(k.getPos()));
+                psUpdateSpentFromTemp.get().setInt(1, OutputStatus.SPENT);
+                int nUpdated = psUpdateSpentFromTemp.get().executeUpdate();
+                log.debug("executeUpdateSpentRange({}): Transactions: [{}..{}], updated: {}, runtime={}", keys.size(),
+                        range.firstKey(), range.lastKey(), nUpdated, (System.currentTimeMillis() - s) + " ms.");
+            } finally {
+                //rows left behind would be applied again by the next flush
+                st.execute(SQL_CLEAR_TEMP_SPENT);
             }
+        } catch (SQLException e) {
+            //markers are already polled from the bitmap, so they are reported as failed records
+            BatchExecutor.countFailedRecords(keys.size());
+            log.error("executeUpdateSpentRange: Failed to mark " + keys.size() + " outputs spent: " + e.getMessage(), e);
         }
-        if (temp != null) {
-            synchronized (execSync) {
-                long s = System.currentTimeMillis();
-                BatchExecutor.executeBatch(temp, psUpdateAmount.get(), (TxOutput t, PreparedStatement ps) -> {
-                    ps.setLong(1, t.getAmount());
-                    ps.setInt(2, t.getTransactionId());
-                    ps.setInt(3, t.getPos());
+        return keys.size();
+    }
+
+    private void executeUpdatePatches(List<OutputPatch> patches) {
+        if (!BatchExecutor.getRowSink().isReadable()) {
+            stagePatches(patches);
+            return;
+        }
+        long s = System.currentTimeMillis();
+        try {
+            if (patches.size() < MIN_PATCH_JOIN_SIZE) {
+                BatchExecutor.executeBatch(patches, psUpdatePatch.get(), (OutputPatch t, PreparedStatement ps) -> {
+                    ps.setBoolean(1, t.has(OutputPatch.ADDRESS_ID));
+                    ps.setInt(2, t.getAddressId());
+                    ps.setBoolean(3, t.has(OutputPatch.AMOUNT));
+                    ps.setLong(4, t.getAmount());
+                    ps.setBoolean(5, t.has(OutputPatch.STATUS));
+                    ps.setInt(6, t.getStatus());
+                    ps.setInt(7, t.getTransactionId());
+                    ps.setInt(8, t.getPos());
                 });
-                log.debug("executeUpdateAmount({}): runtime={}", temp.size(), (System.currentTimeMillis() - s) + " ms.");
+            } else {
+                try (Statement st = getConn().getConnection().createStatement()) {
+                    st.execute(SQL_CREATE_TEMP_PATCH);
+                    try {
+                        BatchExecutor.executeMultiRowInsert(patches, SQL_ADD_TEMP_PATCH, getConn(), (OutputPatch t, BatchExecutor.RowWriter row) -> row
+                                .add(t.getTransactionId())
+                                .add(t.getPos())
+                                .add(t.getFields())
+                                .add(t.getAddressId())
+                                .add(t.getAmount())
+                                .add(t.getStatus()));
+                        st.executeUpdate(SQL_UPDATE_PATCH_FROM_TEMP);
+                    } finally {
+                        //stale patch left behind would win over a newer one of the same output on next flush
+                        st.execute(SQL_CLEAR_TEMP_PATCH);
+                    }
+                }
             }
+            log.debug("executeUpdatePatches({}): runtime={}", patches.size(), (System.currentTimeMillis() - s) + " ms.");
+        } catch (SQLException e) {
+            //patches are already taken from the queue, so they are reported as failed records
+            BatchExecutor.countFailedRecords(patches.size());
+            log.error("executeUpdatePatches: Failed to apply " + patches.size() + " output patches: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rows written to a sink that is not readable are not in DB, so patches
+     * go to the sink as staged update rows, in the order they would be
+     * applied to DB.
+     */
+    private void stagePatches(List<OutputPatch> patches) {
+        BatchExecutor.executeStagedUpdate(patches, STAGED_UPDATE, getConn(), (OutputPatch t, BatchExecutor.RowWriter row) -> row
+                .add(stagedSeq.incrementAndGet())
+                .add(t.getTransactionId())
+                .add(t.getPos())
+                .add(t.getFields())
+                .add(t.getAddressId())
+                .add(t.getAmount())
+                .add(t.getStatus()));
+        log.debug("stagePatches: Staged {} output updates", patches.size());
+    }
+
+    /**
+     * Statement that sets one column of outputs to the last staged value of
+     * the column. Staging table is referenced twice, so it can't be a
+     * temporary table.
+     */
+    private static String getApplyStagedSql(int field, String column) {
+        return "UPDATE output o JOIN (SELECT u.transaction_id,u.pos,u." + column + " FROM " + STAGED_TABLE_NAME + " u"
+                + " JOIN (SELECT MAX(seq) seq FROM " + STAGED_TABLE_NAME + " WHERE fields&" + field + " GROUP BY transaction_id,pos) l ON l.seq=u.seq) t"
+                + " ON t.transaction_id=o.transaction_id AND t.pos=o.pos SET o." + column + "=t." + column;
+    }
+
+    @Override
+    protected boolean hasPendingInserts() {
+        synchronized (cacheData) {
+            return !cacheData.addQueue.isEmpty() || cacheData.addQueue.getLanes().isBusy();
         }
     }
 
@@ -302,19 +478,57 @@ public class DbUpdateOutput extends DbUpdate {
     public void flushCache() {
         log.trace("flushCache() Called");
         super.flushCache();
-        executeUpdateSpent();
-        executeUpdateAddress();
-        executeUpdateAmount();
+        executeUpdates();
     }
 
     @Getter
     public static class CacheData {
 
-        private final Collection<TxOutput> addQueue = new LinkedHashSet<>();
-        private final Map<InOutKey, TxOutput> queueMap = new HashMap<>();
-        private final Map<Integer, List<TxOutput>> queueMapTx = new HashMap<>();
-        private final Collection<TxOutput> queueUpdateSpent = new ArrayList<>();
-        private final Collection<TxOutput> queueUpdateAddress = new ArrayList<>();
-        private final Collection<TxOutput> queueUpdateAmount = new ArrayList<>();
+        private final OutputQueue addQueue = new OutputQueue();
+        private final Map<InOutKey, OutputPatch> queueUpdate = new HashMap<>();
+        private final OutputBitmap spentBitmap = new OutputBitmap();
+        private final Set<InOutKey> deleteQueue = new HashSet<>();
+    }
+
+    /**
+     * Pending changes of one output. Only values with their bit set in
+     * fields are written.
+     */
+    @Getter
+    private static class OutputPatch {
+
+        private static final int ADDRESS_ID = 1;
+        private static final int AMOUNT = 2;
+        private static final int STATUS = 4;
+        private final int transactionId;
+        private final short pos;
+        private int fields;
+        private int addressId;
+        private long amount;
+        private byte status;
+
+        private OutputPatch(int transactionId, short pos) {
+            this.transactionId = transactionId;
+            this.pos = pos;
+        }
+
+        private boolean has(int field) {
+            return (fields & field) != 0;
+        }
+
+        private void setAddressId(int addressId) {
+            this.addressId = addressId;
+            fields |= ADDRESS_ID;
+        }
+
+        private void setAmount(long amount) {
+            this.amount = amount;
+            fields |= AMOUNT;
+        }
+
+        private void setStatus(byte status) {
+            this.status = status;
+            fields |= STATUS;
+        }
     }
 }
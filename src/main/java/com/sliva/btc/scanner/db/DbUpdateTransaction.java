@@ -22,9 +22,11 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -38,15 +40,16 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DbUpdateTransaction extends DbUpdate {
 
-    private static int MIN_BATCH_SIZE = 1;
     public static int MAX_BATCH_SIZE = 20000;
     private static int MAX_INSERT_QUEUE_LENGTH = 1000000;
+    //approximate heap bytes per queued record: transaction record with txid, queue entry and two index entries
+    private static final int QUEUED_RECORD_BYTES = 350;
     private static int MAX_UPDATE_QUEUE_LENGTH = 1000;
+    private static int MAX_DELETE_QUEUE_LENGTH = 1000;
     private static final String TABLE_NAME = "transaction";
-    private static final String SQL_ADD = "INSERT INTO transaction(transaction_id,txid,block_height,nInputs,nOutputs)VALUES(?,?,?,?,?)";
-    private static final String SQL_DELETE = "DELETE FROM transaction WHERE transaction_id=?";
+    private static final String SQL_ADD_COLUMNS = "transaction_id,txid,block_height,nInputs,nOutputs";
+    private static final String SQL_DELETE_RANGE = "DELETE FROM transaction WHERE transaction_id BETWEEN ? AND ?";
     private static final String SQL_UPDATE_IN_OUT = "UPDATE transaction SET nInputs=?,nOutputs=? WHERE transaction_id=?";
-    private final ThreadLocal<PreparedStatement> psAdd;
     private final ThreadLocal<PreparedStatement> psDelete;
     private final ThreadLocal<PreparedStatement> psUpdateInOut;
     private final CacheData cacheData;
@@ -57,8 +60,7 @@ public class DbUpdateTransaction extends DbUpdate {
 
     public DbUpdateTransaction(DBConnection conn, CacheData cacheData) {
         super(conn);
-        this.psAdd = conn.prepareStatement(SQL_ADD);
-        this.psDelete = conn.prepareStatement(SQL_DELETE);
+        this.psDelete = conn.prepareStatement(SQL_DELETE_RANGE);
         this.psUpdateInOut = conn.prepareStatement(SQL_UPDATE_IN_OUT);
         this.cacheData = cacheData;
     }
@@ -72,6 +74,21 @@ public class DbUpdateTransaction extends DbUpdate {
         return TABLE_NAME;
     }
 
+    @Override
+    public int getPriority() {
+        return PRIORITY_PARENT;
+    }
+
+    @Override
+    public long getQueueFootprint() {
+        return cacheData == null ? 0 : (long) cacheData.addQueue.size() * QUEUED_RECORD_BYTES;
+    }
+
+    @Override
+    protected int getMaxBatchSize() {
+        return MAX_BATCH_SIZE;
+    }
+
     @Override
     public int getCacheFillPercent() {
         return cacheData.addQueue.size() * 100 / MAX_INSERT_QUEUE_LENGTH;
@@ -79,27 +96,95 @@ public class DbUpdateTransaction extends DbUpdate {
 
     @Override
     public boolean needExecuteInserts() {
-        return cacheData.addQueue.size() >= MIN_BATCH_SIZE;
+        return isFlushDue(cacheData.addQueue.size());
     }
 
     public void add(BtcTransaction tx) throws SQLException {
         log.trace("add(t:{})", tx);
         waitFullQueue(cacheData.addQueue, MAX_INSERT_QUEUE_LENGTH);
+        if (isDeletePending(tx.getTransactionId())) {
+            //old row with the same ID has to be gone before the new one is inserted
+            executeDeletes();
+        }
         synchronized (cacheData) {
             cacheData.addQueue.add(tx);
             cacheData.addMap.put(tx.getTxid(), tx);
             cacheData.addMapId.put(tx.getTransactionId(), tx);
         }
+        signalUpdate();
     }
 
+    /**
+     * Queue delete of the transaction. Pending insert of the transaction is
+     * cancelled, DB row is deleted by {@link #executeDeletes()} together with
+     * other queued deletes.
+     *
+     * @param tx transaction
+     * @throws SQLException
+     */
     public void delete(BtcTransaction tx) throws SQLException {
         log.trace("delete(tx:{})", tx);
+        int nDeletes;
         synchronized (cacheData) {
-            psDelete.get().setInt(1, tx.getTransactionId());
-            psDelete.get().execute();
             cacheData.addQueue.remove(tx);
             cacheData.addMap.remove(tx.getTxid());
             cacheData.addMapId.remove(tx.getTransactionId());
+            cacheData.deleteQueue.add(tx.getTransactionId());
+            nDeletes = cacheData.deleteQueue.size();
+        }
+        if (nDeletes >= MAX_DELETE_QUEUE_LENGTH) {
+            executeDeletes();
+        }
+    }
+
+    /**
+     * Check if transaction is queued for delete, so its DB row should be
+     * ignored.
+     *
+     * @param transactionId transaction ID
+     * @return true if delete is pending
+     */
+    public boolean isDeletePending(int transactionId) {
+        synchronized (cacheData) {
+            return !cacheData.deleteQueue.isEmpty() && cacheData.deleteQueue.contains(transactionId);
+        }
+    }
+
+    /**
+     * Execute queued deletes. Consecutive IDs are deleted with one range
+     * statement. Runs under write lock, so inserts taken before the delete
+     * are in DB by then.
+     */
+    public void executeDeletes() {
+        List<Integer> temp;
+        synchronized (cacheData) {
+            if (cacheData.deleteQueue.isEmpty()) {
+                return;
+            }
+            temp = new ArrayList<>(cacheData.deleteQueue);
+        }
+        Collections.sort(temp);
+        List<int[]> ranges = new ArrayList<>();
+        for (int id : temp) {
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] + 1 == id) {
+                last[1] = id;
+            } else {
+                ranges.add(new int[]{id, id});
+            }
+        }
+        execLock.writeLock().lock();
+        try {
+            BatchExecutor.executeBatch(ranges, psDelete.get(), (int[] r, PreparedStatement ps) -> {
+                ps.setInt(1, r[0]);
+                ps.setInt(2, r[1]);
+            });
+            log.debug("executeDeletes: Deleted {} transactions with {} statements", temp.size(), ranges.size());
+        } finally {
+            execLock.writeLock().unlock();
+        }
+        synchronized (cacheData) {
+            cacheData.deleteQueue.removeAll(temp);
         }
     }
 
@@ -123,18 +208,20 @@ public class DbUpdateTransaction extends DbUpdate {
     @Override
     public int executeInserts() {
         Collection<BtcTransaction> temp = null;
-        synchronized (cacheData) {
-            if (!cacheData.addQueue.isEmpty()) {
-                temp = new ArrayList<>();
-                Iterator<BtcTransaction> it = cacheData.addQueue.iterator();
-                for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i++) {
-                    temp.add(it.next());
-                    it.remove();
+        //take records under read lock, so queued delete can't run before they are inserted
+        execLock.readLock().lock();
+        try {
+            synchronized (cacheData) {
+                if (!cacheData.addQueue.isEmpty()) {
+                    temp = new ArrayList<>();
+                    Iterator<BtcTransaction> it = cacheData.addQueue.iterator();
+                    for (int i = 0, n = getBatchSize(); i < n && it.hasNext(); i++) {
+                        temp.add(it.next());
+                        it.remove();
+                    }
                 }
             }
-        }
-        if (temp != null) {
-            synchronized (execSync) {
+            if (temp != null) {
 //                try {
 //                    BatchExecutor.executeBatchFromFile(temp, "transaction(transaction_id,@hexID,block_height,nInputs,nOutputs) SET txid=UNHEX(@hexID)", getConn(), (t, out) -> {
 //                        out.println(t.getTransactionId()
@@ -145,13 +232,12 @@ public class DbUpdateTransaction extends DbUpdate {
 //                    });
 //                } catch (Exception e) {
 //                    log.error(e.getMessage(), e);
-                BatchExecutor.executeBatch(temp, psAdd.get(), (BtcTransaction t, PreparedStatement ps) -> {
-                    ps.setInt(1, t.getTransactionId());
-                    ps.setBytes(2, Utils.id2bin(t.getTxid()));
-                    ps.setInt(3, t.getBlockHeight());
-                    ps.setInt(4, t.getNInputs());
-                    ps.setInt(5, t.getNOutputs());
-                });
+                BatchExecutor.executeInsert(temp, TABLE_NAME, SQL_ADD_COLUMNS, getConn(), (BtcTransaction t, BatchExecutor.RowWriter row) -> row
+                        .add(t.getTransactionId())
+                        .add(Utils.id2bin(t.getTxid()))
+                        .add(t.getBlockHeight())
+                        .add(t.getNInputs())
+                        .add(t.getNOutputs()));
 //                }
                 synchronized (cacheData) {
                     for (BtcTransaction t : temp) {
@@ -160,6 +246,8 @@ public class DbUpdateTransaction extends DbUpdate {
                     }
                 }
             }
+        } finally {
+            execLock.readLock().unlock();
         }
         return temp == null ? 0 : temp.size();
     }
@@ -174,16 +262,25 @@ public class DbUpdateTransaction extends DbUpdate {
             }
         }
         if (temp != null) {
-            synchronized (execSync) {
+            execLock.writeLock().lock();
+            try {
                 BatchExecutor.executeBatch(cacheData.updateInOutQueue, psUpdateInOut.get(), (BtcTransaction t, PreparedStatement ps) -> {
                     ps.setInt(1, t.getNInputs());
                     ps.setInt(2, t.getNOutputs());
                     ps.setInt(3, t.getTransactionId());
                 });
+            } finally {
+                execLock.writeLock().unlock();
             }
         }
     }
 
+    @Override
+    public void flushCache() {
+        super.flushCache();
+        executeDeletes();
+    }
+
     @Override
     public void close() {
         super.close();
@@ -220,5 +317,6 @@ public class DbUpdateTransaction extends DbUpdate {
         private final Map<String, BtcTransaction> addMap = new HashMap<>();
         private final Map<Integer, BtcTransaction> addMapId = new HashMap<>();
         private final Set<BtcTransaction> updateInOutQueue = new HashSet<>();
+        private final Set<Integer> deleteQueue = new HashSet<>();
     }
 }
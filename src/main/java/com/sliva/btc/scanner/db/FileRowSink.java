@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append rows to file &lt;dir&gt;/&lt;table&gt;.data per table. Rows are
+ * encoded in LOAD DATA format with binary values escaped, the same encoding
+ * that is streamed to DB with --db-load-data. Every batch is written with one
+ * call without buffering, so files are complete after each batch even if
+ * the process is killed.
+ *
+ * Update rows are appended to the file of their staging table. Script
+ * &lt;dir&gt;/load.sql is re-written when a new table appears: LOAD DATA
+ * statement for every table, then for every staging table its create
+ * statement, LOAD DATA and the statements that apply the updates. It is run
+ * by mysql client from the same directory.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class FileRowSink implements RowSink {
+
+    public static final String DATA_FILE_SUFFIX = ".data";
+    public static final String LOAD_SCRIPT = "load.sql";
+    private final File dir;
+    private final Map<String, TableFile> tables = new LinkedHashMap<>();
+    private final Map<String, StagedUpdate> updates = new LinkedHashMap<>();
+
+    public FileRowSink(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory: " + dir.getAbsolutePath());
+        }
+        this.dir = dir;
+    }
+
+    public File getDataFile(String tableName) {
+        return new File(dir, tableName + DATA_FILE_SUFFIX);
+    }
+
+    @Override
+    public <T> int writeUpdates(Collection<T> list, StagedUpdate update, DBConnection conn, BatchExecutor.FillRow<T> fillCallback) {
+        synchronized (tables) {
+            //registered before the table file, so the script gets the apply statements when the file is created
+            updates.putIfAbsent(update.getTableName(), update);
+        }
+        return write(list, update.getTableName(), update.getColumns(), conn, fillCallback);
+    }
+
+    @Override
+    public <T> int write(Collection<T> list, String tableName, String columns, DBConnection conn, BatchExecutor.FillRow<T> fillCallback) {
+        if (list.isEmpty()) {
+            return 0;
+        }
+        try {
+            TableFile tf = getTableFile(tableName, columns);
+            synchronized (tf) {
+                BatchExecutor.writeLoadData(list, tf.out, fillCallback);
+            }
+            return list.size();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write rows to " + getDataFile(tableName).getAbsolutePath(), e);
+        }
+    }
+
+    private TableFile getTableFile(String tableName, String columns) throws IOException {
+        synchronized (tables) {
+            TableFile result = tables.get(tableName);
+            if (result == null) {
+                result = new TableFile(columns, new FileOutputStream(getDataFile(tableName), true));
+                tables.put(tableName, result);
+                writeLoadScript();
+                log.info("FileRowSink: Writing table {} to {}", tableName, getDataFile(tableName).getAbsolutePath());
+            } else if (!result.columns.equals(columns)) {
+                throw new IllegalArgumentException("Columns of table " + tableName + " changed from (" + result.columns + ") to (" + columns + ")");
+            }
+            return result;
+        }
+    }
+
+    private void writeLoadScript() throws IOException {
+        try (PrintStream out = new PrintStream(new File(dir, LOAD_SCRIPT), "UTF-8")) {
+            for (Map.Entry<String, TableFile> e : tables.entrySet()) {
+                if (!updates.containsKey(e.getKey())) {
+                    out.println(getLoadStatement(e.getKey(), e.getValue().columns));
+                }
+            }
+            for (StagedUpdate u : updates.values()) {
+                if (tables.containsKey(u.getTableName())) {
+                    out.println(u.getCreateSql() + ";");
+                    out.println(getLoadStatement(u.getTableName(), u.getColumns()));
+                    u.getApplySql().forEach(sql -> out.println(sql + ";"));
+                }
+            }
+        }
+    }
+
+    private static String getLoadStatement(String tableName, String columns) {
+        return "LOAD DATA LOCAL INFILE '" + tableName + DATA_FILE_SUFFIX + "' INTO TABLE " + tableName
+                + " CHARACTER SET binary (" + columns + ");";
+    }
+
+    @Override
+    public boolean isReadable() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (tables) {
+            for (TableFile tf : tables.values()) {
+                synchronized (tf) {
+                    tf.out.close();
+                }
+            }
+        }
+    }
+
+    private static final class TableFile {
+
+        private final String columns;
+        private final FileOutputStream out;
+
+        private TableFile(String columns, FileOutputStream out) {
+            this.columns = columns;
+            this.out = out;
+        }
+    }
+}
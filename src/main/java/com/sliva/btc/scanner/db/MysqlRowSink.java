@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.util.Collection;
+
+/**
+ * Insert rows into DB with multi-row INSERT or LOAD DATA, see
+ * {@link BatchExecutor#setUseLoadData(boolean)}.
+ *
+ * @author Sliva Co
+ */
+public class MysqlRowSink implements RowSink {
+
+    @Override
+    public <T> int write(Collection<T> list, String tableName, String columns, DBConnection conn, BatchExecutor.FillRow<T> fillCallback) {
+        return BatchExecutor.executeDbInsert(list, tableName, columns, conn, fillCallback);
+    }
+
+    @Override
+    public <T> int writeUpdates(Collection<T> list, StagedUpdate update, DBConnection conn, BatchExecutor.FillRow<T> fillCallback) {
+        throw new UnsupportedOperationException("Updates of DB rows are executed on DB directly");
+    }
+
+    @Override
+    public boolean isReadable() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
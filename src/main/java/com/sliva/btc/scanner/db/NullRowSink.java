@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Discard rows. Only number of rows per table is counted. Rows are not
+ * encoded, so a run measures block parsing, resolving and queueing alone.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class NullRowSink implements RowSink {
+
+    private final Map<String, AtomicLong> rowCounts = new ConcurrentHashMap<>();
+
+    @Override
+    public <T> int write(Collection<T> list, String tableName, String columns, DBConnection conn, BatchExecutor.FillRow<T> fillCallback) {
+        rowCounts.computeIfAbsent(tableName, t -> new AtomicLong()).addAndGet(list.size());
+        return list.size();
+    }
+
+    @Override
+    public <T> int writeUpdates(Collection<T> list, StagedUpdate update, DBConnection conn, BatchExecutor.FillRow<T> fillCallback) {
+        return write(list, update.getTableName(), update.getColumns(), conn, fillCallback);
+    }
+
+    /**
+     * Get number of rows discarded so far.
+     *
+     * @param tableName table name
+     * @return number of rows
+     */
+    public long getRowCount(String tableName) {
+        AtomicLong result = rowCounts.get(tableName);
+        return result == null ? 0 : result.get();
+    }
+
+    @Override
+    public boolean isReadable() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        log.info("NullRowSink: Discarded rows: {}", rowCounts);
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.util.LongIntHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Insert queue of outputs stored column-wise in primitive arrays used as a
+ * ring buffer. Entries are indexed by (transactionId,pos) and by
+ * transactionId, so queued values can be looked up and patched in place
+ * without creating objects. Not thread safe, callers synchronize on the
+ * owning cache.
+ *
+ * Entries taken for insert by {@link #poll(int)} stay visible to lookups
+ * until {@link #release(List)} is called after they are stored in DB.
+ *
+ * When output table is partitioned, {@link #getLanes()} tracks queued
+ * entries per partition and {@link #poll(int, int)} takes entries of one
+ * partition only.
+ *
+ * @author Sliva Co
+ */
+public class OutputQueue {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NO_SLOT = -1;
+    private static final byte STATE_FREE = 0;
+    private static final byte STATE_QUEUED = 1;
+    private static final byte STATE_IN_FLIGHT = 2;
+    private int[] transactionIds;
+    private short[] positions;
+    private int[] addressIds;
+    private long[] amounts;
+    private byte[] statuses;
+    private byte[] states;
+    private int[] prevInTransaction;
+    private final LongIntHashMap outputIndex = new LongIntHashMap(INITIAL_CAPACITY);
+    private final LongIntHashMap transactionIndex = new LongIntHashMap(INITIAL_CAPACITY);
+    private final PartitionLanes lanes = new PartitionLanes();
+    private int start;
+    private int pollPos;
+    private int end;
+    private int queued;
+
+    public OutputQueue() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Number of entries waiting to be taken by {@link #poll(int)}.
+     *
+     * @return number of queued entries
+     */
+    public int size() {
+        return queued;
+    }
+
+    public boolean isEmpty() {
+        return queued == 0;
+    }
+
+    PartitionLanes getLanes() {
+        return lanes;
+    }
+
+    public void add(TxOutput txOutput) {
+        long key = key(txOutput.getTransactionId(), txOutput.getPos());
+        int existing = outputIndex.get(key, NO_SLOT);
+        if (existing != NO_SLOT) {
+            if (states[existing] == STATE_QUEUED) {
+                //same output added again - keep the position, replace values
+                set(existing, txOutput);
+                return;
+            }
+            unlink(existing);
+        }
+        if (end - start == transactionIds.length) {
+            grow();
+        }
+        int slot = slot(end++);
+        set(slot, txOutput);
+        states[slot] = STATE_QUEUED;
+        lanes.added(txOutput.getTransactionId());
+        prevInTransaction[slot] = transactionIndex.get(txOutput.getTransactionId(), NO_SLOT);
+        transactionIndex.put(txOutput.getTransactionId(), slot);
+        outputIndex.put(key, slot);
+        queued++;
+    }
+
+    public TxOutput get(int transactionId, int pos) {
+        int slot = outputIndex.get(key(transactionId, pos), NO_SLOT);
+        return slot == NO_SLOT ? null : toTxOutput(slot);
+    }
+
+    /**
+     * Get all outputs of the transaction that are in the queue.
+     *
+     * @param transactionId transaction ID
+     * @return list of outputs in order they were added or null if there are
+     * none
+     */
+    public List<TxOutput> getByTransaction(int transactionId) {
+        int slot = transactionIndex.get(transactionId, NO_SLOT);
+        if (slot == NO_SLOT) {
+            return null;
+        }
+        List<TxOutput> result = new ArrayList<>();
+        for (; slot != NO_SLOT; slot = prevInTransaction[slot]) {
+            result.add(toTxOutput(slot));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Update status of the output in place.
+     *
+     * @param transactionId transaction ID
+     * @param pos output position
+     * @param status new status
+     * @return true if output is queued and will be inserted with new value,
+     * false if it is not in the queue or is being inserted already
+     */
+    public boolean setStatus(int transactionId, int pos, byte status) {
+        int slot = outputIndex.get(key(transactionId, pos), NO_SLOT);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        statuses[slot] = status;
+        return states[slot] == STATE_QUEUED;
+    }
+
+    /**
+     * Update address of the output in place.
+     *
+     * @param transactionId transaction ID
+     * @param pos output position
+     * @param addressId new address ID
+     * @return true if output is queued and will be inserted with new value,
+     * false if it is not in the queue or is being inserted already
+     */
+    public boolean setAddressId(int transactionId, int pos, int addressId) {
+        int slot = outputIndex.get(key(transactionId, pos), NO_SLOT);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        addressIds[slot] = addressId;
+        return states[slot] == STATE_QUEUED;
+    }
+
+    /**
+     * Update amount of the output in place.
+     *
+     * @param transactionId transaction ID
+     * @param pos output position
+     * @param amount new amount
+     * @return true if output is queued and will be inserted with new value,
+     * false if it is not in the queue or is being inserted already
+     */
+    public boolean setAmount(int transactionId, int pos, long amount) {
+        int slot = outputIndex.get(key(transactionId, pos), NO_SLOT);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        amounts[slot] = amount;
+        return states[slot] == STATE_QUEUED;
+    }
+
+    /**
+     * Remove output from the queue and the indexes.
+     *
+     * @param transactionId transaction ID
+     * @param pos output position
+     * @return true if output was queued and now will not be inserted
+     */
+    public boolean remove(int transactionId, int pos) {
+        int slot = outputIndex.get(key(transactionId, pos), NO_SLOT);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        boolean wasQueued = states[slot] == STATE_QUEUED;
+        unlink(slot);
+        return wasQueued;
+    }
+
+    /**
+     * Take oldest queued entries for insert. Entries stay in indexes until
+     * released.
+     *
+     * @param maxSize maximum number of entries to take
+     * @return list of entries, empty if queue is empty
+     */
+    public List<TxOutput> poll(int maxSize) {
+        return poll(maxSize, -1);
+    }
+
+    /**
+     * Take oldest queued entries of the partition for insert. Entries of
+     * other partitions are skipped and stay queued.
+     *
+     * @param maxSize maximum number of entries to take
+     * @param partition partition number, -1 for any partition
+     * @return list of entries, empty if there are no queued entries of the
+     * partition
+     */
+    public List<TxOutput> poll(int maxSize, int partition) {
+        List<TxOutput> result = new ArrayList<>(Math.min(maxSize, queued));
+        int firstSkipped = -1;
+        int p = pollPos;
+        for (; result.size() < maxSize && p < end; p++) {
+            int slot = slot(p);
+            if (states[slot] == STATE_QUEUED) {
+                if (partition < 0 || DbPartitioning.getPartition(transactionIds[slot]) == partition) {
+                    states[slot] = STATE_IN_FLIGHT;
+                    queued--;
+                    lanes.removed(transactionIds[slot]);
+                    result.add(toTxOutput(slot));
+                } else if (firstSkipped < 0) {
+                    firstSkipped = p;
+                }
+            }
+        }
+        pollPos = firstSkipped < 0 ? p : firstSkipped;
+        return result;
+    }
+
+    /**
+     * Remove entries returned by {@link #poll(int)} once they are stored in
+     * DB.
+     *
+     * @param list entries to release
+     */
+    public void release(List<TxOutput> list) {
+        for (TxOutput t : list) {
+            int slot = outputIndex.get(key(t.getTransactionId(), t.getPos()), NO_SLOT);
+            if (slot != NO_SLOT && states[slot] == STATE_IN_FLIGHT) {
+                unlink(slot);
+            }
+        }
+    }
+
+    private void unlink(int slot) {
+        if (states[slot] == STATE_QUEUED) {
+            queued--;
+            lanes.removed(transactionIds[slot]);
+        }
+        states[slot] = STATE_FREE;
+        int transactionId = transactionIds[slot];
+        outputIndex.remove(key(transactionId, positions[slot]));
+        int head = transactionIndex.get(transactionId, NO_SLOT);
+        if (head == slot) {
+            if (prevInTransaction[slot] == NO_SLOT) {
+                transactionIndex.remove(transactionId);
+            } else {
+                transactionIndex.put(transactionId, prevInTransaction[slot]);
+            }
+        } else {
+            for (int s = head; s != NO_SLOT; s = prevInTransaction[s]) {
+                if (prevInTransaction[s] == slot) {
+                    prevInTransaction[s] = prevInTransaction[slot];
+                    break;
+                }
+            }
+        }
+        //reclaim space at the head of the ring
+        while (start < end && states[slot(start)] == STATE_FREE) {
+            start++;
+        }
+        if (pollPos < start) {
+            pollPos = start;
+        }
+        if (start == end) {
+            start = pollPos = end = 0;
+        } else if (start >= transactionIds.length) {
+            //keep ring positions from overflowing
+            start -= transactionIds.length;
+            pollPos -= transactionIds.length;
+            end -= transactionIds.length;
+        }
+    }
+
+    private void set(int slot, TxOutput txOutput) {
+        transactionIds[slot] = txOutput.getTransactionId();
+        positions[slot] = txOutput.getPos();
+        addressIds[slot] = txOutput.getAddressId();
+        amounts[slot] = txOutput.getAmount();
+        statuses[slot] = txOutput.getStatus();
+    }
+
+    private TxOutput toTxOutput(int slot) {
+        return TxOutput.builder()
+                .transactionId(transactionIds[slot])
+                .pos(positions[slot])
+                .addressId(addressIds[slot])
+                .amount(amounts[slot])
+                .status(statuses[slot])
+                .build();
+    }
+
+    private int slot(int position) {
+        return position & (transactionIds.length - 1);
+    }
+
+    /**
+     * Double the capacity. Live entries are moved to the beginning of new
+     * arrays in ring order and indexes are rebuilt.
+     */
+    private void grow() {
+        int[] oTransactionIds = transactionIds;
+        short[] oPositions = positions;
+        int[] oAddressIds = addressIds;
+        long[] oAmounts = amounts;
+        byte[] oStatuses = statuses;
+        byte[] oStates = states;
+        int oMask = oTransactionIds.length - 1;
+        int oStart = start;
+        int oPollPos = pollPos;
+        int oEnd = end;
+        allocate(oTransactionIds.length * 2);
+        outputIndex.clear();
+        transactionIndex.clear();
+        start = pollPos = end = 0;
+        for (int p = oStart; p < oEnd; p++) {
+            int o = p & oMask;
+            if (oStates[o] == STATE_FREE) {
+                continue;
+            }
+            if (p < oPollPos) {
+                pollPos = end + 1;
+            }
+            int slot = end++;
+            transactionIds[slot] = oTransactionIds[o];
+            positions[slot] = oPositions[o];
+            addressIds[slot] = oAddressIds[o];
+            amounts[slot] = oAmounts[o];
+            statuses[slot] = oStatuses[o];
+            states[slot] = oStates[o];
+            prevInTransaction[slot] = transactionIndex.get(transactionIds[slot], NO_SLOT);
+            transactionIndex.put(transactionIds[slot], slot);
+            outputIndex.put(key(transactionIds[slot], positions[slot]), slot);
+        }
+    }
+
+    private void allocate(int capacity) {
+        transactionIds = new int[capacity];
+        positions = new short[capacity];
+        addressIds = new int[capacity];
+        amounts = new long[capacity];
+        statuses = new byte[capacity];
+        states = new byte[capacity];
+        prevInTransaction = new int[capacity];
+        Arrays.fill(prevInTransaction, NO_SLOT);
+    }
+
+    private static long key(int transactionId, int pos) {
+        return ((long) transactionId << 16) | (pos & 0xFFFF);
+    }
+}
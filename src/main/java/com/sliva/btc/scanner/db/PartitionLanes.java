@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writer lanes of an insert queue of a partitioned table. Counts queued
+ * records per partition and keeps track of partitions with a batch being
+ * inserted, so concurrent batches of one table go to different partitions.
+ * Counting is skipped when partitioning is disabled. Not thread safe,
+ * callers synchronize on the owning cache.
+ *
+ * @author Sliva Co
+ */
+class PartitionLanes {
+
+    private final Map<Integer, Integer> queued = new HashMap<>();
+    private final Set<Integer> busy = new HashSet<>();
+
+    void added(int transactionId) {
+        if (DbPartitioning.isEnabled()) {
+            queued.merge(DbPartitioning.getPartition(transactionId), 1, Integer::sum);
+        }
+    }
+
+    void removed(int transactionId) {
+        if (DbPartitioning.isEnabled()) {
+            queued.computeIfPresent(DbPartitioning.getPartition(transactionId), (p, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    /**
+     * Check if there are queued records in a partition that is not being
+     * inserted.
+     *
+     * @return true if a new batch can be started
+     */
+    boolean hasIdleLane() {
+        return queued.keySet().stream().anyMatch(p -> !busy.contains(p));
+    }
+
+    /**
+     * Take the idle partition with the most queued records.
+     *
+     * @return partition number or -1 if there is no idle partition with
+     * queued records
+     */
+    int claim() {
+        int result = -1;
+        int resultQueued = 0;
+        for (Map.Entry<Integer, Integer> e : queued.entrySet()) {
+            if (!busy.contains(e.getKey()) && e.getValue() > resultQueued) {
+                result = e.getKey();
+                resultQueued = e.getValue();
+            }
+        }
+        if (result >= 0) {
+            busy.add(result);
+        }
+        return result;
+    }
+
+    void release(int partition) {
+        busy.remove(partition);
+    }
+
+    /**
+     * Check if a batch of any partition is being inserted.
+     *
+     * @return true if some lane is busy
+     */
+    boolean isBusy() {
+        return !busy.isEmpty();
+    }
+}
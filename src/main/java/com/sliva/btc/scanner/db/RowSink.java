@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Destination of rows emitted by DB updaters. Every batched insert of the
+ * scanner goes through {@link BatchExecutor#executeInsert}, which passes the
+ * rows to the configured sink:
+ * <ul>
+ * <li>{@link MysqlRowSink} - insert into DB (default),</li>
+ * <li>{@link NullRowSink} - discard rows, so parsing and resolving can be
+ * measured without DB writes,</li>
+ * <li>{@link FileRowSink} - append rows to per-table files for a staged bulk
+ * load.</li>
+ * </ul>
+ *
+ * Inserts go to the sink. Updates of rows written to a sink that is not
+ * readable go to the sink as staged update rows, see
+ * {@link #writeUpdates}. Lookups and deletes are still executed on DB
+ * connection. Rows written to a sink that is not readable can't be looked up
+ * in DB, they are resolved from DbCached* caches, which are not bounded then
+ * - see {@link BatchExecutor#getCacheLimit(int)}.
+ *
+ * @author Sliva Co
+ */
+public interface RowSink extends AutoCloseable {
+
+    /**
+     * Write rows of one table. Can be called concurrently by writer threads.
+     *
+     * @param <T> record type
+     * @param list records to write
+     * @param tableName table name
+     * @param columns comma separated list of columns
+     * @param conn DB connection of the calling updater
+     * @param fillCallback appends values of one record to the row
+     * @return number of rows written
+     */
+    <T> int write(Collection<T> list, String tableName, String columns, DBConnection conn, BatchExecutor.FillRow<T> fillCallback);
+
+    /**
+     * Write update rows of rows written before. Only called on sinks that are
+     * not readable, readable sinks get updates executed on DB directly. Can
+     * be called concurrently by writer threads.
+     *
+     * @param <T> record type
+     * @param list update records to write
+     * @param update staging table of the updates
+     * @param conn DB connection of the calling updater
+     * @param fillCallback appends values of one record to the row
+     * @return number of rows written
+     */
+    <T> int writeUpdates(Collection<T> list, StagedUpdate update, DBConnection conn, BatchExecutor.FillRow<T> fillCallback);
+
+    /**
+     * Check if written rows can be read back by DB lookups.
+     *
+     * @return true if rows are stored in DB
+     */
+    boolean isReadable();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Updates of rows written to a sink that is not readable. Update rows are
+ * staged in a table of their own and applied to the target table by SQL
+ * statements after all tables are loaded, see
+ * {@link RowSink#writeUpdates}.
+ *
+ * @author Sliva Co
+ */
+@Getter
+public final class StagedUpdate {
+
+    private final String tableName;
+    private final String columns;
+    private final String createSql;
+    private final List<String> applySql;
+
+    /**
+     * @param tableName staging table name
+     * @param columns comma separated list of columns of update rows
+     * @param createSql statement that creates the staging table
+     * @param applySql statements that apply staged rows to the target table
+     */
+    public StagedUpdate(String tableName, String columns, String createSql, String... applySql) {
+        this.tableName = tableName;
+        this.columns = columns;
+        this.createSql = createSql;
+        this.applySql = Collections.unmodifiableList(Arrays.asList(applySql));
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent dictionary of raw address hash to address ID for one address
+ * type. Open addressing table in a memory-mapped file, keyed by the whole
+ * 20 or 32 byte hash, so there are no false hits and lookups don't allocate.
+ *
+ * Slot layout: address ID (4 bytes), address hash. Free slot has address ID
+ * 0, removed entry has -1. Lookups are lock free: address ID of a new entry
+ * is written after its hash, a lookup racing with the add can only miss it.
+ * Callers confirm a miss with {@link #findSync(byte[])} under their own lock
+ * before adding new address.
+ *
+ * Table is not resized. When it reaches maximum load factor new addresses
+ * are not added and the dictionary is not complete any more.
+ *
+ * Header keeps synced address ID: all addresses up to it were stored in DB
+ * when it was marked. Addresses above it can be missing from DB after
+ * unclean stop, also below the highest ID in DB, so they are verified
+ * against DB on next start.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class AddressDictionary implements AutoCloseable {
+
+    private static final int MAGIC = 0x41444943;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_KEY_LENGTH = 8;
+    private static final int HEADER_SLOTS = 16;
+    private static final int HEADER_USED = 24;
+    private static final int HEADER_SIZE_FIELD = 32;
+    private static final int HEADER_MAX_ADDRESS_ID = 40;
+    private static final int HEADER_SYNCED_ADDRESS_ID = 44;
+    private static final long MIN_DEFAULT_SLOTS = 1L << 20;
+    private static final int MAX_CHUNK_BITS = 25;
+    private static final double MAX_LOAD_FACTOR = 0.8;
+    private static final int FREE = 0;
+    private static final int DELETED = -1;
+    private final File file;
+    private final int keyLength;
+    private final int slotSize;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] chunks;
+    private final int chunkBits;
+    private final long chunkMask;
+    private final long slots;
+    private final long mask;
+    private final long maxUsed;
+    private long used;
+    private long size;
+    private int maxAddressId;
+    private int syncedAddressId;
+    private volatile boolean complete;
+    private boolean fullReported;
+
+    /**
+     * Open dictionary file or create new one.
+     *
+     * @param file dictionary file
+     * @param addressType address type
+     * @param slots number of slots of a new file, rounded up to power of
+     * two. Ignored if file exists
+     * @throws IOException
+     */
+    public AddressDictionary(File file, SrcAddressType addressType, long slots) throws IOException {
+        this.file = file;
+        this.keyLength = getKeyLength(addressType);
+        this.slotSize = 4 + keyLength;
+        boolean exists = file.length() > 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+            if (!exists) {
+                slots = Long.highestOneBit(Math.max(16, slots) - 1) << 1;
+                raf.setLength(HEADER_SIZE + slots * slotSize);
+            }
+            header = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (exists) {
+                if (header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != VERSION
+                        || header.getInt(HEADER_KEY_LENGTH) != keyLength) {
+                    throw new IOException("Not a " + addressType + " address dictionary file: " + file.getAbsolutePath());
+                }
+                slots = header.getLong(HEADER_SLOTS);
+                used = header.getLong(HEADER_USED);
+                size = header.getLong(HEADER_SIZE_FIELD);
+                maxAddressId = header.getInt(HEADER_MAX_ADDRESS_ID);
+                syncedAddressId = header.getInt(HEADER_SYNCED_ADDRESS_ID);
+            } else {
+                header.putInt(HEADER_MAGIC, MAGIC);
+                header.putInt(HEADER_VERSION, VERSION);
+                header.putInt(HEADER_KEY_LENGTH, keyLength);
+                header.putLong(HEADER_SLOTS, slots);
+            }
+            this.slots = slots;
+            this.mask = slots - 1;
+            this.maxUsed = (long) (slots * MAX_LOAD_FACTOR);
+            this.chunkBits = Math.min(MAX_CHUNK_BITS, Long.numberOfTrailingZeros(slots));
+            this.chunkMask = (1L << chunkBits) - 1;
+            this.chunks = new MappedByteBuffer[(int) (slots >>> chunkBits)];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = ch.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + ((long) i << chunkBits) * slotSize, (1L << chunkBits) * slotSize);
+            }
+        }
+        log.info("AddressDictionary: {} - slots: {}, addresses: {}, max address ID: {}", file.getAbsolutePath(), slots, size, maxAddressId);
+    }
+
+    /**
+     * Get length of address hash of the type.
+     *
+     * @param addressType address type
+     * @return number of bytes
+     */
+    public static int getKeyLength(SrcAddressType addressType) {
+        return addressType == SrcAddressType.P2WSH ? 32 : 20;
+    }
+
+    /**
+     * Get default number of slots for a new dictionary: twice the number of
+     * addresses of the type in DB, so the dictionary has room to grow before
+     * it reaches maximum load factor.
+     *
+     * @param addresses number of addresses of the type in DB
+     * @return number of slots
+     */
+    public static long getDefaultSlots(long addresses) {
+        return Math.max(MIN_DEFAULT_SLOTS, addresses * 2);
+    }
+
+    public long getSlots() {
+        return slots;
+    }
+
+    /**
+     * Get number of addresses in the dictionary.
+     *
+     * @return number of addresses
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get highest address ID in the dictionary.
+     *
+     * @return address ID or 0 if dictionary is empty
+     */
+    public int getMaxAddressId() {
+        return maxAddressId;
+    }
+
+    /**
+     * Get highest address ID known to be stored in DB together with all
+     * addresses below it.
+     *
+     * @return address ID or 0 if dictionary was never synchronized
+     */
+    public int getSyncedAddressId() {
+        return syncedAddressId;
+    }
+
+    /**
+     * Mark all addresses up to given ID as stored in DB. Header is forced to
+     * disk.
+     *
+     * @param addressId synced address ID
+     */
+    public synchronized void markSynced(int addressId) {
+        syncedAddressId = addressId;
+        header.putInt(HEADER_SYNCED_ADDRESS_ID, addressId);
+        header.force();
+    }
+
+    /**
+     * Check if dictionary has all addresses of the type, so a miss means
+     * address is new.
+     *
+     * @return true if dictionary is complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Mark dictionary complete after it was synchronized with DB. Ignored if
+     * dictionary is full.
+     *
+     * @param complete true if dictionary has all addresses
+     */
+    public synchronized void setComplete(boolean complete) {
+        this.complete = complete && used < maxUsed;
+    }
+
+    /**
+     * Find address ID. Lock free.
+     *
+     * @param address address hash
+     * @return address ID or 0 if not found
+     */
+    public int find(byte[] address) {
+        if (address.length != keyLength) {
+            return 0;
+        }
+        for (long i = toHash(address) & mask;; i = (i + 1) & mask) {
+            int addressId = getAddressId(i);
+            if (addressId == FREE) {
+                return 0;
+            }
+            if (addressId != DELETED && keyEquals(i, address)) {
+                return addressId;
+            }
+        }
+    }
+
+    /**
+     * Find address ID, seeing all completed adds.
+     *
+     * @param address address hash
+     * @return address ID or 0 if not found
+     */
+    public synchronized int findSync(byte[] address) {
+        return find(address);
+    }
+
+    /**
+     * Add address. Address already in the dictionary keeps its ID.
+     *
+     * @param address address hash
+     * @param addressId address ID
+     */
+    public synchronized void add(byte[] address, int addressId) {
+        if (address.length != keyLength) {
+            log.debug("AddressDictionary: Address of unexpected length is not added: {}", addressId);
+            return;
+        }
+        long target = -1;
+        for (long i = toHash(address) & mask;; i = (i + 1) & mask) {
+            int id = getAddressId(i);
+            if (id == FREE) {
+                if (target < 0) {
+                    target = i;
+                }
+                break;
+            }
+            if (id == DELETED) {
+                if (target < 0) {
+                    target = i;
+                }
+            } else if (keyEquals(i, address)) {
+                return;
+            }
+        }
+        if (getAddressId(target) == FREE) {
+            if (used >= maxUsed) {
+                if (!fullReported) {
+                    log.warn("AddressDictionary: {} is full. New addresses are not added. Re-create the file with more slots", file.getAbsolutePath());
+                    fullReported = true;
+                }
+                complete = false;
+                return;
+            }
+            used++;
+            header.putLong(HEADER_USED, used);
+        }
+        MappedByteBuffer chunk = chunks[(int) (target >>> chunkBits)];
+        int offset = (int) (target & chunkMask) * slotSize;
+        for (int j = 0; j < keyLength; j++) {
+            chunk.put(offset + 4 + j, address[j]);
+        }
+        chunk.putInt(offset, addressId);
+        size++;
+        header.putLong(HEADER_SIZE_FIELD, size);
+        if (addressId > maxAddressId) {
+            maxAddressId = addressId;
+            header.putInt(HEADER_MAX_ADDRESS_ID, addressId);
+        }
+    }
+
+    /**
+     * Remove addresses with ID above given one, i.e. added to dictionary but
+     * never stored in DB. Scans the whole table, so it is only done if
+     * dictionary has such addresses.
+     *
+     * @param addressId last valid address ID
+     */
+    public synchronized void invalidateAbove(int addressId) {
+        if (maxAddressId <= addressId) {
+            return;
+        }
+        long s = System.currentTimeMillis();
+        long n = 0;
+        for (long i = 0; i < slots; i++) {
+            if (getAddressId(i) > addressId) {
+                chunks[(int) (i >>> chunkBits)].putInt((int) (i & chunkMask) * slotSize, DELETED);
+                n++;
+            }
+        }
+        size -= n;
+        header.putLong(HEADER_SIZE_FIELD, size);
+        maxAddressId = addressId;
+        header.putInt(HEADER_MAX_ADDRESS_ID, addressId);
+        if (syncedAddressId > addressId) {
+            syncedAddressId = addressId;
+            header.putInt(HEADER_SYNCED_ADDRESS_ID, addressId);
+        }
+        log.info("AddressDictionary: Removed {} addresses above ID {}. Runtime: {} ms.", n, addressId, System.currentTimeMillis() - s);
+    }
+
+    /**
+     * Force dictionary file content to disk.
+     */
+    public synchronized void sync() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.force();
+    }
+
+    @Override
+    public void close() {
+        sync();
+    }
+
+    private int getAddressId(long slot) {
+        return chunks[(int) (slot >>> chunkBits)].getInt((int) (slot & chunkMask) * slotSize);
+    }
+
+    private boolean keyEquals(long slot, byte[] address) {
+        MappedByteBuffer chunk = chunks[(int) (slot >>> chunkBits)];
+        int offset = (int) (slot & chunkMask) * slotSize + 4;
+        for (int j = 0; j < keyLength; j++) {
+            if (chunk.get(offset + j) != address[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long toHash(byte[] address) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (address[i] & 0xFF);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.BtcWallet;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import com.sliva.btc.scanner.util.Utils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Embedded {@link Storage} in local directory, does not need DB server.
+ * Every table is a {@link SegmentTable} of fixed size records, appended in
+ * order of primary key, which matches the order of the blockchain scan.
+ * Lookups by txid and by address go through hash index on the first 8
+ * bytes of the value.
+ *
+ * Primary keys: transaction ID, (transaction ID, pos) for outputs and
+ * inputs, address ID and wallet ID. Wallet name and description are stored
+ * as UTF-8 truncated to {@link #WALLET_NAME_SIZE} and
+ * {@link #WALLET_DESCRIPTION_SIZE} bytes.
+ *
+ * Not thread safe for writes, readers can run concurrently with a single
+ * writer.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class EmbeddedStorage implements Storage {
+
+    public static final int DEFAULT_SEGMENT_RECORDS = 4 * 1024 * 1024;
+    public static final int WALLET_NAME_SIZE = 64;
+    public static final int WALLET_DESCRIPTION_SIZE = 192;
+    private static final int TXID_SIZE = 32;
+    private static final int MAX_ADDRESS_SIZE = 32;
+    private static final int TRANSACTION_RECORD_SIZE = TXID_SIZE + 12;
+    private static final int OUTPUT_RECORD_SIZE = 13;
+    private static final int INPUT_RECORD_SIZE = 6;
+    private static final int ADDRESS_RECORD_SIZE = 1 + MAX_ADDRESS_SIZE + 4;
+    private static final int WALLET_RECORD_SIZE = WALLET_NAME_SIZE + WALLET_DESCRIPTION_SIZE;
+    private static final int OUTPUT_STATUS_OFFSET = 12;
+    private final SegmentTable transactions;
+    private final SegmentTable outputs;
+    private final SegmentTable inputs;
+    private final Map<SrcAddressType, SegmentTable> addresses = new EnumMap<>(SrcAddressType.class);
+    private final SegmentTable wallets;
+    private final List<SegmentTable> tables = new ArrayList<>();
+
+    public EmbeddedStorage(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_RECORDS);
+    }
+
+    /**
+     * @param dir data directory, created if does not exist
+     * @param segmentRecords number of records per segment file
+     * @throws IOException
+     */
+    public EmbeddedStorage(File dir, int segmentRecords) throws IOException {
+        transactions = addTable(new SegmentTable(dir, "transaction", TRANSACTION_RECORD_SIZE, segmentRecords, (bb, off) -> bb.getLong(off)));
+        outputs = addTable(new SegmentTable(dir, "output", OUTPUT_RECORD_SIZE, segmentRecords, null));
+        inputs = addTable(new SegmentTable(dir, "input", INPUT_RECORD_SIZE, segmentRecords, null));
+        for (SrcAddressType t : BtcAddress.getRealTypes()) {
+            addresses.put(t, addTable(new SegmentTable(dir, "address_" + t.name().toLowerCase(),
+                    ADDRESS_RECORD_SIZE, segmentRecords, (bb, off) -> bb.getLong(off + 1))));
+        }
+        wallets = addTable(new SegmentTable(dir, "wallet", WALLET_RECORD_SIZE, segmentRecords, null));
+        log.info("Opened embedded storage in {}", dir.getAbsolutePath());
+    }
+
+    @Override
+    public BtcTransaction getTransaction(int transactionId) throws IOException {
+        byte[] r = transactions.get(transactionId);
+        return r == null ? null : toTransaction(transactionId, ByteBuffer.wrap(r));
+    }
+
+    @Override
+    public BtcTransaction findTransaction(String txid) throws IOException {
+        byte[] bin = Utils.id2bin(txid);
+        for (long key : transactions.findByHash(ByteBuffer.wrap(bin).getLong())) {
+            byte[] r = transactions.get(key);
+            if (r != null && startsWith(r, bin)) {
+                return toTransaction((int) key, ByteBuffer.wrap(r));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<TxOutput> getOutputs(int transactionId) throws IOException {
+        List<TxOutput> result = new ArrayList<>();
+        outputs.getRange(inOutKey(transactionId, (short) 0), inOutKey(transactionId + 1, (short) 0))
+                .forEach((k, v) -> result.add(toOutput(k, ByteBuffer.wrap(v))));
+        return result;
+    }
+
+    @Override
+    public TxOutput getOutput(int transactionId, short pos) throws IOException {
+        long key = inOutKey(transactionId, pos);
+        byte[] r = outputs.get(key);
+        return r == null ? null : toOutput(key, ByteBuffer.wrap(r));
+    }
+
+    @Override
+    public List<TxInput> getInputs(int transactionId) throws IOException {
+        List<TxInput> result = new ArrayList<>();
+        inputs.getRange(inOutKey(transactionId, (short) 0), inOutKey(transactionId + 1, (short) 0))
+                .forEach((k, v) -> {
+                    ByteBuffer bb = ByteBuffer.wrap(v);
+                    result.add(TxInput.builder()
+                            .transactionId((int) (k >>> 16))
+                            .pos((short) k.longValue())
+                            .inTransactionId(bb.getInt())
+                            .inPos(bb.getShort())
+                            .build());
+                });
+        return result;
+    }
+
+    @Override
+    public BtcAddress getAddress(int addressId) throws IOException {
+        SrcAddressType type = BtcAddress.getTypeFromId(addressId);
+        SegmentTable table = addresses.get(type);
+        byte[] r = table == null ? null : table.get(addressId);
+        return r == null ? null : toAddress(type, addressId, ByteBuffer.wrap(r));
+    }
+
+    @Override
+    public BtcAddress findAddress(SrcAddressType addressType, byte[] address) throws IOException {
+        SegmentTable table = getAddressTable(addressType);
+        for (long key : table.findByHash(addressHash(address))) {
+            byte[] r = table.get(key);
+            if (r != null && r[0] == address.length && Arrays.equals(Arrays.copyOfRange(r, 1, 1 + address.length), address)) {
+                return toAddress(addressType, (int) key, ByteBuffer.wrap(r));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the highest stored address ID of the type.
+     *
+     * @param addressType address type
+     * @return address ID or 0 if there are no addresses of the type
+     */
+    public int getLastAddressId(SrcAddressType addressType) {
+        return (int) Math.max(getAddressTable(addressType).getMaxKey(), 0);
+    }
+
+    @Override
+    public BtcWallet getWallet(int walletId) throws IOException {
+        byte[] r = wallets.get(walletId);
+        if (r == null) {
+            return null;
+        }
+        return BtcWallet.builder()
+                .walletId(walletId)
+                .name(fromFixedString(r, 0, WALLET_NAME_SIZE))
+                .description(fromFixedString(r, WALLET_NAME_SIZE, WALLET_DESCRIPTION_SIZE))
+                .build();
+    }
+
+    @Override
+    public void addTransaction(BtcTransaction tx) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(TRANSACTION_RECORD_SIZE);
+        bb.put(Utils.id2bin(tx.getTxid()));
+        bb.putInt(tx.getBlockHeight());
+        bb.putInt(tx.getNInputs());
+        bb.putInt(tx.getNOutputs());
+        transactions.put(tx.getTransactionId(), bb.array());
+    }
+
+    @Override
+    public void addOutput(TxOutput txOutput) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(OUTPUT_RECORD_SIZE);
+        bb.putInt(txOutput.getAddressId());
+        bb.putLong(txOutput.getAmount());
+        bb.put(txOutput.getStatus());
+        outputs.put(inOutKey(txOutput.getTransactionId(), txOutput.getPos()), bb.array());
+    }
+
+    @Override
+    public void addInput(TxInput txInput) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(INPUT_RECORD_SIZE);
+        bb.putInt(txInput.getInTransactionId());
+        bb.putShort(txInput.getInPos());
+        inputs.put(inOutKey(txInput.getTransactionId(), txInput.getPos()), bb.array());
+    }
+
+    @Override
+    public void addAddress(BtcAddress address) throws IOException {
+        byte[] a = address.getAddress();
+        if (a.length > MAX_ADDRESS_SIZE) {
+            throw new IllegalArgumentException("Address is too long: " + a.length + " bytes, addr=" + address);
+        }
+        ByteBuffer bb = ByteBuffer.allocate(ADDRESS_RECORD_SIZE);
+        bb.put((byte) a.length);
+        bb.put(a);
+        bb.putInt(1 + MAX_ADDRESS_SIZE, address.getWalletId());
+        getAddressTable(address.getType()).put(address.getAddressId(), bb.array());
+    }
+
+    @Override
+    public void addWallet(BtcWallet wallet) throws IOException {
+        byte[] r = new byte[WALLET_RECORD_SIZE];
+        toFixedString(wallet.getName(), r, 0, WALLET_NAME_SIZE);
+        toFixedString(wallet.getDescription(), r, WALLET_NAME_SIZE, WALLET_DESCRIPTION_SIZE);
+        wallets.put(wallet.getWalletId(), r);
+    }
+
+    @Override
+    public void updateOutputStatus(int transactionId, short pos, byte status) throws IOException {
+        long key = inOutKey(transactionId, pos);
+        synchronized (outputs) {
+            byte[] r = outputs.get(key);
+            if (r == null) {
+                throw new IllegalArgumentException("Output not found: " + transactionId + ":" + pos);
+            }
+            r[OUTPUT_STATUS_OFFSET] = status;
+            outputs.update(key, r);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (SegmentTable t : tables) {
+            t.sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SegmentTable t : tables) {
+            t.close();
+        }
+    }
+
+    private SegmentTable addTable(SegmentTable table) {
+        tables.add(table);
+        return table;
+    }
+
+    private SegmentTable getAddressTable(SrcAddressType addressType) {
+        SegmentTable table = addresses.get(addressType);
+        if (table == null) {
+            throw new IllegalArgumentException("Bad address type: " + addressType);
+        }
+        return table;
+    }
+
+    private static long inOutKey(int transactionId, short pos) {
+        return ((long) transactionId << 16) | (pos & 0xFFFF);
+    }
+
+    private static BtcTransaction toTransaction(int transactionId, ByteBuffer bb) {
+        byte[] txid = new byte[TXID_SIZE];
+        bb.get(txid);
+        return BtcTransaction.builder()
+                .transactionId(transactionId)
+                .txid(Utils.id2hex(txid))
+                .blockHeight(bb.getInt())
+                .nInputs(bb.getInt())
+                .nOutputs(bb.getInt())
+                .build();
+    }
+
+    private static TxOutput toOutput(long key, ByteBuffer bb) {
+        return TxOutput.builder()
+                .transactionId((int) (key >>> 16))
+                .pos((short) key)
+                .addressId(bb.getInt())
+                .amount(bb.getLong())
+                .status(bb.get())
+                .build();
+    }
+
+    private static BtcAddress toAddress(SrcAddressType type, int addressId, ByteBuffer bb) {
+        byte[] a = new byte[bb.get(0)];
+        bb.position(1);
+        bb.get(a);
+        return BtcAddress.builder()
+                .type(type)
+                .addressId(addressId)
+                .address(a)
+                .walletId(bb.getInt(1 + MAX_ADDRESS_SIZE))
+                .build();
+    }
+
+    /**
+     * Hash of the address matching the hash index of address tables, i.e.
+     * first 8 bytes of zero padded address.
+     */
+    private static long addressHash(byte[] address) {
+        return ByteBuffer.wrap(Arrays.copyOf(address, Math.max(8, address.length))).getLong();
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void toFixedString(String s, byte[] dest, int offset, int size) {
+        if (s != null) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(b, 0, dest, offset, Math.min(b.length, size));
+        }
+    }
+
+    private static String fromFixedString(byte[] src, int offset, int size) {
+        int len = 0;
+        while (len < size && src[offset + len] != 0) {
+            len++;
+        }
+        return len == 0 ? null : new String(src, offset, len, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongPredicate;
+
+/**
+ * Open addressing hash index of 64-bit hashes to 64-bit record keys, stored
+ * in a ByteBuffer, so the same layout is used for in-memory index of the
+ * active segment and for memory-mapped index files of sealed segments.
+ * Several entries can have the same hash, lookups visit all of them.
+ *
+ * Slot layout: hash (8 bytes), key + 1 (8 bytes, 0 marks free slot).
+ *
+ * @author Sliva Co
+ */
+public class HashIndex {
+
+    static final int SLOT_SIZE = 16;
+    private final ByteBuffer buffer;
+    private final int mask;
+    private int size;
+
+    private HashIndex(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.mask = buffer.capacity() / SLOT_SIZE - 1;
+        this.size = size;
+    }
+
+    /**
+     * Create empty in-memory index able to hold given number of entries.
+     *
+     * @param expectedSize expected number of entries
+     * @return new index
+     */
+    public static HashIndex allocate(int expectedSize) {
+        return new HashIndex(ByteBuffer.allocate(capacityFor(expectedSize) * SLOT_SIZE), 0);
+    }
+
+    /**
+     * Use existing index content, i.e. memory-mapped index file.
+     *
+     * @param buffer index content
+     * @return index
+     */
+    public static HashIndex wrap(ByteBuffer buffer) {
+        return new HashIndex(buffer, -1);
+    }
+
+    /**
+     * Size of buffer needed to hold given number of entries.
+     *
+     * @param expectedSize expected number of entries
+     * @return size in bytes
+     */
+    public static long bufferSize(int expectedSize) {
+        return (long) capacityFor(expectedSize) * SLOT_SIZE;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check if one more entry can be added without exceeding the load
+     * factor.
+     *
+     * @return true if index is full
+     */
+    public boolean isFull() {
+        return size + 1 > (mask + 1) / 2;
+    }
+
+    public void add(long hash, long key) {
+        if (size + 1 > mask + 1) {
+            throw new IllegalStateException("Index is full");
+        }
+        int i = mix(hash) & mask;
+        while (buffer.getLong(i * SLOT_SIZE + 8) != 0) {
+            i = (i + 1) & mask;
+        }
+        buffer.putLong(i * SLOT_SIZE, hash);
+        buffer.putLong(i * SLOT_SIZE + 8, key + 1);
+        size++;
+    }
+
+    /**
+     * Visit keys of all entries with given hash.
+     *
+     * @param hash hash
+     * @param visitor returns true to stop the lookup
+     * @return true if visitor stopped the lookup
+     */
+    public boolean find(long hash, LongPredicate visitor) {
+        int i = mix(hash) & mask;
+        long key;
+        while ((key = buffer.getLong(i * SLOT_SIZE + 8)) != 0) {
+            if (buffer.getLong(i * SLOT_SIZE) == hash && visitor.test(key - 1)) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int n = (int) Math.min(1 << 26, Math.max(16L, 2L * expectedSize));
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static int mix(long hash) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Table of fixed size records with 64-bit primary key, stored in
+ * memory-mapped segment files. New records are collected in a sorted
+ * in-memory table and appended to the active segment on flush, so each
+ * segment is sorted by key and looked up by binary search. Key ranges of
+ * segments can overlap if records come out of order, newer segments win.
+ *
+ * Optional hash index maps 64-bit hash of a secondary key (i.e. txid) to
+ * primary keys. Sealed segments have the index persisted next to them
+ * (.hix), index of the active segment is kept in memory and rebuilt on
+ * open.
+ *
+ * Record layout in segment: key (8 bytes), payload (recordSize bytes).
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class SegmentTable implements AutoCloseable {
+
+    private static final int MAGIC = 0x42545354;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_COUNT_OFFSET = 16;
+    private static final int MAX_MEMTABLE_RECORDS = 256 * 1024;
+    private final File dir;
+    private final String name;
+    private final int recordSize;
+    private final int slotSize;
+    private final int segmentRecords;
+    private final HashKey hashKey;
+    private final List<Segment> segments = new ArrayList<>();
+    private final TreeMap<Long, byte[]> memtable = new TreeMap<>();
+    private HashIndex activeIndex;
+
+    /**
+     * @param dir directory of segment files
+     * @param name table name, used as file name prefix
+     * @param recordSize payload size in bytes
+     * @param segmentRecords number of records per segment
+     * @param hashKey secondary key hash function, null if table has no hash
+     * index
+     * @throws IOException
+     */
+    public SegmentTable(File dir, String name, int recordSize, int segmentRecords, HashKey hashKey) throws IOException {
+        this.dir = dir;
+        this.name = name;
+        this.recordSize = recordSize;
+        this.slotSize = 8 + recordSize;
+        this.segmentRecords = segmentRecords;
+        this.hashKey = hashKey;
+        if (HEADER_SIZE + (long) segmentRecords * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment is too large: " + segmentRecords + " records of " + slotSize + " bytes");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir.getAbsolutePath());
+        }
+        open();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add or replace record. Record is visible to lookups immediately and is
+     * written to segment file on {@link #flush()}.
+     *
+     * @param key primary key
+     * @param record payload of recordSize bytes
+     * @throws IOException
+     */
+    public synchronized void put(long key, byte[] record) throws IOException {
+        if (record.length != recordSize) {
+            throw new IllegalArgumentException("Bad record size " + record.length + ", expected " + recordSize);
+        }
+        if (memtable.put(key, record) == null && hashKey != null) {
+            ensureActiveIndexCapacity();
+            activeIndex.add(hashKey.hash(ByteBuffer.wrap(record), 0), key);
+        }
+        if (memtable.size() >= MAX_MEMTABLE_RECORDS) {
+            flush();
+        }
+    }
+
+    /**
+     * Get record payload.
+     *
+     * @param key primary key
+     * @return copy of payload or null if not found
+     */
+    public synchronized byte[] get(long key) {
+        byte[] result = memtable.get(key);
+        if (result != null) {
+            return result.clone();
+        }
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            int pos = s.find(key);
+            if (pos >= 0) {
+                return s.read(pos);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Overwrite payload of existing record in place. Bytes of the secondary
+     * key must not change.
+     *
+     * @param key primary key
+     * @param record new payload
+     * @return true if record was found
+     */
+    public synchronized boolean update(long key, byte[] record) {
+        if (memtable.containsKey(key)) {
+            memtable.put(key, record);
+            return true;
+        }
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            int pos = s.find(key);
+            if (pos >= 0) {
+                s.write(pos, record);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get all records with keys in range.
+     *
+     * @param fromKey first key (inclusive)
+     * @param toKey last key (exclusive)
+     * @return map of key to payload, sorted by key
+     */
+    public synchronized TreeMap<Long, byte[]> getRange(long fromKey, long toKey) {
+        TreeMap<Long, byte[]> result = new TreeMap<>();
+        for (Segment s : segments) {
+            s.readRange(fromKey, toKey, result);
+        }
+        memtable.subMap(fromKey, toKey).forEach((k, v) -> result.put(k, v.clone()));
+        return result;
+    }
+
+    /**
+     * Get the highest primary key in the table.
+     *
+     * @return key or -1 if table is empty
+     */
+    public synchronized long getMaxKey() {
+        long result = memtable.isEmpty() ? -1 : memtable.lastKey();
+        for (Segment s : segments) {
+            if (s.count > 0) {
+                result = Math.max(result, s.lastKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find primary keys of records with given secondary key hash.
+     *
+     * @param hash secondary key hash
+     * @return list of candidate keys, caller has to compare secondary key
+     */
+    public synchronized List<Long> findByHash(long hash) {
+        if (hashKey == null) {
+            throw new IllegalStateException("Table " + name + " has no hash index");
+        }
+        List<Long> result = new ArrayList<>();
+        activeIndex.find(hash, k -> {
+            result.add(k);
+            return false;
+        });
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment s = segments.get(i);
+            if (s.index != null) {
+                s.index.find(hash, k -> {
+                    result.add(k);
+                    return false;
+                });
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Append in-memory records to segment files.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        for (Map.Entry<Long, byte[]> e : memtable.entrySet()) {
+            Segment active = segments.get(segments.size() - 1);
+            if (active.count == segmentRecords || (active.count > 0 && e.getKey() <= active.lastKey())) {
+                //full, or record out of order - start new segment
+                seal(active);
+                active = createSegment(segments.size());
+            }
+            active.append(e.getKey(), e.getValue());
+        }
+        memtable.clear();
+        segments.get(segments.size() - 1).writeCount();
+    }
+
+    /**
+     * Flush and force segment files to disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        segments.get(segments.size() - 1).data.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        for (Segment s : segments) {
+            s.close();
+        }
+        segments.clear();
+    }
+
+    private void open() throws IOException {
+        for (int n = 0;; n++) {
+            File f = segmentFile(n);
+            if (!f.exists()) {
+                break;
+            }
+            Segment s = new Segment(n, f);
+            segments.add(s);
+            File ixFile = indexFile(n);
+            if (hashKey != null && ixFile.exists()) {
+                s.mapIndex(ixFile);
+            }
+        }
+        if (segments.isEmpty()) {
+            createSegment(0);
+        }
+        for (int i = 0; i < segments.size() - 1; i++) {
+            //previous run stopped while sealing
+            if (hashKey != null && segments.get(i).index == null) {
+                seal(segments.get(i));
+            }
+        }
+        rebuildActiveIndex();
+        log.debug("Opened table {}: segments={}", name, segments.size());
+    }
+
+    private Segment createSegment(int n) throws IOException {
+        Segment s = new Segment(n, segmentFile(n));
+        segments.add(s);
+        rebuildActiveIndex();
+        return s;
+    }
+
+    /**
+     * Persist hash index of the segment. In-memory index of the active
+     * segment is rebuilt by the caller when new segment is created.
+     */
+    private void seal(Segment s) throws IOException {
+        s.writeCount();
+        s.data.force();
+        if (hashKey == null) {
+            return;
+        }
+        File ixFile = indexFile(s.number);
+        File tmpFile = new File(ixFile.getAbsolutePath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+            raf.setLength(HashIndex.bufferSize(s.count));
+            MappedByteBuffer bb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            HashIndex ix = HashIndex.wrap(bb);
+            for (int i = 0; i < s.count; i++) {
+                ix.add(hashKey.hash(s.data, HEADER_SIZE + i * slotSize + 8), s.key(i));
+            }
+            bb.force();
+        }
+        if (!tmpFile.renameTo(ixFile)) {
+            throw new IOException("Cannot rename file " + tmpFile.getAbsolutePath() + " to " + ixFile.getAbsolutePath());
+        }
+        s.mapIndex(ixFile);
+    }
+
+    private void rebuildActiveIndex() {
+        if (hashKey == null) {
+            return;
+        }
+        Segment active = segments.get(segments.size() - 1);
+        activeIndex = HashIndex.allocate(Math.max(active.count + memtable.size(), 1024));
+        for (int i = 0; i < active.count; i++) {
+            activeIndex.add(hashKey.hash(active.data, HEADER_SIZE + i * slotSize + 8), active.key(i));
+        }
+        memtable.forEach((k, v) -> activeIndex.add(hashKey.hash(ByteBuffer.wrap(v), 0), k));
+    }
+
+    private void ensureActiveIndexCapacity() {
+        if (activeIndex.isFull()) {
+            HashIndex ix = HashIndex.allocate(activeIndex.size() * 2);
+            Segment active = segments.get(segments.size() - 1);
+            for (int i = 0; i < active.count; i++) {
+                ix.add(hashKey.hash(active.data, HEADER_SIZE + i * slotSize + 8), active.key(i));
+            }
+            memtable.forEach((k, v) -> ix.add(hashKey.hash(ByteBuffer.wrap(v), 0), k));
+            activeIndex = ix;
+        }
+    }
+
+    private File segmentFile(int n) {
+        return new File(dir, String.format("%s.%06d.seg", name, n));
+    }
+
+    private File indexFile(int n) {
+        return new File(dir, String.format("%s.%06d.hix", name, n));
+    }
+
+    /**
+     * Hash of secondary key of the record.
+     */
+    public interface HashKey {
+
+        /**
+         * @param buffer buffer with record payload
+         * @param offset offset of the payload in buffer
+         * @return 64-bit hash
+         */
+        long hash(ByteBuffer buffer, int offset);
+    }
+
+    private final class Segment {
+
+        private final int number;
+        private final RandomAccessFile file;
+        private final MappedByteBuffer data;
+        private MappedByteBuffer indexData;
+        private HashIndex index;
+        private int count;
+
+        private Segment(int number, File f) throws IOException {
+            this.number = number;
+            boolean exists = f.exists();
+            this.file = new RandomAccessFile(f, "rw");
+            long size = HEADER_SIZE + (long) segmentRecords * slotSize;
+            if (!exists) {
+                file.setLength(size);
+            }
+            this.data = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            if (exists) {
+                if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) != slotSize) {
+                    throw new IOException("Bad segment file " + f.getAbsolutePath());
+                }
+                count = data.getInt(HEADER_COUNT_OFFSET);
+            } else {
+                data.putInt(0, MAGIC);
+                data.putInt(4, VERSION);
+                data.putInt(8, slotSize);
+                data.putInt(12, segmentRecords);
+                writeCount();
+            }
+        }
+
+        private void mapIndex(File ixFile) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(ixFile, "r")) {
+                indexData = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            index = HashIndex.wrap(indexData);
+        }
+
+        private long key(int pos) {
+            return data.getLong(HEADER_SIZE + pos * slotSize);
+        }
+
+        private long lastKey() {
+            return key(count - 1);
+        }
+
+        /**
+         * Binary search of the key.
+         *
+         * @return position of the record or negative value if not found
+         */
+        private int find(long key) {
+            int lo = 0, hi = count - 1;
+            if (count == 0 || key < key(0) || key > key(hi)) {
+                return -1;
+            }
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long k = key(mid);
+                if (k < key) {
+                    lo = mid + 1;
+                } else if (k > key) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int lowerBound(long key) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (key(mid) < key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private byte[] read(int pos) {
+            byte[] result = new byte[recordSize];
+            ByteBuffer bb = data.duplicate();
+            bb.position(HEADER_SIZE + pos * slotSize + 8);
+            bb.get(result);
+            return result;
+        }
+
+        private void readRange(long fromKey, long toKey, Map<Long, byte[]> result) {
+            for (int pos = lowerBound(fromKey); pos < count && key(pos) < toKey; pos++) {
+                result.put(key(pos), read(pos));
+            }
+        }
+
+        private void write(int pos, byte[] record) {
+            ByteBuffer bb = data.duplicate();
+            bb.position(HEADER_SIZE + pos * slotSize + 8);
+            bb.put(record);
+        }
+
+        private void append(long key, byte[] record) {
+            data.putLong(HEADER_SIZE + count * slotSize, key);
+            write(count, record);
+            count++;
+        }
+
+        private void writeCount() {
+            data.putInt(HEADER_COUNT_OFFSET, count);
+        }
+
+        private void close() throws IOException {
+            data.force();
+            file.close();
+        }
+
+        @Override
+        public String toString() {
+            return name + "#" + number + "[" + count + "]";
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.BtcWallet;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage of scanned blockchain data. Implemented by {@link EmbeddedStorage}
+ * with memory-mapped segment files in local directory. MySQL storage is
+ * accessed by the DB query and update classes directly.
+ *
+ * Writes can be buffered, {@link #flush()} makes them visible to reads and
+ * durable.
+ *
+ * @author Sliva Co
+ */
+public interface Storage extends AutoCloseable {
+
+    BtcTransaction getTransaction(int transactionId) throws IOException;
+
+    BtcTransaction findTransaction(String txid) throws IOException;
+
+    List<TxOutput> getOutputs(int transactionId) throws IOException;
+
+    TxOutput getOutput(int transactionId, short pos) throws IOException;
+
+    List<TxInput> getInputs(int transactionId) throws IOException;
+
+    BtcAddress getAddress(int addressId) throws IOException;
+
+    BtcAddress findAddress(SrcAddressType addressType, byte[] address) throws IOException;
+
+    BtcWallet getWallet(int walletId) throws IOException;
+
+    void addTransaction(BtcTransaction tx) throws IOException;
+
+    void addOutput(TxOutput txOutput) throws IOException;
+
+    void addInput(TxInput txInput) throws IOException;
+
+    void addAddress(BtcAddress address) throws IOException;
+
+    void addWallet(BtcWallet wallet) throws IOException;
+
+    void updateOutputStatus(int transactionId, short pos, byte status) throws IOException;
+
+    /**
+     * Store all buffered writes.
+     *
+     * @throws IOException
+     */
+    void flush() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent index of txid to transaction ID and block height, sized for the
+ * whole chain. Open addressing table in a memory-mapped file, so entries do
+ * not live on java heap and survive restarts.
+ *
+ * Slot layout: txid (32 bytes), transaction ID (4 bytes), block height (4
+ * bytes). Free slot has transaction ID 0. Probing starts at the slot
+ * selected by first 8 bytes of txid and hits are matched by the whole txid,
+ * so transactions with the same prefix are indexed separately.
+ *
+ * Table is not resized. When it reaches maximum load factor new
+ * transactions are not indexed any more. Changes are synchronized and slot
+ * writes are done under write lock of a {@link StampedLock}. Lookups are
+ * optimistic reads validated against the lock, so a reader never takes a key
+ * and a value from different writes, i.e. when a deleted slot is reused.
+ * Lookup is repeated under read lock if a slot was written meanwhile. Rolled back transactions are removed by key with
+ * {@link #deleteBlocksAbove(int, java.util.Collection)}.
+ *
+ * @author Sliva Co
+ */
+@Slf4j
+public class TxidIndex implements AutoCloseable {
+
+    private static final long MIN_DEFAULT_SLOTS = 1L << 20;
+    private static final int MAGIC = 0x54584958;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4096;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SLOTS = 8;
+    private static final int HEADER_USED = 16;
+    private static final int HEADER_SIZE_FIELD = 24;
+    private static final int HEADER_MAX_HEIGHT = 32;
+    private static final int TXID_SIZE = 32;
+    private static final int SLOT_SIZE = TXID_SIZE + 8;
+    private static final int MAX_CHUNK_BITS = 25;
+    private static final double MAX_LOAD_FACTOR = 0.8;
+    private static final long FREE = 0;
+    private static final long DELETED = -1L;
+    private final File file;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] chunks;
+    private final int chunkBits;
+    private final long chunkMask;
+    private final long slots;
+    private final long mask;
+    private final long maxUsed;
+    private final StampedLock slotLock = new StampedLock();
+    private long used;
+    private long size;
+    private int maxBlockHeight;
+    private boolean fullReported;
+
+    /**
+     * Open index file or create new one.
+     *
+     * @param file index file
+     * @param slots number of slots of a new file, rounded up to power of
+     * two. Ignored if file exists
+     * @throws IOException
+     */
+    public TxidIndex(File file, long slots) throws IOException {
+        this.file = file;
+        boolean exists = file.length() > 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel ch = raf.getChannel();
+            if (!exists) {
+                slots = Long.highestOneBit(Math.max(16, slots) - 1) << 1;
+                raf.setLength(HEADER_SIZE + slots * SLOT_SIZE);
+            }
+            header = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (exists) {
+                if (header.getInt(HEADER_MAGIC) != MAGIC) {
+                    throw new IOException("Not a txid index file: " + file.getAbsolutePath());
+                }
+                if (header.getInt(HEADER_VERSION) != VERSION) {
+                    throw new IOException("Unsupported txid index version " + header.getInt(HEADER_VERSION) + ". Re-create the file: " + file.getAbsolutePath());
+                }
+                slots = header.getLong(HEADER_SLOTS);
+                used = header.getLong(HEADER_USED);
+                size = header.getLong(HEADER_SIZE_FIELD);
+                maxBlockHeight = header.getInt(HEADER_MAX_HEIGHT);
+            } else {
+                header.putInt(HEADER_MAGIC, MAGIC);
+                header.putInt(HEADER_VERSION, VERSION);
+                header.putLong(HEADER_SLOTS, slots);
+                header.putInt(HEADER_MAX_HEIGHT, -1);
+                maxBlockHeight = -1;
+            }
+            this.slots = slots;
+            this.mask = slots - 1;
+            this.maxUsed = (long) (slots * MAX_LOAD_FACTOR);
+            this.chunkBits = Math.min(MAX_CHUNK_BITS, Long.numberOfTrailingZeros(slots));
+            this.chunkMask = (1L << chunkBits) - 1;
+            this.chunks = new MappedByteBuffer[(int) (slots >>> chunkBits)];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = ch.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + ((long) i << chunkBits) * SLOT_SIZE, (1L << chunkBits) * SLOT_SIZE);
+            }
+        }
+        log.info("TxidIndex: {} - slots: {}, indexed transactions: {}, max block height: {}", file.getAbsolutePath(), slots, size, maxBlockHeight);
+    }
+
+    /**
+     * Get default number of slots for a new index: twice the number of
+     * transactions in DB, so the index has room to grow before it reaches
+     * maximum load factor.
+     *
+     * @param transactions number of transactions in DB
+     * @return number of slots
+     */
+    public static long getDefaultSlots(long transactions) {
+        return Math.max(MIN_DEFAULT_SLOTS, transactions * 2);
+    }
+
+    public long getSlots() {
+        return slots;
+    }
+
+    /**
+     * Get number of indexed transactions.
+     *
+     * @return number of transactions
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Get highest block height of indexed transactions.
+     *
+     * @return block height or -1 if index is empty
+     */
+    public int getMaxBlockHeight() {
+        return maxBlockHeight;
+    }
+
+    /**
+     * Find transaction by txid.
+     *
+     * @param txid transaction hash
+     * @return transaction with ID and block height set, or null if txid is
+     * not indexed
+     */
+    public BtcTransaction find(String txid) {
+        long[] key = toKey(txid);
+        long stamp = slotLock.tryOptimisticRead();
+        long value = findValue(key);
+        if (!slotLock.validate(stamp)) {
+            stamp = slotLock.readLock();
+            try {
+                value = findValue(key);
+            } finally {
+                slotLock.unlockRead(stamp);
+            }
+        }
+        return value == FREE ? null : BtcTransaction.builder()
+                .transactionId(unpackTransactionId(value))
+                .txid(txid)
+                .blockHeight(unpackBlockHeight(value))
+                .build();
+    }
+
+    /**
+     * Probe slots for the key. Table always has free slots, so the probe
+     * ends even if slots are changed while it runs.
+     *
+     * @return slot value or FREE if key is not found
+     */
+    private long findValue(long[] key) {
+        for (long i = key[0] & mask;; i = (i + 1) & mask) {
+            long value = getValue(i);
+            if (value == FREE || value != DELETED && isKey(i, key)) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Add transaction to the index. Entry of already indexed txid is
+     * replaced.
+     *
+     * @param txid transaction hash
+     * @param transactionId transaction ID
+     * @param blockHeight block height
+     */
+    public synchronized void add(String txid, int transactionId, int blockHeight) {
+        long[] key = toKey(txid);
+        long packed = pack(transactionId, blockHeight);
+        long target = -1;
+        for (long i = key[0] & mask;; i = (i + 1) & mask) {
+            long value = getValue(i);
+            if (value == FREE) {
+                if (target < 0) {
+                    target = i;
+                }
+                break;
+            }
+            if (value == DELETED) {
+                if (target < 0) {
+                    target = i;
+                }
+            } else if (isKey(i, key)) {
+                writeSlot(i, null, packed);
+                updateMaxBlockHeight(blockHeight);
+                return;
+            }
+        }
+        if (getValue(target) == FREE) {
+            if (used >= maxUsed) {
+                if (!fullReported) {
+                    log.warn("TxidIndex: {} is full. New transactions are not indexed. Re-create the file with more slots", file.getAbsolutePath());
+                    fullReported = true;
+                }
+                return;
+            }
+            used++;
+            header.putLong(HEADER_USED, used);
+        }
+        writeSlot(target, key, packed);
+        setSize(size + 1);
+        updateMaxBlockHeight(blockHeight);
+    }
+
+    /**
+     * Remove transaction from the index.
+     *
+     * @param txid transaction hash
+     * @param transactionId transaction ID
+     */
+    public synchronized void delete(String txid, int transactionId) {
+        long[] key = toKey(txid);
+        for (long i = key[0] & mask;; i = (i + 1) & mask) {
+            long value = getValue(i);
+            if (value == FREE) {
+                return;
+            }
+            if (value != DELETED && isKey(i, key)) {
+                if (unpackTransactionId(value) == transactionId) {
+                    writeSlot(i, null, DELETED);
+                    setSize(size - 1);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove rolled back transactions of blocks above given height. Entries
+     * are removed by key, so the cost depends on number of transactions only.
+     *
+     * @param blockHeight last valid block height
+     * @param transactions transactions of the rolled back blocks
+     */
+    public synchronized void deleteBlocksAbove(int blockHeight, Collection<BtcTransaction> transactions) {
+        for (BtcTransaction t : transactions) {
+            delete(t.getTxid(), t.getTransactionId());
+        }
+        if (maxBlockHeight > blockHeight) {
+            maxBlockHeight = blockHeight;
+            header.putInt(HEADER_MAX_HEIGHT, blockHeight);
+        }
+        log.info("TxidIndex: Removed {} transactions above block {}", transactions.size(), blockHeight);
+    }
+
+    /**
+     * Remove transactions of blocks above given height when the transactions
+     * are not known, i.e. entries added before unclean stop for blocks that
+     * never reached DB. Scans the whole table, so it is only done on start
+     * and only if index has transactions above the height.
+     *
+     * @param blockHeight last valid block height
+     */
+    public synchronized void invalidateBlocksAbove(int blockHeight) {
+        if (maxBlockHeight <= blockHeight) {
+            return;
+        }
+        long s = System.currentTimeMillis();
+        long n = 0;
+        long stamp = slotLock.writeLock();
+        try {
+            for (long i = 0; i < slots; i++) {
+                long value = getValue(i);
+                if (value != FREE && value != DELETED && unpackBlockHeight(value) > blockHeight) {
+                    setValue(i, DELETED);
+                    n++;
+                }
+            }
+        } finally {
+            slotLock.unlockWrite(stamp);
+        }
+        setSize(size - n);
+        maxBlockHeight = blockHeight;
+        header.putInt(HEADER_MAX_HEIGHT, blockHeight);
+        log.info("TxidIndex: Removed {} transactions above block {}. Runtime: {} ms.", n, blockHeight, System.currentTimeMillis() - s);
+    }
+
+    /**
+     * Force index file content to disk.
+     */
+    public synchronized void sync() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.force();
+    }
+
+    @Override
+    public void close() {
+        sync();
+    }
+
+    private void setSize(long size) {
+        this.size = size;
+        header.putLong(HEADER_SIZE_FIELD, size);
+    }
+
+    private void updateMaxBlockHeight(int blockHeight) {
+        if (blockHeight > maxBlockHeight) {
+            maxBlockHeight = blockHeight;
+            header.putInt(HEADER_MAX_HEIGHT, blockHeight);
+        }
+    }
+
+    /**
+     * Write slot under write lock, so optimistic readers that overlap the
+     * write repeat the lookup.
+     *
+     * @param key new key or null to keep the key of the slot
+     */
+    private void writeSlot(long slot, long[] key, long value) {
+        long stamp = slotLock.writeLock();
+        try {
+            if (key != null) {
+                setKey(slot, key);
+            }
+            setValue(slot, value);
+        } finally {
+            slotLock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean isKey(long slot, long[] key) {
+        MappedByteBuffer chunk = chunks[(int) (slot >>> chunkBits)];
+        int offset = (int) (slot & chunkMask) * SLOT_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.getLong(offset + i * 8) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setKey(long slot, long[] key) {
+        MappedByteBuffer chunk = chunks[(int) (slot >>> chunkBits)];
+        int offset = (int) (slot & chunkMask) * SLOT_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            chunk.putLong(offset + i * 8, key[i]);
+        }
+    }
+
+    private long getValue(long slot) {
+        return chunks[(int) (slot >>> chunkBits)].getLong((int) (slot & chunkMask) * SLOT_SIZE + TXID_SIZE);
+    }
+
+    private void setValue(long slot, long value) {
+        chunks[(int) (slot >>> chunkBits)].putLong((int) (slot & chunkMask) * SLOT_SIZE + TXID_SIZE, value);
+    }
+
+    private static long[] toKey(String txid) {
+        long[] result = new long[TXID_SIZE / 8];
+        for (int i = 0; i < TXID_SIZE * 2; i++) {
+            result[i / 16] = (result[i / 16] << 4) | Character.digit(txid.charAt(i), 16);
+        }
+        return result;
+    }
+
+    private static long pack(int transactionId, int blockHeight) {
+        return ((long) transactionId << 32) | (blockHeight & 0xFFFFFFFFL);
+    }
+
+    private static int unpackTransactionId(long value) {
+        return (int) (value >>> 32);
+    }
+
+    private static int unpackBlockHeight(long value) {
+        return (int) value;
+    }
+}
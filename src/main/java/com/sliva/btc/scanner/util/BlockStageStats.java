@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Per-block processing times broken down by stage. Keeps rolling window of
+ * the last blocks for percentiles and the slowest blocks seen so far.
+ *
+ * @author Sliva Co
+ */
+public class BlockStageStats {
+
+    private static final int[] PERCENTILES = {50, 90, 99};
+    private final int windowSize;
+    private final int maxSlowest;
+    private final long[][] window;
+    private final long[] windowTotal;
+    private final PriorityQueue<BlockTiming> slowest = new PriorityQueue<>(Comparator.comparingLong(BlockTiming::getTotalNanos));
+    private long count;
+
+    public BlockStageStats(int windowSize, int maxSlowest) {
+        this.windowSize = windowSize;
+        this.maxSlowest = maxSlowest;
+        this.window = new long[Stage.values().length][windowSize];
+        this.windowTotal = new long[windowSize];
+    }
+
+    public synchronized void add(BlockTiming timing) {
+        int n = (int) (count % windowSize);
+        for (Stage stage : Stage.values()) {
+            window[stage.ordinal()][n] = timing.getNanos(stage);
+        }
+        windowTotal[n] = timing.getTotalNanos();
+        count++;
+        slowest.add(timing);
+        if (slowest.size() > maxSlowest) {
+            slowest.poll();
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Get percentile of stage time over the rolling window.
+     *
+     * @param stage stage or null for the total block time
+     * @param percentile percentile (0..100)
+     * @return time in nanoseconds
+     */
+    public synchronized long getPercentile(Stage stage, int percentile) {
+        int size = (int) Math.min(count, windowSize);
+        if (size == 0) {
+            return 0;
+        }
+        long[] values = Arrays.copyOf(stage == null ? windowTotal : window[stage.ordinal()], size);
+        Arrays.sort(values);
+        return values[Math.min(size - 1, size * percentile / 100)];
+    }
+
+    /**
+     * Get the slowest blocks.
+     *
+     * @return list of block timings, slowest first
+     */
+    public synchronized List<BlockTiming> getSlowest() {
+        List<BlockTiming> result = new ArrayList<>(slowest);
+        result.sort(Comparator.comparingLong(BlockTiming::getTotalNanos).reversed());
+        return result;
+    }
+
+    /**
+     * Format percentiles of every stage over the rolling window, i.e.
+     * "total[p50=12,p90=40,p99=95] fetch[...]" in milliseconds.
+     *
+     * @return formatted string
+     */
+    public synchronized String formatPercentiles() {
+        StringBuilder sb = new StringBuilder("total").append(formatPercentiles(null));
+        for (Stage stage : Stage.values()) {
+            sb.append(' ').append(stage.getName()).append(formatPercentiles(stage));
+        }
+        return sb.toString();
+    }
+
+    private String formatPercentiles(Stage stage) {
+        return Arrays.stream(PERCENTILES)
+                .mapToObj(p -> "p" + p + "=" + TimeUnit.NANOSECONDS.toMillis(getPercentile(stage, p)))
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    public enum Stage {
+        FETCH("fetch"), PARSE("parse"), RESOLVE("resolve"), QUEUE_WAIT("queue-wait"), WRITE("write");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @Getter
+    @Builder
+    public static class BlockTiming {
+
+        private final int blockHeight;
+        private final int nTxns;
+        /**
+         * Wall time the block took in main processing thread. Stages are
+         * partially run in background threads, so they don't add up to it.
+         */
+        private final long totalNanos;
+        private final long[] stageNanos;
+        private final int txnHitRate;
+        private final int outputHitRate;
+        private final int addressHitRate;
+
+        public long getNanos(Stage stage) {
+            return stageNanos[stage.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Block(").append(blockHeight).append(") nTxns=").append(nTxns)
+                    .append(", total=").append(TimeUnit.NANOSECONDS.toMillis(getTotalNanos())).append(" ms [");
+            for (Stage stage : Stage.values()) {
+                sb.append(stage.ordinal() == 0 ? "" : ", ").append(stage.getName()).append('=').append(TimeUnit.NANOSECONDS.toMillis(getNanos(stage)));
+            }
+            return sb.append("], cache hit %: txn=").append(txnHitRate)
+                    .append(", output=").append(outputHitRate)
+                    .append(", address=").append(addressHitRate).toString();
+        }
+    }
+}
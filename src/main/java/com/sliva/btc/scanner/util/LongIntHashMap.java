@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.Arrays;
+
+/**
+ * Hash map of primitive long keys to int values. Open addressing with linear
+ * probing, no boxing and no per-entry objects. Not thread safe.
+ *
+ * Long.MIN_VALUE is reserved to mark free slots and can not be used as a key.
+ *
+ * @author Sliva Co
+ */
+public class LongIntHashMap {
+
+    private static final long FREE_KEY = Long.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.5f;
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int threshold;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        allocate(tableSizeFor((int) Math.min(1 << 30, (long) (expectedSize / LOAD_FACTOR) + 1)));
+    }
+
+    /**
+     * Get value of the key.
+     *
+     * @param key key
+     * @param defaultValue value to return if key is not in the map
+     * @return value or defaultValue
+     */
+    public int get(long key, int defaultValue) {
+        int i = indexOf(key);
+        return keys[i] == FREE_KEY ? defaultValue : values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return keys[indexOf(key)] != FREE_KEY;
+    }
+
+    /**
+     * Put value for the key.
+     *
+     * @param key key
+     * @param value value
+     * @return true if key was not in the map
+     */
+    public boolean put(long key, int value) {
+        checkKey(key);
+        int i = indexOf(key);
+        if (keys[i] != FREE_KEY) {
+            values[i] = value;
+            return false;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Remove key from the map. Entries following the removed one in the probe
+     * sequence are shifted back, so no tombstones are left behind.
+     *
+     * @param key key
+     * @return true if key was in the map
+     */
+    public boolean remove(long key) {
+        int i = indexOf(key);
+        if (keys[i] == FREE_KEY) {
+            return false;
+        }
+        size--;
+        int free = i;
+        for (int j = (i + 1) & mask; keys[j] != FREE_KEY; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            //move entry j to the free slot if its home is not in the range (free..j]
+            if (free <= j ? (home <= free || home > j) : (home <= free && home > j)) {
+                keys[free] = keys[j];
+                values[free] = values[j];
+                free = j;
+            }
+        }
+        keys[free] = FREE_KEY;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        size = 0;
+    }
+
+    private int indexOf(long key) {
+        int i = mix(key) & mask;
+        while (keys[i] != FREE_KEY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY) {
+                int j = indexOf(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE_KEY);
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static void checkKey(long key) {
+        if (key == FREE_KEY) {
+            throw new IllegalArgumentException("Key is not supported: " + key);
+        }
+    }
+
+    private static int tableSizeFor(int n) {
+        int capacity = Integer.highestOneBit(Math.max(n, 2) - 1) << 1;
+        return Math.max(capacity, 2);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
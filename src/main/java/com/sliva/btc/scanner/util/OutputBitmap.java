@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Compact set of output keys (transaction_id, pos). Positions of every
+ * transaction are stored as bits of a BitSet, transactions are kept sorted so
+ * the set can be drained in ranges of transaction IDs. Not thread safe.
+ *
+ * @author Sliva Co
+ */
+public class OutputBitmap {
+
+    private final NavigableMap<Integer, BitSet> map = new TreeMap<>();
+    private int size;
+
+    /**
+     * Add output to the set.
+     *
+     * @param transactionId transaction ID
+     * @param pos output position
+     * @return true if output was not in the set
+     */
+    public boolean set(int transactionId, int pos) {
+        BitSet bits = map.get(transactionId);
+        if (bits == null) {
+            map.put(transactionId, bits = new BitSet(pos + 1));
+        } else if (bits.get(pos)) {
+            return false;
+        }
+        bits.set(pos);
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove output from the set.
+     *
+     * @param transactionId transaction ID
+     * @param pos output position
+     * @return true if output was in the set
+     */
+    public boolean clear(int transactionId, int pos) {
+        BitSet bits = map.get(transactionId);
+        if (bits == null || !bits.get(pos)) {
+            return false;
+        }
+        bits.clear(pos);
+        if (bits.isEmpty()) {
+            map.remove(transactionId);
+        }
+        size--;
+        return true;
+    }
+
+    public boolean contains(int transactionId, int pos) {
+        BitSet bits = map.get(transactionId);
+        return bits != null && bits.get(pos);
+    }
+
+    /**
+     * Number of outputs in the set.
+     *
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove and return outputs of the lowest transaction IDs. Whole
+     * transactions are taken until at least maxOutputs are collected.
+     *
+     * @param maxOutputs approximate maximum number of outputs to return
+     * @return map of transaction ID to positions, sorted by transaction ID
+     */
+    public NavigableMap<Integer, BitSet> pollRange(int maxOutputs) {
+        NavigableMap<Integer, BitSet> result = new TreeMap<>();
+        int n = 0;
+        while (n < maxOutputs && !map.isEmpty()) {
+            Map.Entry<Integer, BitSet> e = map.pollFirstEntry();
+            result.put(e.getKey(), e.getValue());
+            n += e.getValue().cardinality();
+        }
+        size -= n;
+        return result;
+    }
+
+    public void clear() {
+        map.clear();
+        size = 0;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.sliva.btc.scanner.util;
 
+import com.google.common.cache.CacheBuilder;
 import com.sliva.btc.scanner.src.SrcAddressType;
 import java.io.File;
 import java.io.FileReader;
@@ -22,6 +23,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
+import java.util.Map;
 import java.util.Properties;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.DecoderException;
@@ -43,6 +45,7 @@ public final class Utils {
     private static final String DUPE2 = "d5d27987d2a3dfc724e359870c6644b40e497bdc0589a033220fe15429d88599";
     private static final String DUPE2_REPLACE = "d5d27987d2a3dfc724e359870c6644b40e497bdc0589a033220fe15429d88598";
     private static final int DUPE2_BLOCK = 91812;
+    private static final int LRU_MAP_CONCURRENCY = 32;
 
     public static String fixDupeTxid(String txid, int blockHeight) {
         if (txid.equalsIgnoreCase(DUPE1) && blockHeight == DUPE1_BLOCK) {
@@ -115,6 +118,25 @@ public final class Utils {
         return null;
     }
 
+    /**
+     * Create bounded map with approximate LRU eviction for concurrent use.
+     * Map is split into segments with own locks. Reads are recorded in
+     * per-segment buffers and applied to LRU order when the segment lock is
+     * free, so cache hits don't block each other.
+     *
+     * @param <K> key type
+     * @param <V> value type
+     * @param maxSize maximum number of entries
+     * @return new map
+     */
+    public static <K, V> Map<K, V> newLruMap(int maxSize) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(LRU_MAP_CONCURRENCY)
+                .<K, V>build()
+                .asMap();
+    }
+
     public static void logRuntime(String name, Runnable r) {
         long s = System.currentTimeMillis();
         r.run();
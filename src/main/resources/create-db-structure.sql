@@ -1,3 +1,9 @@
+CREATE TABLE IF NOT EXISTS `address_id_alloc` (
+  `address_type` varchar(10) NOT NULL,
+  `next_id` int(10) unsigned NOT NULL,
+  PRIMARY KEY (`address_type`)
+) ENGINE=MyISAM DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
 CREATE TABLE IF NOT EXISTS `address_p2pkh` (
   `address_id` int(10) unsigned NOT NULL,
   `address` binary(20) NOT NULL,
@@ -61,6 +67,17 @@ CREATE TABLE IF NOT EXISTS `output` (
   KEY `ix_address` (`address_id`)
 ) ENGINE=MyISAM DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
 
+CREATE TABLE IF NOT EXISTS `scan_shard` (
+  `pass` tinyint(3) unsigned NOT NULL,
+  `shard_id` int(10) unsigned NOT NULL,
+  `start_height` int(10) unsigned NOT NULL,
+  `end_height` int(10) unsigned NOT NULL,
+  `status` tinyint(3) unsigned NOT NULL DEFAULT '0',
+  `worker` varchar(100) DEFAULT NULL,
+  `heartbeat` timestamp NULL DEFAULT NULL,
+  PRIMARY KEY (`pass`,`shard_id`)
+) ENGINE=MyISAM DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
 CREATE TABLE IF NOT EXISTS `transaction` (
   `transaction_id` int(10) unsigned NOT NULL,
   `txid` binary(32) NOT NULL,
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import com.sliva.btc.scanner.db.model.OutputStatus;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class DbUpdateOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+
+    public DbUpdateOutputTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder();
+    }
+
+    @After
+    public void tearDown() {
+        BatchExecutor.setRowSink(new MysqlRowSink());
+    }
+
+    /**
+     * Test of updates of outputs already written to file row sink.
+     */
+    @Test
+    public void testUpdateAfterFlush() throws Exception {
+        System.out.println("updateAfterFlush");
+        try (FileRowSink sink = new FileRowSink(dir)) {
+            BatchExecutor.setRowSink(sink);
+            try (DbUpdateOutput instance = new DbUpdateOutput(new DBConnection())) {
+                instance.add(TxOutput.builder().transactionId(10).pos((short) 0).addressId(5).amount(100).status(OutputStatus.UNSPENT).build());
+                instance.add(TxOutput.builder().transactionId(10).pos((short) 1).addressId(6).amount(200).status(OutputStatus.UNSPENT).build());
+                instance.flushCache();
+                instance.updateSpent(10, (short) 0, OutputStatus.SPENT);
+                instance.updateAddress(10, (short) 1, 7);
+                instance.flushCache();
+            }
+        }
+        assertEquals(Arrays.asList("10\t0\t5\t100\t0", "10\t1\t6\t200\t0"),
+                Files.readAllLines(new File(dir, "output" + FileRowSink.DATA_FILE_SUFFIX).toPath(), StandardCharsets.ISO_8859_1));
+        List<String> updates = Files.readAllLines(new File(dir, "output_update" + FileRowSink.DATA_FILE_SUFFIX).toPath(), StandardCharsets.ISO_8859_1);
+        assertEquals(2, updates.size());
+        //patches go first, then SPENT markers, each row with the next sequence number
+        String[] patch = updates.get(0).split("\t");
+        String[] spent = updates.get(1).split("\t");
+        assertEquals(Arrays.asList("10", "1", "1", "7"), Arrays.asList(patch).subList(1, 5));
+        assertEquals(Arrays.asList("10", "0", "4"), Arrays.asList(spent).subList(1, 4));
+        assertEquals(Byte.toString(OutputStatus.SPENT), spent[6]);
+        assertTrue(Long.parseLong(patch[0]) < Long.parseLong(spent[0]));
+        List<String> script = Files.readAllLines(new File(dir, FileRowSink.LOAD_SCRIPT).toPath(), StandardCharsets.UTF_8);
+        assertEquals(7, script.size());
+        assertTrue(script.get(0).startsWith("LOAD DATA LOCAL INFILE 'output.data' INTO TABLE output "));
+        assertTrue(script.get(1).startsWith("CREATE TABLE IF NOT EXISTS output_update("));
+        assertTrue(script.get(2).startsWith("LOAD DATA LOCAL INFILE 'output_update.data' INTO TABLE output_update "));
+        assertTrue(script.get(5).endsWith("SET o.spent=t.spent;"));
+        assertEquals("DROP TABLE output_update;", script.get(6));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.db;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class FileRowSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+
+    public FileRowSinkTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder();
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of write method, of class FileRowSink.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        System.out.println("write");
+        try (FileRowSink instance = new FileRowSink(dir)) {
+            assertEquals(2, instance.write(Arrays.asList(1, 2), "output", "transaction_id,pos", null, (Integer t, BatchExecutor.RowWriter row) -> row
+                    .add(t)
+                    .add(t * 10)));
+            assertEquals(1, instance.write(Arrays.asList(3), "output", "transaction_id,pos", null, (Integer t, BatchExecutor.RowWriter row) -> row
+                    .add(t)
+                    .add(t * 10)));
+            assertEquals(1, instance.write(Arrays.asList(new byte[]{'a', '\t', 'b'}), "transaction", "txid", null, (byte[] t, BatchExecutor.RowWriter row) -> row
+                    .add(t)));
+            assertEquals(0, instance.write(Arrays.asList(), "input", "transaction_id", null, (Object t, BatchExecutor.RowWriter row) -> row
+                    .add(1)));
+        }
+        assertEquals(Arrays.asList("1\t10", "2\t20", "3\t30"), Files.readAllLines(new File(dir, "output" + FileRowSink.DATA_FILE_SUFFIX).toPath(), StandardCharsets.ISO_8859_1));
+        assertEquals(Arrays.asList("a\\tb"), Files.readAllLines(new File(dir, "transaction" + FileRowSink.DATA_FILE_SUFFIX).toPath(), StandardCharsets.ISO_8859_1));
+        assertFalse(new File(dir, "input" + FileRowSink.DATA_FILE_SUFFIX).exists());
+        List<String> script = Files.readAllLines(new File(dir, FileRowSink.LOAD_SCRIPT).toPath(), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(
+                "LOAD DATA LOCAL INFILE 'output.data' INTO TABLE output CHARACTER SET binary (transaction_id,pos);",
+                "LOAD DATA LOCAL INFILE 'transaction.data' INTO TABLE transaction CHARACTER SET binary (txid);"), script);
+    }
+}
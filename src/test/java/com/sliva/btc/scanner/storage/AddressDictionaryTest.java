@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.io.File;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class AddressDictionaryTest {
+
+    private static final long SLOTS = 16;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+
+    public AddressDictionaryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "address_p2pkh.dict");
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of add and find methods, of class AddressDictionary.
+     */
+    @Test
+    public void testAddFind() throws Exception {
+        System.out.println("addFind");
+        try (AddressDictionary instance = new AddressDictionary(file, SrcAddressType.P2PKH, SLOTS)) {
+            instance.add(address(1, 1), 101);
+            //same hash prefix, different address
+            instance.add(address(1, 2), 102);
+            instance.add(address(1, 1), 999);
+            assertEquals(2, instance.size());
+            assertEquals(101, instance.find(address(1, 1)));
+            assertEquals(102, instance.findSync(address(1, 2)));
+            assertEquals(0, instance.find(address(1, 3)));
+            assertEquals(0, instance.find(new byte[32]));
+            assertEquals(102, instance.getMaxAddressId());
+        }
+        try (AddressDictionary instance = new AddressDictionary(file, SrcAddressType.P2PKH, 0)) {
+            assertEquals(SLOTS, instance.getSlots());
+            assertEquals(2, instance.size());
+            assertFalse(instance.isComplete());
+            assertEquals(102, instance.find(address(1, 2)));
+        }
+    }
+
+    /**
+     * Test of invalidateAbove method, of class AddressDictionary.
+     */
+    @Test
+    public void testInvalidateAbove() throws Exception {
+        System.out.println("invalidateAbove");
+        try (AddressDictionary instance = new AddressDictionary(file, SrcAddressType.P2PKH, SLOTS)) {
+            instance.add(address(1, 1), 101);
+            instance.add(address(1, 2), 102);
+            instance.invalidateAbove(101);
+            assertEquals(1, instance.size());
+            assertEquals(101, instance.getMaxAddressId());
+            assertEquals(101, instance.find(address(1, 1)));
+            assertEquals(0, instance.find(address(1, 2)));
+            instance.add(address(1, 2), 103);
+            assertEquals(103, instance.find(address(1, 2)));
+        }
+    }
+
+    /**
+     * Test of markSynced method, of class AddressDictionary.
+     */
+    @Test
+    public void testMarkSynced() throws Exception {
+        System.out.println("markSynced");
+        try (AddressDictionary instance = new AddressDictionary(file, SrcAddressType.P2PKH, SLOTS)) {
+            assertEquals(0, instance.getSyncedAddressId());
+            instance.add(address(1, 1), 101);
+            instance.markSynced(101);
+            instance.add(address(1, 2), 102);
+            instance.add(address(1, 3), 103);
+        }
+        try (AddressDictionary instance = new AddressDictionary(file, SrcAddressType.P2PKH, 0)) {
+            assertEquals(101, instance.getSyncedAddressId());
+            instance.invalidateAbove(instance.getSyncedAddressId());
+            assertEquals(1, instance.size());
+            assertEquals(0, instance.find(address(1, 2)));
+            instance.invalidateAbove(100);
+            assertEquals(100, instance.getSyncedAddressId());
+        }
+    }
+
+    /**
+     * Test of getDefaultSlots method, of class AddressDictionary.
+     */
+    @Test
+    public void testGetDefaultSlots() {
+        System.out.println("getDefaultSlots");
+        assertEquals(1L << 20, AddressDictionary.getDefaultSlots(0));
+        assertEquals(3_000_000L, AddressDictionary.getDefaultSlots(1_500_000));
+    }
+
+    /**
+     * Test of setComplete method, of class AddressDictionary.
+     */
+    @Test
+    public void testComplete() throws Exception {
+        System.out.println("complete");
+        try (AddressDictionary instance = new AddressDictionary(file, SrcAddressType.P2PKH, SLOTS)) {
+            instance.setComplete(true);
+            assertTrue(instance.isComplete());
+            for (int i = 0; i < SLOTS; i++) {
+                instance.add(address(i, i), 100 + i);
+            }
+            assertFalse(instance.isComplete());
+            assertEquals((long) (SLOTS * 0.8), instance.size());
+        }
+    }
+
+    private static byte[] address(int prefix, int suffix) {
+        byte[] result = new byte[20];
+        result[7] = (byte) prefix;
+        result[19] = (byte) suffix;
+        return result;
+    }
+}
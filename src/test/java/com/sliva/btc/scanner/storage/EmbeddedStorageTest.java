@@ -0,0 +1,163 @@
+/* 
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import com.sliva.btc.scanner.db.model.BtcAddress;
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import com.sliva.btc.scanner.db.model.BtcWallet;
+import com.sliva.btc.scanner.db.model.OutputStatus;
+import com.sliva.btc.scanner.db.model.TxInput;
+import com.sliva.btc.scanner.db.model.TxOutput;
+import com.sliva.btc.scanner.src.SrcAddressType;
+import java.io.File;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class EmbeddedStorageTest {
+
+    private static final int SEGMENT_RECORDS = 4;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+
+    public EmbeddedStorageTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder();
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of addTransaction, getTransaction and findTransaction methods, of
+     * class EmbeddedStorage.
+     */
+    @Test
+    public void testTransaction() throws Exception {
+        System.out.println("transaction");
+        try (EmbeddedStorage instance = new EmbeddedStorage(dir, SEGMENT_RECORDS)) {
+            for (int i = 1; i <= 10; i++) {
+                instance.addTransaction(tx(i));
+            }
+            assertEquals(tx(3).getTxid(), instance.getTransaction(3).getTxid());
+            assertEquals(7, instance.findTransaction(tx(7).getTxid()).getTransactionId());
+            instance.flush();
+            assertEquals(5, instance.getTransaction(5).getBlockHeight());
+            assertEquals(9, instance.findTransaction(tx(9).getTxid()).getTransactionId());
+            assertNull(instance.getTransaction(11));
+        }
+        try (EmbeddedStorage instance = new EmbeddedStorage(dir, SEGMENT_RECORDS)) {
+            assertEquals(10, instance.getTransaction(10).getTransactionId());
+            assertEquals(2, instance.findTransaction(tx(2).getTxid()).getTransactionId());
+            assertEquals(10, instance.findTransaction(tx(10).getTxid()).getTransactionId());
+            assertNull(instance.findTransaction(tx(11).getTxid()));
+        }
+    }
+
+    /**
+     * Test of addOutput, getOutputs and updateOutputStatus methods, of class
+     * EmbeddedStorage.
+     */
+    @Test
+    public void testOutputs() throws Exception {
+        System.out.println("outputs");
+        try (EmbeddedStorage instance = new EmbeddedStorage(dir, SEGMENT_RECORDS)) {
+            for (int t = 1; t <= 3; t++) {
+                for (short p = 0; p < 3; p++) {
+                    instance.addOutput(TxOutput.builder().transactionId(t).pos(p).addressId(t * 10 + p).amount(1000L * p).build());
+                }
+            }
+            instance.addInput(TxInput.builder().transactionId(3).pos((short) 0).inTransactionId(1).inPos((short) 2).build());
+            instance.flush();
+            instance.updateOutputStatus(1, (short) 2, OutputStatus.SPENT);
+            List<TxOutput> outputs = instance.getOutputs(2);
+            assertEquals(3, outputs.size());
+            assertEquals(21, outputs.get(1).getAddressId());
+            assertEquals(2000L, outputs.get(2).getAmount());
+            assertEquals(OutputStatus.SPENT, instance.getOutput(1, (short) 2).getStatus());
+            assertEquals(OutputStatus.UNSPENT, instance.getOutput(1, (short) 1).getStatus());
+            List<TxInput> inputs = instance.getInputs(3);
+            assertEquals(1, inputs.size());
+            assertEquals(1, inputs.get(0).getInTransactionId());
+            assertEquals(2, inputs.get(0).getInPos());
+        }
+    }
+
+    /**
+     * Test of addAddress, findAddress, getLastAddressId and addWallet methods,
+     * of class EmbeddedStorage.
+     */
+    @Test
+    public void testAddressWallet() throws Exception {
+        System.out.println("addressWallet");
+        try (EmbeddedStorage instance = new EmbeddedStorage(dir, SEGMENT_RECORDS)) {
+            for (int i = 0; i < 10; i++) {
+                instance.addAddress(BtcAddress.builder().addressId(BtcAddress.ADDR_P2PKH_MIN + i).address(address(i)).walletId(i).build());
+            }
+            instance.addWallet(BtcWallet.builder().walletId(5).name("w5").build());
+            instance.flush();
+            BtcAddress a = instance.findAddress(SrcAddressType.P2PKH, address(7));
+            assertEquals(BtcAddress.ADDR_P2PKH_MIN + 7, a.getAddressId());
+            assertEquals(7, a.getWalletId());
+            assertNull(instance.findAddress(SrcAddressType.P2SH, address(7)));
+            assertArrayEquals(address(3), instance.getAddress(BtcAddress.ADDR_P2PKH_MIN + 3).getAddress());
+            assertEquals(BtcAddress.ADDR_P2PKH_MIN + 9, instance.getLastAddressId(SrcAddressType.P2PKH));
+            assertEquals(0, instance.getLastAddressId(SrcAddressType.P2SH));
+            assertEquals("w5", instance.getWallet(5).getName());
+            assertNull(instance.getWallet(5).getDescription());
+        }
+    }
+
+    private static BtcTransaction tx(int id) {
+        return BtcTransaction.builder()
+                .transactionId(id)
+                .txid(String.format("%064x", id * 7919L))
+                .blockHeight(id)
+                .nInputs(1)
+                .nOutputs(2)
+                .build();
+    }
+
+    private static byte[] address(int i) {
+        byte[] result = new byte[20];
+        result[0] = (byte) 0x76;
+        result[19] = (byte) i;
+        return result;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.storage;
+
+import com.sliva.btc.scanner.db.model.BtcTransaction;
+import java.io.File;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class TxidIndexTest {
+
+    private static final long SLOTS = 64;
+    private static final String TXID1 = "0000000000000001aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String TXID2 = "0000000000000041bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    private static final String TXID3 = "0000000000000001cccccccccccccccccccccccccccccccccccccccccccccccc";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File file;
+
+    public TxidIndexTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "txid.idx");
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of add, find and delete methods, of class TxidIndex.
+     */
+    @Test
+    public void testAddFindDelete() throws Exception {
+        System.out.println("addFindDelete");
+        try (TxidIndex instance = new TxidIndex(file, SLOTS)) {
+            instance.add(TXID1, 10, 100);
+            instance.add(TXID2, 11, 101);
+            assertEquals(2, instance.size());
+            BtcTransaction t = instance.find(TXID2);
+            assertEquals(11, t.getTransactionId());
+            assertEquals(101, t.getBlockHeight());
+            assertEquals(TXID2, t.getTxid());
+            instance.delete(TXID1, 10);
+            assertNull(instance.find(TXID1));
+            //probe passes deleted slot
+            assertEquals(11, instance.find(TXID2).getTransactionId());
+            instance.add(TXID1, 12, 102);
+            assertEquals(12, instance.find(TXID1).getTransactionId());
+            assertEquals(2, instance.size());
+        }
+        try (TxidIndex instance = new TxidIndex(file, 0)) {
+            assertEquals(SLOTS, instance.getSlots());
+            assertEquals(2, instance.size());
+            assertEquals(102, instance.getMaxBlockHeight());
+            assertEquals(12, instance.find(TXID1).getTransactionId());
+        }
+    }
+
+    /**
+     * Test of prefix collision handling, of class TxidIndex.
+     */
+    @Test
+    public void testSamePrefix() throws Exception {
+        System.out.println("samePrefix");
+        try (TxidIndex instance = new TxidIndex(file, SLOTS)) {
+            instance.add(TXID1, 10, 100);
+            instance.add(TXID1, 10, 100);
+            assertEquals(1, instance.size());
+            assertEquals(10, instance.find(TXID1).getTransactionId());
+            instance.add(TXID3, 11, 100);
+            assertEquals(2, instance.size());
+            assertEquals(10, instance.find(TXID1).getTransactionId());
+            assertEquals(11, instance.find(TXID3).getTransactionId());
+            assertNull(instance.find("0000000000000001dddddddddddddddddddddddddddddddddddddddddddddddd"));
+            instance.delete(TXID1, 10);
+            assertNull(instance.find(TXID1));
+            assertEquals(11, instance.find(TXID3).getTransactionId());
+        }
+    }
+
+    /**
+     * Test of deleteBlocksAbove method, of class TxidIndex.
+     */
+    @Test
+    public void testDeleteBlocksAbove() throws Exception {
+        System.out.println("deleteBlocksAbove");
+        try (TxidIndex instance = new TxidIndex(file, SLOTS)) {
+            instance.add(TXID1, 10, 100);
+            instance.add(TXID2, 11, 101);
+            instance.deleteBlocksAbove(100, Collections.singletonList(BtcTransaction.builder().transactionId(11).txid(TXID2).blockHeight(101).build()));
+            assertEquals(1, instance.size());
+            assertEquals(100, instance.getMaxBlockHeight());
+            assertNotNull(instance.find(TXID1));
+            assertNull(instance.find(TXID2));
+        }
+    }
+
+    /**
+     * Test of invalidateBlocksAbove method, of class TxidIndex.
+     */
+    @Test
+    public void testInvalidateBlocksAbove() throws Exception {
+        System.out.println("invalidateBlocksAbove");
+        try (TxidIndex instance = new TxidIndex(file, SLOTS)) {
+            instance.add(TXID1, 10, 100);
+            instance.add(TXID2, 11, 101);
+            instance.invalidateBlocksAbove(100);
+            assertEquals(1, instance.size());
+            assertEquals(100, instance.getMaxBlockHeight());
+            assertNotNull(instance.find(TXID1));
+            assertNull(instance.find(TXID2));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/* 
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class LongIntHashMapTest {
+
+    public LongIntHashMapTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of put and get methods, of class LongIntHashMap.
+     */
+    @Test
+    public void testPutGet() {
+        System.out.println("putGet");
+        LongIntHashMap instance = new LongIntHashMap(2);
+        assertTrue(instance.put(1L << 40, 1));
+        assertTrue(instance.put(-5, 2));
+        assertFalse(instance.put(1L << 40, 3));
+        for (int i = 0; i < 1000; i++) {
+            instance.put(i * 65536L, i);
+        }
+        assertEquals(1002, instance.size());
+        assertEquals(3, instance.get(1L << 40, -1));
+        assertEquals(2, instance.get(-5, -1));
+        assertEquals(999, instance.get(999 * 65536L, -1));
+        assertEquals(-1, instance.get(12345, -1));
+        assertTrue(instance.containsKey(0));
+    }
+
+    /**
+     * Test of remove method, of class LongIntHashMap.
+     */
+    @Test
+    public void testRemove() {
+        System.out.println("remove");
+        LongIntHashMap instance = new LongIntHashMap();
+        for (int i = 0; i < 1000; i++) {
+            instance.put(i, i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(instance.remove(i));
+        }
+        assertFalse(instance.remove(0));
+        assertEquals(500, instance.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, instance.get(i, -1));
+        }
+        instance.clear();
+        assertTrue(instance.isEmpty());
+        assertEquals(-1, instance.get(1, -1));
+    }
+
+    /**
+     * Test of put method with reserved key, of class LongIntHashMap.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedKey() {
+        System.out.println("reservedKey");
+        new LongIntHashMap().put(Long.MIN_VALUE, 1);
+    }
+}
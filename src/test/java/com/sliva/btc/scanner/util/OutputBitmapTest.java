@@ -0,0 +1,109 @@
+/* 
+ * Copyright 2018 Sliva Co.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sliva.btc.scanner.util;
+
+import java.util.BitSet;
+import java.util.NavigableMap;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sliva Co
+ */
+public class OutputBitmapTest {
+
+    public OutputBitmapTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of set method, of class OutputBitmap.
+     */
+    @Test
+    public void testSet() {
+        System.out.println("set");
+        OutputBitmap instance = new OutputBitmap();
+        assertTrue(instance.set(10, 0));
+        assertTrue(instance.set(10, 1000));
+        assertFalse(instance.set(10, 0));
+        assertTrue(instance.set(5, 3));
+        assertEquals(3, instance.size());
+        assertTrue(instance.contains(10, 1000));
+        assertFalse(instance.contains(10, 1));
+        assertFalse(instance.contains(6, 3));
+    }
+
+    /**
+     * Test of clear method, of class OutputBitmap.
+     */
+    @Test
+    public void testClear() {
+        System.out.println("clear");
+        OutputBitmap instance = new OutputBitmap();
+        instance.set(1, 1);
+        instance.set(1, 2);
+        assertTrue(instance.clear(1, 1));
+        assertFalse(instance.clear(1, 1));
+        assertFalse(instance.clear(2, 1));
+        assertEquals(1, instance.size());
+        assertTrue(instance.clear(1, 2));
+        assertTrue(instance.isEmpty());
+    }
+
+    /**
+     * Test of pollRange method, of class OutputBitmap.
+     */
+    @Test
+    public void testPollRange() {
+        System.out.println("pollRange");
+        OutputBitmap instance = new OutputBitmap();
+        for (int i = 100; i > 0; i--) {
+            instance.set(i, 0);
+            instance.set(i, 1);
+        }
+        NavigableMap<Integer, BitSet> result = instance.pollRange(5);
+        assertEquals(3, result.size());
+        assertEquals(1, result.firstKey().intValue());
+        assertEquals(3, result.lastKey().intValue());
+        assertEquals(194, instance.size());
+        assertFalse(instance.contains(3, 1));
+        assertTrue(instance.contains(4, 0));
+        result = instance.pollRange(Integer.MAX_VALUE);
+        assertEquals(97, result.size());
+        assertTrue(instance.isEmpty());
+    }
+
+}